@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.content.ContentResolver;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.provider.Settings;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+import android.view.IWindowManager;
+
+import cyanogenmod.providers.CMSettings;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The values shown by {@link DevelopmentSettings} that need a call into another process.
+ *
+ * {@link #load} reads them all on a background thread, each settings namespace with a single
+ * query of the whole table. While {@link #setBinding binding} the getters answer from the
+ * loaded values; otherwise they read the live value, so updating a single preference right
+ * after writing it still shows the new state. The settings tables are kept current through
+ * {@link #refresh} from content observers on the settings that were read, see
+ * {@link #takeNewUris}; the other values are refreshed whenever they are read live.
+ *
+ * All methods may be called from any thread.
+ */
+class DevelopmentOptionsSnapshot {
+    private static final String TAG = "DevOptionsSnapshot";
+
+    static final int GLOBAL = 0;
+    static final int SECURE = 1;
+    static final int SYSTEM = 2;
+    static final int CM_SECURE = 3;
+
+    static final Uri[] CONTENT_URIS = {
+        Settings.Global.CONTENT_URI,
+        Settings.Secure.CONTENT_URI,
+        Settings.System.CONTENT_URI,
+        CMSettings.Secure.CONTENT_URI,
+    };
+
+    private static final String[] PROJECTION = {
+        Settings.NameValueTable.NAME,
+        Settings.NameValueTable.VALUE,
+    };
+
+    private static final int ANIMATION_SCALES = 3;
+
+    private final ContentResolver mResolver;
+
+    // Whole tables by namespace, null for a namespace that hasn't been loaded.
+    private final ArrayMap<String, String>[] mTables = new ArrayMap[CONTENT_URIS.length];
+    // Show updates and disable overlays, as reported by surface flinger.
+    private int[] mFlingerState;
+    private float[] mAnimationScales;
+    private int mTerminalState = -1;
+    private boolean mBinding;
+    // Names read through the getters by namespace, kept across loads.
+    private final ArraySet<String>[] mReadNames = new ArraySet[CONTENT_URIS.length];
+    // Settings read for the first time since the last takeNewUris.
+    private final ArrayList<Uri> mNewUris = new ArrayList<>();
+
+    DevelopmentOptionsSnapshot(ContentResolver resolver) {
+        mResolver = resolver;
+        for (int i = 0; i < mReadNames.length; i++) {
+            mReadNames[i] = new ArraySet<>();
+        }
+    }
+
+    /**
+     * Reads every value, replacing whatever was loaded before. Must not be called on the main
+     * thread.
+     */
+    void load(IWindowManager windowManager, PackageManager pm, String terminalPackage) {
+        final ArrayMap<String, String>[] tables = new ArrayMap[CONTENT_URIS.length];
+        for (int i = 0; i < CONTENT_URIS.length; i++) {
+            tables[i] = queryTable(CONTENT_URIS[i]);
+        }
+        final int[] flingerState = readFlingerState();
+        float[] animationScales = new float[ANIMATION_SCALES];
+        try {
+            for (int i = 0; i < ANIMATION_SCALES; i++) {
+                animationScales[i] = windowManager.getAnimationScale(i);
+            }
+        } catch (RemoteException e) {
+            animationScales = null;
+        }
+        final int terminalState = terminalPackage != null
+                ? pm.getApplicationEnabledSetting(terminalPackage) : -1;
+
+        synchronized (this) {
+            System.arraycopy(tables, 0, mTables, 0, tables.length);
+            mFlingerState = flingerState;
+            mAnimationScales = animationScales;
+            mTerminalState = terminalState;
+        }
+    }
+
+    /**
+     * Drops everything, the getters read live values until the next {@link #load}.
+     */
+    synchronized void clear() {
+        for (int i = 0; i < mTables.length; i++) {
+            mTables[i] = null;
+        }
+        mFlingerState = null;
+        mAnimationScales = null;
+        mTerminalState = -1;
+    }
+
+    synchronized void setBinding(boolean binding) {
+        mBinding = binding;
+    }
+
+    /**
+     * Returns the uris of the settings read through the getters since the last call, so they
+     * can be observed.
+     */
+    synchronized List<Uri> takeNewUris() {
+        final List<Uri> uris = new ArrayList<>(mNewUris);
+        mNewUris.clear();
+        return uris;
+    }
+
+    /**
+     * Records a value about to be written by the screen itself, so {@link #refresh} doesn't
+     * report the change notification for it as a change.
+     */
+    synchronized void noteWritten(int namespace, String name, String value) {
+        final ArrayMap<String, String> table = findTable(namespace, name);
+        if (table == null) {
+            return;
+        }
+        if (value != null) {
+            table.put(name, value);
+        } else {
+            table.remove(name);
+        }
+    }
+
+    /**
+     * Re-reads the setting a content observer was notified about. Returns true if its value
+     * changed. Must not be called on the main thread.
+     */
+    boolean refresh(Uri uri) {
+        for (int i = 0; i < CONTENT_URIS.length; i++) {
+            final Uri tableUri = CONTENT_URIS[i];
+            if (!tableUri.getAuthority().equals(uri.getAuthority())
+                    || !uri.getPath().startsWith(tableUri.getPath())) {
+                continue;
+            }
+            synchronized (this) {
+                if (mTables[i] == null) {
+                    return false;
+                }
+            }
+            if (uri.getPathSegments().size() <= tableUri.getPathSegments().size()) {
+                // No particular setting, re-read the whole table.
+                final ArrayMap<String, String> table = queryTable(tableUri);
+                synchronized (this) {
+                    final boolean changed = mTables[i] == null || !mTables[i].equals(table);
+                    mTables[i] = table;
+                    return changed;
+                }
+            }
+            final String name = uri.getLastPathSegment();
+            final String value = readLive(i, name);
+            synchronized (this) {
+                // Moved settings read live are redirected, update where they were loaded from.
+                final ArrayMap<String, String> table = findTable(i, name);
+                if (table == null) {
+                    return false;
+                }
+                // The whole table was read, so a missing setting is one that isn't set.
+                final boolean changed = !Objects.equals(value, table.get(name));
+                if (value != null) {
+                    table.put(name, value);
+                } else {
+                    table.remove(name);
+                }
+                return changed;
+            }
+        }
+        return false;
+    }
+
+    String getString(int namespace, String name) {
+        synchronized (this) {
+            addReadName(namespace, name);
+            // Change notifications of moved settings come from where reads are redirected to.
+            if (namespace == SECURE || namespace == SYSTEM) {
+                addReadName(GLOBAL, name);
+            }
+            if (namespace == SYSTEM) {
+                addReadName(SECURE, name);
+            }
+            if (mBinding && mTables[namespace] != null) {
+                return getLoaded(namespace, name);
+            }
+        }
+        return readLive(namespace, name);
+    }
+
+    /**
+     * Same as {@code Settings.*.getInt(cr, name, def)} for the namespace.
+     */
+    int getInt(int namespace, String name, int def) {
+        final String value = getString(namespace, name);
+        if (value == null) {
+            return def;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    /**
+     * Returns show updates and disable overlays, or null if surface flinger can't be reached.
+     */
+    int[] getFlingerState() {
+        synchronized (this) {
+            if (mBinding && mFlingerState != null) {
+                return mFlingerState;
+            }
+        }
+        final int[] state = readFlingerState();
+        synchronized (this) {
+            if (state != null) {
+                mFlingerState = state;
+            }
+        }
+        return state;
+    }
+
+    float getAnimationScale(IWindowManager windowManager, int which) throws RemoteException {
+        synchronized (this) {
+            if (mBinding && mAnimationScales != null) {
+                return mAnimationScales[which];
+            }
+        }
+        final float scale = windowManager.getAnimationScale(which);
+        synchronized (this) {
+            if (mAnimationScales != null) {
+                mAnimationScales[which] = scale;
+            }
+        }
+        return scale;
+    }
+
+    int getApplicationEnabledSetting(PackageManager pm, String packageName) {
+        synchronized (this) {
+            if (mBinding && mTerminalState >= 0) {
+                return mTerminalState;
+            }
+        }
+        final int state = pm.getApplicationEnabledSetting(packageName);
+        synchronized (this) {
+            mTerminalState = state;
+        }
+        return state;
+    }
+
+    private void addReadName(int namespace, String name) {
+        if (mReadNames[namespace].add(name)) {
+            mNewUris.add(Uri.withAppendedPath(CONTENT_URIS[namespace], name));
+        }
+    }
+
+    private String getLoaded(int namespace, String name) {
+        // The whole table was read, so a missing setting just isn't set.
+        return findTable(namespace, name).get(name);
+    }
+
+    /**
+     * Returns the loaded table {@code name} is read from, or null if {@code namespace} hasn't
+     * been loaded.
+     */
+    private ArrayMap<String, String> findTable(int namespace, String name) {
+        final ArrayMap<String, String> table = mTables[namespace];
+        if (table == null || table.containsKey(name)) {
+            return table;
+        }
+        // Some secure and system settings moved to another namespace; the platform redirects
+        // reads of those, so look where they would have been redirected to.
+        if (namespace == SECURE || namespace == SYSTEM) {
+            if (mTables[GLOBAL] != null && mTables[GLOBAL].containsKey(name)) {
+                return mTables[GLOBAL];
+            }
+            if (namespace == SYSTEM && mTables[SECURE] != null
+                    && mTables[SECURE].containsKey(name)) {
+                return mTables[SECURE];
+            }
+        }
+        return table;
+    }
+
+    private String readLive(int namespace, String name) {
+        switch (namespace) {
+            case GLOBAL:
+                return Settings.Global.getString(mResolver, name);
+            case SECURE:
+                return Settings.Secure.getString(mResolver, name);
+            case SYSTEM:
+                return Settings.System.getString(mResolver, name);
+            case CM_SECURE:
+                return CMSettings.Secure.getString(mResolver, name);
+            default:
+                throw new IllegalArgumentException("Unknown namespace " + namespace);
+        }
+    }
+
+    private ArrayMap<String, String> queryTable(Uri uri) {
+        Cursor cursor = null;
+        try {
+            cursor = mResolver.query(uri, PROJECTION, null, null, null);
+            if (cursor == null) {
+                return null;
+            }
+            final ArrayMap<String, String> table = new ArrayMap<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                table.put(cursor.getString(0), cursor.getString(1));
+            }
+            return table;
+        } catch (RuntimeException e) {
+            // Leave the namespace unloaded, its settings are then read one by one.
+            Log.w(TAG, "Unable to query " + uri, e);
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private static int[] readFlingerState() {
+        // magic communication with surface flinger.
+        IBinder flinger = ServiceManager.getService("SurfaceFlinger");
+        if (flinger == null) {
+            return null;
+        }
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken("android.ui.ISurfaceComposer");
+            flinger.transact(1010, data, reply, 0);
+            @SuppressWarnings("unused")
+            int showCpu = reply.readInt();
+            @SuppressWarnings("unused")
+            int enableGL = reply.readInt();
+            int showUpdates = reply.readInt();
+            @SuppressWarnings("unused")
+            int showBackground = reply.readInt();
+            int disableOverlays = reply.readInt();
+            return new int[] { showUpdates, disableOverlays };
+        } catch (RemoteException ex) {
+            return null;
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+    }
+}
@@ -40,21 +40,25 @@ import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
+import android.database.ContentObserver;
 import android.net.NetworkUtils;
+import android.net.Uri;
 import android.net.wifi.IWifiManager;
 import android.net.wifi.WifiInfo;
 import android.hardware.usb.IUsbManager;
 import android.hardware.usb.UsbManager;
 import android.net.wifi.WifiManager;
-import android.os.AsyncTask;
 import android.os.BatteryManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Parcel;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.StrictMode;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
@@ -104,6 +108,14 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /*
  * Displays preferences for application developers.
@@ -113,6 +125,7 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
                 OnPreferenceChangeListener, SwitchBar.OnSwitchChangeListener, Indexable,
                 OnPreferenceClickListener {
     private static final String TAG = "DevelopmentSettings";
+    private static final boolean DEBUG = false;
 
     /**
      * Preference file were development settings prefs are stored.
@@ -253,6 +266,18 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
     private static final String THEME_FORCE_ENABLED = "theme_force_enabled";
 
     private IWindowManager mWindowManager;
+    private DevelopmentOptionsSnapshot mOptionValues;
+    private HandlerThread mLoadThread;
+    private Handler mLoadHandler;
+    private final Handler mHandler = new Handler();
+    private ContentObserver mSettingsObserver;
+    // Settings the observer is registered for while resumed. Only used on the load thread.
+    private final ArrayList<Uri> mObservedUris = new ArrayList<>();
+    private boolean mObservingSettings;
+    private boolean mOptionsLoaded;
+    // Bumped whenever a pending load should no longer be bound.
+    private int mLoadGeneration;
+    private long mResumeTime;
     private IBackupManager mBackupManager;
     private IWebViewUpdateService mWebViewUpdateService;
     private DevicePolicyManager mDpm;
@@ -381,6 +406,21 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
         super.onCreate(icicle);
 
         mWindowManager = IWindowManager.Stub.asInterface(ServiceManager.getService("window"));
+        mOptionValues = new DevelopmentOptionsSnapshot(getActivity().getContentResolver());
+        mLoadThread = new HandlerThread(TAG, android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        mLoadThread.start();
+        mLoadHandler = new Handler(mLoadThread.getLooper());
+        mSettingsObserver = new ContentObserver(mLoadHandler) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                // Only the changed setting is read again, then everything is bound from the
+                // snapshot.
+                if (uri != null && mOptionValues.refresh(uri)) {
+                    mHandler.removeCallbacks(mRebindOptions);
+                    mHandler.post(mRebindOptions);
+                }
+            }
+        };
         mBackupManager = IBackupManager.Stub.asInterface(
                 ServiceManager.getService(Context.BACKUP_SERVICE));
         mWebViewUpdateService  =
@@ -664,16 +704,21 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
     }
 
     private void setPrefsEnabledState(boolean enabled) {
+        updatePrefsEnabledState(enabled);
+        updateAllOptions();
+    }
+
+    private void updatePrefsEnabledState(boolean enabled) {
         for (int i = 0; i < mAllPrefs.size(); i++) {
             Preference pref = mAllPrefs.get(i);
             pref.setEnabled(enabled && !mDisabledPrefs.contains(pref));
         }
-        updateAllOptions();
     }
 
     @Override
     public void onResume() {
         super.onResume();
+        mResumeTime = SystemClock.elapsedRealtime();
 
         if (mUnavailable) {
             // Show error message
@@ -701,35 +746,120 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
         mLastEnabledState = Settings.Global.getInt(cr,
                 Settings.Global.DEVELOPMENT_SETTINGS_ENABLED, 0) != 0;
         mSwitchBar.setChecked(mLastEnabledState);
-        setPrefsEnabledState(mLastEnabledState);
+        updatePrefsEnabledState(mLastEnabledState);
+        mSwitchBar.show();
+
+        if (mColorModePreference != null) {
+            mColorModePreference.startListening();
+            mColorModePreference.updateCurrentAndSupported();
+        }
+
+        // Changes made while we were paused were missed, so everything is read again.
+        mLoadHandler.post(() -> startObservingSettings(cr));
+        loadAllOptions();
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        if (mColorModePreference != null) {
+            mColorModePreference.stopListening();
+        }
+        final ContentResolver cr = getActivity().getContentResolver();
+        mLoadHandler.post(() -> stopObservingSettings(cr));
+        mLoadGeneration++;
+        mOptionsLoaded = false;
+        mHandler.removeCallbacks(mRebindOptions);
+        // Don't bind stale values while paused; queued behind any load still running.
+        mOptionValues.clear();
+        mLoadHandler.post(mOptionValues::clear);
+    }
+
+    /**
+     * Reads every value shown on the screen on the load thread, then binds them all at once.
+     */
+    private void loadAllOptions() {
+        final int generation = ++mLoadGeneration;
+        final PackageManager pm = getActivity().getPackageManager();
+        final String terminalPackage = mEnableTerminal != null ? TERMINAL_APP_PACKAGE : null;
+        mLoadHandler.post(() -> {
+            final long start = SystemClock.elapsedRealtime();
+            mOptionValues.load(mWindowManager, pm, terminalPackage);
+            final long loadTime = SystemClock.elapsedRealtime() - start;
+            mHandler.post(() -> onOptionsLoaded(generation, loadTime));
+        });
+    }
+
+    private void onOptionsLoaded(int generation, long loadTime) {
+        if (generation != mLoadGeneration || getActivity() == null) {
+            return;
+        }
+        final long start = SystemClock.elapsedRealtime();
+        mOptionsLoaded = true;
+        updateAllOptions();
 
         if (mHaveDebugSettings && !mLastEnabledState) {
             // Overall debugging is disabled, but there are some debug
             // settings that are enabled.  This is an invalid state.  Switch
             // to debug settings being enabled, so the user knows there is
             // stuff enabled and can turn it all off if they want.
-            Settings.Global.putInt(getActivity().getContentResolver(),
-                    Settings.Global.DEVELOPMENT_SETTINGS_ENABLED, 1);
+            putGlobalInt(Settings.Global.DEVELOPMENT_SETTINGS_ENABLED, 1);
             mLastEnabledState = true;
             mSwitchBar.setChecked(mLastEnabledState);
             setPrefsEnabledState(mLastEnabledState);
         }
-        mSwitchBar.show();
+        if (DEBUG) {
+            final long now = SystemClock.elapsedRealtime();
+            Log.d(TAG, "Resume to interactive in " + (now - mResumeTime) + "ms (load "
+                    + loadTime + "ms in background, bind " + (now - start) + "ms)");
+        }
+    }
 
-        if (mColorModePreference != null) {
-            mColorModePreference.startListening();
-            mColorModePreference.updateCurrentAndSupported();
+    private void startObservingSettings(ContentResolver cr) {
+        mObservingSettings = true;
+        final int N = mObservedUris.size();
+        for (int i = 0; i < N; i++) {
+            cr.registerContentObserver(mObservedUris.get(i), false, mSettingsObserver);
         }
     }
 
-    @Override
-    public void onPause() {
-        super.onPause();
-        if (mColorModePreference != null) {
-            mColorModePreference.stopListening();
+    private void stopObservingSettings(ContentResolver cr) {
+        mObservingSettings = false;
+        cr.unregisterContentObserver(mSettingsObserver);
+    }
+
+    /**
+     * Observes settings the screen started showing. Runs on the load thread.
+     */
+    private void observeNewSettings(ContentResolver cr, List<Uri> uris) {
+        mObservedUris.addAll(uris);
+        if (!mObservingSettings) {
+            // Registered on the next resume, before everything is loaded again.
+            return;
+        }
+        boolean changed = false;
+        final int N = uris.size();
+        for (int i = 0; i < N; i++) {
+            final Uri uri = uris.get(i);
+            cr.registerContentObserver(uri, false, mSettingsObserver);
+            // It may have changed after it was loaded, before it was observed.
+            changed |= mOptionValues.refresh(uri);
+        }
+        if (changed) {
+            mHandler.removeCallbacks(mRebindOptions);
+            mHandler.post(mRebindOptions);
         }
     }
 
+    private final Runnable mRebindOptions = new Runnable() {
+        @Override
+        public void run() {
+            if (mOptionsLoaded) {
+                updateAllOptions();
+            }
+        }
+    };
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
             Bundle savedInstanceState) {
@@ -758,26 +888,94 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
         mHaveDebugSettings |= value;
     }
 
+    private int getGlobalInt(String name, int def) {
+        return mOptionValues.getInt(DevelopmentOptionsSnapshot.GLOBAL, name, def);
+    }
+
+    private String getGlobalString(String name) {
+        return mOptionValues.getString(DevelopmentOptionsSnapshot.GLOBAL, name);
+    }
+
+    private int getSecureInt(String name, int def) {
+        return mOptionValues.getInt(DevelopmentOptionsSnapshot.SECURE, name, def);
+    }
+
+    private int getSystemInt(String name, int def) {
+        return mOptionValues.getInt(DevelopmentOptionsSnapshot.SYSTEM, name, def);
+    }
+
+    private int getCmSecureInt(String name, int def) {
+        return mOptionValues.getInt(DevelopmentOptionsSnapshot.CM_SECURE, name, def);
+    }
+
+    // The writes below are noted in the snapshot first, so the observer doesn't rebind the
+    // whole screen for them.
+
+    private void putGlobalInt(String name, int value) {
+        mOptionValues.noteWritten(DevelopmentOptionsSnapshot.GLOBAL, name,
+                Integer.toString(value));
+        Settings.Global.putInt(getActivity().getContentResolver(), name, value);
+    }
+
+    private void putGlobalString(String name, String value) {
+        mOptionValues.noteWritten(DevelopmentOptionsSnapshot.GLOBAL, name, value);
+        Settings.Global.putString(getActivity().getContentResolver(), name, value);
+    }
+
+    private void putSecureInt(String name, int value) {
+        mOptionValues.noteWritten(DevelopmentOptionsSnapshot.SECURE, name,
+                Integer.toString(value));
+        Settings.Secure.putInt(getActivity().getContentResolver(), name, value);
+    }
+
+    private void putSystemInt(String name, int value) {
+        mOptionValues.noteWritten(DevelopmentOptionsSnapshot.SYSTEM, name,
+                Integer.toString(value));
+        Settings.System.putInt(getActivity().getContentResolver(), name, value);
+    }
+
+    private void putCmSecureInt(String name, int value) {
+        mOptionValues.noteWritten(DevelopmentOptionsSnapshot.CM_SECURE, name,
+                Integer.toString(value));
+        CMSettings.Secure.putInt(getActivity().getContentResolver(), name, value);
+    }
+
+    /**
+     * Binds every preference in one pass, from the snapshot when it has been loaded.
+     */
     private void updateAllOptions() {
-        final Context context = getActivity();
-        final ContentResolver cr = context.getContentResolver();
+        mOptionValues.setBinding(true);
+        try {
+            bindAllOptions();
+        } finally {
+            mOptionValues.setBinding(false);
+        }
+        final List<Uri> newUris = mOptionValues.takeNewUris();
+        if (!newUris.isEmpty()) {
+            final ContentResolver cr = getActivity().getContentResolver();
+            mLoadHandler.post(() -> observeNewSettings(cr, newUris));
+        }
+    }
+
+    private void bindAllOptions() {
         mHaveDebugSettings = false;
-        updateSwitchPreference(mEnableAdb, Settings.Global.getInt(cr,
+        updateSwitchPreference(mEnableAdb, getGlobalInt(
                 Settings.Global.ADB_ENABLED, 0) != 0);
         if (mEnableTerminal != null) {
             updateSwitchPreference(mEnableTerminal,
-                    context.getPackageManager().getApplicationEnabledSetting(TERMINAL_APP_PACKAGE)
+                    mOptionValues.getApplicationEnabledSetting(getActivity().getPackageManager(),
+                            TERMINAL_APP_PACKAGE)
                             == PackageManager.COMPONENT_ENABLED_STATE_ENABLED);
         }
-        updateSwitchPreference(mBugreportInPower, Settings.Secure.getInt(cr,
+        updateSwitchPreference(mBugreportInPower, getSecureInt(
                 Settings.Global.BUGREPORT_IN_POWER_MENU, 0) != 0);
-        updateSwitchPreference(mKeepScreenOn, Settings.Global.getInt(cr,
+        updateSwitchPreference(mKeepScreenOn, getGlobalInt(
                 Settings.Global.STAY_ON_WHILE_PLUGGED_IN, 0) != 0);
-        updateSwitchPreference(mBtHciSnoopLog, Settings.Secure.getInt(cr,
+        updateSwitchPreference(mBtHciSnoopLog, getSecureInt(
                 Settings.Secure.BLUETOOTH_HCI_LOG, 0) != 0);
-        updateSwitchPreference(mDebugViewAttributes, Settings.Global.getInt(cr,
+        updateSwitchPreference(mDebugViewAttributes, getGlobalInt(
                 Settings.Global.DEBUG_VIEW_ATTRIBUTES, 0) != 0);
-        updateSwitchPreference(mForceAllowOnExternal, Settings.Global.getInt(cr,
+        updateSwitchPreference(mForceAllowOnExternal, getGlobalInt(
                 Settings.Global.FORCE_ALLOW_ON_EXTERNAL, 0) != 0);
         updateHdcpValues();
         updatePasswordSummary();
@@ -831,7 +1029,7 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
     }
 
     private void updateAdbOverNetwork() {
-        int port = CMSettings.Secure.getInt(getActivity().getContentResolver(),
+        int port = getCmSecureInt(
                 CMSettings.Secure.ADB_PORT, 0);
         boolean enabled = port > 0;
 
@@ -859,24 +1057,22 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
     }
 
     private void writeForceAuthorizeSubstratumPackagesOptions() {
-        Settings.Secure.putInt(getActivity().getContentResolver(),
-                Settings.Secure.FORCE_AUTHORIZE_SUBSTRATUM_PACKAGES,
+        putSecureInt(Settings.Secure.FORCE_AUTHORIZE_SUBSTRATUM_PACKAGES,
                 mForceAuthorizeSubstratumPackages.isChecked() ? 1 : 0);
     }
 
     private void updateForceAuthorizeSubstratumPackagesOptions() {
-        mForceAuthorizeSubstratumPackages.setChecked(Settings.Secure.getInt(getActivity().getContentResolver(),
+        mForceAuthorizeSubstratumPackages.setChecked(getSecureInt(
                 Settings.Secure.FORCE_AUTHORIZE_SUBSTRATUM_PACKAGES, 0) != 0);
     }
 
     private void writeThemeForceEnabledOptions() {
-      Settings.Secure.putInt(getActivity().getContentResolver(),
-              Settings.Secure.THEME_FORCE_ENABLED,
+      putSecureInt(Settings.Secure.THEME_FORCE_ENABLED,
               mThemeForceEnabled.isChecked() ? 1 : 0);
     }
 
     private void updateThemeForceEnabledOptions() {
-        mThemeForceEnabled.setChecked(Settings.Secure.getInt(getActivity().getContentResolver(),
+        mThemeForceEnabled.setChecked(getSecureInt(
               Settings.Secure.THEME_FORCE_ENABLED, 0) != 0);
     }
 
@@ -944,14 +1140,13 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
 
     private void updateWebViewMultiprocessOptions() {
         updateSwitchPreference(mWebViewMultiprocess,
-                Settings.Global.getInt(getActivity().getContentResolver(),
+                getGlobalInt(
                         Settings.Global.WEBVIEW_MULTIPROCESS, 0) != 0);
     }
 
     private void writeWebViewMultiprocessOptions() {
         boolean value = mWebViewMultiprocess.isChecked();
-        Settings.Global.putInt(getActivity().getContentResolver(),
-                Settings.Global.WEBVIEW_MULTIPROCESS, value ? 1 : 0);
+        putGlobalInt(Settings.Global.WEBVIEW_MULTIPROCESS, value ? 1 : 0);
 
         try {
             String wv_package = mWebViewUpdateService.getCurrentWebViewPackageName();
@@ -985,17 +1180,14 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
         if (Integer.valueOf(newValue.toString()) < 2 && !oldValue.equals(newValue)
                 && "1".equals(SystemProperties.get("service.adb.root", "0"))) {
             SystemProperties.set("service.adb.root", "0");
-            Settings.Secure.putInt(getActivity().getContentResolver(),
-                    Settings.Secure.ADB_ENABLED, 0);
-            Settings.Secure.putInt(getActivity().getContentResolver(),
-                    Settings.Secure.ADB_ENABLED, 1);
+            putSecureInt(Settings.Secure.ADB_ENABLED, 0);
+            putSecureInt(Settings.Secure.ADB_ENABLED, 1);
         }
         updateRootAccessOptions();
     }
 
     private void resetAdbNotifyOptions() {
-        CMSettings.Secure.putInt(getActivity().getContentResolver(),
-                CMSettings.Secure.ADB_NOTIFY, 1);
+        putCmSecureInt(CMSettings.Secure.ADB_NOTIFY, 1);
     }
 
     private void resetRootAccessOptions() {
@@ -1003,10 +1195,8 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
         SystemProperties.set(ROOT_ACCESS_PROPERTY, "0");
         if (!oldValue.equals("0") && "1".equals(SystemProperties.get("service.adb.root", "0"))) {
             SystemProperties.set("service.adb.root", "0");
-            Settings.Secure.putInt(getActivity().getContentResolver(),
-                    Settings.Secure.ADB_ENABLED, 0);
-            Settings.Secure.putInt(getActivity().getContentResolver(),
-                    Settings.Secure.ADB_ENABLED, 1);
+            putSecureInt(Settings.Secure.ADB_ENABLED, 0);
+            putSecureInt(Settings.Secure.ADB_ENABLED, 1);
         }
         updateRootAccessOptions();
     }
@@ -1049,8 +1239,7 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
     private void writeBtHciSnoopLogOptions() {
         BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
         adapter.configHciSnoopLog(mBtHciSnoopLog.isChecked());
-        Settings.Secure.putInt(getActivity().getContentResolver(),
-                Settings.Secure.BLUETOOTH_HCI_LOG,
+        putSecureInt(Settings.Secure.BLUETOOTH_HCI_LOG,
                 mBtHciSnoopLog.isChecked() ? 1 : 0);
     }
 
@@ -1117,10 +1306,9 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
     }
 
     private void updateDebuggerOptions() {
-        mDebugApp = Settings.Global.getString(
-                getActivity().getContentResolver(), Settings.Global.DEBUG_APP);
-        updateSwitchPreference(mWaitForDebugger, Settings.Global.getInt(
-                getActivity().getContentResolver(), Settings.Global.WAIT_FOR_DEBUGGER, 0) != 0);
+        mDebugApp = getGlobalString(Settings.Global.DEBUG_APP);
+        updateSwitchPreference(mWaitForDebugger, getGlobalInt(
+                Settings.Global.WAIT_FOR_DEBUGGER, 0) != 0);
         if (mDebugApp != null && mDebugApp.length() > 0) {
             String label;
             try {
@@ -1174,14 +1362,13 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
     }
 
     private void updateVerifyAppsOverUsbOptions() {
-        updateSwitchPreference(mVerifyAppsOverUsb, Settings.Global.getInt(getActivity().getContentResolver(),
+        updateSwitchPreference(mVerifyAppsOverUsb, getGlobalInt(
                 Settings.Global.PACKAGE_VERIFIER_INCLUDE_ADB, 1) != 0);
         mVerifyAppsOverUsb.setEnabled(enableVerifierSetting());
     }
 
     private void writeVerifyAppsOverUsbOptions() {
-        Settings.Global.putInt(getActivity().getContentResolver(),
-                Settings.Global.PACKAGE_VERIFIER_INCLUDE_ADB,
+        putGlobalInt(Settings.Global.PACKAGE_VERIFIER_INCLUDE_ADB,
                 mVerifyAppsOverUsb.isChecked() ? 1 : 0);
     }
 
@@ -1189,8 +1376,7 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
         // We use the "disabled status" in code, but show the opposite text
         // "Automatic system updates" on screen. So a value 0 indicates the
         // automatic update is enabled.
-        updateSwitchPreference(mOtaDisableAutomaticUpdate, Settings.Global.getInt(
-                getActivity().getContentResolver(),
+        updateSwitchPreference(mOtaDisableAutomaticUpdate, getGlobalInt(
                 Settings.Global.OTA_DISABLE_AUTOMATIC_UPDATE, 0) != 1);
     }
 
@@ -1198,17 +1384,15 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
         // We use the "disabled status" in code, but show the opposite text
         // "Automatic system updates" on screen. So a value 0 indicates the
         // automatic update is enabled.
-        Settings.Global.putInt(getActivity().getContentResolver(),
-                Settings.Global.OTA_DISABLE_AUTOMATIC_UPDATE,
+        putGlobalInt(Settings.Global.OTA_DISABLE_AUTOMATIC_UPDATE,
                 mOtaDisableAutomaticUpdate.isChecked() ? 0 : 1);
     }
 
     private boolean enableVerifierSetting() {
-        final ContentResolver cr = getActivity().getContentResolver();
-        if (Settings.Global.getInt(cr, Settings.Global.ADB_ENABLED, 0) == 0) {
+        if (getGlobalInt(Settings.Global.ADB_ENABLED, 0) == 0) {
             return false;
         }
-        if (Settings.Global.getInt(cr, Settings.Global.PACKAGE_VERIFIER_ENABLE, 1) == 0) {
+        if (getGlobalInt(Settings.Global.PACKAGE_VERIFIER_ENABLE, 1) == 0) {
             return false;
         } else {
             final PackageManager pm = getActivity().getPackageManager();
@@ -1224,7 +1408,7 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
     }
 
     private boolean showVerifierSetting() {
-        return Settings.Global.getInt(getActivity().getContentResolver(),
+        return getGlobalInt(
                 Settings.Global.PACKAGE_VERIFIER_SETTING_VISIBLE, 1) > 0;
     }
 
@@ -1296,50 +1480,30 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
     }
 
     private void writePointerLocationOptions() {
-        Settings.System.putInt(getActivity().getContentResolver(),
-                Settings.System.POINTER_LOCATION, mPointerLocation.isChecked() ? 1 : 0);
+        putSystemInt(Settings.System.POINTER_LOCATION, mPointerLocation.isChecked() ? 1 : 0);
     }
 
     private void updatePointerLocationOptions() {
         updateSwitchPreference(mPointerLocation,
-                Settings.System.getInt(getActivity().getContentResolver(),
+                getSystemInt(
                         Settings.System.POINTER_LOCATION, 0) != 0);
     }
 
     private void writeShowTouchesOptions() {
-        Settings.System.putInt(getActivity().getContentResolver(),
-                Settings.System.SHOW_TOUCHES, mShowTouches.isChecked() ? 1 : 0);
+        putSystemInt(Settings.System.SHOW_TOUCHES, mShowTouches.isChecked() ? 1 : 0);
     }
 
     private void updateShowTouchesOptions() {
         updateSwitchPreference(mShowTouches,
-                Settings.System.getInt(getActivity().getContentResolver(),
+                getSystemInt(
                         Settings.System.SHOW_TOUCHES, 0) != 0);
     }
 
     private void updateFlingerOptions() {
-        // magic communication with surface flinger.
-        try {
-            IBinder flinger = ServiceManager.getService("SurfaceFlinger");
-            if (flinger != null) {
-                Parcel data = Parcel.obtain();
-                Parcel reply = Parcel.obtain();
-                data.writeInterfaceToken("android.ui.ISurfaceComposer");
-                flinger.transact(1010, data, reply, 0);
-                @SuppressWarnings("unused")
-                int showCpu = reply.readInt();
-                @SuppressWarnings("unused")
-                int enableGL = reply.readInt();
-                int showUpdates = reply.readInt();
-                updateSwitchPreference(mShowScreenUpdates, showUpdates != 0);
-                @SuppressWarnings("unused")
-                int showBackground = reply.readInt();
-                int disableOverlays = reply.readInt();
-                updateSwitchPreference(mDisableOverlays, disableOverlays != 0);
-                reply.recycle();
-                data.recycle();
-            }
-        } catch (RemoteException ex) {
+        final int[] state = mOptionValues.getFlingerState();
+        if (state != null) {
+            updateSwitchPreference(mShowScreenUpdates, state[0] != 0);
+            updateSwitchPreference(mDisableOverlays, state[1] != 0);
         }
     }
 
@@ -1506,12 +1670,11 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
     }
 
     private void updateSimulateColorSpace() {
-        final ContentResolver cr = getContentResolver();
-        final boolean enabled = Settings.Secure.getInt(
-                cr, Settings.Secure.ACCESSIBILITY_DISPLAY_DALTONIZER_ENABLED, 0) != 0;
+        final boolean enabled = getSecureInt(
+                Settings.Secure.ACCESSIBILITY_DISPLAY_DALTONIZER_ENABLED, 0) != 0;
         if (enabled) {
-            final String mode = Integer.toString(Settings.Secure.getInt(
-                    cr, Settings.Secure.ACCESSIBILITY_DISPLAY_DALTONIZER,
+            final String mode = Integer.toString(getSecureInt(
+                    Settings.Secure.ACCESSIBILITY_DISPLAY_DALTONIZER,
                     AccessibilityManager.DALTONIZER_DISABLED));
             mSimulateColorSpace.setValue(mode);
             final int index = mSimulateColorSpace.findIndexOfValue(mode);
@@ -1533,12 +1696,11 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
      *         controlled by development settings
      */
     private boolean usingDevelopmentColorSpace() {
-        final ContentResolver cr = getContentResolver();
-        final boolean enabled = Settings.Secure.getInt(
-                cr, Settings.Secure.ACCESSIBILITY_DISPLAY_DALTONIZER_ENABLED, 0) != 0;
+        final boolean enabled = getSecureInt(
+                Settings.Secure.ACCESSIBILITY_DISPLAY_DALTONIZER_ENABLED, 0) != 0;
         if (enabled) {
-            final String mode = Integer.toString(Settings.Secure.getInt(
-                    cr, Settings.Secure.ACCESSIBILITY_DISPLAY_DALTONIZER,
+            final String mode = Integer.toString(getSecureInt(
+                    Settings.Secure.ACCESSIBILITY_DISPLAY_DALTONIZER,
                     AccessibilityManager.DALTONIZER_DISABLED));
             final int index = mSimulateColorSpace.findIndexOfValue(mode);
             if (index >= 0) {
@@ -1550,13 +1712,12 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
     }
 
     private void writeSimulateColorSpace(Object value) {
-        final ContentResolver cr = getContentResolver();
         final int newMode = Integer.parseInt(value.toString());
         if (newMode < 0) {
-            Settings.Secure.putInt(cr, Settings.Secure.ACCESSIBILITY_DISPLAY_DALTONIZER_ENABLED, 0);
+            putSecureInt(Settings.Secure.ACCESSIBILITY_DISPLAY_DALTONIZER_ENABLED, 0);
         } else {
-            Settings.Secure.putInt(cr, Settings.Secure.ACCESSIBILITY_DISPLAY_DALTONIZER_ENABLED, 1);
-            Settings.Secure.putInt(cr, Settings.Secure.ACCESSIBILITY_DISPLAY_DALTONIZER, newMode);
+            putSecureInt(Settings.Secure.ACCESSIBILITY_DISPLAY_DALTONIZER_ENABLED, 1);
+            putSecureInt(Settings.Secure.ACCESSIBILITY_DISPLAY_DALTONIZER, newMode);
         }
     }
 
@@ -1573,50 +1734,45 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
     }
 
     private void updateUSBAudioOptions() {
-        updateSwitchPreference(mUSBAudio, Settings.Secure.getInt(getContentResolver(),
+        updateSwitchPreference(mUSBAudio, getSecureInt(
                 Settings.Secure.USB_AUDIO_AUTOMATIC_ROUTING_DISABLED, 0) != 0);
     }
 
     private void writeUSBAudioOptions() {
-        Settings.Secure.putInt(getContentResolver(),
-                Settings.Secure.USB_AUDIO_AUTOMATIC_ROUTING_DISABLED,
+        putSecureInt(Settings.Secure.USB_AUDIO_AUTOMATIC_ROUTING_DISABLED,
                 mUSBAudio.isChecked() ? 1 : 0);
     }
 
     private void updateForceResizableOptions() {
-        updateSwitchPreference(mForceResizable, Settings.Global.getInt(getContentResolver(),
+        updateSwitchPreference(mForceResizable, getGlobalInt(
                 Settings.Global.DEVELOPMENT_FORCE_RESIZABLE_ACTIVITIES, 0) != 0);
     }
 
     private void writeForceResizableOptions() {
-        Settings.Global.putInt(getContentResolver(),
-                Settings.Global.DEVELOPMENT_FORCE_RESIZABLE_ACTIVITIES,
+        putGlobalInt(Settings.Global.DEVELOPMENT_FORCE_RESIZABLE_ACTIVITIES,
                 mForceResizable.isChecked() ? 1 : 0);
     }
 
     private void updateForceRtlOptions() {
         updateSwitchPreference(mForceRtlLayout,
-                Settings.Global.getInt(getActivity().getContentResolver(),
+                getGlobalInt(
                         Settings.Global.DEVELOPMENT_FORCE_RTL, 0) != 0);
     }
 
     private void writeForceRtlOptions() {
         boolean value = mForceRtlLayout.isChecked();
-        Settings.Global.putInt(getActivity().getContentResolver(),
-                Settings.Global.DEVELOPMENT_FORCE_RTL, value ? 1 : 0);
+        putGlobalInt(Settings.Global.DEVELOPMENT_FORCE_RTL, value ? 1 : 0);
         SystemProperties.set(Settings.Global.DEVELOPMENT_FORCE_RTL, value ? "1" : "0");
         LocalePicker.updateLocale(getActivity().getResources().getConfiguration().locale);
     }
 
     private void updateWifiDisplayCertificationOptions() {
-        updateSwitchPreference(mWifiDisplayCertification, Settings.Global.getInt(
-                getActivity().getContentResolver(),
+        updateSwitchPreference(mWifiDisplayCertification, getGlobalInt(
                 Settings.Global.WIFI_DISPLAY_CERTIFICATION_ON, 0) != 0);
     }
 
     private void writeWifiDisplayCertificationOptions() {
-        Settings.Global.putInt(getActivity().getContentResolver(),
-                Settings.Global.WIFI_DISPLAY_CERTIFICATION_ON,
+        putGlobalInt(Settings.Global.WIFI_DISPLAY_CERTIFICATION_ON,
                 mWifiDisplayCertification.isChecked() ? 1 : 0);
     }
 
@@ -1658,14 +1814,12 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
     }
 
     private void updateMobileDataAlwaysOnOptions() {
-        updateSwitchPreference(mMobileDataAlwaysOn, Settings.Global.getInt(
-                getActivity().getContentResolver(),
+        updateSwitchPreference(mMobileDataAlwaysOn, getGlobalInt(
                 Settings.Global.MOBILE_DATA_ALWAYS_ON, 0) != 0);
     }
 
     private void writeMobileDataAlwaysOnOptions() {
-        Settings.Global.putInt(getActivity().getContentResolver(),
-                Settings.Global.MOBILE_DATA_ALWAYS_ON,
+        putGlobalInt(Settings.Global.MOBILE_DATA_ALWAYS_ON,
                 mMobileDataAlwaysOn.isChecked() ? 1 : 0);
     }
 
@@ -1930,13 +2084,13 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
     }
 
     private void updateImmediatelyDestroyActivitiesOptions() {
-        updateSwitchPreference(mImmediatelyDestroyActivities, Settings.Global.getInt(
-                getActivity().getContentResolver(), Settings.Global.ALWAYS_FINISH_ACTIVITIES, 0) != 0);
+        updateSwitchPreference(mImmediatelyDestroyActivities, getGlobalInt(
+                Settings.Global.ALWAYS_FINISH_ACTIVITIES, 0) != 0);
     }
 
     private void updateAnimationScaleValue(int which, ListPreference pref) {
         try {
-            float scale = mWindowManager.getAnimationScale(which);
+            float scale = mOptionValues.getAnimationScale(mWindowManager, which);
             if (scale != 1) {
                 mHaveDebugSettings = true;
             }
@@ -1971,7 +2125,7 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
     }
 
     private void updateOverlayDisplayDevicesOptions() {
-        String value = Settings.Global.getString(getActivity().getContentResolver(),
+        String value = getGlobalString(
                 Settings.Global.OVERLAY_DISPLAY_DEVICES);
         if (value == null) {
             value = "";
@@ -1990,8 +2144,7 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
     }
 
     private void writeOverlayDisplayDevicesOptions(Object newValue) {
-        Settings.Global.putString(getActivity().getContentResolver(),
-                Settings.Global.OVERLAY_DISPLAY_DEVICES, (String) newValue);
+        putGlobalString(Settings.Global.OVERLAY_DISPLAY_DEVICES, (String) newValue);
         updateOverlayDisplayDevicesOptions();
     }
 
@@ -2026,14 +2179,13 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
     }
 
     private void writeShowAllANRsOptions() {
-        Settings.Secure.putInt(getActivity().getContentResolver(),
-                Settings.Secure.ANR_SHOW_BACKGROUND,
+        putSecureInt(Settings.Secure.ANR_SHOW_BACKGROUND,
                 mShowAllANRs.isChecked() ? 1 : 0);
     }
 
     private void updateShowAllANRsOptions() {
-        updateSwitchPreference(mShowAllANRs, Settings.Secure.getInt(
-                getActivity().getContentResolver(), Settings.Secure.ANR_SHOW_BACKGROUND, 0) != 0);
+        updateSwitchPreference(mShowAllANRs, getSecureInt(
+                Settings.Secure.ANR_SHOW_BACKGROUND, 0) != 0);
     }
 
     private void confirmEnableOemUnlock() {
@@ -2100,8 +2252,7 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
                 mEnableDialog.setOnDismissListener(this);
             } else {
                 resetDangerousOptions();
-                Settings.Global.putInt(getActivity().getContentResolver(),
-                        Settings.Global.DEVELOPMENT_SETTINGS_ENABLED, 0);
+                putGlobalInt(Settings.Global.DEVELOPMENT_SETTINGS_ENABLED, 0);
                 mLastEnabledState = isChecked;
                 setPrefsEnabledState(mLastEnabledState);
 
@@ -2171,8 +2322,7 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
                         .show();
                 mAdbDialog.setOnDismissListener(this);
             } else {
-                Settings.Global.putInt(getActivity().getContentResolver(),
-                        Settings.Global.ADB_ENABLED, 0);
+                putGlobalInt(Settings.Global.ADB_ENABLED, 0);
                 mVerifyAppsOverUsb.setEnabled(false);
                 mVerifyAppsOverUsb.setChecked(false);
                 updateBugreportOptions();
@@ -2190,8 +2340,7 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
                         .show();
                 mAdbTcpDialog.setOnDismissListener(this);
             } else {
-                CMSettings.Secure.putInt(getActivity().getContentResolver(),
-                        CMSettings.Secure.ADB_PORT, -1);
+                putCmSecureInt(CMSettings.Secure.ADB_PORT, -1);
                 updateAdbOverNetwork();
             }
         } else if (preference == mClearAdbKeys) {
@@ -2207,13 +2356,11 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
                     mEnableTerminal.isChecked() ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
                             : PackageManager.COMPONENT_ENABLED_STATE_DEFAULT, 0);
         } else if (preference == mBugreportInPower) {
-            Settings.Secure.putInt(getActivity().getContentResolver(),
-                    Settings.Global.BUGREPORT_IN_POWER_MENU,
+            putSecureInt(Settings.Global.BUGREPORT_IN_POWER_MENU,
                     mBugreportInPower.isChecked() ? 1 : 0);
             setBugreportStorageProviderStatus();
         } else if (preference == mKeepScreenOn) {
-            Settings.Global.putInt(getActivity().getContentResolver(),
-                    Settings.Global.STAY_ON_WHILE_PLUGGED_IN,
+            putGlobalInt(Settings.Global.STAY_ON_WHILE_PLUGGED_IN,
                     mKeepScreenOn.isChecked() ?
                             (BatteryManager.BATTERY_PLUGGED_AC | BatteryManager.BATTERY_PLUGGED_USB) : 0);
         } else if (preference == mBtHciSnoopLog) {
@@ -2232,12 +2379,10 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
                     Manifest.permission.ACCESS_MOCK_LOCATION);
             startActivityForResult(intent, RESULT_MOCK_LOCATION_APP);
         } else if (preference == mDebugViewAttributes) {
-            Settings.Global.putInt(getActivity().getContentResolver(),
-                    Settings.Global.DEBUG_VIEW_ATTRIBUTES,
+            putGlobalInt(Settings.Global.DEBUG_VIEW_ATTRIBUTES,
                     mDebugViewAttributes.isChecked() ? 1 : 0);
         } else if (preference == mForceAllowOnExternal) {
-            Settings.Global.putInt(getActivity().getContentResolver(),
-                    Settings.Global.FORCE_ALLOW_ON_EXTERNAL,
+            putGlobalInt(Settings.Global.FORCE_ALLOW_ON_EXTERNAL,
                     mForceAllowOnExternal.isChecked() ? 1 : 0);
         } else if (preference == mDebugAppPref) {
             Intent intent = new Intent(getActivity(), AppPicker.class);
@@ -2466,8 +2611,7 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
         if (dialog == mAdbDialog) {
             if (which == DialogInterface.BUTTON_POSITIVE) {
                 mDialogClicked = true;
-                Settings.Global.putInt(getActivity().getContentResolver(),
-                        Settings.Global.ADB_ENABLED, 1);
+                putGlobalInt(Settings.Global.ADB_ENABLED, 1);
                 mVerifyAppsOverUsb.setEnabled(true);
                 updateVerifyAppsOverUsbOptions();
                 updateBugreportOptions();
@@ -2488,8 +2632,7 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
         } else if (dialog == mEnableDialog) {
             if (which == DialogInterface.BUTTON_POSITIVE) {
                 mDialogClicked = true;
-                Settings.Global.putInt(getActivity().getContentResolver(),
-                        Settings.Global.DEVELOPMENT_SETTINGS_ENABLED, 1);
+                putGlobalInt(Settings.Global.DEVELOPMENT_SETTINGS_ENABLED, 1);
                 mLastEnabledState = true;
                 setPrefsEnabledState(mLastEnabledState);
 
@@ -2518,8 +2661,7 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
             }
         } else if (dialog == mAdbTcpDialog) {
             if (which == DialogInterface.BUTTON_POSITIVE) {
-                CMSettings.Secure.putInt(getActivity().getContentResolver(),
-                        CMSettings.Secure.ADB_PORT, 5555);
+                putCmSecureInt(CMSettings.Secure.ADB_PORT, 5555);
             }
         } else if (dialog == mUpdateRecoveryDialog) {
             if (which == DialogInterface.BUTTON_POSITIVE) {
@@ -2557,13 +2699,15 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
     @Override
     public void onDestroy() {
         dismissDialogs();
+        if (mLoadThread != null) {
+            mLoadThread.quitSafely();
+        }
         super.onDestroy();
     }
 
     void pokeSystemProperties() {
         if (!mDontPokeProperties) {
-            //noinspection unchecked
-            (new SystemPropPoker()).execute();
+            SystemPropPoker.getInstance().poke();
         }
     }
 
@@ -2574,11 +2718,186 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
         }
     };
 
-    public static class SystemPropPoker extends AsyncTask<Void, Void, Void> {
-        @Override
-        protected Void doInBackground(Void... params) {
-            String[] services = ServiceManager.listServices();
-            for (String service : services) {
+    /**
+     * Tells every system service to re-read the system properties. Requests arriving within
+     * {@link #COALESCE_WINDOW_MILLIS} of each other are merged into one sweep, and services are
+     * poked in parallel so one slow or hung service can't hold up the rest. A poke still running
+     * {@link #SERVICE_TIMEOUT_MILLIS} after it started is given up on, and the pool gets a
+     * thread to replace the one it holds until it returns.
+     */
+    public static class SystemPropPoker {
+        private static final long COALESCE_WINDOW_MILLIS = 100;
+        private static final long SERVICE_TIMEOUT_MILLIS = 500;
+        private static final long SLOW_SERVICE_MILLIS = 50;
+        private static final int POKE_THREADS = 4;
+        private static final long KEEP_ALIVE_SECONDS = 30;
+
+        private static SystemPropPoker sInstance;
+
+        private final Handler mHandler;
+        private final ThreadPoolExecutor mExecutor;
+        // Threads held by pokes that were given up on. Guarded by this.
+        private int mStuckThreads;
+        // Services whose previous poke hasn't returned yet; they are skipped until it does.
+        private final Set<String> mPendingServices = new HashSet<>();
+        private boolean mSweepScheduled;
+
+        private final Runnable mSweep = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SystemPropPoker.this) {
+                    mSweepScheduled = false;
+                }
+                sweep();
+            }
+        };
+
+        public static synchronized SystemPropPoker getInstance() {
+            if (sInstance == null) {
+                sInstance = new SystemPropPoker();
+            }
+            return sInstance;
+        }
+
+        private SystemPropPoker() {
+            HandlerThread thread = new HandlerThread("SystemPropPoker",
+                    android.os.Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mHandler = new Handler(thread.getLooper());
+            // Only the core size matters with an unbounded queue. It grows past POKE_THREADS
+            // while pokes given up on still hold threads.
+            mExecutor = new ThreadPoolExecutor(POKE_THREADS, Integer.MAX_VALUE,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            mExecutor.allowCoreThreadTimeOut(true);
+        }
+
+        /**
+         * Schedules a sweep, unless one is already waiting to start. A sweep that is already
+         * running may have poked services before the latest change, so it gets followed by
+         * another one.
+         */
+        public synchronized void poke() {
+            if (!mSweepScheduled) {
+                mSweepScheduled = true;
+                mHandler.postDelayed(mSweep, COALESCE_WINDOW_MILLIS);
+            }
+        }
+
+        private void sweep() {
+            final long start = SystemClock.elapsedRealtime();
+            final String[] services = ServiceManager.listServices();
+            final ArrayList<Poke> pokes = new ArrayList<>(services.length);
+            for (final String service : services) {
+                synchronized (mPendingServices) {
+                    if (!mPendingServices.add(service)) {
+                        continue;
+                    }
+                }
+                final Poke poke = new Poke(service);
+                poke.mFuture = mExecutor.submit(poke);
+                pokes.add(poke);
+            }
+
+            final StringBuilder slow = new StringBuilder();
+            final int N = pokes.size();
+            for (int i = 0; i < N; i++) {
+                final Poke poke = pokes.get(i);
+                long elapsed;
+                try {
+                    elapsed = waitFor(poke);
+                } catch (ExecutionException e) {
+                    Log.w(TAG, "Failed to poke " + poke.mService, e.getCause());
+                    continue;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (elapsed < 0 || elapsed > SLOW_SERVICE_MILLIS) {
+                    slow.append(' ').append(poke.mService).append('=')
+                            .append(elapsed < 0 ? "timeout" : elapsed + "ms");
+                }
+            }
+            Log.i(TAG, "Poked " + N + " of " + services.length + " services in "
+                    + (SystemClock.elapsedRealtime() - start) + "ms");
+            if (slow.length() > 0) {
+                Log.w(TAG, "Slow to re-read system properties:" + slow);
+            }
+        }
+
+        /**
+         * Returns how long the poke took, or -1 if it was given up on because it has been
+         * running for longer than {@link #SERVICE_TIMEOUT_MILLIS}. Time spent waiting for a
+         * thread doesn't count.
+         */
+        private long waitFor(Poke poke) throws ExecutionException, InterruptedException {
+            while (true) {
+                final long startTime = poke.mStartTime;
+                final long wait = startTime == 0 ? SERVICE_TIMEOUT_MILLIS
+                        : startTime + SERVICE_TIMEOUT_MILLIS - SystemClock.elapsedRealtime();
+                try {
+                    return poke.mFuture.get(Math.max(wait, 0), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    if (poke.mStartTime != 0 && SystemClock.elapsedRealtime() - poke.mStartTime
+                            >= SERVICE_TIMEOUT_MILLIS && abandon(poke)) {
+                        return -1;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Gives up on a poke that is still running, letting the pool start another thread in
+         * place of the one it holds. Returns false if the poke has finished in the meantime.
+         */
+        private boolean abandon(Poke poke) {
+            synchronized (this) {
+                if (poke.mFinished) {
+                    return false;
+                }
+                poke.mAbandoned = true;
+                mStuckThreads++;
+                mExecutor.setCorePoolSize(POKE_THREADS + mStuckThreads);
+            }
+            poke.mFuture.cancel(true);
+            return true;
+        }
+
+        private final class Poke implements Callable<Long> {
+            final String mService;
+            Future<Long> mFuture;
+            // 0 until a thread picks the poke up.
+            volatile long mStartTime;
+            // Guarded by SystemPropPoker.this.
+            boolean mFinished;
+            boolean mAbandoned;
+
+            Poke(String service) {
+                mService = service;
+            }
+
+            @Override
+            public Long call() {
+                mStartTime = SystemClock.elapsedRealtime();
+                try {
+                    return pokeService(mService);
+                } finally {
+                    synchronized (SystemPropPoker.this) {
+                        mFinished = true;
+                        if (mAbandoned) {
+                            mStuckThreads--;
+                            mExecutor.setCorePoolSize(POKE_THREADS + mStuckThreads);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns how long the service took to handle the poke.
+         */
+        private long pokeService(String service) {
+            final long start = SystemClock.elapsedRealtime();
+            try {
                 IBinder obj = ServiceManager.checkService(service);
                 if (obj != null) {
                     Parcel data = Parcel.obtain();
@@ -2591,8 +2910,12 @@ public class DevelopmentSettings extends RestrictedSettingsFragment
                     }
                     data.recycle();
                 }
+            } finally {
+                synchronized (mPendingServices) {
+                    mPendingServices.remove(service);
+                }
             }
-            return null;
+            return SystemClock.elapsedRealtime() - start;
         }
     }
 
@@ -655,6 +655,8 @@ public class SettingsActivity extends SettingsDrawerActivity
 
         getFragmentManager().addOnBackStackChangedListener(this);
 
+        Utils.prewarmDefaultUserIcons(this);
+
         if (mIsShowingDashboard) {
             // Run the Index update only if we have some space
             if (!Utils.isLowStorage(this)) {
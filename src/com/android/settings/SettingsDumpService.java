@@ -25,6 +25,7 @@ import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import com.android.settings.applications.ProcStatsData;
+import com.android.settings.users.UserAvatarCache;
 import com.android.settingslib.net.DataUsageController;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -67,10 +68,21 @@ public class SettingsDumpService extends Service {
         obj.put("free", String.valueOf(memInfo.realFreeRam));
         obj.put("total", String.valueOf(memInfo.realTotalRam));
         obj.put("state", statsManager.getMemState());
+        obj.put("bitmapCaches", dumpBitmapCaches());
 
         return obj;
     }
 
+    private JSONObject dumpBitmapCaches() throws JSONException {
+        JSONObject obj = new JSONObject();
+        final int defaultUserIcons = Utils.getDefaultUserIconCacheBytes();
+        final int userAvatars = UserAvatarCache.getCacheBytes();
+        obj.put("defaultUserIcons", String.valueOf(defaultUserIcons));
+        obj.put("userAvatars", String.valueOf(userAvatars));
+        obj.put("total", String.valueOf(defaultUserIcons + userAvatars));
+        return obj;
+    }
+
     private JSONObject dumpDataUsage() throws JSONException {
         JSONObject obj = new JSONObject();
         DataUsageController controller = new DataUsageController(this);
@@ -39,7 +39,10 @@ import android.security.IKeyChainService;
 import android.security.KeyChain;
 import android.security.KeyChain.KeyChainConnection;
 import android.util.Log;
+import android.util.LruCache;
+import android.util.Pair;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 import android.util.ArraySet;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -65,9 +68,18 @@ import com.android.internal.widget.LockPatternUtils;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.function.IntConsumer;
 
 public class TrustedCredentialsSettings extends OptionsMenuFragment
@@ -85,6 +97,12 @@ public class TrustedCredentialsSettings extends OptionsMenuFragment
     private static final String SAVED_CONFIRMING_CREDENTIAL_USER = "ConfirmingCredentialUser";
     private static final String USER_ACTION = "com.android.settings.TRUSTED_CREDENTIALS_USER";
     private static final int REQUEST_CONFIRM_CREDENTIALS = 1;
+    // Threads used to bind KeyChain and parse certificates while loading a tab.
+    private static final int LOADER_THREADS = 4;
+    // Number of loaded certificates between progress bar updates.
+    private static final int PROGRESS_CHUNK_SIZE = 16;
+    // How often a load waiting for certificates checks whether it was cancelled.
+    private static final long CANCEL_CHECK_INTERVAL_MS = 100;
 
     @Override
     protected int getMetricsCategory() {
@@ -648,7 +666,8 @@ public class TrustedCredentialsSettings extends OptionsMenuFragment
             mTab = tab;
         }
 
-        private class AliasLoader extends AsyncTask<Void, Integer, SparseArray<List<CertHolder>>> {
+        private class AliasLoader extends AsyncTask<Void, LoadProgress,
+                SparseArray<List<CertHolder>>> {
             private ProgressBar mProgressBar;
             private View mContentView;
             private Context mContext;
@@ -675,83 +694,185 @@ public class TrustedCredentialsSettings extends OptionsMenuFragment
                 mContentView.setVisibility(View.GONE);
             }
             @Override protected SparseArray<List<CertHolder>> doInBackground(Void... params) {
+                final ExecutorService executor = Executors.newFixedThreadPool(LOADER_THREADS);
+                try {
+                    return loadCertHolders(executor);
+                } catch (RemoteException e) {
+                    Log.e(TAG, "Remote exception while loading aliases.", e);
+                    return new SparseArray<List<CertHolder>>();
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "InterruptedException while loading aliases.", e);
+                    return new SparseArray<List<CertHolder>>();
+                } catch (AssertionError e){
+                    Log.e(TAG, "AssertionError while loading aliases.", e);
+                    return new SparseArray<List<CertHolder>>();
+                } finally {
+                    executor.shutdownNow();
+                }
+            }
+
+            /**
+             * Keeps the connections bound by {@code aliasFutures} that weren't saved yet, so they
+             * are closed with the others, and cancels the binds still running.
+             */
+            private void releaseConnections(SparseArray<Future<Pair<KeyChainConnection,
+                    List<ParcelableString>>>> aliasFutures) {
+                for (int i = 0; i < aliasFutures.size(); ++i) {
+                    final int profileId = aliasFutures.keyAt(i);
+                    final Future<Pair<KeyChainConnection, List<ParcelableString>>> future =
+                            aliasFutures.valueAt(i);
+                    if (!future.isDone()) {
+                        future.cancel(true);
+                        continue;
+                    }
+                    final KeyChainConnection connection;
+                    try {
+                        connection = future.get().first;
+                    } catch (ExecutionException | InterruptedException
+                            | CancellationException e) {
+                        // Nothing was bound, or the task closed it already.
+                        continue;
+                    }
+                    final KeyChainConnection saved = mKeyChainConnectionByProfileId.get(
+                            profileId);
+                    if (saved == null) {
+                        mKeyChainConnectionByProfileId.put(profileId, connection);
+                    } else if (saved != connection) {
+                        connection.close();
+                    }
+                }
+            }
+
+            private SparseArray<List<CertHolder>> loadCertHolders(ExecutorService executor)
+                    throws RemoteException, InterruptedException {
                 SparseArray<List<CertHolder>> certHoldersByProfile =
                         new SparseArray<List<CertHolder>>();
-                try {
-                    List<UserHandle> profiles = mUserManager.getUserProfiles();
-                    final int n = profiles.size();
-                    // First we get all aliases for all profiles in order to show progress
-                    // correctly. Otherwise this could all be in a single loop.
-                    SparseArray<List<ParcelableString>> aliasesByProfileId = new SparseArray<
-                            List<ParcelableString>>(n);
-                    int max = 0;
-                    int progress = 0;
-                    for (int i = 0; i < n; ++i) {
-                        UserHandle profile = profiles.get(i);
-                        int profileId = profile.getIdentifier();
-                        if (shouldSkipProfile(profile)) {
-                            continue;
-                        }
+                List<UserHandle> profiles = mUserManager.getUserProfiles();
+                final int n = profiles.size();
+                // First bind KeyChain and get the aliases for all profiles at once, so that
+                // progress can be shown correctly.
+                SparseArray<Future<Pair<KeyChainConnection, List<ParcelableString>>>>
+                        aliasFutures = new SparseArray<>(n);
+                for (int i = 0; i < n; ++i) {
+                    final UserHandle profile = profiles.get(i);
+                    if (shouldSkipProfile(profile)) {
+                        continue;
+                    }
+                    aliasFutures.put(profile.getIdentifier(), executor.submit(() -> {
                         KeyChainConnection keyChainConnection = KeyChain.bindAsUser(mContext,
                                 profile);
-                        // Saving the connection for later use on the certificate dialog.
-                        mKeyChainConnectionByProfileId.put(profileId, keyChainConnection);
-                        IKeyChainService service = keyChainConnection.getService();
-                        List<ParcelableString> aliases = mTab.getAliases(service);
-                        if (isCancelled()) {
-                            return new SparseArray<List<CertHolder>>();
+                        try {
+                            List<ParcelableString> aliases =
+                                    mTab.getAliases(keyChainConnection.getService());
+                            if (Thread.currentThread().isInterrupted()) {
+                                // Cancelled, nobody is going to pick up the connection.
+                                throw new InterruptedException();
+                            }
+                            return Pair.create(keyChainConnection, aliases);
+                        } catch (Exception e) {
+                            keyChainConnection.close();
+                            throw e;
                         }
-                        max += aliases.size();
-                        aliasesByProfileId.put(profileId, aliases);
+                    }));
+                }
+                SparseArray<List<ParcelableString>> aliasesByProfileId = new SparseArray<
+                        List<ParcelableString>>(n);
+                boolean aliasesLoaded = false;
+                try {
+                    for (int i = 0; i < aliasFutures.size(); ++i) {
+                        final int profileId = aliasFutures.keyAt(i);
+                        Pair<KeyChainConnection, List<ParcelableString>> result =
+                                getResult(aliasFutures.valueAt(i));
+                        // Saving the connection for later use on the certificate dialog.
+                        mKeyChainConnectionByProfileId.put(profileId, result.first);
+                        aliasesByProfileId.put(profileId, result.second);
                     }
-                    for (int i = 0; i < n; ++i) {
-                        UserHandle profile = profiles.get(i);
-                        int profileId = profile.getIdentifier();
-                        List<ParcelableString> aliases = aliasesByProfileId.get(profileId);
-                        if (isCancelled()) {
-                            return new SparseArray<List<CertHolder>>();
-                        }
-                        KeyChainConnection keyChainConnection = mKeyChainConnectionByProfileId.get(
-                                profileId);
-                        if (shouldSkipProfile(profile) || aliases == null
-                                || keyChainConnection == null) {
-                            certHoldersByProfile.put(profileId, new ArrayList<CertHolder>(0));
-                            continue;
-                        }
-                        IKeyChainService service = keyChainConnection.getService();
-                        List<CertHolder> certHolders = new ArrayList<CertHolder>(max);
-                        final int aliasMax = aliases.size();
-                        for (int j = 0; j < aliasMax; ++j) {
-                            String alias = aliases.get(j).string;
+                    aliasesLoaded = true;
+                } finally {
+                    if (!aliasesLoaded) {
+                        releaseConnections(aliasFutures);
+                    }
+                }
+                if (isCancelled()) {
+                    return new SparseArray<List<CertHolder>>();
+                }
+
+                // Then fetch and parse all the certificates in parallel, handing each profile's
+                // sorted list to the adapter as soon as it's complete.
+                CompletionService<CertHolder> completionService =
+                        new ExecutorCompletionService<>(executor);
+                SparseIntArray pendingByProfileId = new SparseIntArray(n);
+                // Only counts the certificates actually requested, a profile may be skipped now.
+                int max = 0;
+                for (int i = 0; i < n; ++i) {
+                    final UserHandle profile = profiles.get(i);
+                    final int profileId = profile.getIdentifier();
+                    List<ParcelableString> aliases = aliasesByProfileId.get(profileId);
+                    KeyChainConnection keyChainConnection = mKeyChainConnectionByProfileId.get(
+                            profileId);
+                    if (shouldSkipProfile(profile) || aliases == null
+                            || keyChainConnection == null) {
+                        certHoldersByProfile.put(profileId, new ArrayList<CertHolder>(0));
+                        continue;
+                    }
+                    final IKeyChainService service = keyChainConnection.getService();
+                    final int aliasMax = aliases.size();
+                    certHoldersByProfile.put(profileId, new ArrayList<CertHolder>(aliasMax));
+                    if (aliasMax == 0) {
+                        continue;
+                    }
+                    pendingByProfileId.put(profileId, aliasMax);
+                    max += aliasMax;
+                    for (int j = 0; j < aliasMax; ++j) {
+                        final String alias = aliases.get(j).string;
+                        completionService.submit(() -> {
                             byte[] encodedCertificate = service.getEncodedCaCertificate(alias,
                                     true);
-                            X509Certificate cert = KeyChain.toCertificate(encodedCertificate);
-                            certHolders.add(new CertHolder(service, mAdapter,
-                                    mTab, alias, cert, profileId));
-                            publishProgress(++progress, max);
+                            return new CertHolder(service, mAdapter, mTab, alias,
+                                    ParsedCert.get(alias, encodedCertificate), profileId);
+                        });
+                    }
+                }
+                for (int progress = 1; progress <= max; ++progress) {
+                    Future<CertHolder> future = null;
+                    while (future == null) {
+                        if (isCancelled()) {
+                            return new SparseArray<List<CertHolder>>();
                         }
+                        future = completionService.poll(CANCEL_CHECK_INTERVAL_MS,
+                                TimeUnit.MILLISECONDS);
+                    }
+                    CertHolder certHolder = getResult(future);
+                    final int profileId = certHolder.mProfileId;
+                    List<CertHolder> certHolders = certHoldersByProfile.get(profileId);
+                    certHolders.add(certHolder);
+                    final int pending = pendingByProfileId.get(profileId) - 1;
+                    pendingByProfileId.put(profileId, pending);
+                    if (pending == 0) {
                         Collections.sort(certHolders);
-                        certHoldersByProfile.put(profileId, certHolders);
+                        publishProgress(new LoadProgress(progress, max, profileId,
+                                new ArrayList<CertHolder>(certHolders)));
+                    } else if (progress % PROGRESS_CHUNK_SIZE == 0) {
+                        publishProgress(new LoadProgress(progress, max, UserHandle.USER_NULL,
+                                null));
                     }
-                    return certHoldersByProfile;
-                } catch (RemoteException e) {
-                    Log.e(TAG, "Remote exception while loading aliases.", e);
-                    return new SparseArray<List<CertHolder>>();
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "InterruptedException while loading aliases.", e);
-                    return new SparseArray<List<CertHolder>>();
-                } catch (AssertionError e){
-                    Log.e(TAG, "AssertionError while loading aliases.", e);
-                    return new SparseArray<List<CertHolder>>();
                 }
+                return certHoldersByProfile;
             }
-            @Override protected void onProgressUpdate(Integer... progressAndMax) {
-                int progress = progressAndMax[0];
-                int max = progressAndMax[1];
-                if (max != mProgressBar.getMax()) {
-                    mProgressBar.setMax(max);
+
+            @Override protected void onProgressUpdate(LoadProgress... values) {
+                final LoadProgress loadProgress = values[0];
+                if (loadProgress.mMax != mProgressBar.getMax()) {
+                    mProgressBar.setMax(loadProgress.mMax);
+                }
+                mProgressBar.setProgress(loadProgress.mProgress);
+                if (loadProgress.mCertHolders != null) {
+                    // Show the certificates of a profile as soon as they're all there.
+                    mCertHoldersByUserId.put(loadProgress.mProfileId, loadProgress.mCertHolders);
+                    mAdapter.notifyDataSetChanged();
+                    mProgressBar.setVisibility(View.GONE);
+                    mContentView.setVisibility(View.VISIBLE);
                 }
-                mProgressBar.setProgress(progress);
             }
             @Override protected void onPostExecute(SparseArray<List<CertHolder>> certHolders) {
                 mCertHoldersByUserId.clear();
@@ -808,37 +929,62 @@ public class TrustedCredentialsSettings extends OptionsMenuFragment
         }
     }
 
-    /* package */ static class CertHolder implements Comparable<CertHolder> {
-        public int mProfileId;
-        private final IKeyChainService mService;
-        private final GroupAdapter mAdapter;
-        private final Tab mTab;
-        private final String mAlias;
-        private final X509Certificate mX509Cert;
+    /**
+     * Waits for a loader task, rethrowing what it threw.
+     */
+    private static <T> T getResult(Future<T> future) throws RemoteException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RemoteException) {
+                throw (RemoteException) cause;
+            } else if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static class LoadProgress {
+        private final int mProgress;
+        private final int mMax;
+        private final int mProfileId;
+        private final List<CertHolder> mCertHolders;
 
-        private final SslCertificate mSslCert;
+        private LoadProgress(int progress, int max, int profileId, List<CertHolder> certHolders) {
+            mProgress = progress;
+            mMax = max;
+            mProfileId = profileId;
+            mCertHolders = certHolders;
+        }
+    }
+
+    /**
+     * Parsed certificate and the subject strings shown in the list. Parsing is the expensive
+     * part of loading the screen, so the results are kept for the life of the process and
+     * reused as long as the alias still maps to the same encoded certificate.
+     */
+    private static class ParsedCert {
+        private static final int CACHE_SIZE = 512;
+        private static final LruCache<String, ParsedCert> sCache =
+                new LruCache<String, ParsedCert>(CACHE_SIZE);
+
+        private final byte[] mEncoded;
+        private final X509Certificate mX509Cert;
         private final String mSubjectPrimary;
         private final String mSubjectSecondary;
-        private boolean mDeleted;
 
-        private CertHolder(IKeyChainService service,
-                           GroupAdapter adapter,
-                           Tab tab,
-                           String alias,
-                           X509Certificate x509Cert,
-                           int profileId) {
-            mProfileId = profileId;
-            mService = service;
-            mAdapter = adapter;
-            mTab = tab;
-            mAlias = alias;
+        private ParsedCert(byte[] encoded, X509Certificate x509Cert) {
+            mEncoded = encoded;
             mX509Cert = x509Cert;
 
-            mSslCert = new SslCertificate(x509Cert);
-
-            String cn = mSslCert.getIssuedTo().getCName();
-            String o = mSslCert.getIssuedTo().getOName();
-            String ou = mSslCert.getIssuedTo().getUName();
+            final SslCertificate sslCert = new SslCertificate(x509Cert);
+            String cn = sslCert.getIssuedTo().getCName();
+            String o = sslCert.getIssuedTo().getOName();
+            String ou = sslCert.getIssuedTo().getUName();
             // if we have a O, use O as primary subject, secondary prefer CN over OU
             // if we don't have an O, use CN as primary, empty secondary
             // if we don't have O or CN, use DName as primary, empty secondary
@@ -855,10 +1001,48 @@ public class TrustedCredentialsSettings extends OptionsMenuFragment
                     mSubjectPrimary = cn;
                     mSubjectSecondary = "";
                 } else {
-                    mSubjectPrimary = mSslCert.getIssuedTo().getDName();
+                    mSubjectPrimary = sslCert.getIssuedTo().getDName();
                     mSubjectSecondary = "";
                 }
             }
+        }
+
+        private static ParsedCert get(String alias, byte[] encoded) {
+            ParsedCert parsedCert = sCache.get(alias);
+            if (parsedCert == null || !Arrays.equals(parsedCert.mEncoded, encoded)) {
+                parsedCert = new ParsedCert(encoded, KeyChain.toCertificate(encoded));
+                sCache.put(alias, parsedCert);
+            }
+            return parsedCert;
+        }
+    }
+
+    /* package */ static class CertHolder implements Comparable<CertHolder> {
+        public int mProfileId;
+        private final IKeyChainService mService;
+        private final GroupAdapter mAdapter;
+        private final Tab mTab;
+        private final String mAlias;
+        private final X509Certificate mX509Cert;
+
+        private final String mSubjectPrimary;
+        private final String mSubjectSecondary;
+        private boolean mDeleted;
+
+        private CertHolder(IKeyChainService service,
+                           GroupAdapter adapter,
+                           Tab tab,
+                           String alias,
+                           ParsedCert parsedCert,
+                           int profileId) {
+            mProfileId = profileId;
+            mService = service;
+            mAdapter = adapter;
+            mTab = tab;
+            mAlias = alias;
+            mX509Cert = parsedCert.mX509Cert;
+            mSubjectPrimary = parsedCert.mSubjectPrimary;
+            mSubjectSecondary = parsedCert.mSubjectSecondary;
             try {
                 mDeleted = mTab.deleted(mService, mAlias);
             } catch (RemoteException e) {
@@ -48,6 +48,7 @@ import android.graphics.BitmapFactory;
 import android.net.ConnectivityManager;
 import android.net.LinkProperties;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.BatteryManager;
 import android.os.Bundle;
 import android.os.IBinder;
@@ -57,7 +58,6 @@ import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.UserHandle;
 import android.os.UserManager;
-import android.os.storage.StorageManager;
 import android.preference.PreferenceFrameLayout;
 import android.provider.ContactsContract.CommonDataKinds;
 import android.provider.ContactsContract.Contacts;
@@ -78,7 +78,7 @@ import android.text.format.DateUtils;
 import android.text.style.TtsSpan;
 import android.util.ArraySet;
 import android.util.Log;
-import android.util.SparseArray;
+import android.util.LruCache;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -92,6 +92,7 @@ import com.android.internal.app.UnlaunchableAppActivity;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.UserIcons;
 import com.android.settings.bluetooth.BluetoothSettings;
+import com.android.settings.deviceinfo.StorageStatsCache;
 import com.android.settings.wifi.SavedAccessPointsWifiSettings;
 import com.android.internal.widget.LockPatternUtils;
 
@@ -139,7 +140,17 @@ public final class Utils extends com.android.settingslib.Utils {
 
     public static final String OS_PKG = "os";
 
-    private static SparseArray<Bitmap> sDarkDefaultUserBitmapCache = new SparseArray<Bitmap>();
+    // Default user icons keyed by display density and user id. The density changes with the
+    // display size setting, and there may be many users, so the cache is bounded.
+    private static final int DEFAULT_USER_ICON_CACHE_BYTES = 1024 * 1024;
+    private static final LruCache<Long, Bitmap> sDefaultUserIconCache =
+            new LruCache<Long, Bitmap>(DEFAULT_USER_ICON_CACHE_BYTES) {
+                @Override
+                protected int sizeOf(Long key, Bitmap bitmap) {
+                    return bitmap.getByteCount();
+                }
+            };
+    private static boolean sDefaultUserIconsPrewarmed;
 
     /**
      * Finds a matching activity for a preference's intent. If a matching
@@ -922,8 +933,7 @@ public final class Utils extends com.android.settingslib.Utils {
      * @return true if we are running low on storage space
      */
     public static boolean isLowStorage(Context context) {
-        final StorageManager sm = StorageManager.from(context);
-        return (sm.getStorageBytesUntilLow(context.getFilesDir()) < 0);
+        return StorageStatsCache.getInstance(context).getSnapshot().lowStorage;
     }
 
     /**
@@ -933,17 +943,46 @@ public final class Utils extends com.android.settingslib.Utils {
      * @param userId the user id or {@code UserHandle.USER_NULL} for a non-user specific icon
      */
     public static Bitmap getDefaultUserIconAsBitmap(int userId) {
-        Bitmap bitmap = null;
-        // Try finding the corresponding bitmap in the dark bitmap cache
-        bitmap = sDarkDefaultUserBitmapCache.get(userId);
+        // The icon is rendered from the system resources, at their density
+        final long key = ((long) Resources.getSystem().getDisplayMetrics().densityDpi << 32)
+                | (userId & 0xffffffffL);
+        // Try finding the bitmap rendered for this user at the current density
+        Bitmap bitmap = sDefaultUserIconCache.get(key);
         if (bitmap == null) {
             bitmap = UserIcons.convertToBitmap(UserIcons.getDefaultUserIcon(userId, false));
             // Save it to cache
-            sDarkDefaultUserBitmapCache.put(userId, bitmap);
+            sDefaultUserIconCache.put(key, bitmap);
         }
         return bitmap;
     }
 
+    /**
+     * Renders the default user icons of the current profiles, and the one for
+     * {@code UserHandle.USER_NULL}, in the background. Does so once per process, so that the
+     * screens showing users find them in the cache rather than render them on the UI thread.
+     */
+    public static void prewarmDefaultUserIcons(Context context) {
+        if (sDefaultUserIconsPrewarmed) return;
+        sDefaultUserIconsPrewarmed = true;
+        final UserManager um = context.getSystemService(UserManager.class);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                getDefaultUserIconAsBitmap(UserHandle.USER_NULL);
+                for (UserInfo profile : um.getProfiles(UserHandle.myUserId())) {
+                    getDefaultUserIconAsBitmap(profile.id);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the number of bytes held by the cached default user icons, for dumpsys.
+     */
+    public static int getDefaultUserIconCacheBytes() {
+        return sDefaultUserIconCache.size();
+    }
+
     public static boolean hasPreferredActivities(PackageManager pm, String packageName) {
         // Get list of preferred activities
         List<ComponentName> prefActList = new ArrayList<>();
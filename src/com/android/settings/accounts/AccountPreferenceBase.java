@@ -17,17 +17,15 @@
 
 package com.android.settings.accounts;
 
+import android.accounts.Account;
 import android.accounts.AuthenticatorDescription;
 import android.app.Activity;
-import android.content.ContentResolver;
 import android.content.Context;
-import android.content.SyncStatusObserver;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.content.res.Resources.Theme;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.support.v7.preference.PreferenceScreen;
@@ -50,10 +48,9 @@ abstract class AccountPreferenceBase extends SettingsPreferenceFragment
     public static final String AUTHORITIES_FILTER_KEY = "authorities";
     public static final String ACCOUNT_TYPES_FILTER_KEY = "account_types";
 
-    private final Handler mHandler = new Handler();
-
     private UserManager mUm;
-    private Object mStatusChangeListenerHandle;
+    private SyncStateLoader mSyncStateLoader;
+    private SyncStateLoader.Snapshot mSyncState;
     protected AuthenticatorHelper mAuthenticatorHelper;
     protected UserHandle mUserHandle;
 
@@ -68,6 +65,14 @@ abstract class AccountPreferenceBase extends SettingsPreferenceFragment
         mUserHandle = Utils.getSecureTargetUser(activity.getActivityToken(), mUm, getArguments(),
                 activity.getIntent().getExtras());
         mAuthenticatorHelper = new AuthenticatorHelper(activity, mUserHandle, this);
+        mSyncStateLoader = new SyncStateLoader(mUserHandle.getIdentifier(),
+                new SyncStateLoader.Callback() {
+                    @Override
+                    public void onSyncStateLoaded(SyncStateLoader.Snapshot snapshot) {
+                        mSyncState = snapshot;
+                        onSyncStateUpdated(snapshot);
+                    }
+                });
     }
 
     /**
@@ -86,10 +91,34 @@ abstract class AccountPreferenceBase extends SettingsPreferenceFragment
     }
 
     /**
-     * Overload to handle sync state updates.
+     * Overload to handle sync state updates. Called on the main thread with the state of the
+     * accounts returned by {@link #getSyncStateAccounts}.
+     */
+    protected void onSyncStateUpdated(SyncStateLoader.Snapshot snapshot) {
+
+    }
+
+    /**
+     * Overload to return the accounts whose sync state is shown.
+     */
+    protected Account[] getSyncStateAccounts() {
+        return new Account[0];
+    }
+
+    /**
+     * Loads the sync state again in the background, such as after the accounts shown changed.
+     * {@link #onSyncStateUpdated} is called once it's loaded.
      */
-    protected void onSyncStateUpdated() {
+    protected void requestSyncStateUpdate() {
+        mSyncStateLoader.setAccounts(getSyncStateAccounts());
+        mSyncStateLoader.requestLoad();
+    }
 
+    /**
+     * Returns the last loaded sync state, or null if none was loaded yet.
+     */
+    protected SyncStateLoader.Snapshot getSyncState() {
+        return mSyncState;
     }
 
     @Override
@@ -105,30 +134,16 @@ abstract class AccountPreferenceBase extends SettingsPreferenceFragment
     @Override
     public void onResume() {
         super.onResume();
-        mStatusChangeListenerHandle = ContentResolver.addStatusChangeListener(
-                ContentResolver.SYNC_OBSERVER_TYPE_ACTIVE
-                | ContentResolver.SYNC_OBSERVER_TYPE_STATUS
-                | ContentResolver.SYNC_OBSERVER_TYPE_SETTINGS,
-                mSyncStatusObserver);
-        onSyncStateUpdated();
+        mSyncStateLoader.setAccounts(getSyncStateAccounts());
+        mSyncStateLoader.start();
     }
 
     @Override
     public void onPause() {
         super.onPause();
-        ContentResolver.removeStatusChangeListener(mStatusChangeListenerHandle);
+        mSyncStateLoader.stop();
     }
 
-    private SyncStatusObserver mSyncStatusObserver = new SyncStatusObserver() {
-        public void onStatusChanged(int which) {
-            mHandler.post(new Runnable() {
-                public void run() {
-                    onSyncStateUpdated();
-                }
-            });
-        }
-    };
-
     public ArrayList<String> getAuthoritiesForAccountType(String type) {
         return mAuthenticatorHelper.getAuthoritiesForAccountType(type);
     }
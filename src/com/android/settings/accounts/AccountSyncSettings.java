@@ -31,7 +31,6 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentSender;
 import android.content.SyncAdapterType;
-import android.content.SyncInfo;
 import android.content.SyncStatusInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
@@ -65,7 +64,6 @@ import com.android.settingslib.RestrictedLockUtils;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.List;
 
 import static com.android.settingslib.RestrictedLockUtils.EnforcedAdmin;
 
@@ -311,8 +309,9 @@ public class AccountSyncSettings extends AccountPreferenceBase {
     public void onPrepareOptionsMenu(Menu menu) {
         super.onPrepareOptionsMenu(menu);
         // Note that this also counts accounts that are not currently displayed
-        boolean syncActive = !ContentResolver.getCurrentSyncsAsUser(
-                mUserHandle.getIdentifier()).isEmpty();
+        final SyncStateLoader.Snapshot syncState = getSyncState();
+        boolean syncActive = !(syncState != null ? syncState.currentSyncs
+                : ContentResolver.getCurrentSyncsAsUser(mUserHandle.getIdentifier())).isEmpty();
         menu.findItem(MENU_SYNC_NOW_ID).setVisible(!syncActive);
         menu.findItem(MENU_SYNC_CANCEL_ID).setVisible(syncActive);
     }
@@ -479,34 +478,29 @@ public class AccountSyncSettings extends AccountPreferenceBase {
         }
     }
 
-    private boolean isSyncing(List<SyncInfo> currentSyncs, Account account, String authority) {
-        for (SyncInfo syncInfo : currentSyncs) {
-            if (syncInfo.account.equals(account) && syncInfo.authority.equals(authority)) {
-                return true;
-            }
-        }
-        return false;
+    @Override
+    protected Account[] getSyncStateAccounts() {
+        return mAccount != null ? new Account[] { mAccount } : new Account[0];
     }
 
     @Override
-    protected void onSyncStateUpdated() {
+    protected void onSyncStateUpdated(SyncStateLoader.Snapshot snapshot) {
         if (!isResumed()) return;
-        setFeedsState();
+        setFeedsState(snapshot);
         final Activity activity = getActivity();
         if (activity != null) {
             activity.invalidateOptionsMenu();
         }
     }
 
-    private void setFeedsState() {
+    private void setFeedsState(SyncStateLoader.Snapshot snapshot) {
         // iterate over all the preferences, setting the state properly for each
         Date date = new Date();
-        final int userId = mUserHandle.getIdentifier();
-        List<SyncInfo> currentSyncs = ContentResolver.getCurrentSyncsAsUser(userId);
         boolean syncIsFailing = false;
 
         // Refresh the sync status switches - some syncs may have become active.
-        updateAccountSwitches();
+        updateAccountSwitches(snapshot);
+        final boolean oneTimeSyncMode = !snapshot.masterSyncAutomatically;
 
         for (int i = 0, count = getPreferenceScreen().getPreferenceCount(); i < count; i++) {
             Preference pref = getPreferenceScreen().getPreference(i);
@@ -518,13 +512,13 @@ public class AccountSyncSettings extends AccountPreferenceBase {
             String authority = syncPref.getAuthority();
             Account account = syncPref.getAccount();
 
-            SyncStatusInfo status = ContentResolver.getSyncStatusAsUser(account, authority, userId);
-            boolean syncEnabled = ContentResolver.getSyncAutomaticallyAsUser(account, authority,
-                    userId);
+            final SyncStateLoader.AuthorityState state = snapshot.getState(account, authority);
+            SyncStatusInfo status = state.status;
+            boolean syncEnabled = state.syncAutomatically;
             boolean authorityIsPending = status == null ? false : status.pending;
             boolean initialSync = status == null ? false : status.initialize;
 
-            boolean activelySyncing = isSyncing(currentSyncs, account, authority);
+            boolean activelySyncing = snapshot.isSyncing(account, authority);
             boolean lastSyncFailed = status != null
                     && status.lastFailureTime != 0
                     && status.getLastFailureMesgAsInt(0)
@@ -550,7 +544,7 @@ public class AccountSyncSettings extends AccountPreferenceBase {
             } else {
                 syncPref.setSummary("");
             }
-            int syncState = ContentResolver.getIsSyncableAsUser(account, authority, userId);
+            int syncState = state.syncable;
 
             syncPref.setActive(activelySyncing && (syncState >= 0) &&
                     !initialSync);
@@ -558,8 +552,6 @@ public class AccountSyncSettings extends AccountPreferenceBase {
                     !initialSync);
 
             syncPref.setFailed(lastSyncFailed);
-            final boolean oneTimeSyncMode = !ContentResolver.getMasterSyncAutomaticallyAsUser(
-                userId);
             syncPref.setOneTimeSyncMode(oneTimeSyncMode);
             syncPref.setChecked(oneTimeSyncMode || syncEnabled);
         }
@@ -574,8 +566,7 @@ public class AccountSyncSettings extends AccountPreferenceBase {
             finish();
             return;
         }
-        updateAccountSwitches();
-        onSyncStateUpdated();
+        requestSyncStateUpdate();
     }
 
     private boolean accountExists(Account account) {
@@ -592,11 +583,10 @@ public class AccountSyncSettings extends AccountPreferenceBase {
         return false;
     }
 
-    private void updateAccountSwitches() {
+    private void updateAccountSwitches(SyncStateLoader.Snapshot snapshot) {
         mInvisibleAdapters.clear();
 
-        SyncAdapterType[] syncAdapters = ContentResolver.getSyncAdapterTypesAsUser(
-                mUserHandle.getIdentifier());
+        SyncAdapterType[] syncAdapters = snapshot.syncAdapters;
         ArrayList<SyncAdapterType> authorities = new ArrayList<>();
         for (int i = 0, n = syncAdapters.length; i < n; i++) {
             final SyncAdapterType sa = syncAdapters[i];
@@ -622,8 +612,7 @@ public class AccountSyncSettings extends AccountPreferenceBase {
         for (int j = 0, m = authorities.size(); j < m; j++) {
             final SyncAdapterType syncAdapter = authorities.get(j);
             // We could check services here....
-            int syncState = ContentResolver.getIsSyncableAsUser(mAccount, syncAdapter.authority,
-                    mUserHandle.getIdentifier());
+            int syncState = snapshot.getState(mAccount, syncAdapter.authority).syncable;
             if (Log.isLoggable(TAG, Log.VERBOSE)) {
                 Log.d(TAG, "  found authority " + syncAdapter.authority + " " + syncState);
             }
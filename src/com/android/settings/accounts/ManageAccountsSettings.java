@@ -24,7 +24,6 @@ import android.app.Activity;
 import android.content.ContentResolver;
 import android.content.Intent;
 import android.content.SyncAdapterType;
-import android.content.SyncInfo;
 import android.content.SyncStatusInfo;
 import android.content.pm.ActivityInfo;
 import android.content.pm.ApplicationInfo;
@@ -57,7 +56,6 @@ import com.android.settingslib.accounts.AuthenticatorHelper;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
-import java.util.List;
 
 import static android.content.Intent.EXTRA_USER;
 
@@ -106,11 +104,11 @@ public class ManageAccountsSettings extends AccountPreferenceBase
 
     @Override
     public void onResume() {
-        super.onResume();
         mAuthenticatorHelper.listenToAccountUpdates();
         updateAuthDescriptions();
         showAccountsIfNeeded();
-        showSyncState();
+        // Starts loading the sync state of the accounts just shown.
+        super.onResume();
     }
 
     @Override
@@ -188,8 +186,9 @@ public class ManageAccountsSettings extends AccountPreferenceBase
     @Override
     public void onPrepareOptionsMenu(Menu menu) {
         super.onPrepareOptionsMenu(menu);
-        boolean syncActive = !ContentResolver.getCurrentSyncsAsUser(
-                mUserHandle.getIdentifier()).isEmpty();
+        final SyncStateLoader.Snapshot syncState = getSyncState();
+        boolean syncActive = !(syncState != null ? syncState.currentSyncs
+                : ContentResolver.getCurrentSyncsAsUser(mUserHandle.getIdentifier())).isEmpty();
         menu.findItem(MENU_SYNC_NOW_ID).setVisible(!syncActive);
         menu.findItem(MENU_SYNC_CANCEL_ID).setVisible(syncActive);
     }
@@ -237,8 +236,21 @@ public class ManageAccountsSettings extends AccountPreferenceBase
     }
 
     @Override
-    protected void onSyncStateUpdated() {
-        showSyncState();
+    protected Account[] getSyncStateAccounts() {
+        final ArrayList<Account> accounts = new ArrayList<>();
+        final PreferenceScreen screen = getPreferenceScreen();
+        for (int i = 0, count = screen.getPreferenceCount(); i < count; i++) {
+            final Preference pref = screen.getPreference(i);
+            if (pref instanceof AccountPreference) {
+                accounts.add(((AccountPreference) pref).getAccount());
+            }
+        }
+        return accounts.toArray(new Account[accounts.size()]);
+    }
+
+    @Override
+    protected void onSyncStateUpdated(SyncStateLoader.Snapshot snapshot) {
+        showSyncState(snapshot);
         // Catch any delayed delivery of update messages
         final Activity activity = getActivity();
         if (activity != null) {
@@ -250,20 +262,15 @@ public class ManageAccountsSettings extends AccountPreferenceBase
      * Shows the sync state of the accounts. Note: it must be called after the accounts have been
      * loaded, @see #showAccountsIfNeeded().
      */
-    private void showSyncState() {
+    private void showSyncState(SyncStateLoader.Snapshot snapshot) {
         // Catch any delayed delivery of update messages
         if (getActivity() == null || getActivity().isFinishing()) return;
 
-        final int userId = mUserHandle.getIdentifier();
-
-        // iterate over all the preferences, setting the state properly for each
-        List<SyncInfo> currentSyncs = ContentResolver.getCurrentSyncsAsUser(userId);
-
         boolean anySyncFailed = false; // true if sync on any account failed
         Date date = new Date();
 
         // only track userfacing sync adapters when deciding if account is synced or not
-        final SyncAdapterType[] syncAdapters = ContentResolver.getSyncAdapterTypesAsUser(userId);
+        final SyncAdapterType[] syncAdapters = snapshot.syncAdapters;
         HashSet<String> userFacing = new HashSet<String>();
         for (int k = 0, n = syncAdapters.length; k < n; k++) {
             final SyncAdapterType sa = syncAdapters[k];
@@ -286,11 +293,14 @@ public class ManageAccountsSettings extends AccountPreferenceBase
             boolean syncingNow = false;
             if (authorities != null) {
                 for (String authority : authorities) {
-                    SyncStatusInfo status = ContentResolver.getSyncStatusAsUser(account, authority,
-                            userId);
-                    boolean syncEnabled = isSyncEnabled(userId, account, authority);
-                    boolean authorityIsPending = ContentResolver.isSyncPending(account, authority);
-                    boolean activelySyncing = isSyncing(currentSyncs, account, authority);
+                    final SyncStateLoader.AuthorityState state =
+                            snapshot.getState(account, authority);
+                    SyncStatusInfo status = state.status;
+                    boolean syncEnabled = state.syncAutomatically
+                            && snapshot.masterSyncAutomatically
+                            && state.syncable > 0;
+                    boolean authorityIsPending = state.pending;
+                    boolean activelySyncing = snapshot.isSyncing(account, authority);
                     boolean lastSyncFailed = status != null
                             && syncEnabled
                             && status.lastFailureTime != 0
@@ -337,27 +347,10 @@ public class ManageAccountsSettings extends AccountPreferenceBase
     }
 
 
-    private boolean isSyncing(List<SyncInfo> currentSyncs, Account account, String authority) {
-        final int count = currentSyncs.size();
-        for (int i = 0; i < count;  i++) {
-            SyncInfo syncInfo = currentSyncs.get(i);
-            if (syncInfo.account.equals(account) && syncInfo.authority.equals(authority)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    private boolean isSyncEnabled(int userId, Account account, String authority) {
-        return ContentResolver.getSyncAutomaticallyAsUser(account, authority, userId)
-                && ContentResolver.getMasterSyncAutomaticallyAsUser(userId)
-                && (ContentResolver.getIsSyncableAsUser(account, authority, userId) > 0);
-    }
-
     @Override
     public void onAccountsUpdate(UserHandle userHandle) {
         showAccountsIfNeeded();
-        onSyncStateUpdated();
+        requestSyncStateUpdate();
     }
 
     private void showAccountsIfNeeded() {
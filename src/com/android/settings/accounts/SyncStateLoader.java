@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.accounts;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.content.SyncAdapterType;
+import android.content.SyncInfo;
+import android.content.SyncStatusInfo;
+import android.content.SyncStatusObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.util.ArrayMap;
+import android.util.Pair;
+
+import java.util.List;
+
+/**
+ * Loads the sync state of a set of accounts off the main thread.
+ *
+ * Sync status events arrive in bursts while accounts sync, especially during an initial sync.
+ * Events within {@link #COALESCE_DELAY_MS} of each other lead to a single load, which gathers the
+ * state of every authority of every account in one pass and hands it to the main thread as a
+ * {@link Snapshot}.
+ */
+final class SyncStateLoader {
+    static final long COALESCE_DELAY_MS = 300;
+
+    private static final int MSG_LOAD = 1;
+
+    interface Callback {
+        /** Called on the main thread. */
+        void onSyncStateLoaded(Snapshot snapshot);
+    }
+
+    static final class AuthorityState {
+        static final AuthorityState UNKNOWN = new AuthorityState();
+
+        SyncStatusInfo status;
+        boolean syncAutomatically;
+        int syncable;
+        boolean pending;
+    }
+
+    static final class Snapshot {
+        final List<SyncInfo> currentSyncs;
+        final SyncAdapterType[] syncAdapters;
+        final boolean masterSyncAutomatically;
+        private final ArrayMap<Pair<Account, String>, AuthorityState> mStates;
+
+        Snapshot(List<SyncInfo> currentSyncs, SyncAdapterType[] syncAdapters,
+                boolean masterSyncAutomatically,
+                ArrayMap<Pair<Account, String>, AuthorityState> states) {
+            this.currentSyncs = currentSyncs;
+            this.syncAdapters = syncAdapters;
+            this.masterSyncAutomatically = masterSyncAutomatically;
+            mStates = states;
+        }
+
+        /**
+         * Returns the state of {@code authority} for {@code account}, or
+         * {@link AuthorityState#UNKNOWN} if the account has no such sync adapter.
+         */
+        AuthorityState getState(Account account, String authority) {
+            final AuthorityState state = mStates.get(Pair.create(account, authority));
+            return state != null ? state : AuthorityState.UNKNOWN;
+        }
+
+        boolean isSyncing(Account account, String authority) {
+            final int count = currentSyncs.size();
+            for (int i = 0; i < count; i++) {
+                final SyncInfo syncInfo = currentSyncs.get(i);
+                if (syncInfo.account.equals(account) && syncInfo.authority.equals(authority)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final int mUserId;
+    private final Callback mCallback;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private HandlerThread mThread;
+    private volatile Handler mHandler;
+    private Object mStatusChangeListenerHandle;
+    private volatile Account[] mAccounts = new Account[0];
+    // Bumped on stop, so loads that finish afterwards are dropped.
+    private volatile int mGeneration;
+
+    SyncStateLoader(int userId, Callback callback) {
+        mUserId = userId;
+        mCallback = callback;
+    }
+
+    /**
+     * Starts listening to sync status changes and loads the current state.
+     */
+    void start() {
+        if (mThread != null) return;
+        mThread = new HandlerThread("SyncStateLoader", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_LOAD) {
+                    load(msg.arg1);
+                }
+            }
+        };
+        mStatusChangeListenerHandle = ContentResolver.addStatusChangeListener(
+                ContentResolver.SYNC_OBSERVER_TYPE_ACTIVE
+                | ContentResolver.SYNC_OBSERVER_TYPE_STATUS
+                | ContentResolver.SYNC_OBSERVER_TYPE_SETTINGS,
+                mSyncStatusObserver);
+        requestLoad();
+    }
+
+    void stop() {
+        if (mThread == null) return;
+        ContentResolver.removeStatusChangeListener(mStatusChangeListenerHandle);
+        mStatusChangeListenerHandle = null;
+        mGeneration++;
+        mThread.quitSafely();
+        mThread = null;
+        mHandler = null;
+    }
+
+    /**
+     * Sets the accounts whose state is loaded from now on.
+     */
+    void setAccounts(Account[] accounts) {
+        mAccounts = accounts;
+    }
+
+    /**
+     * Loads the state right away, such as after the accounts changed or the user acted on them.
+     * Does nothing until started.
+     */
+    void requestLoad() {
+        if (mHandler == null) return;
+        mHandler.removeMessages(MSG_LOAD);
+        mHandler.obtainMessage(MSG_LOAD, mGeneration, 0).sendToTarget();
+    }
+
+    private final SyncStatusObserver mSyncStatusObserver = new SyncStatusObserver() {
+        @Override
+        public void onStatusChanged(int which) {
+            // Called on a binder thread.
+            final Handler handler = mHandler;
+            if (handler != null && !handler.hasMessages(MSG_LOAD)) {
+                handler.sendMessageDelayed(handler.obtainMessage(MSG_LOAD, mGeneration, 0),
+                        COALESCE_DELAY_MS);
+            }
+        }
+    };
+
+    private void load(final int generation) {
+        final List<SyncInfo> currentSyncs = ContentResolver.getCurrentSyncsAsUser(mUserId);
+        final SyncAdapterType[] syncAdapters = ContentResolver.getSyncAdapterTypesAsUser(mUserId);
+        final boolean masterSyncAutomatically =
+                ContentResolver.getMasterSyncAutomaticallyAsUser(mUserId);
+        final ArrayMap<Pair<Account, String>, AuthorityState> states = new ArrayMap<>();
+        for (Account account : mAccounts) {
+            for (SyncAdapterType sa : syncAdapters) {
+                if (!sa.accountType.equals(account.type)) continue;
+                final AuthorityState state = new AuthorityState();
+                state.status = ContentResolver.getSyncStatusAsUser(account, sa.authority, mUserId);
+                state.syncAutomatically = ContentResolver.getSyncAutomaticallyAsUser(account,
+                        sa.authority, mUserId);
+                state.syncable = ContentResolver.getIsSyncableAsUser(account, sa.authority,
+                        mUserId);
+                state.pending = ContentResolver.isSyncPendingAsUser(account, sa.authority,
+                        mUserId);
+                states.put(Pair.create(account, sa.authority), state);
+            }
+        }
+        final Snapshot snapshot = new Snapshot(currentSyncs, syncAdapters,
+                masterSyncAutomatically, states);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation == mGeneration && mThread != null) {
+                    mCallback.onSyncStateLoaded(snapshot);
+                }
+            }
+        });
+    }
+}
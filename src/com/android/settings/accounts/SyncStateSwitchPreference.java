@@ -102,6 +102,7 @@ public class SyncStateSwitchPreference extends SwitchPreference {
      * @param isActive whether or not the sync is active
      */
     public void setActive(boolean isActive) {
+        if (mIsActive == isActive) return;
         mIsActive = isActive;
         notifyChanged();
     }
@@ -111,6 +112,7 @@ public class SyncStateSwitchPreference extends SwitchPreference {
      * @param isPending whether or not the sync is pending
      */
     public void setPending(boolean isPending) {
+        if (mIsPending == isPending) return;
         mIsPending = isPending;
         notifyChanged();
     }
@@ -120,6 +122,7 @@ public class SyncStateSwitchPreference extends SwitchPreference {
      * @param failed whether or not the sync failed
      */
     public void setFailed(boolean failed) {
+        if (mFailed == failed) return;
         mFailed = failed;
         notifyChanged();
     }
@@ -128,6 +131,7 @@ public class SyncStateSwitchPreference extends SwitchPreference {
      * Sets whether the preference is in one-time sync mode.
      */
     public void setOneTimeSyncMode(boolean oneTimeSyncMode) {
+        if (mOneTimeSyncMode == oneTimeSyncMode) return;
         mOneTimeSyncMode = oneTimeSyncMode;
         notifyChanged();
     }
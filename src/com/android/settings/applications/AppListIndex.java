@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.settings.applications;
+
+import android.util.ArrayMap;
+
+import com.android.settingslib.applications.ApplicationsState.AppEntry;
+import com.android.settingslib.applications.ApplicationsState.AppFilter;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Incremental list engine backing {@link ManageApplications}.
+ *
+ * Keeps one pre-sorted ordering of all app entries per comparator and one bitset per
+ * filter, so that changing the filter mode, toggling system apps or switching the sort
+ * order only has to AND a few bitsets and walk an index instead of refiltering and
+ * resorting the whole list. A single package size change repositions just that entry, unless
+ * other entries changed too and the ordering has to be sorted again.
+ *
+ * Not thread safe; all calls are expected to come from the same (background) thread.
+ */
+class AppListIndex {
+
+    private final ArrayList<AppEntry> mEntries = new ArrayList<>();
+    private final IdentityHashMap<AppEntry, Integer> mOrdinals = new IdentityHashMap<>();
+    private final ArrayMap<Comparator<AppEntry>, int[]> mOrders = new ArrayMap<>();
+    private final ArrayMap<AppFilter, BitSet> mFilterBits = new ArrayMap<>();
+
+    /**
+     * Returns true if the entries have already been sorted with the given comparator.
+     */
+    public boolean hasOrder(Comparator<AppEntry> comparator) {
+        return mOrders.containsKey(comparator);
+    }
+
+    /**
+     * Records the full list of entries sorted by {@code comparator}. If the list doesn't
+     * describe the same set of entries as the currently indexed one, everything else is
+     * dropped and the list becomes the new set of indexed entries.
+     */
+    public void putOrder(Comparator<AppEntry> comparator, List<AppEntry> sorted) {
+        final int N = sorted.size();
+        if (!isSameEntrySet(sorted)) {
+            clear();
+            for (int i = 0; i < N; i++) {
+                AppEntry entry = sorted.get(i);
+                mEntries.add(entry);
+                mOrdinals.put(entry, i);
+            }
+        }
+        int[] order = new int[N];
+        for (int i = 0; i < N; i++) {
+            order[i] = mOrdinals.get(sorted.get(i));
+        }
+        mOrders.put(comparator, order);
+    }
+
+    /**
+     * Sorts the indexed entries with {@code comparator} without going through the
+     * session. Callers must make sure the entries aren't being modified concurrently.
+     */
+    public void sortOrder(Comparator<AppEntry> comparator) {
+        ArrayList<AppEntry> sorted = new ArrayList<>(mEntries);
+        Collections.sort(sorted, comparator);
+        putOrder(comparator, sorted);
+    }
+
+    /**
+     * Returns the entries matching all of {@code filters}, in {@code comparator} order,
+     * or null if no ordering has been recorded for the comparator yet.
+     */
+    public ArrayList<AppEntry> query(AppFilter[] filters, Comparator<AppEntry> comparator) {
+        final int[] order = mOrders.get(comparator);
+        if (order == null) {
+            return null;
+        }
+        final int N = mEntries.size();
+        BitSet matches = new BitSet(N);
+        matches.set(0, N);
+        for (AppFilter filter : filters) {
+            if (filter != null) {
+                matches.and(getFilterBits(filter));
+            }
+        }
+        ArrayList<AppEntry> result = new ArrayList<>(matches.cardinality());
+        for (int i = 0; i < order.length; i++) {
+            if (matches.get(order[i])) {
+                result.add(mEntries.get(order[i]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Forgets the per filter results, for when the state filters look at has changed
+     * (e.g. extra info was reloaded by a bridge).
+     */
+    public void invalidateFilters() {
+        mFilterBits.clear();
+    }
+
+    /**
+     * Forgets the ordering for {@code comparator}, it will be rebuilt on the next query.
+     */
+    public void invalidateOrder(Comparator<AppEntry> comparator) {
+        mOrders.remove(comparator);
+    }
+
+    /**
+     * Moves the entries of {@code packageName} back to their sorted position in every
+     * ordering. An ordering where other entries are out of place as well, such as ones whose
+     * change hasn't been reported yet, is sorted again.
+     */
+    public void onEntryChanged(String packageName) {
+        final int N = mEntries.size();
+        final BitSet changed = new BitSet(N);
+        for (int i = 0; i < N; i++) {
+            if (packageName.equals(mEntries.get(i).info.packageName)) {
+                changed.set(i);
+            }
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+        for (int j = mOrders.size() - 1; j >= 0; j--) {
+            reposition(mOrders.keyAt(j), mOrders.valueAt(j), changed);
+        }
+    }
+
+    public void clear() {
+        mEntries.clear();
+        mOrdinals.clear();
+        mOrders.clear();
+        mFilterBits.clear();
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    private boolean isSameEntrySet(List<AppEntry> entries) {
+        final int N = entries.size();
+        if (N != mEntries.size()) {
+            return false;
+        }
+        for (int i = 0; i < N; i++) {
+            if (!mOrdinals.containsKey(entries.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private BitSet getFilterBits(AppFilter filter) {
+        BitSet bits = mFilterBits.get(filter);
+        if (bits == null) {
+            final int N = mEntries.size();
+            bits = new BitSet(N);
+            filter.init();
+            for (int i = 0; i < N; i++) {
+                if (filter.filterApp(mEntries.get(i))) {
+                    bits.set(i);
+                }
+            }
+            mFilterBits.put(filter, bits);
+        }
+        return bits;
+    }
+
+    private void reposition(Comparator<AppEntry> comparator, int[] order, BitSet changed) {
+        // Take all the changed entries out first, the others keep their relative order.
+        int remaining = 0;
+        for (int i = 0; i < order.length; i++) {
+            if (!changed.get(order[i])) {
+                order[remaining++] = order[i];
+            }
+        }
+        for (int i = 1; i < remaining; i++) {
+            if (comparator.compare(mEntries.get(order[i - 1]), mEntries.get(order[i])) > 0) {
+                // Something else moved too, binary searching for the slots would misplace them.
+                resort(comparator, order);
+                return;
+            }
+        }
+        for (int ordinal = changed.nextSetBit(0); ordinal >= 0;
+                ordinal = changed.nextSetBit(ordinal + 1)) {
+            final AppEntry entry = mEntries.get(ordinal);
+            int lo = 0;
+            int hi = remaining;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (comparator.compare(mEntries.get(order[mid]), entry) <= 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            System.arraycopy(order, lo, order, lo + 1, remaining - lo);
+            order[lo] = ordinal;
+            remaining++;
+        }
+    }
+
+    private void resort(Comparator<AppEntry> comparator, int[] order) {
+        final ArrayList<AppEntry> sorted = new ArrayList<>(mEntries);
+        Collections.sort(sorted, comparator);
+        final int N = sorted.size();
+        for (int i = 0; i < N; i++) {
+            order[i] = mOrdinals.get(sorted.get(i));
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.AppOpsManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+
+import com.android.settings.applications.AppOpsState.AppEntry;
+import com.android.settings.applications.AppOpsState.OpsTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * App ops and permission holders for the union of several {@link OpsTemplate}s, queried once so
+ * that every tab of {@link AppOpsSummary} can be projected from the same data instead of
+ * repeating the app ops, package manager and label lookups per tab.
+ *
+ * A snapshot is only shared while a {@link Watcher} is started; the watcher drops it whenever
+ * an app op mode or the installed packages change.
+ */
+class AppOpsSnapshot {
+    private static final String TAG = "AppOpsSnapshot";
+
+    private static final Object sLock = new Object();
+    // Held while building, so loaders asking at the same time wait for one build.
+    private static final Object sBuildLock = new Object();
+    private static AppOpsSnapshot sCurrent;
+    private static int sGeneration;
+    private static int sWatcherCount;
+
+    final List<AppOpsManager.PackageOps> mPackageOps;
+    final List<PackageInfo> mPermissionHolders;
+
+    private final PackageManager mPm;
+    private final ArrayMap<String, ApplicationInfo> mAppInfos = new ArrayMap<>();
+    private final ArrayMap<String, AppEntry> mLabeledEntries = new ArrayMap<>();
+
+    private AppOpsSnapshot(PackageManager pm, List<AppOpsManager.PackageOps> packageOps,
+            List<PackageInfo> permissionHolders) {
+        mPm = pm;
+        mPackageOps = packageOps != null ? packageOps : new ArrayList<>();
+        mPermissionHolders = permissionHolders;
+    }
+
+    /**
+     * Queries the ops and permission holders of all of {@code templates}.
+     */
+    static AppOpsSnapshot build(AppOpsManager appOps, PackageManager pm,
+            OpsTemplate[] templates) {
+        final long start = SystemClock.elapsedRealtime();
+        final ArraySet<Integer> ops = new ArraySet<>();
+        final ArraySet<String> perms = new ArraySet<>();
+        for (OpsTemplate tpl : templates) {
+            for (int i = 0; i < tpl.ops.length; i++) {
+                ops.add(tpl.ops[i]);
+                if (tpl.showPerms[i]) {
+                    String perm = AppOpsManager.opToPermission(tpl.ops[i]);
+                    if (perm != null) {
+                        perms.add(perm);
+                    }
+                }
+            }
+        }
+        final int[] opsArray = new int[ops.size()];
+        for (int i = 0; i < opsArray.length; i++) {
+            opsArray[i] = ops.valueAt(i);
+        }
+        final String[] permsArray = perms.toArray(new String[perms.size()]);
+
+        final AppOpsSnapshot snapshot = new AppOpsSnapshot(pm, appOps.getPackagesForOps(opsArray),
+                pm.getPackagesHoldingPermissions(permsArray, 0));
+        if (AppOpsState.DEBUG) Log.d(TAG, "Built snapshot of " + opsArray.length + " ops and "
+                + permsArray.length + " permissions in "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
+        return snapshot;
+    }
+
+    /**
+     * Returns the shared snapshot of {@link AppOpsState#ALL_TEMPLATES}, building it if needed,
+     * or null if no watcher is started to keep it up to date.
+     */
+    static AppOpsSnapshot obtain(AppOpsManager appOps, PackageManager pm) {
+        synchronized (sBuildLock) {
+            final int generation;
+            synchronized (sLock) {
+                if (sWatcherCount == 0) {
+                    return null;
+                }
+                if (sCurrent != null) {
+                    return sCurrent;
+                }
+                generation = sGeneration;
+            }
+            final AppOpsSnapshot snapshot = build(appOps, pm, AppOpsState.ALL_TEMPLATES);
+            synchronized (sLock) {
+                // Only share it if nothing changed while we were building.
+                if (generation == sGeneration && sWatcherCount > 0) {
+                    sCurrent = snapshot;
+                }
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Drops the shared snapshot, the next {@link #obtain} builds a new one.
+     */
+    static void invalidate() {
+        synchronized (sLock) {
+            sGeneration++;
+            sCurrent = null;
+        }
+    }
+
+    /**
+     * Returns the application info of {@code packageName}, or null if it isn't installed.
+     */
+    ApplicationInfo getApplicationInfo(String packageName) {
+        synchronized (mAppInfos) {
+            if (mAppInfos.containsKey(packageName)) {
+                return mAppInfos.get(packageName);
+            }
+        }
+        ApplicationInfo info = null;
+        try {
+            info = mPm.getApplicationInfo(packageName,
+                    PackageManager.GET_DISABLED_COMPONENTS
+                    | PackageManager.GET_UNINSTALLED_PACKAGES);
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "Unable to find info for package " + packageName);
+        }
+        synchronized (mAppInfos) {
+            mAppInfos.put(packageName, info);
+        }
+        return info;
+    }
+
+    /**
+     * Returns a new entry for {@code info} without any ops, whose label is only loaded the first
+     * time the package is seen by any template.
+     */
+    AppEntry newAppEntry(AppOpsState state, ApplicationInfo info) {
+        AppEntry labeled;
+        synchronized (mLabeledEntries) {
+            labeled = mLabeledEntries.get(info.packageName);
+        }
+        if (labeled == null) {
+            labeled = new AppEntry(state, info);
+            labeled.loadLabel(state.mContext);
+            synchronized (mLabeledEntries) {
+                mLabeledEntries.put(info.packageName, labeled);
+            }
+        }
+        return new AppEntry(labeled);
+    }
+
+    /**
+     * Keeps the shared snapshot alive while started and drops it when app op modes or the
+     * installed packages change.
+     */
+    static class Watcher extends BroadcastReceiver implements AppOpsManager.OnOpChangedListener {
+        private final Context mContext;
+        private final AppOpsManager mAppOps;
+        private boolean mStarted;
+
+        Watcher(Context context) {
+            mContext = context;
+            mAppOps = (AppOpsManager) context.getSystemService(Context.APP_OPS_SERVICE);
+        }
+
+        void start() {
+            if (mStarted) {
+                return;
+            }
+            mStarted = true;
+            final ArraySet<Integer> ops = new ArraySet<>();
+            for (OpsTemplate tpl : AppOpsState.ALL_TEMPLATES) {
+                for (int op : tpl.ops) {
+                    ops.add(op);
+                }
+            }
+            for (int i = 0; i < ops.size(); i++) {
+                mAppOps.startWatchingMode(ops.valueAt(i), null, this);
+            }
+            IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+            filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+            filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+            filter.addDataScheme("package");
+            mContext.registerReceiver(this, filter);
+            IntentFilter sdFilter = new IntentFilter();
+            sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+            sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+            mContext.registerReceiver(this, sdFilter);
+            synchronized (sLock) {
+                sWatcherCount++;
+            }
+        }
+
+        void stop() {
+            if (!mStarted) {
+                return;
+            }
+            mStarted = false;
+            mAppOps.stopWatchingMode(this);
+            mContext.unregisterReceiver(this);
+            synchronized (sLock) {
+                sWatcherCount--;
+                sGeneration++;
+                // Usage counts and times move on while nobody is watching.
+                sCurrent = null;
+            }
+        }
+
+        @Override
+        public void onOpChanged(String op, String packageName) {
+            invalidate();
+        }
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidate();
+        }
+    }
+}
@@ -264,6 +264,19 @@ public class AppOpsState {
             mApkFile = new File(info.sourceDir);
         }
 
+        /**
+         * Creates an entry without any ops that shares the loaded label and icon of
+         * {@code other}.
+         */
+        AppEntry(AppEntry other) {
+            mState = other.mState;
+            mInfo = other.mInfo;
+            mApkFile = other.mApkFile;
+            mLabel = other.mLabel;
+            mIcon = other.mIcon;
+            mMounted = other.mMounted;
+        }
+
         public void addOp(AppOpEntry entry, AppOpsManager.OpEntry op) {
             mOps.put(op.getOp(), op);
             mOpSwitches.put(AppOpsManager.opToSwitch(op.getOp()), entry);
@@ -557,16 +570,24 @@ public class AppOpsState {
     }
 
     private AppEntry getAppEntry(final Context context, final HashMap<String, AppEntry> appEntries,
-            final String packageName, ApplicationInfo appInfo, boolean applyFilters) {
+            final String packageName, ApplicationInfo appInfo, boolean applyFilters,
+            AppOpsSnapshot snapshot) {
 
         if (appInfo == null) {
-            try {
-                appInfo = mPm.getApplicationInfo(packageName,
-                        PackageManager.GET_DISABLED_COMPONENTS
-                        | PackageManager.GET_UNINSTALLED_PACKAGES);
-            } catch (PackageManager.NameNotFoundException e) {
-                Log.w(TAG, "Unable to find info for package " + packageName);
-                return null;
+            if (snapshot != null) {
+                appInfo = snapshot.getApplicationInfo(packageName);
+                if (appInfo == null) {
+                    return null;
+                }
+            } else {
+                try {
+                    appInfo = mPm.getApplicationInfo(packageName,
+                            PackageManager.GET_DISABLED_COMPONENTS
+                            | PackageManager.GET_UNINSTALLED_PACKAGES);
+                } catch (PackageManager.NameNotFoundException e) {
+                    Log.w(TAG, "Unable to find info for package " + packageName);
+                    return null;
+                }
             }
         }
 
@@ -585,8 +606,12 @@ public class AppOpsState {
 
         AppEntry appEntry = appEntries.get(packageName);
         if (appEntry == null) {
-            appEntry = new AppEntry(this, appInfo);
-            appEntry.loadLabel(context);
+            if (snapshot != null) {
+                appEntry = snapshot.newAppEntry(this, appInfo);
+            } else {
+                appEntry = new AppEntry(this, appInfo);
+                appEntry.loadLabel(context);
+            }
             appEntries.put(packageName, appEntry);
         }
         return appEntry;
@@ -621,6 +646,19 @@ public class AppOpsState {
 
     public List<AppOpEntry> buildState(OpsTemplate tpl, int uid, String packageName,
             Comparator<AppOpEntry> comparator, boolean privacyGuard) {
+        AppOpsSnapshot snapshot = null;
+        if (packageName == null) {
+            snapshot = AppOpsSnapshot.obtain(mAppOps, mPm);
+        }
+        return buildState(tpl, uid, packageName, comparator, privacyGuard, snapshot);
+    }
+
+    /**
+     * Builds the entries of {@code tpl}, projected from {@code snapshot} if it isn't null.
+     * The snapshot must contain the ops and permissions of the template.
+     */
+    List<AppOpEntry> buildState(OpsTemplate tpl, int uid, String packageName,
+            Comparator<AppOpEntry> comparator, boolean privacyGuard, AppOpsSnapshot snapshot) {
         final Context context = mContext;
 
         final HashMap<String, AppEntry> appEntries = new HashMap<String, AppEntry>();
@@ -628,6 +666,7 @@ public class AppOpsState {
 
         final ArrayList<String> perms = new ArrayList<String>();
         final ArrayList<Integer> permOps = new ArrayList<Integer>();
+        final HashMap<String, Integer> permIndexes = new HashMap<String, Integer>();
         final int[] opToOrder = new int[AppOpsManager._NUM_OP];
 
         final Set<Integer> privacyGuardOps = new HashSet<>();
@@ -650,7 +689,8 @@ public class AppOpsState {
             }
             if (tpl.showPerms[i]) {
                 String perm = AppOpsManager.opToPermission(tpl.ops[i]);
-                if (perm != null && !perms.contains(perm)) {
+                if (perm != null && !permIndexes.containsKey(perm)) {
+                    permIndexes.put(perm, perms.size());
                     perms.add(perm);
                     permOps.add(tpl.ops[i]);
                     opToOrder[tpl.ops[i]] = i;
@@ -664,6 +704,8 @@ public class AppOpsState {
         List<AppOpsManager.PackageOps> pkgs;
         if (packageName != null) {
             pkgs = mAppOps.getOpsForPackage(uid, packageName, tpl.ops);
+        } else if (snapshot != null) {
+            pkgs = projectPackageOps(snapshot.mPackageOps, tpl.ops);
         } else {
             pkgs = mAppOps.getPackagesForOps(tpl.ops);
         }
@@ -672,7 +714,7 @@ public class AppOpsState {
             for (int i=0; i<pkgs.size(); i++) {
                 AppOpsManager.PackageOps pkgOps = pkgs.get(i);
                 AppEntry appEntry = getAppEntry(context, appEntries, pkgOps.getPackageName(), null,
-                        applyFilters);
+                        applyFilters, snapshot);
                 if (appEntry == null) {
                     continue;
                 }
@@ -700,6 +742,9 @@ public class AppOpsState {
                 apps.add(pi);
             } catch (NameNotFoundException e) {
             }
+        } else if (snapshot != null) {
+            // Holders of the permissions of the other templates are skipped below.
+            apps = snapshot.mPermissionHolders;
         } else {
             String[] permsArray = new String[perms.size()];
             perms.toArray(permsArray);
@@ -707,8 +752,11 @@ public class AppOpsState {
         }
         for (int i=0; i<apps.size(); i++) {
             PackageInfo appInfo = apps.get(i);
+            if (snapshot != null && !requestsAny(appInfo, permIndexes)) {
+                continue;
+            }
             AppEntry appEntry = getAppEntry(context, appEntries, appInfo.packageName,
-                    appInfo.applicationInfo, applyFilters);
+                    appInfo.applicationInfo, applyFilters, snapshot);
             if (appEntry == null) {
                 continue;
             }
@@ -726,27 +774,27 @@ public class AppOpsState {
                     }
                     if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + ": requested perm "
                             + appInfo.requestedPermissions[j]);
-                    for (int k=0; k<perms.size(); k++) {
-                        if (!perms.get(k).equals(appInfo.requestedPermissions[j])) {
-                            continue;
-                        }
-                        if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + " perm " + perms.get(k)
-                                + " has op " + permOps.get(k) + ": " + appEntry.hasOp(permOps.get(k)));
-                        if (appEntry.hasOp(permOps.get(k))) {
-                            continue;
-                        }
-                        if (dummyOps == null) {
-                            dummyOps = new ArrayList<AppOpsManager.OpEntry>();
-                            pkgOps = new AppOpsManager.PackageOps(
-                                    appInfo.packageName, appInfo.applicationInfo.uid, dummyOps);
+                    final Integer index = permIndexes.get(appInfo.requestedPermissions[j]);
+                    if (index == null) {
+                        continue;
+                    }
+                    final int k = index;
+                    if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + " perm " + perms.get(k)
+                            + " has op " + permOps.get(k) + ": " + appEntry.hasOp(permOps.get(k)));
+                    if (appEntry.hasOp(permOps.get(k))) {
+                        continue;
+                    }
+                    if (dummyOps == null) {
+                        dummyOps = new ArrayList<AppOpsManager.OpEntry>();
+                        pkgOps = new AppOpsManager.PackageOps(
+                                appInfo.packageName, appInfo.applicationInfo.uid, dummyOps);
 
-                        }
-                        AppOpsManager.OpEntry opEntry = new AppOpsManager.OpEntry(
-                                permOps.get(k), AppOpsManager.MODE_ALLOWED, 0, 0, 0, -1, null, 0, 0);
-                        dummyOps.add(opEntry);
-                        addOp(entries, pkgOps, appEntry, opEntry, packageName == null,
-                                packageName == null ? 0 : opToOrder[opEntry.getOp()]);
                     }
+                    AppOpsManager.OpEntry opEntry = new AppOpsManager.OpEntry(
+                            permOps.get(k), AppOpsManager.MODE_ALLOWED, 0, 0, 0, -1, null, 0, 0);
+                    dummyOps.add(opEntry);
+                    addOp(entries, pkgOps, appEntry, opEntry, packageName == null,
+                            packageName == null ? 0 : opToOrder[opEntry.getOp()]);
                 }
             }
         }
@@ -757,4 +805,48 @@ public class AppOpsState {
         // Done!
         return entries;
     }
+
+    /**
+     * Restricts the ops of each package to {@code ops}, in the order of {@code ops} like
+     * {@link AppOpsManager#getPackagesForOps} would return them.
+     */
+    private static List<AppOpsManager.PackageOps> projectPackageOps(
+            List<AppOpsManager.PackageOps> allPkgs, int[] ops) {
+        final List<AppOpsManager.PackageOps> pkgs = new ArrayList<AppOpsManager.PackageOps>();
+        final SparseArray<AppOpsManager.OpEntry> opEntries =
+                new SparseArray<AppOpsManager.OpEntry>();
+        for (int i=0; i<allPkgs.size(); i++) {
+            AppOpsManager.PackageOps allOps = allPkgs.get(i);
+            opEntries.clear();
+            for (AppOpsManager.OpEntry opEntry : allOps.getOps()) {
+                opEntries.put(opEntry.getOp(), opEntry);
+            }
+            ArrayList<AppOpsManager.OpEntry> pkgOpEntries = null;
+            for (int op : ops) {
+                AppOpsManager.OpEntry opEntry = opEntries.get(op);
+                if (opEntry != null) {
+                    if (pkgOpEntries == null) {
+                        pkgOpEntries = new ArrayList<AppOpsManager.OpEntry>();
+                    }
+                    pkgOpEntries.add(opEntry);
+                }
+            }
+            if (pkgOpEntries != null) {
+                pkgs.add(new AppOpsManager.PackageOps(allOps.getPackageName(), allOps.getUid(),
+                        pkgOpEntries));
+            }
+        }
+        return pkgs;
+    }
+
+    private static boolean requestsAny(PackageInfo appInfo, HashMap<String, Integer> perms) {
+        if (appInfo.requestedPermissions != null) {
+            for (String perm : appInfo.requestedPermissions) {
+                if (perms.containsKey(perm)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 }
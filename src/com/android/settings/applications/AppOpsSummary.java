@@ -63,6 +63,9 @@ public class AppOpsSummary extends InstrumentedFragment {
     private Activity mActivity;
     private SharedPreferences mPreferences;
 
+    // Lets all tabs share one snapshot of the app ops while we're visible.
+    private AppOpsSnapshot.Watcher mSnapshotWatcher;
+
     @Override
     protected int getMetricsCategory() {
         return MetricsEvent.APP_OPS_SUMMARY;
@@ -210,6 +213,22 @@ public class AppOpsSummary extends InstrumentedFragment {
         setHasOptionsMenu(true);
     }
 
+    @Override
+    public void onStart() {
+        // Started before the tabs start their loaders.
+        if (mSnapshotWatcher == null) {
+            mSnapshotWatcher = new AppOpsSnapshot.Watcher(mActivity);
+        }
+        mSnapshotWatcher.start();
+        super.onStart();
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        mSnapshotWatcher.stop();
+    }
+
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         super.onCreateOptionsMenu(menu, inflater);
@@ -225,6 +244,7 @@ public class AppOpsSummary extends InstrumentedFragment {
             return;
         }
         appOps.resetCounters();
+        AppOpsSnapshot.invalidate();
         // reload content
         resetAdapter();
     }
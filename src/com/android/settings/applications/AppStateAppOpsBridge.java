@@ -22,6 +22,7 @@ import android.content.Context;
 import android.content.pm.IPackageManager;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.content.pm.ParceledListSlice;
 import android.os.RemoteException;
 import android.os.UserHandle;
 import android.os.UserManager;
@@ -94,20 +95,7 @@ public abstract class AppStateAppOpsBridge extends AppStateBaseBridge {
             permissionState.packageInfo = mIPackageManager.getPackageInfo(pkg,
                     PackageManager.GET_PERMISSIONS | PackageManager.MATCH_UNINSTALLED_PACKAGES,
                     permissionState.userHandle.getIdentifier());
-            // Check static permission state (whatever that is declared in package manifest)
-            String[] requestedPermissions = permissionState.packageInfo.requestedPermissions;
-            int[] permissionFlags = permissionState.packageInfo.requestedPermissionsFlags;
-            if (requestedPermissions != null) {
-                for (int i = 0; i < requestedPermissions.length; i++) {
-                    if (doesAnyPermissionMatch(requestedPermissions[i], mPermissions)) {
-                        permissionState.permissionDeclared = true;
-                        if ((permissionFlags[i] & PackageInfo.REQUESTED_PERMISSION_GRANTED) != 0) {
-                            permissionState.staticPermissionGranted = true;
-                            break;
-                        }
-                    }
-                }
-            }
+            loadStaticPermissionState(permissionState);
             // Check app op state.
             List<PackageOps> ops = mAppOpsManager.getOpsForPackage(uid, pkg, mAppOpsOpCodes);
             if (ops != null && ops.size() > 0 && ops.get(0).getOps().size() > 0) {
@@ -119,12 +107,34 @@ public abstract class AppStateAppOpsBridge extends AppStateBaseBridge {
         return permissionState;
     }
 
+    /*
+     * Sets the permissionDeclared and staticPermissionGranted fields from the permissions
+     * requested in the manifest of the already loaded packageInfo.
+     */
+    private void loadStaticPermissionState(PermissionState permissionState) {
+        if (permissionState.packageInfo == null) {
+            return;
+        }
+        String[] requestedPermissions = permissionState.packageInfo.requestedPermissions;
+        int[] permissionFlags = permissionState.packageInfo.requestedPermissionsFlags;
+        if (requestedPermissions != null) {
+            for (int i = 0; i < requestedPermissions.length; i++) {
+                if (doesAnyPermissionMatch(requestedPermissions[i], mPermissions)) {
+                    permissionState.permissionDeclared = true;
+                    if ((permissionFlags[i] & PackageInfo.REQUESTED_PERMISSION_GRANTED) != 0) {
+                        permissionState.staticPermissionGranted = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
     @Override
     protected void loadAllExtraInfo() {
         SparseArray<ArrayMap<String, PermissionState>> entries = getEntries();
 
         // Load state info.
-        loadPermissionsStates(entries);
         loadAppOpsStates(entries);
 
         // Map states to application info.
@@ -133,14 +143,17 @@ public abstract class AppStateAppOpsBridge extends AppStateBaseBridge {
         for (int i = 0; i < N; i++) {
             AppEntry app = apps.get(i);
             int userId = UserHandle.getUserId(app.info.uid);
-            ArrayMap<String, PermissionState> userMap = entries.get(userId);
+            ArrayMap<String, PermissionState> userMap = entries != null ? entries.get(userId)
+                    : null;
             app.extraInfo = userMap != null ? userMap.get(app.info.packageName) : null;
         }
     }
 
     /*
      * Gets a sparse array that describes every user on the device and all the associated packages
-     * of each user, together with the packages available for that user.
+     * of each user, together with the packages available for that user. The packageInfo,
+     * permissionDeclared and staticPermissionGranted fields of each entry are already loaded,
+     * using a single package manager query per profile instead of one per package.
      */
     private SparseArray<ArrayMap<String, PermissionState>> getEntries() {
         try {
@@ -164,13 +177,23 @@ public abstract class AppStateAppOpsBridge extends AppStateBaseBridge {
                 final ArrayMap<String, PermissionState> entriesForProfile = new ArrayMap<>();
                 final int profileId = profile.getIdentifier();
                 entries.put(profileId, entriesForProfile);
-                for (final String packageName : packagesSet) {
-                    final boolean isAvailable = mIPackageManager.isPackageAvailable(packageName,
-                            profileId);
-                    if (!shouldIgnorePackage(packageName) && isAvailable) {
-                        final PermissionState newEntry = new PermissionState(packageName, profile);
-                        entriesForProfile.put(packageName, newEntry);
+                // Only packages installed and not hidden for the profile are returned, which
+                // is what isPackageAvailable() checks.
+                @SuppressWarnings("unchecked")
+                final ParceledListSlice<PackageInfo> slice = mIPackageManager
+                        .getInstalledPackages(PackageManager.GET_PERMISSIONS, profileId);
+                final List<PackageInfo> packageInfos = slice != null ? slice.getList() : null;
+                final int packageInfoCount = packageInfos != null ? packageInfos.size() : 0;
+                for (int i = 0; i < packageInfoCount; i++) {
+                    final PackageInfo packageInfo = packageInfos.get(i);
+                    final String packageName = packageInfo.packageName;
+                    if (!packagesSet.contains(packageName) || shouldIgnorePackage(packageName)) {
+                        continue;
                     }
+                    final PermissionState newEntry = new PermissionState(packageName, profile);
+                    newEntry.packageInfo = packageInfo;
+                    loadStaticPermissionState(newEntry);
+                    entriesForProfile.put(packageName, newEntry);
                 }
             }
 
@@ -182,48 +205,14 @@ public abstract class AppStateAppOpsBridge extends AppStateBaseBridge {
         }
     }
 
-    /*
-     * This method will set the packageInfo and staticPermissionGranted field of the associated
-     * PermissionState, which describes a particular package.
-     */
-    private void loadPermissionsStates(SparseArray<ArrayMap<String, PermissionState>> entries) {
-        // Load the packages that have been granted the permission specified in mPermission.
-        if (entries == null) {
-            return;
-        }
-
-        try {
-            for (final UserHandle profile : mProfiles) {
-                final int profileId = profile.getIdentifier();
-                final ArrayMap<String, PermissionState> entriesForProfile = entries.get(profileId);
-                if (entriesForProfile == null) {
-                    continue;
-                }
-                @SuppressWarnings("unchecked")
-                final List<PackageInfo> packageInfos = mIPackageManager
-                        .getPackagesHoldingPermissions(mPermissions, 0, profileId).getList();
-                final int packageInfoCount = packageInfos != null ? packageInfos.size() : 0;
-                for (int i = 0; i < packageInfoCount; i++) {
-                    final PackageInfo packageInfo = packageInfos.get(i);
-                    final PermissionState pe = entriesForProfile.get(packageInfo.packageName);
-                    if (pe != null) {
-                        pe.packageInfo = packageInfo;
-                        pe.staticPermissionGranted = true;
-                    }
-                }
-            }
-        } catch (RemoteException e) {
-            Log.w(TAG, "PackageManager is dead. Can't get list of packages granted "
-                    + mPermissions, e);
-            return;
-        }
-    }
-
     /*
      * This method will set the appOpMode field of the associated PermissionState, which describes
      * a particular package.
      */
     private void loadAppOpsStates(SparseArray<ArrayMap<String, PermissionState>> entries) {
+        if (entries == null) {
+            return;
+        }
         // Find out which packages have been granted permission from AppOps.
         final List<AppOpsManager.PackageOps> packageOps = mAppOpsManager.getPackagesForOps(
                 mAppOpsOpCodes);
@@ -281,7 +270,6 @@ public abstract class AppStateAppOpsBridge extends AppStateBaseBridge {
         if (entries == null) {
             return 0;
         }
-        loadPermissionsStates(entries);
         loadAppOpsStates(entries);
         final ArrayMap<String, PermissionState> entriesForProfile = entries.get(mUserManager
                 .getUserHandle());
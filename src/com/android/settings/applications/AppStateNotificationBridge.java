@@ -17,9 +17,9 @@ package com.android.settings.applications;
 
 import android.app.Notification;
 import android.content.Context;
-import android.content.pm.PackageManager;
 import android.os.UserHandle;
 import android.service.notification.NotificationListenerService;
+import android.util.Log;
 
 import com.android.internal.widget.LockPatternUtils;
 import com.android.settings.notification.NotificationBackend;
@@ -29,38 +29,123 @@ import com.android.settingslib.applications.ApplicationsState.AppEntry;
 import com.android.settingslib.applications.ApplicationsState.AppFilter;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Connects the info provided by ApplicationsState and the NotificationBackend.
  * Also provides app filters that can use the notification data.
  */
 public class AppStateNotificationBridge extends AppStateBaseBridge {
+    private static final String TAG = "AppStateNotificationBridge";
+
+    // Number of threads used to query NoMan when loading all apps.
+    private static final int LOAD_THREADS = 4;
 
     private final NotificationBackend mNotifBackend;
-    private final PackageManager mPm;
     private final Context mContext;
+    private ExecutorService mLoadExecutor;
+    private boolean mReleased;
 
     public AppStateNotificationBridge(Context context, ApplicationsState appState,
             Callback callback, NotificationBackend notifBackend) {
         super(appState, callback);
         mContext = context;
-        mPm = mContext.getPackageManager();
         mNotifBackend = notifBackend;
     }
 
+    @Override
+    public void release() {
+        super.release();
+        synchronized (this) {
+            mReleased = true;
+            if (mLoadExecutor != null) {
+                // Tasks still queued are dropped without running; cancel them so a load
+                // waiting for them returns.
+                final List<Runnable> queued = mLoadExecutor.shutdownNow();
+                final int N = queued.size();
+                for (int i = 0; i < N; i++) {
+                    if (queued.get(i) instanceof Future) {
+                        ((Future<?>) queued.get(i)).cancel(false);
+                    }
+                }
+                mLoadExecutor = null;
+            }
+        }
+    }
+
     @Override
     protected void loadAllExtraInfo() {
-        ArrayList<AppEntry> apps = mAppSession.getAllApps();
+        final ArrayList<AppEntry> apps = mAppSession.getAllApps();
         final int N = apps.size();
-        for (int i = 0; i < N; i++) {
-            AppEntry app = apps.get(i);
-            app.extraInfo = mNotifBackend.loadAppRow(mContext, mPm, app.info);
+        if (N == 0) {
+            return;
+        }
+        // The list only needs the state used by the filters and the summary; labels and
+        // icons come from the AppEntry and are loaded when the row is bound.
+        final boolean lockScreenSecure = new LockPatternUtils(mContext).isSecure(
+                UserHandle.myUserId());
+        final ExecutorService executor = getLoadExecutor();
+        if (executor == null) {
+            return;
+        }
+        // Each row costs several binder calls to NoMan, spread the apps across a few threads.
+        final int chunkSize = (N + LOAD_THREADS - 1) / LOAD_THREADS;
+        final ArrayList<Callable<Void>> tasks = new ArrayList<>(LOAD_THREADS);
+        for (int start = 0; start < N; start += chunkSize) {
+            final int from = start;
+            final int to = Math.min(N, start + chunkSize);
+            tasks.add(() -> {
+                for (int i = from; i < to; i++) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        // Released, stop loading.
+                        return null;
+                    }
+                    AppEntry app = apps.get(i);
+                    app.extraInfo = mNotifBackend.loadAppRowState(app.info, lockScreenSecure);
+                }
+                return null;
+            });
+        }
+        try {
+            final List<Future<Void>> results = executor.invokeAll(tasks);
+            final int count = results.size();
+            for (int i = 0; i < count; i++) {
+                final Future<Void> result = results.get(i);
+                if (result.isCancelled()) {
+                    continue;
+                }
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    Log.w(TAG, "Failed to load notification state", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while loading notification state", e);
+            // Let the caller see the load was cancelled.
+            Thread.currentThread().interrupt();
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Released while loading notification state", e);
         }
     }
 
     @Override
     protected void updateExtraInfo(AppEntry app, String pkg, int uid) {
-        app.extraInfo = mNotifBackend.loadAppRow(mContext, mPm, app.info);
+        app.extraInfo = mNotifBackend.loadAppRowState(app.info,
+                new LockPatternUtils(mContext).isSecure(UserHandle.myUserId()));
+    }
+
+    private synchronized ExecutorService getLoadExecutor() {
+        if (mLoadExecutor == null && !mReleased) {
+            mLoadExecutor = Executors.newFixedThreadPool(LOAD_THREADS);
+        }
+        return mLoadExecutor;
     }
 
     public static final AppFilter FILTER_APP_NOTIFICATION_BLOCKED = new AppFilter() {
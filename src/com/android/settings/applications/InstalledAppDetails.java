@@ -1112,7 +1112,8 @@ public class InstalledAppDetails extends AppInfoBase
 
     public static CharSequence getNotificationSummary(AppEntry appEntry, Context context,
             NotificationBackend backend) {
-        AppRow appRow = backend.loadAppRow(context, context.getPackageManager(), appEntry.info);
+        AppRow appRow = backend.loadAppRowState(appEntry.info,
+                new LockPatternUtils(context).isSecure(UserHandle.myUserId()));
         return getNotificationSummary(appRow, context);
     }
 
@@ -28,6 +28,7 @@ import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.LocaleList;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.preference.PreferenceFrameLayout;
@@ -795,6 +796,7 @@ public class ManageApplications extends InstrumentedFragment
         private final AppStateBaseBridge mExtraInfoBridge;
         private final Handler mBgHandler;
         private final Handler mFgHandler;
+        private final AppListIndex mListIndex = new AppListIndex();
         private int mFilterMode;
         private ArrayList<ApplicationsState.AppEntry> mBaseEntries;
         private ArrayList<ApplicationsState.AppEntry> mEntries;
@@ -873,6 +875,8 @@ public class ManageApplications extends InstrumentedFragment
             if (!mResumed) {
                 mResumed = true;
                 mSession.resume();
+                // Anything may have changed while we were paused.
+                invalidateListIndex();
                 mLastSortMode = sort;
                 if (mExtraInfoBridge != null) {
                     mExtraInfoBridge.resume();
@@ -915,7 +919,6 @@ public class ManageApplications extends InstrumentedFragment
                 return;
             }
             if (DEBUG) Log.i(TAG, "Rebuilding app list...");
-            ApplicationsState.AppFilter filterObj;
             Comparator<AppEntry> comparatorObj;
             boolean emulated = Environment.isExternalStorageEmulated();
             if (emulated) {
@@ -923,22 +926,18 @@ public class ManageApplications extends InstrumentedFragment
             } else {
                 mWhichSize = SIZE_INTERNAL;
             }
-            filterObj = FILTERS[mFilterMode];
-            if (mOverrideFilter != null) {
-                filterObj = mOverrideFilter;
-            }
-            if (!mManageApplications.mShowSystem) {
-                filterObj = new CompoundFilter(filterObj,
-                                               ApplicationsState.FILTER_DOWNLOADED_AND_LAUNCHER);
-            }
-            if (!mManageApplications.mShowSubstratum) {
-                filterObj = new CompoundFilter(filterObj,
-                                               ApplicationsState.FILTER_SUBSTRATUM);
-            }
-            if (!mManageApplications.mShowSubstratumIcons) {
-                filterObj = new CompoundFilter(filterObj,
-                                               ApplicationsState.FILTER_SUBSTRATUM_ICONS);
-            }
+            // The filters are ANDed together by the list index, each one is only evaluated
+            // again once the state it looks at changes.
+            final AppFilter[] filters = new AppFilter[] {
+                    mOverrideFilter != null ? mOverrideFilter : FILTERS[mFilterMode],
+                    !mManageApplications.mShowSystem
+                            ? ApplicationsState.FILTER_DOWNLOADED_AND_LAUNCHER : null,
+                    !mManageApplications.mShowSubstratum
+                            ? ApplicationsState.FILTER_SUBSTRATUM : null,
+                    !mManageApplications.mShowSubstratumIcons
+                            ? ApplicationsState.FILTER_SUBSTRATUM_ICONS : null,
+                    ApplicationsState.FILTER_NOT_HIDE,
+            };
             switch (mLastSortMode) {
                 case R.id.sort_order_size:
                     switch (mWhichSize) {
@@ -957,18 +956,41 @@ public class ManageApplications extends InstrumentedFragment
                     comparatorObj = ApplicationsState.ALPHA_COMPARATOR;
                     break;
             }
-            filterObj = new CompoundFilter(filterObj, ApplicationsState.FILTER_NOT_HIDE);
 
-            AppFilter finalFilterObj = filterObj;
             mBgHandler.post(() -> {
-                final ArrayList<AppEntry> entries = mSession.rebuild(finalFilterObj,
-                        comparatorObj, false);
-                if (entries != null) {
-                    mFgHandler.post(() -> onRebuildComplete(entries));
+                final long start = DEBUG ? SystemClock.elapsedRealtime() : 0;
+                if (!mListIndex.hasOrder(comparatorObj)) {
+                    // Let the session do the full sort, it holds the lock that keeps
+                    // labels and sizes stable while sorting.
+                    final ArrayList<AppEntry> sorted = mSession.rebuild(
+                            ApplicationsState.FILTER_EVERYTHING, comparatorObj, false);
+                    if (sorted == null) {
+                        return;
+                    }
+                    mListIndex.putOrder(comparatorObj, sorted);
                 }
+                final ArrayList<AppEntry> entries = mListIndex.query(filters, comparatorObj);
+                if (DEBUG) {
+                    Log.d(TAG, "Rebuilt " + entries.size() + "/" + mListIndex.size()
+                            + " apps in " + (SystemClock.elapsedRealtime() - start) + "ms");
+                }
+                mFgHandler.post(() -> onRebuildComplete(entries));
             });
         }
 
+        /**
+         * Drops everything the list index knows, for when the set of apps has changed.
+         */
+        private void invalidateListIndex() {
+            mBgHandler.post(() -> mListIndex.clear());
+        }
+
+        /**
+         * Drops the cached filter results, for when the state the filters look at has changed.
+         */
+        private void invalidateListFilters() {
+            mBgHandler.post(() -> mListIndex.invalidateFilters());
+        }
 
         static private boolean packageNameEquals(PackageItemInfo info1, PackageItemInfo info2) {
             if (info1 == null || info2 == null) {
@@ -1101,6 +1123,7 @@ public class ManageApplications extends InstrumentedFragment
         @Override
         public void onExtraInfoUpdated() {
             mHasReceivedBridgeCallback = true;
+            invalidateListFilters();
             rebuild(false);
         }
 
@@ -1111,6 +1134,7 @@ public class ManageApplications extends InstrumentedFragment
 
         @Override
         public void onPackageListChanged() {
+            invalidateListIndex();
             rebuild(false);
         }
 
@@ -1123,12 +1147,15 @@ public class ManageApplications extends InstrumentedFragment
         @Override
         public void onLoadEntriesCompleted() {
             mHasReceivedLoadEntries = true;
+            invalidateListIndex();
             // We may have been skipping rebuilds until this came in, trigger one now.
             rebuild(false);
         }
 
         @Override
         public void onPackageSizeChanged(String packageName) {
+            // Only the entries of this package moved in the size orderings.
+            mBgHandler.post(() -> mListIndex.onEntryChanged(packageName));
             for (int i = 0; i < mActive.size(); i++) {
                 AppViewHolder holder = (AppViewHolder) mActive.get(i).getTag();
                 if (holder.entry.info.packageName.equals(packageName)) {
@@ -1150,6 +1177,7 @@ public class ManageApplications extends InstrumentedFragment
 
         @Override
         public void onLauncherInfoChanged() {
+            invalidateListFilters();
             if (!mManageApplications.mShowSystem) {
                 rebuild(false);
             }
@@ -1157,6 +1185,11 @@ public class ManageApplications extends InstrumentedFragment
 
         @Override
         public void onAllSizesComputed() {
+            mBgHandler.post(() -> {
+                mListIndex.invalidateOrder(ApplicationsState.SIZE_COMPARATOR);
+                mListIndex.invalidateOrder(ApplicationsState.INTERNAL_SIZE_COMPARATOR);
+                mListIndex.invalidateOrder(ApplicationsState.EXTERNAL_SIZE_COMPARATOR);
+            });
             if (mLastSortMode == R.id.sort_order_size) {
                 rebuild(false);
             }
@@ -55,7 +55,12 @@ public final class BluetoothDevicePreference extends Preference implements
 
     private static int sDimAlpha = Integer.MIN_VALUE;
 
-    private final CachedBluetoothDevice mCachedDevice;
+    private CachedBluetoothDevice mCachedDevice;
+
+    private DiscoveryBuffer mUpdateBuffer;
+
+    // Found by an earlier scan and not found again yet.
+    private boolean mStale;
 
     private OnClickListener mOnSettingsClickListener;
 
@@ -107,6 +112,34 @@ public final class BluetoothDevicePreference extends Preference implements
         return mCachedDevice;
     }
 
+    /**
+     * Shows {@code cachedDevice} instead of the current device, which must have the same
+     * address and bond state. Used to keep the preference of a device found again by a new scan.
+     */
+    void setCachedDevice(CachedBluetoothDevice cachedDevice) {
+        if (cachedDevice == mCachedDevice) return;
+        mCachedDevice.unregisterCallback(this);
+        mCachedDevice = cachedDevice;
+        mCachedDevice.registerCallback(this);
+        updateAttributes();
+    }
+
+    /**
+     * Routes attribute changes through {@code buffer} instead of applying them right away.
+     */
+    void setUpdateBuffer(DiscoveryBuffer buffer) {
+        mUpdateBuffer = buffer;
+    }
+
+    /**
+     * Grays out a device found by an earlier scan until it's found again.
+     */
+    void setStale(boolean stale) {
+        if (mStale == stale) return;
+        mStale = stale;
+        updateAttributes();
+    }
+
     public void setOnSettingsClickListener(OnClickListener listener) {
         mOnSettingsClickListener = listener;
     }
@@ -122,6 +155,17 @@ public final class BluetoothDevicePreference extends Preference implements
     }
 
     public void onDeviceAttributesChanged() {
+        if (mUpdateBuffer != null) {
+            mUpdateBuffer.onPreferenceChanged(this);
+            return;
+        }
+        updateAttributes();
+
+        // This could affect ordering, so notify that
+        notifyHierarchyChanged();
+    }
+
+    void updateAttributes() {
         /*
          * The preference framework takes care of making sure the value has
          * changed before proceeding. It will also call notifyChanged() if
@@ -144,9 +188,13 @@ public final class BluetoothDevicePreference extends Preference implements
         }
 
         // Used to gray out the item
-        setEnabled(!mCachedDevice.isBusy());
+        setEnabled(!mStale && !mCachedDevice.isBusy());
+    }
 
-        // This could affect ordering, so notify that
+    /**
+     * Re-sorts the list this preference is in.
+     */
+    void notifyOrderChanged() {
         notifyHierarchyChanged();
     }
 
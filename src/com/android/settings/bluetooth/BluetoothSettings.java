@@ -338,17 +338,17 @@ public final class BluetoothSettings extends DeviceListPreferenceFragment implem
             mAvailableDevicesCategoryIsPresent = true;
         }
 
+        mLocalAdapter.stopScanning();
         if (mAvailableDevicesCategory != null) {
             setDeviceListGroup(mAvailableDevicesCategory);
-            removeAllDevices();
-        }
-
-        mLocalManager.getCachedDeviceManager().clearNonBondedDevices();
-        if (mAvailableDevicesCategory != null) {
-            mAvailableDevicesCategory.removeAll();
+            // Rather than clearing the list, keep what the last scan found until this one
+            // finds it again or finishes.
+            markDevicesStale();
         } else {
               Log.e(TAG, "mAvailableDevicesCategory is null.");
         }
+
+        mLocalManager.getCachedDeviceManager().clearNonBondedDevices();
         mInitialScanStarted = true;
         mLocalAdapter.startScanning(true);
     }
@@ -384,7 +384,8 @@ public final class BluetoothSettings extends DeviceListPreferenceFragment implem
                     messageId = R.string.bluetooth_empty_list_user_restricted;
                     break;
                 }
-                getPreferenceScreen().removeAll();
+                // Adding a preference that's already there does nothing, the categories keep
+                // their device preferences so they can be reused below.
                 getPreferenceScreen().addPreference(mPairedDevicesCategory);
                 getPreferenceScreen().addPreference(mAvailableDevicesCategory);
                 getPreferenceScreen().addPreference(mMyDevicePreference);
@@ -512,8 +513,8 @@ public final class BluetoothSettings extends DeviceListPreferenceFragment implem
 
     @Override
     public void onDeviceBondStateChanged(CachedBluetoothDevice cachedDevice, int bondState) {
-        setDeviceListGroup(getPreferenceScreen());
-        removeAllDevices();
+        // Rebuild both categories in place, updateContent() reuses their preferences.
+        mLocalAdapter.stopScanning();
         updateContent(mLocalAdapter.getBluetoothState());
     }
 
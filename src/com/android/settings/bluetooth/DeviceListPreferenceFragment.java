@@ -22,6 +22,7 @@ import android.os.Bundle;
 import android.support.v7.preference.Preference;
 import android.support.v7.preference.PreferenceCategory;
 import android.support.v7.preference.PreferenceGroup;
+import android.util.ArrayMap;
 import android.util.Log;
 
 import com.android.settings.RestrictedSettingsFragment;
@@ -32,6 +33,7 @@ import com.android.settingslib.bluetooth.LocalBluetoothAdapter;
 import com.android.settingslib.bluetooth.LocalBluetoothManager;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.WeakHashMap;
 
 /**
@@ -42,7 +44,7 @@ import java.util.WeakHashMap;
  * @see DevicePickerFragment
  */
 public abstract class DeviceListPreferenceFragment extends
-        RestrictedSettingsFragment implements BluetoothCallback {
+        RestrictedSettingsFragment implements BluetoothCallback, DiscoveryBuffer.Callback {
 
     private static final String TAG = "DeviceListPreferenceFragment";
 
@@ -61,6 +63,15 @@ public abstract class DeviceListPreferenceFragment extends
     final WeakHashMap<CachedBluetoothDevice, BluetoothDevicePreference> mDevicePreferenceMap =
             new WeakHashMap<CachedBluetoothDevice, BluetoothDevicePreference>();
 
+    // Found devices and attribute changes waiting for the next frame.
+    private DiscoveryBuffer mDiscoveryBuffer;
+
+    // Preferences of devices found by the previous scan, by address, that the current scan
+    // hasn't found again yet.
+    private final ArrayMap<String, BluetoothDevicePreference> mStalePreferences =
+            new ArrayMap<>();
+    private boolean mStaleScanStarted;
+
     DeviceListPreferenceFragment(String restrictedKey) {
         super(restrictedKey);
         mFilter = BluetoothDeviceFilter.ALL_FILTER;
@@ -84,6 +95,7 @@ public abstract class DeviceListPreferenceFragment extends
             return;
         }
         mLocalAdapter = mLocalManager.getBluetoothAdapter();
+        mDiscoveryBuffer = new DiscoveryBuffer(this);
 
         addPreferencesForActivity();
 
@@ -122,15 +134,45 @@ public abstract class DeviceListPreferenceFragment extends
 
     void removeAllDevices() {
         mLocalAdapter.stopScanning();
+        mDiscoveryBuffer.clear();
+        mStalePreferences.clear();
         mDevicePreferenceMap.clear();
         mDeviceListGroup.removeAll();
     }
 
+    /**
+     * Keeps the devices listed so far around for a new scan, grayed out. The ones the scan finds
+     * again are reused, the others are removed when it finishes.
+     */
+    void markDevicesStale() {
+        mDiscoveryBuffer.clearAddedDevices();
+        final int count = mDeviceListGroup.getPreferenceCount();
+        for (int i = 0; i < count; i++) {
+            final Preference preference = mDeviceListGroup.getPreference(i);
+            if (preference instanceof BluetoothDevicePreference) {
+                final BluetoothDevicePreference btPreference =
+                        (BluetoothDevicePreference) preference;
+                btPreference.setStale(true);
+                mStalePreferences.put(btPreference.getKey(), btPreference);
+            }
+        }
+        mDevicePreferenceMap.clear();
+        mStaleScanStarted = false;
+    }
+
+    private void removeStaleDevices() {
+        final int N = mStalePreferences.size();
+        for (int i = 0; i < N; i++) {
+            mDeviceListGroup.removePreference(mStalePreferences.valueAt(i));
+        }
+        mStalePreferences.clear();
+    }
+
     void addCachedDevices() {
         Collection<CachedBluetoothDevice> cachedDevices =
                 mLocalManager.getCachedDeviceManager().getCachedDevicesCopy();
         for (CachedBluetoothDevice cachedDevice : cachedDevices) {
-            onDeviceAdded(cachedDevice);
+            addDevice(cachedDevice);
         }
     }
 
@@ -160,6 +202,22 @@ public abstract class DeviceListPreferenceFragment extends
         if (mDevicePreferenceMap.get(cachedDevice) != null) {
             return;
         }
+        // Discovery can report many devices a frame, add them together.
+        mDiscoveryBuffer.addDevice(cachedDevice);
+    }
+
+    @Override
+    public void onDevicesAdded(List<CachedBluetoothDevice> devices) {
+        final int N = devices.size();
+        for (int i = 0; i < N; i++) {
+            addDevice(devices.get(i));
+        }
+    }
+
+    private void addDevice(CachedBluetoothDevice cachedDevice) {
+        if (mDevicePreferenceMap.get(cachedDevice) != null) {
+            return;
+        }
 
         // Prevent updates while the list shows one of the state messages
         if (mLocalAdapter.getBluetoothState() != BluetoothAdapter.STATE_ON) return;
@@ -178,6 +236,18 @@ public abstract class DeviceListPreferenceFragment extends
 
         String key = cachedDevice.getDevice().getAddress();
         BluetoothDevicePreference preference = (BluetoothDevicePreference) getCachedPreference(key);
+        final BluetoothDevicePreference stale = mStalePreferences.remove(key);
+        if (preference == null && stale != null) {
+            if (stale.getCachedDevice().getBondState() == cachedDevice.getBondState()) {
+                // Found again by a new scan, keep its place in the list.
+                preference = stale;
+                if (mDeviceListGroup.findPreference(key) == null) {
+                    mDeviceListGroup.addPreference(preference);
+                }
+            } else {
+                mDeviceListGroup.removePreference(stale);
+            }
+        }
 
         if (preference == null) {
             preference = new BluetoothDevicePreference(getPrefContext(), cachedDevice);
@@ -186,8 +256,11 @@ public abstract class DeviceListPreferenceFragment extends
         } else {
             // Tell the preference it is being re-used in case there is new info in the
             // cached device.
+            preference.setCachedDevice(cachedDevice);
+            preference.setStale(false);
             preference.rebind();
         }
+        preference.setUpdateBuffer(mDiscoveryBuffer);
 
         initDevicePreference(preference);
 
@@ -203,6 +276,7 @@ public abstract class DeviceListPreferenceFragment extends
     }
 
     public void onDeviceDeleted(CachedBluetoothDevice cachedDevice) {
+        mDiscoveryBuffer.removeDevice(cachedDevice);
         BluetoothDevicePreference preference = mDevicePreferenceMap.remove(cachedDevice);
         if (preference != null) {
             mDeviceListGroup.removePreference(preference);
@@ -211,6 +285,12 @@ public abstract class DeviceListPreferenceFragment extends
 
     public void onScanningStateChanged(boolean started) {
         updateProgressUi(started);
+        // The end of the scan that was running when the devices were marked stale doesn't count.
+        if (started) {
+            mStaleScanStarted = true;
+        } else if (mStaleScanStarted) {
+            removeStaleDevices();
+        }
     }
 
     private void updateProgressUi(boolean start) {
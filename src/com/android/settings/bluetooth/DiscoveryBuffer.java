@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.bluetooth;
+
+import android.os.SystemClock;
+import android.util.ArraySet;
+import android.view.Choreographer;
+
+import com.android.settingslib.bluetooth.CachedBluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the devices found during discovery and the attribute changes of the listed ones, and
+ * applies them once per frame.
+ *
+ * Several name or RSSI updates of one device within a frame are applied once. Re-sorting the
+ * list, which any attribute change may call for, happens at most once per
+ * {@link #MIN_REORDER_INTERVAL_MS} so that devices don't keep trading places while discovery
+ * reports new RSSI values.
+ *
+ * Must be used on the main thread.
+ */
+final class DiscoveryBuffer implements Choreographer.FrameCallback {
+    static final long MIN_REORDER_INTERVAL_MS = 1000;
+
+    interface Callback {
+        /** Called with the devices found since the last frame, in the order they were found. */
+        void onDevicesAdded(List<CachedBluetoothDevice> devices);
+    }
+
+    private final Callback mCallback;
+    private final Choreographer mChoreographer = Choreographer.getInstance();
+
+    private final ArrayList<CachedBluetoothDevice> mAdded = new ArrayList<>();
+    private final ArraySet<BluetoothDevicePreference> mChanged = new ArraySet<>();
+    // Any preference still in the list; notifying it re-sorts the whole group.
+    private BluetoothDevicePreference mReorderTarget;
+    private boolean mFrameScheduled;
+    private boolean mFrameDelayed;
+    private long mLastReorderTime;
+
+    DiscoveryBuffer(Callback callback) {
+        mCallback = callback;
+    }
+
+    void addDevice(CachedBluetoothDevice cachedDevice) {
+        if (!mAdded.contains(cachedDevice)) {
+            mAdded.add(cachedDevice);
+        }
+        scheduleFrame();
+    }
+
+    void removeDevice(CachedBluetoothDevice cachedDevice) {
+        mAdded.remove(cachedDevice);
+    }
+
+    void onPreferenceChanged(BluetoothDevicePreference preference) {
+        mChanged.add(preference);
+        scheduleFrame();
+    }
+
+    void clearAddedDevices() {
+        mAdded.clear();
+    }
+
+    /**
+     * Drops everything not applied yet.
+     */
+    void clear() {
+        mAdded.clear();
+        mChanged.clear();
+        mReorderTarget = null;
+        if (mFrameScheduled) {
+            mChoreographer.removeFrameCallback(this);
+            mFrameScheduled = false;
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mFrameScheduled = false;
+
+        if (!mAdded.isEmpty()) {
+            final List<CachedBluetoothDevice> added = new ArrayList<>(mAdded);
+            mAdded.clear();
+            mCallback.onDevicesAdded(added);
+        }
+
+        final int N = mChanged.size();
+        for (int i = 0; i < N; i++) {
+            final BluetoothDevicePreference preference = mChanged.valueAt(i);
+            preference.updateAttributes();
+            mReorderTarget = preference;
+        }
+        mChanged.clear();
+
+        if (mReorderTarget != null) {
+            final long now = SystemClock.uptimeMillis();
+            final long wait = mLastReorderTime + MIN_REORDER_INTERVAL_MS - now;
+            if (wait <= 0) {
+                mReorderTarget.notifyOrderChanged();
+                mReorderTarget = null;
+                mLastReorderTime = now;
+            } else {
+                mFrameScheduled = true;
+                mFrameDelayed = true;
+                mChoreographer.postFrameCallbackDelayed(this, wait);
+            }
+        }
+    }
+
+    private void scheduleFrame() {
+        if (mFrameScheduled) {
+            if (!mFrameDelayed) return;
+            // Waiting to re-sort, but new content shouldn't wait for that.
+            mChoreographer.removeFrameCallback(this);
+        }
+        mFrameScheduled = true;
+        mFrameDelayed = false;
+        mChoreographer.postFrameCallback(this);
+    }
+}
@@ -18,7 +18,6 @@ import android.app.LoaderManager;
 import android.content.Context;
 import android.content.Intent;
 import android.content.Loader;
-import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.UserInfo;
 import android.graphics.drawable.Drawable;
@@ -28,7 +27,6 @@ import android.net.NetworkPolicyManager;
 import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.net.TrafficStats;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Process;
 import android.os.RemoteException;
@@ -50,14 +48,9 @@ import com.android.settingslib.AppItem;
 import com.android.settingslib.Utils;
 import com.android.settingslib.net.ChartData;
 import com.android.settingslib.net.ChartDataLoader;
+import com.android.settingslib.net.UidDetail;
 import com.android.settingslib.net.UidDetailProvider;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-
 import static android.net.NetworkPolicyManager.POLICY_REJECT_METERED_BACKGROUND;
 import static android.net.NetworkPolicyManager.POLICY_REJECT_ON_DATA;
 import static android.net.NetworkPolicyManager.POLICY_REJECT_ON_WIFI;
@@ -96,6 +89,7 @@ public class AppDataUsage extends DataUsageBase implements Preference.OnPreferen
     private Drawable mIcon;
     private CharSequence mLabel;
     private String mPackageName;
+    private View mHeader;
     private INetworkStatsSession mStatsSession;
     private CycleAdapter mCycleAdapter;
 
@@ -110,12 +104,7 @@ public class AppDataUsage extends DataUsageBase implements Preference.OnPreferen
     private SpinnerPreference mCycle;
     private SwitchPreference mUnrestrictedData;
     private DataSaverBackend mDataSaverBackend;
-
-    // Parameters to construct an efficient ThreadPoolExecutor
-    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
-    private static final int CORE_POOL_SIZE = Math.max(2, Math.min(CPU_COUNT - 1, 4));
-    private static final int MAXIMUM_POOL_SIZE = CPU_COUNT * 2 + 1;
-    private static final int KEEP_ALIVE_SECONDS = 30;
+    private AppMetadataLoader.Session mMetadataSession;
 
     @Override
     public void onCreate(Bundle icicle) {
@@ -132,6 +121,7 @@ public class AppDataUsage extends DataUsageBase implements Preference.OnPreferen
         mTemplate = (args != null) ? (NetworkTemplate) args.getParcelable(ARG_NETWORK_TEMPLATE)
                 : null;
         mPolicyManager = NetworkPolicyManager.from(getActivity());
+        mMetadataSession = AppMetadataLoader.get(getContext()).openSession();
 
         if (mTemplate == null) {
             Context context = getContext();
@@ -165,14 +155,21 @@ public class AppDataUsage extends DataUsageBase implements Preference.OnPreferen
 
         if (mAppItem.key > 0) {
             if (mPackages.size() != 0) {
-                PackageManager pm = getPackageManager();
-                try {
-                    ApplicationInfo info = pm.getApplicationInfo(mPackages.valueAt(0), 0);
-                    mIcon = info.loadIcon(pm);
-                    mLabel = info.loadLabel(pm);
-                    mPackageName = info.packageName;
-                } catch (PackageManager.NameNotFoundException e) {
-                }
+                mPackageName = mPackages.valueAt(0);
+            }
+            // The data usage list has usually loaded the detail of this key already.
+            final UidDetail detail = mMetadataSession.getCachedUidDetail(mAppItem.key);
+            if (detail != null) {
+                mIcon = detail.icon;
+                mLabel = detail.label;
+            } else {
+                mMetadataSession.loadUidDetail(mAppItem.key, loaded -> {
+                    if (loaded != null) {
+                        mIcon = loaded.icon;
+                        mLabel = loaded.label;
+                        updateHeader();
+                    }
+                });
             }
             if (!UserHandle.isApp(mAppItem.key)) {
                 removePreference(KEY_UNRESTRICTED_DATA);
@@ -211,13 +208,10 @@ public class AppDataUsage extends DataUsageBase implements Preference.OnPreferen
 
             if (mPackages.size() > 1) {
                 mAppList = (PreferenceCategory) findPreference(KEY_APP_LIST);
-                final int packageSize = mPackages.size();
-                final BlockingQueue<Runnable> workQueue = new LinkedBlockingQueue<>(packageSize);
-                final ThreadPoolExecutor executor = new ThreadPoolExecutor(CORE_POOL_SIZE,
-                        MAXIMUM_POOL_SIZE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, workQueue);
                 for (int i = 1; i < mPackages.size(); i++) {
-                    final AppPrefLoader loader = new AppPrefLoader();
-                        loader.executeOnExecutor(executor, mPackages.valueAt(i));
+                    final int order = i;
+                    mMetadataSession.loadPackageDetail(mPackages.valueAt(i),
+                            detail -> addAppPref(detail, order));
                 }
             } else {
                 removePreference(KEY_APP_LIST);
@@ -247,6 +241,7 @@ public class AppDataUsage extends DataUsageBase implements Preference.OnPreferen
 
     @Override
     public void onDestroy() {
+        mMetadataSession.close();
         TrafficStats.closeQuietly(mStatsSession);
         super.onDestroy();
     }
@@ -416,7 +411,14 @@ public class AppDataUsage extends DataUsageBase implements Preference.OnPreferen
     public void onViewCreated(View view, Bundle savedInstanceState) {
         super.onViewCreated(view, savedInstanceState);
 
-        View header = setPinnedHeaderView(R.layout.app_header);
+        mHeader = setPinnedHeaderView(R.layout.app_header);
+        updateHeader();
+    }
+
+    private void updateHeader() {
+        if (mHeader == null) {
+            return;
+        }
         String pkg = mPackages.size() != 0 ? mPackages.valueAt(0) : null;
         int uid = 0;
         try {
@@ -424,7 +426,7 @@ public class AppDataUsage extends DataUsageBase implements Preference.OnPreferen
         } catch (PackageManager.NameNotFoundException e) {
         }
         AppHeader.setupHeaderView(getActivity(), mIcon, mLabel,
-                pkg, uid, AppHeader.includeAppInfo(this), 0, header, null);
+                pkg, uid, AppHeader.includeAppInfo(this), 0, mHeader, null);
     }
 
     @Override
@@ -468,29 +470,16 @@ public class AppDataUsage extends DataUsageBase implements Preference.OnPreferen
         }
     };
 
-    private class AppPrefLoader extends AsyncTask<String, Void, Preference> {
-        @Override
-        protected Preference doInBackground(String... params) {
-            PackageManager pm = getPackageManager();
-            String pkg = params[0];
-            try {
-                ApplicationInfo info = pm.getApplicationInfo(pkg, 0);
-                Preference preference = new Preference(getPrefContext());
-                preference.setIcon(info.loadIcon(pm));
-                preference.setTitle(info.loadLabel(pm));
-                preference.setSelectable(false);
-                return preference;
-            } catch (PackageManager.NameNotFoundException e) {
-            }
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(Preference pref) {
-            if (pref != null && mAppList != null) {
-                mAppList.addPreference(pref);
-            }
+    private void addAppPref(UidDetail detail, int order) {
+        if (detail == null || mAppList == null) {
+            return;
         }
+        Preference preference = new Preference(getPrefContext());
+        preference.setIcon(detail.icon);
+        preference.setTitle(detail.label);
+        preference.setSelectable(false);
+        preference.setOrder(order);
+        mAppList.addPreference(preference);
     }
 
     @Override
@@ -15,7 +15,6 @@
 package com.android.settings.datausage;
 
 import android.content.Context;
-import android.os.AsyncTask;
 import android.support.v7.preference.Preference;
 import android.support.v7.preference.PreferenceViewHolder;
 import android.text.format.Formatter;
@@ -23,30 +22,62 @@ import android.view.View;
 import android.widget.ProgressBar;
 import com.android.settingslib.AppItem;
 import com.android.settingslib.net.UidDetail;
-import com.android.settingslib.net.UidDetailProvider;
-
-import static com.android.internal.util.Preconditions.checkNotNull;
 
 public class AppDataUsagePreference extends Preference {
 
-    private final AppItem mItem;
-    private final int mPercent;
+    private AppItem mItem;
+    private int mPercent;
 
     public AppDataUsagePreference(Context context, AppItem item, int percent,
-            UidDetailProvider provider) {
+            AppMetadataLoader.Session metadataSession) {
         super(context);
         mItem = item;
         mPercent = percent;
         setLayoutResource(com.android.settings.R.layout.data_usage_item);
         setWidgetLayoutResource(com.android.settings.R.layout.widget_progress_bar);
-        if (item.restricted && item.total <= 0) {
-            setSummary(com.android.settings.R.string.data_usage_app_restricted);
+        updateSummary();
+
+        // kick off async load of app details
+        final UidDetail cachedDetail = metadataSession.getCachedUidDetail(item.key);
+        if (cachedDetail != null) {
+            bindDetail(cachedDetail);
         } else {
-            setSummary(Formatter.formatFileSize(context, item.total));
+            bindDetail(null);
+            metadataSession.loadUidDetail(item.key, this::bindDetail);
         }
+    }
 
-        // kick off async load of app details
-        UidDetailTask.bindView(provider, item, this);
+    private void bindDetail(UidDetail detail) {
+        if (detail != null) {
+            setIcon(detail.icon);
+            setTitle(detail.label);
+        } else {
+            setIcon(null);
+            setTitle(null);
+        }
+    }
+
+    /**
+     * Rebinds this row to a newer version of the same item (same key), keeping the already
+     * loaded title and icon. Does nothing if the row would look the same.
+     */
+    public void setItem(AppItem item, int percent) {
+        if (mPercent == percent && AppUsageClassifier.isSameItem(mItem, item)) {
+            mItem = item;
+            return;
+        }
+        mItem = item;
+        mPercent = percent;
+        updateSummary();
+        notifyChanged();
+    }
+
+    private void updateSummary() {
+        if (mItem.restricted && mItem.total <= 0) {
+            setSummary(com.android.settings.R.string.data_usage_app_restricted);
+        } else {
+            setSummary(Formatter.formatFileSize(getContext(), mItem.total));
+        }
     }
 
     @Override
@@ -67,57 +98,4 @@ public class AppDataUsagePreference extends Preference {
     public AppItem getItem() {
         return mItem;
     }
-
-    /**
-     * Background task that loads {@link UidDetail}, binding to
-     * {@link DataUsageAdapter} row item when finished.
-     */
-    private static class UidDetailTask extends AsyncTask<Void, Void, UidDetail> {
-        private final UidDetailProvider mProvider;
-        private final AppItem mItem;
-        private final AppDataUsagePreference mTarget;
-
-        private UidDetailTask(UidDetailProvider provider, AppItem item,
-                AppDataUsagePreference target) {
-            mProvider = checkNotNull(provider);
-            mItem = checkNotNull(item);
-            mTarget = checkNotNull(target);
-        }
-
-        public static void bindView(UidDetailProvider provider, AppItem item,
-                AppDataUsagePreference target) {
-            final UidDetail cachedDetail = provider.getUidDetail(item.key, false);
-            if (cachedDetail != null) {
-                bindView(cachedDetail, target);
-            } else {
-                new UidDetailTask(provider, item, target).executeOnExecutor(
-                        AsyncTask.THREAD_POOL_EXECUTOR);
-            }
-        }
-
-        private static void bindView(UidDetail detail, Preference target) {
-            if (detail != null) {
-                target.setIcon(detail.icon);
-                target.setTitle(detail.label);
-            } else {
-                target.setIcon(null);
-                target.setTitle(null);
-            }
-        }
-
-        @Override
-        protected void onPreExecute() {
-            bindView(null, mTarget);
-        }
-
-        @Override
-        protected UidDetail doInBackground(Void... params) {
-            return mProvider.getUidDetail(mItem.key, true);
-        }
-
-        @Override
-        protected void onPostExecute(UidDetail result) {
-            bindView(result, mTarget);
-        }
-    }
 }
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.settings.datausage;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import com.android.settingslib.net.UidDetail;
+import com.android.settingslib.net.UidDetailProvider;
+
+import java.util.ArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the label and icon of apps for the data usage screens on a small shared pool.
+ *
+ * Details are looked up either by uid key, through a shared {@link UidDetailProvider}, or by
+ * package name. Requests for the same key that are still running are merged, and results are
+ * cached for as long as any {@link Session} is open, so going from {@link DataUsageList} to
+ * {@link AppDataUsage} doesn't load the same app twice.
+ *
+ * All methods must be called on the main thread, callbacks are delivered there as well.
+ */
+public class AppMetadataLoader {
+    private static final String TAG = "AppMetadataLoader";
+
+    private static final int POOL_SIZE = 2;
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    private static AppMetadataLoader sInstance;
+
+    public interface Callback {
+        /**
+         * Called with the loaded detail, or null if the app couldn't be found.
+         */
+        void onDetailLoaded(UidDetail detail);
+    }
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mExecutor;
+    private final ArrayMap<String, UidDetail> mPackageDetails = new ArrayMap<>();
+    private final ArrayMap<Object, Request> mInFlight = new ArrayMap<>();
+    private UidDetailProvider mUidDetailProvider;
+    private int mOpenSessions;
+    // Bumped whenever the caches are dropped, so loads started before are not cached.
+    private int mGeneration;
+
+    public static AppMetadataLoader get(Context context) {
+        if (sInstance == null) {
+            sInstance = new AppMetadataLoader(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private AppMetadataLoader(Context context) {
+        mContext = context;
+        mUidDetailProvider = new UidDetailProvider(context);
+        mExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Opens a session, which must be closed when its owner is destroyed.
+     */
+    public Session openSession() {
+        mOpenSessions++;
+        return new Session();
+    }
+
+    private void load(Session session, Object key, Callback callback) {
+        Request request = mInFlight.get(key);
+        if (request == null) {
+            request = new Request(key);
+            mInFlight.put(key, request);
+            request.mFuture = mExecutor.submit(request);
+        }
+        request.mSessions.add(session);
+        request.mCallbacks.add(callback);
+    }
+
+    private void onLoaded(Request request, UidDetail detail) {
+        if (request.mGeneration != mGeneration || mInFlight.get(request.mKey) != request) {
+            // Everybody lost interest in the meantime.
+            return;
+        }
+        mInFlight.remove(request.mKey);
+        if (request.mKey instanceof String) {
+            mPackageDetails.put((String) request.mKey, detail);
+        }
+        final int N = request.mCallbacks.size();
+        for (int i = 0; i < N; i++) {
+            request.mCallbacks.get(i).onDetailLoaded(detail);
+        }
+    }
+
+    private void close(Session session) {
+        for (int i = mInFlight.size() - 1; i >= 0; i--) {
+            final Request request = mInFlight.valueAt(i);
+            for (int j = request.mSessions.size() - 1; j >= 0; j--) {
+                if (request.mSessions.get(j) == session) {
+                    request.mSessions.remove(j);
+                    request.mCallbacks.remove(j);
+                }
+            }
+            if (request.mCallbacks.isEmpty()) {
+                request.mFuture.cancel(false);
+                mInFlight.removeAt(i);
+            }
+        }
+        if (--mOpenSessions == 0) {
+            mPackageDetails.clear();
+            mUidDetailProvider.clearCache();
+            // Loads that are still running write to the provider they started with, replace it
+            // so they can't fill the cache again.
+            mUidDetailProvider = new UidDetailProvider(mContext);
+            mGeneration++;
+        }
+    }
+
+    private UidDetail loadPackageDetail(String packageName) {
+        final PackageManager pm = mContext.getPackageManager();
+        try {
+            final ApplicationInfo info = pm.getApplicationInfo(packageName, 0);
+            final UidDetail detail = new UidDetail();
+            detail.label = info.loadLabel(pm);
+            detail.icon = info.loadIcon(pm);
+            return detail;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "Unable to find info for package " + packageName);
+            return null;
+        }
+    }
+
+    private class Request implements Runnable {
+        final Object mKey;
+        final int mGeneration;
+        final UidDetailProvider mProvider;
+        final ArrayList<Session> mSessions = new ArrayList<>();
+        final ArrayList<Callback> mCallbacks = new ArrayList<>();
+        Future<?> mFuture;
+
+        Request(Object key) {
+            mKey = key;
+            mGeneration = AppMetadataLoader.this.mGeneration;
+            mProvider = mUidDetailProvider;
+        }
+
+        @Override
+        public void run() {
+            final UidDetail detail = mKey instanceof String
+                    ? loadPackageDetail((String) mKey)
+                    : mProvider.getUidDetail((Integer) mKey, true);
+            mHandler.post(() -> onLoaded(this, detail));
+        }
+    }
+
+    /**
+     * Requests of one screen, cancelled together when the screen goes away.
+     */
+    public class Session {
+        private boolean mClosed;
+
+        private Session() {
+        }
+
+        /**
+         * Returns the detail of the uid key if it has already been loaded, or null.
+         */
+        public UidDetail getCachedUidDetail(int key) {
+            return mUidDetailProvider.getUidDetail(key, false);
+        }
+
+        /**
+         * Loads the detail of a uid key as built by {@link UidDetailProvider}.
+         */
+        public void loadUidDetail(int key, Callback callback) {
+            if (mClosed) {
+                return;
+            }
+            final UidDetail cached = getCachedUidDetail(key);
+            if (cached != null) {
+                callback.onDetailLoaded(cached);
+            } else {
+                load(this, key, callback);
+            }
+        }
+
+        /**
+         * Loads the label and icon of a package.
+         */
+        public void loadPackageDetail(String packageName, Callback callback) {
+            if (mClosed) {
+                return;
+            }
+            if (mPackageDetails.containsKey(packageName)) {
+                callback.onDetailLoaded(mPackageDetails.get(packageName));
+            } else {
+                load(this, packageName, callback);
+            }
+        }
+
+        /**
+         * Drops the pending callbacks of this session, cancelling loads nobody else waits for.
+         */
+        public void close() {
+            if (!mClosed) {
+                mClosed = true;
+                AppMetadataLoader.this.close(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.android.settings.datausage;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.net.NetworkStats;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
+import android.util.SparseLongArray;
+
+import com.android.settingslib.AppItem;
+import com.android.settingslib.net.UidDetailProvider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static android.net.TrafficStats.UID_REMOVED;
+import static android.net.TrafficStats.UID_TETHERING;
+
+/**
+ * Collapses the per uid entries of a {@link NetworkStats} summary into the {@link AppItem}s shown
+ * by {@link DataUsageList}.
+ *
+ * Everything that doesn't depend on the stats (profiles, the video calling uid) is read once
+ * when the classifier is created. Usage is first summed per uid, so each distinct uid is only
+ * classified once no matter how many stats entries it has.
+ */
+class AppUsageClassifier {
+    private static final String TAG = "AppUsageClassifier";
+
+    // Values of mUserStates.
+    private static final int USER_UNKNOWN = 0;
+    private static final int USER_PROFILE = 1;
+    private static final int USER_OTHER = 2;
+    private static final int USER_REMOVED = 3;
+
+    private final UserManager mUserManager;
+    private final int mCurrentUserId;
+    private final int mVideoCallUid;
+    private final SparseIntArray mUserStates = new SparseIntArray();
+
+    private long mLargest;
+
+    /**
+     * @param videoCallUid uid whose usage is shown on its own even though it isn't an app uid,
+     *         or -1 if there is none.
+     */
+    AppUsageClassifier(UserManager userManager, int currentUserId, List<UserHandle> profiles,
+            int videoCallUid) {
+        mUserManager = userManager;
+        mCurrentUserId = currentUserId;
+        mVideoCallUid = videoCallUid;
+        for (int i = 0; i < profiles.size(); i++) {
+            mUserStates.put(profiles.get(i).getIdentifier(), USER_PROFILE);
+        }
+    }
+
+    static AppUsageClassifier create(Context context) {
+        final UserManager userManager = UserManager.get(context);
+        int videoCallUid = -1;
+        if (context.getResources().getBoolean(
+                com.android.internal.R.bool.config_video_call_datausage_enable)) {
+            try {
+                final ApplicationInfo ai = context.getPackageManager().getApplicationInfo(
+                        "com.android.dialer", PackageManager.GET_ACTIVITIES);
+                videoCallUid = ai.uid;
+            } catch (Exception e) {
+                Log.d(TAG, "get dialer getApplicationInfo failed " + e);
+            }
+        }
+        return new AppUsageClassifier(userManager, ActivityManager.getCurrentUser(),
+                userManager.getUserProfiles(), videoCallUid);
+    }
+
+    /**
+     * Returns true if the user is the current user or one of its profiles.
+     */
+    boolean isProfile(int userId) {
+        return mUserStates.get(userId) == USER_PROFILE;
+    }
+
+    /**
+     * Largest total of the items returned by the last call to {@link #classify}.
+     */
+    long getLargest() {
+        return mLargest;
+    }
+
+    /**
+     * Builds the sorted list of items for {@code stats}, splicing in the restricted state of
+     * {@code restrictedUids}.
+     */
+    ArrayList<AppItem> classify(NetworkStats stats, int[] restrictedUids) {
+        // Sum up everything per uid first, the stats usually contain many entries per uid.
+        final SparseLongArray uidTotals = new SparseLongArray();
+        NetworkStats.Entry entry = null;
+        final int size = stats != null ? stats.size() : 0;
+        for (int i = 0; i < size; i++) {
+            entry = stats.getValues(i, entry);
+            final int index = uidTotals.indexOfKey(entry.uid);
+            final long bytes = entry.rxBytes + entry.txBytes;
+            if (index >= 0) {
+                uidTotals.setValueAt(index, uidTotals.valueAt(index) + bytes);
+            } else {
+                uidTotals.put(entry.uid, bytes);
+            }
+        }
+
+        final ArrayList<AppItem> items = new ArrayList<>();
+        final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
+        mLargest = 0;
+        final int uidCount = uidTotals.size();
+        for (int i = 0; i < uidCount; i++) {
+            final int uid = uidTotals.keyAt(i);
+            final long bytes = uidTotals.valueAt(i);
+
+            // Decide how to collapse items together
+            final int collapseKey;
+            final int category;
+            final int userId = UserHandle.getUserId(uid);
+            if (UserHandle.isApp(uid)) {
+                final int userState = getUserState(userId);
+                if (userState == USER_PROFILE) {
+                    if (userId != mCurrentUserId) {
+                        // Add to a managed user item.
+                        final int managedKey = UidDetailProvider.buildKeyForUser(userId);
+                        accumulate(managedKey, knownItems, uid, bytes, AppItem.CATEGORY_USER,
+                                items);
+                    }
+                    // Add to app item.
+                    collapseKey = uid;
+                    category = AppItem.CATEGORY_APP;
+                } else if (userState == USER_REMOVED) {
+                    // If it is a removed user add it to the removed users' key
+                    collapseKey = UID_REMOVED;
+                    category = AppItem.CATEGORY_APP;
+                } else {
+                    // Add to other user item.
+                    collapseKey = UidDetailProvider.buildKeyForUser(userId);
+                    category = AppItem.CATEGORY_USER;
+                }
+            } else if (uid == UID_REMOVED || uid == UID_TETHERING || uid == mVideoCallUid) {
+                collapseKey = uid;
+                category = AppItem.CATEGORY_APP;
+            } else {
+                collapseKey = android.os.Process.SYSTEM_UID;
+                category = AppItem.CATEGORY_APP;
+            }
+            accumulate(collapseKey, knownItems, uid, bytes, category, items);
+        }
+
+        final int restrictedUidsMax = restrictedUids.length;
+        for (int i = 0; i < restrictedUidsMax; ++i) {
+            final int uid = restrictedUids[i];
+            // Only splice in restricted state for current user or managed users
+            if (!isProfile(UserHandle.getUserId(uid))) {
+                continue;
+            }
+
+            AppItem item = knownItems.get(uid);
+            if (item == null) {
+                item = new AppItem(uid);
+                item.total = -1;
+                items.add(item);
+                knownItems.put(item.key, item);
+            }
+            item.restricted = true;
+        }
+
+        Collections.sort(items);
+        return items;
+    }
+
+    private int getUserState(int userId) {
+        int state = mUserStates.get(userId, USER_UNKNOWN);
+        if (state == USER_UNKNOWN) {
+            state = mUserManager.getUserInfo(userId) != null ? USER_OTHER : USER_REMOVED;
+            mUserStates.put(userId, state);
+        }
+        return state;
+    }
+
+    /**
+     * Accumulate data usage of a uid for the item mapped by the collapse key.
+     * Creates the item if needed.
+     */
+    private void accumulate(int collapseKey, SparseArray<AppItem> knownItems, int uid,
+            long bytes, int itemCategory, ArrayList<AppItem> items) {
+        AppItem item = knownItems.get(collapseKey);
+        if (item == null) {
+            item = new AppItem(collapseKey);
+            item.category = itemCategory;
+            items.add(item);
+            knownItems.put(item.key, item);
+        }
+        item.addUid(uid);
+        item.total += bytes;
+        mLargest = Math.max(mLargest, item.total);
+    }
+
+    /**
+     * Returns true if both items would be shown the same way.
+     */
+    static boolean isSameItem(AppItem a, AppItem b) {
+        if (a.key != b.key || a.category != b.category || a.total != b.total
+                || a.restricted != b.restricted) {
+            return false;
+        }
+        final SparseBooleanArray uidsA = a.uids;
+        final SparseBooleanArray uidsB = b.uids;
+        if (uidsA.size() != uidsB.size()) {
+            return false;
+        }
+        for (int i = 0; i < uidsA.size(); i++) {
+            if (uidsA.keyAt(i) != uidsB.keyAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
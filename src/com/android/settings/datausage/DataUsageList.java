@@ -14,13 +14,9 @@
 
 package com.android.settings.datausage;
 
-import android.app.ActivityManager;
 import android.app.LoaderManager.LoaderCallbacks;
 import android.content.Context;
 import android.content.Loader;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
-import android.content.pm.UserInfo;
 import android.graphics.Color;
 import android.net.ConnectivityManager;
 import android.net.INetworkStatsSession;
@@ -33,8 +29,6 @@ import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.RemoteException;
 import android.os.SystemProperties;
-import android.os.UserHandle;
-import android.os.UserManager;
 import android.support.v7.preference.Preference;
 import android.support.v7.preference.PreferenceGroup;
 import android.telephony.SubscriptionInfo;
@@ -56,10 +50,8 @@ import com.android.settingslib.AppItem;
 import com.android.settingslib.net.ChartData;
 import com.android.settingslib.net.ChartDataLoader;
 import com.android.settingslib.net.SummaryForAllUidLoader;
-import com.android.settingslib.net.UidDetailProvider;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -67,8 +59,6 @@ import java.util.Map;
 
 import static android.net.ConnectivityManager.TYPE_MOBILE;
 import static android.net.NetworkPolicyManager.POLICY_REJECT_METERED_BACKGROUND;
-import static android.net.TrafficStats.UID_REMOVED;
-import static android.net.TrafficStats.UID_TETHERING;
 import static android.telephony.TelephonyManager.SIM_STATE_READY;
 import static com.android.settings.datausage.DataUsageSummary.TEST_RADIOS;
 import static com.android.settings.datausage.DataUsageSummary.TEST_RADIOS_PROP;
@@ -110,7 +100,7 @@ public class DataUsageList extends DataUsageBase {
     private static long mSelectLeft;
     private static long mSelectRight;
 
-    private UidDetailProvider mUidDetailProvider;
+    private AppMetadataLoader.Session mMetadataSession;
 
     /**
      * Local cache of data enabled for subId, used to work around delays.
@@ -144,7 +134,7 @@ public class DataUsageList extends DataUsageBase {
             throw new RuntimeException(e);
         }
 
-        mUidDetailProvider = new UidDetailProvider(context);
+        mMetadataSession = AppMetadataLoader.get(context).openSession();
 
         addPreferencesFromResource(R.xml.data_usage_list);
         mUsageAmount = findPreference(KEY_USAGE_AMOUNT);
@@ -237,8 +227,8 @@ public class DataUsageList extends DataUsageBase {
 
     @Override
     public void onDestroy() {
-        mUidDetailProvider.clearCache();
-        mUidDetailProvider = null;
+        mMetadataSession.close();
+        mMetadataSession = null;
 
         TrafficStats.closeQuietly(mStatsSession);
 
@@ -394,107 +384,52 @@ public class DataUsageList extends DataUsageBase {
      * Bind the given {@link NetworkStats}, or {@code null} to clear list.
      */
     public void bindStats(NetworkStats stats, int[] restrictedUids) {
-        ArrayList<AppItem> items = new ArrayList<>();
-        long largest = 0;
-
-        final int currentUserId = ActivityManager.getCurrentUser();
-        UserManager userManager = UserManager.get(getContext());
-        final List<UserHandle> profiles = userManager.getUserProfiles();
-        final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
-
-        PackageManager pm = getContext().getPackageManager();
-        ApplicationInfo ai = null;
-        try{
-            ai = pm.getApplicationInfo("com.android.dialer", PackageManager.GET_ACTIVITIES);
-         } catch(Exception e) {
-           Log.d(TAG, "get dialer getApplicationInfo failed " + e);
-        }
-
-        NetworkStats.Entry entry = null;
-        final int size = stats != null ? stats.size() : 0;
-        for (int i = 0; i < size; i++) {
-            entry = stats.getValues(i, entry);
-
-            // Decide how to collapse items together
-            final int uid = entry.uid;
-
-            final int collapseKey;
-            final int category;
-            final int userId = UserHandle.getUserId(uid);
-            if (UserHandle.isApp(uid)) {
-                if (profiles.contains(new UserHandle(userId))) {
-                    if (userId != currentUserId) {
-                        // Add to a managed user item.
-                        final int managedKey = UidDetailProvider.buildKeyForUser(userId);
-                        largest = accumulate(managedKey, knownItems, entry, AppItem.CATEGORY_USER,
-                                items, largest);
-                    }
-                    // Add to app item.
-                    collapseKey = uid;
-                    category = AppItem.CATEGORY_APP;
-                } else {
-                    // If it is a removed user add it to the removed users' key
-                    final UserInfo info = userManager.getUserInfo(userId);
-                    if (info == null) {
-                        collapseKey = UID_REMOVED;
-                        category = AppItem.CATEGORY_APP;
-                    } else {
-                        // Add to other user item.
-                        collapseKey = UidDetailProvider.buildKeyForUser(userId);
-                        category = AppItem.CATEGORY_USER;
-                    }
-                }
-            } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
-                collapseKey = uid;
-                category = AppItem.CATEGORY_APP;
-            } else if ((ai != null) && (uid == ai.uid) && getContext().getResources().getBoolean(
-                    com.android.internal.R.bool.config_video_call_datausage_enable)){
-                collapseKey = uid;
-                category = AppItem.CATEGORY_APP;
-            } else {
-                collapseKey = android.os.Process.SYSTEM_UID;
-                category = AppItem.CATEGORY_APP;
+        final AppUsageClassifier classifier = AppUsageClassifier.create(getContext());
+        final ArrayList<AppItem> items = classifier.classify(stats, restrictedUids);
+        final long largest = classifier.getLargest();
+
+        // Reuse the rows of items that are still there, only rows whose item changed are
+        // rebound and only rows that moved are reordered.
+        final SparseArray<AppDataUsagePreference> existing = new SparseArray<>();
+        for (int i = 0; i < mApps.getPreferenceCount(); i++) {
+            final Preference pref = mApps.getPreference(i);
+            if (pref instanceof AppDataUsagePreference) {
+                existing.put(((AppDataUsagePreference) pref).getItem().key,
+                        (AppDataUsagePreference) pref);
             }
-            largest = accumulate(collapseKey, knownItems, entry, category, items, largest);
         }
-
-        final int restrictedUidsMax = restrictedUids.length;
-        for (int i = 0; i < restrictedUidsMax; ++i) {
-            final int uid = restrictedUids[i];
-            // Only splice in restricted state for current user or managed users
-            if (!profiles.contains(new UserHandle(UserHandle.getUserId(uid)))) {
-                continue;
-            }
-
-            AppItem item = knownItems.get(uid);
-            if (item == null) {
-                item = new AppItem(uid);
-                item.total = -1;
-                items.add(item);
-                knownItems.put(item.key, item);
+        for (int i = 0; i < items.size(); i++) {
+            final AppItem item = items.get(i);
+            final int percentTotal = largest != 0 ? (int) (item.total * 100 / largest) : 0;
+            AppDataUsagePreference preference = existing.get(item.key);
+            if (preference != null) {
+                existing.remove(item.key);
+                preference.setItem(item, percentTotal);
+                preference.setOrder(i);
+            } else {
+                preference = new AppDataUsagePreference(getContext(), item, percentTotal,
+                        mMetadataSession);
+                preference.setOnPreferenceClickListener(mAppClickListener);
+                preference.setOrder(i);
+                mApps.addPreference(preference);
             }
-            item.restricted = true;
         }
-
-        Collections.sort(items);
-        mApps.removeAll();
-        for (int i = 0; i < items.size(); i++) {
-            final int percentTotal = largest != 0 ? (int) (items.get(i).total * 100 / largest) : 0;
-            AppDataUsagePreference preference = new AppDataUsagePreference(getContext(),
-                    items.get(i), percentTotal, mUidDetailProvider);
-            preference.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
-                @Override
-                public boolean onPreferenceClick(Preference preference) {
-                    AppDataUsagePreference pref = (AppDataUsagePreference) preference;
-                    AppItem item = pref.getItem();
-                    startAppDataUsage(item);
-                    return true;
-                }
-            });
-            mApps.addPreference(preference);
+        for (int i = 0; i < existing.size(); i++) {
+            mApps.removePreference(existing.valueAt(i));
         }
     }
 
+    private final Preference.OnPreferenceClickListener mAppClickListener =
+            new Preference.OnPreferenceClickListener() {
+        @Override
+        public boolean onPreferenceClick(Preference preference) {
+            AppDataUsagePreference pref = (AppDataUsagePreference) preference;
+            AppItem item = pref.getItem();
+            startAppDataUsage(item);
+            return true;
+        }
+    };
+
     private void startAppDataUsage(AppItem item) {
         Bundle args = new Bundle();
         args.putParcelable(AppDataUsage.ARG_APP_ITEM, item);
@@ -502,29 +437,6 @@ public class DataUsageList extends DataUsageBase {
         startFragment(this, AppDataUsage.class.getName(), R.string.app_data_usage, 0, args);
     }
 
-    /**
-     * Accumulate data usage of a network stats entry for the item mapped by the collapse key.
-     * Creates the item if needed.
-     * @param collapseKey the collapse key used to map the item.
-     * @param knownItems collection of known (already existing) items.
-     * @param entry the network stats entry to extract data usage from.
-     * @param itemCategory the item is categorized on the list view by this category. Must be
-     */
-    private static long accumulate(int collapseKey, final SparseArray<AppItem> knownItems,
-            NetworkStats.Entry entry, int itemCategory, ArrayList<AppItem> items, long largest) {
-        final int uid = entry.uid;
-        AppItem item = knownItems.get(collapseKey);
-        if (item == null) {
-            item = new AppItem(collapseKey);
-            item.category = itemCategory;
-            items.add(item);
-            knownItems.put(item.key, item);
-        }
-        item.addUid(uid);
-        item.total += entry.rxBytes + entry.txBytes;
-        return Math.max(largest, item.total);
-    }
-
     /**
      * Test if device has a mobile data radio with SIM in ready state.
      */
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the disk usage of a directory tree the way
+ * {@code IMediaContainerService#calculateDirectorySize} does, counting allocated blocks and
+ * skipping symbolic links, but walks it on several threads.
+ *
+ * Each directory is a task of its own, so the top-level directories are walked in parallel and
+ * a single large one, such as DCIM, is still split up among the threads.
+ */
+final class DirectorySizeEstimator {
+    static final int DEFAULT_THREADS = 4;
+    static final long PROGRESS_INTERVAL_MS = 250;
+
+    // Enough to get past the write cache, short enough to not hold up the wizard.
+    private static final int PROBE_BYTES = 8 * 1024 * 1024;
+    private static final int PROBE_CHUNK_BYTES = 256 * 1024;
+
+    interface ProgressListener {
+        /**
+         * Called with the bytes found so far, at most every {@link #PROGRESS_INTERVAL_MS}.
+         * Called on any of the worker threads.
+         */
+        void onProgress(long bytes);
+    }
+
+    private final int mThreads;
+    private final ProgressListener mListener;
+
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mNextProgressTime = new AtomicLong();
+    private volatile boolean mComplete;
+
+    DirectorySizeEstimator(int threads, ProgressListener listener) {
+        mThreads = threads;
+        mListener = listener;
+    }
+
+    /**
+     * Returns the bytes used by {@code root} and everything below it, or -1 if {@code root}
+     * can't be listed. Entries that can't be listed or stat'ed are left out, see
+     * {@link #isComplete}.
+     */
+    long measure(File root) {
+        mComplete = false;
+        if (root.list() == null) {
+            return -1;
+        }
+        mComplete = true;
+        mBytes.set(0);
+        mNextProgressTime.set(SystemClock.elapsedRealtime() + PROGRESS_INTERVAL_MS);
+        final ForkJoinPool pool = new ForkJoinPool(mThreads);
+        try {
+            return pool.invoke(new DirectoryTask(root.getPath()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Returns whether the last {@link #measure} reached every entry, so its result isn't an
+     * undercount.
+     */
+    boolean isComplete() {
+        return mComplete;
+    }
+
+    private void addBytes(long bytes) {
+        final long total = mBytes.addAndGet(bytes);
+        if (mListener == null) return;
+        final long now = SystemClock.elapsedRealtime();
+        final long next = mNextProgressTime.get();
+        if (now >= next && mNextProgressTime.compareAndSet(next, now + PROGRESS_INTERVAL_MS)) {
+            mListener.onProgress(total);
+        }
+    }
+
+    private class DirectoryTask extends RecursiveTask<Long> {
+        private final String mPath;
+
+        DirectoryTask(String path) {
+            mPath = path;
+        }
+
+        @Override
+        protected Long compute() {
+            final String[] names = new File(mPath).list();
+            if (names == null) {
+                mComplete = false;
+                return 0L;
+            }
+            long bytes = 0;
+            ArrayList<DirectoryTask> subdirs = null;
+            for (String name : names) {
+                final String path = mPath + File.separator + name;
+                final StructStat stat;
+                try {
+                    stat = Os.lstat(path);
+                } catch (ErrnoException e) {
+                    // Removed since it was listed, or can't be reached.
+                    if (e.errno != OsConstants.ENOENT) {
+                        mComplete = false;
+                    }
+                    continue;
+                }
+                if (OsConstants.S_ISLNK(stat.st_mode)) {
+                    continue;
+                }
+                bytes += stat.st_blocks * 512;
+                if (OsConstants.S_ISDIR(stat.st_mode)) {
+                    final DirectoryTask task = new DirectoryTask(path);
+                    task.fork();
+                    if (subdirs == null) {
+                        subdirs = new ArrayList<>();
+                    }
+                    subdirs.add(task);
+                }
+            }
+            addBytes(bytes);
+            if (subdirs != null) {
+                final int N = subdirs.size();
+                for (int i = 0; i < N; i++) {
+                    bytes += subdirs.get(i).join();
+                }
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Returns how many bytes per second can be written to {@code dir} and synced to disk, or -1
+     * if the probe couldn't be written.
+     */
+    static long probeWriteSpeed(File dir) {
+        final File probe = new File(dir, ".migrate_probe");
+        final byte[] chunk = new byte[PROBE_CHUNK_BYTES];
+        try (FileOutputStream out = new FileOutputStream(probe)) {
+            final long start = SystemClock.elapsedRealtimeNanos();
+            for (int written = 0; written < PROBE_BYTES; written += chunk.length) {
+                out.write(chunk);
+            }
+            out.getFD().sync();
+            final long nanos = Math.max(1, SystemClock.elapsedRealtimeNanos() - start);
+            return PROBE_BYTES * 1000000000L / nanos;
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            probe.delete();
+        }
+    }
+}
@@ -20,10 +20,12 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.content.SharedPreferences;
 import android.net.TrafficStats;
 import android.os.AsyncTask;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.storage.StorageManager;
 import android.os.storage.VolumeInfo;
@@ -33,22 +35,40 @@ import android.text.format.Formatter;
 
 import com.android.internal.app.IMediaContainerService;
 
+import java.io.File;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 import static com.android.settings.deviceinfo.StorageSettings.TAG;
 
-public abstract class MigrateEstimateTask extends AsyncTask<Void, Void, Long> implements
+public abstract class MigrateEstimateTask extends AsyncTask<Void, Long, Long> implements
         ServiceConnection {
+    private static final boolean LOGD = false;
+
     private static final String EXTRA_SIZE_BYTES = "size_bytes";
+    private static final String EXTRA_SPEED_BPS = "speed_bps";
+
+    private static final String PREFS_NAME = "migrate_estimate";
+    private static final String KEY_PATH = "path";
+    private static final String KEY_SIZE_BYTES = "size_bytes";
+    private static final String KEY_TIME = "time";
+    private static final String KEY_MEDIA_COUNT = "media_count";
+    private static final String KEY_MEDIA_SIZE = "media_size";
+    private static final String KEY_MEDIA_MODIFIED = "media_modified";
+
+    /**
+     * App data under Android/ isn't in the media store, so don't trust a cached size forever.
+     */
+    private static final long CACHE_MAX_AGE_MS = DateUtils.DAY_IN_MILLIS;
 
     private static final ComponentName DEFAULT_CONTAINER_COMPONENT = new ComponentName(
             "com.android.defcontainer", "com.android.defcontainer.DefaultContainerService");
 
     /**
-     * Assume roughly a Class 10 card.
+     * Assume roughly a Class 10 card when the target can't be probed.
      */
     private static final long SPEED_ESTIMATE_BPS = 10 * TrafficStats.MB_IN_BYTES;
+    private static final long MIN_SPEED_BPS = TrafficStats.MB_IN_BYTES;
 
     private final Context mContext;
     private final StorageManager mStorage;
@@ -56,23 +76,39 @@ public abstract class MigrateEstimateTask extends AsyncTask<Void, Void, Long> im
     private final CountDownLatch mConnected = new CountDownLatch(1);
     private IMediaContainerService mService;
 
+    private VolumeInfo mTargetVol;
     private long mSizeBytes = -1;
+    private long mSpeedBps = -1;
 
     public MigrateEstimateTask(Context context) {
         mContext = context;
         mStorage = context.getSystemService(StorageManager.class);
     }
 
+    /**
+     * Sets the volume data will be moved to, so the time estimate can be based on how fast it
+     * actually writes.
+     */
+    public void setTargetVolume(VolumeInfo targetVol) {
+        mTargetVol = targetVol;
+    }
+
     public void copyFrom(Intent intent) {
         mSizeBytes = intent.getLongExtra(EXTRA_SIZE_BYTES, -1);
+        mSpeedBps = intent.getLongExtra(EXTRA_SPEED_BPS, -1);
     }
 
     public void copyTo(Intent intent) {
         intent.putExtra(EXTRA_SIZE_BYTES, mSizeBytes);
+        intent.putExtra(EXTRA_SPEED_BPS, mSpeedBps);
     }
 
     @Override
     protected Long doInBackground(Void... params) {
+        if (mSpeedBps == -1 && mTargetVol != null && mTargetVol.isMountedWritable()) {
+            mSpeedBps = DirectorySizeEstimator.probeWriteSpeed(mTargetVol.getPath());
+            if (LOGD) Log.d(TAG, "Probed " + mSpeedBps + " bytes/s on " + mTargetVol.getId());
+        }
         if (mSizeBytes != -1) {
             return mSizeBytes;
         }
@@ -88,12 +124,47 @@ public abstract class MigrateEstimateTask extends AsyncTask<Void, Void, Long> im
         final String path = emulatedVol.getPath().getAbsolutePath();
         Log.d(TAG, "Estimating for current path " + path);
 
+        final StorageBreakdownCache.Fingerprint fingerprint =
+                new StorageBreakdownCache.Fingerprint();
+        StorageBreakdownCache.readMediaFingerprint(mContext, fingerprint);
+        final long cachedBytes = getCachedSize(path, fingerprint);
+        if (cachedBytes != -1) {
+            return cachedBytes;
+        }
+
+        // Walking the backing directory directly avoids the emulated view, and lets the walk be
+        // split up among threads.
+        final File internalPath = emulatedVol.getInternalPath();
+        if (internalPath != null) {
+            final long start = SystemClock.elapsedRealtime();
+            final DirectorySizeEstimator estimator = new DirectorySizeEstimator(
+                    DirectorySizeEstimator.DEFAULT_THREADS,
+                    new DirectorySizeEstimator.ProgressListener() {
+                        @Override
+                        public void onProgress(long bytes) {
+                            publishProgress(bytes);
+                        }
+                    });
+            final long sizeBytes = estimator.measure(internalPath);
+            if (LOGD) Log.d(TAG, "Measured " + sizeBytes + " bytes in "
+                    + (SystemClock.elapsedRealtime() - start) + "ms, complete: "
+                    + estimator.isComplete());
+            // Parts that couldn't be listed would be missing from the size, the container
+            // service can read all of them.
+            if (sizeBytes != -1 && estimator.isComplete()) {
+                putCachedSize(path, fingerprint, sizeBytes);
+                return sizeBytes;
+            }
+        }
+
         final Intent intent = new Intent().setComponent(DEFAULT_CONTAINER_COMPONENT);
         mContext.bindServiceAsUser(intent, this, Context.BIND_AUTO_CREATE, UserHandle.SYSTEM);
 
         try {
             if (mConnected.await(15, TimeUnit.SECONDS)) {
-                return mService.calculateDirectorySize(path);
+                final long sizeBytes = mService.calculateDirectorySize(path);
+                putCachedSize(path, fingerprint, sizeBytes);
+                return sizeBytes;
             }
         } catch (InterruptedException | RemoteException e) {
             Log.w(TAG, "Failed to measure " + path);
@@ -104,10 +175,17 @@ public abstract class MigrateEstimateTask extends AsyncTask<Void, Void, Long> im
         return -1L;
     }
 
+    @Override
+    protected void onProgressUpdate(Long... values) {
+        onProgress(Formatter.formatFileSize(mContext, values[values.length - 1]));
+    }
+
     @Override
     protected void onPostExecute(Long result) {
         mSizeBytes = result;
-        long timeMillis = (mSizeBytes * DateUtils.SECOND_IN_MILLIS) / SPEED_ESTIMATE_BPS;
+        final long speedBps = mSpeedBps > 0
+                ? Math.max(mSpeedBps, MIN_SPEED_BPS) : SPEED_ESTIMATE_BPS;
+        long timeMillis = (mSizeBytes * DateUtils.SECOND_IN_MILLIS) / speedBps;
         timeMillis = Math.max(timeMillis, DateUtils.SECOND_IN_MILLIS);
 
         final String size = Formatter.formatFileSize(mContext, mSizeBytes);
@@ -115,8 +193,40 @@ public abstract class MigrateEstimateTask extends AsyncTask<Void, Void, Long> im
         onPostExecute(size, time);
     }
 
+    /**
+     * Called with the size found so far while the current storage is being measured.
+     */
+    public void onProgress(String sizeSoFar) {
+    }
+
     public abstract void onPostExecute(String size, String time);
 
+    private long getCachedSize(String path, StorageBreakdownCache.Fingerprint fingerprint) {
+        final SharedPreferences prefs = mContext.getSharedPreferences(PREFS_NAME,
+                Context.MODE_PRIVATE);
+        final long age = System.currentTimeMillis() - prefs.getLong(KEY_TIME, 0);
+        if (!path.equals(prefs.getString(KEY_PATH, null))
+                || age < 0 || age > CACHE_MAX_AGE_MS
+                || prefs.getLong(KEY_MEDIA_COUNT, -1) != fingerprint.mediaCount
+                || prefs.getLong(KEY_MEDIA_SIZE, -1) != fingerprint.mediaSize
+                || prefs.getLong(KEY_MEDIA_MODIFIED, -1) != fingerprint.mediaModified) {
+            return -1;
+        }
+        return prefs.getLong(KEY_SIZE_BYTES, -1);
+    }
+
+    private void putCachedSize(String path, StorageBreakdownCache.Fingerprint fingerprint,
+            long sizeBytes) {
+        mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putString(KEY_PATH, path)
+                .putLong(KEY_SIZE_BYTES, sizeBytes)
+                .putLong(KEY_TIME, System.currentTimeMillis())
+                .putLong(KEY_MEDIA_COUNT, fingerprint.mediaCount)
+                .putLong(KEY_MEDIA_SIZE, fingerprint.mediaSize)
+                .putLong(KEY_MEDIA_MODIFIED, fingerprint.mediaModified)
+                .apply();
+    }
+
     @Override
     public void onServiceConnected(ComponentName name, IBinder service) {
         mService = IMediaContainerService.Stub.asInterface(service);
@@ -21,15 +21,18 @@ import android.app.Dialog;
 import android.app.DialogFragment;
 import android.app.Fragment;
 import android.content.ActivityNotFoundException;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.IPackageDataObserver;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.UserInfo;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.storage.StorageEventListener;
@@ -61,8 +64,6 @@ import com.android.settings.Utils;
 import com.android.settings.applications.ManageApplications;
 import com.android.settings.deletionhelper.AutomaticStorageManagerSettings;
 import com.android.settings.deviceinfo.StorageSettings.MountTask;
-import com.android.settingslib.deviceinfo.PrivateStorageInfo;
-import com.android.settingslib.deviceinfo.StorageManagerVolumeProvider;
 import com.android.settingslib.deviceinfo.StorageMeasurement;
 import com.android.settingslib.deviceinfo.StorageMeasurement.MeasurementDetails;
 import com.android.settingslib.deviceinfo.StorageMeasurement.MeasurementReceiver;
@@ -112,6 +113,9 @@ public class PrivateVolumeSettings extends SettingsPreferenceFragment {
     private static final int DELETION_HELPER_SETTINGS = 1;
     private static final int DELETION_HELPER_CLEAR = 1;
 
+    // Installs and updates tend to come in bursts, measure once they're over.
+    private static final long REMEASURE_DELAY_MS = 2000;
+
     private StorageManager mStorageManager;
     private UserManager mUserManager;
 
@@ -122,6 +126,10 @@ public class PrivateVolumeSettings extends SettingsPreferenceFragment {
     private long mSystemSize;
 
     private StorageMeasurement mMeasure;
+    private StorageBreakdownCache mBreakdownCache;
+    private final Handler mHandler = new Handler();
+    private boolean mRemeasurePending;
+    private boolean mPackageReceiverRegistered;
 
     private UserInfo mCurrentUser;
 
@@ -174,9 +182,7 @@ public class PrivateVolumeSettings extends SettingsPreferenceFragment {
         }
 
         if (mStorageManager.getPrimaryPhysicalVolume() != null) {
-            PrivateStorageInfo info = PrivateStorageInfo.getPrivateStorageInfo(
-                    new StorageManagerVolumeProvider(mStorageManager));
-            mTotalSize = info.totalBytes;
+            mTotalSize = StorageStatsCache.getInstance(context).getSnapshot().privateTotalBytes;
             mSystemSize = mTotalSize - sharedDataSize;
         }
 
@@ -185,6 +191,7 @@ public class PrivateVolumeSettings extends SettingsPreferenceFragment {
 
         mMeasure = new StorageMeasurement(context, mVolume, mSharedVolume);
         mMeasure.setReceiver(mReceiver);
+        mBreakdownCache = new StorageBreakdownCache(context, mVolume, mSharedVolume);
 
         if (!isVolumeValid()) {
             getActivity().finish();
@@ -268,7 +275,18 @@ public class PrivateVolumeSettings extends SettingsPreferenceFragment {
             addPreference(screen, mExplore);
         }
 
-        final long freeBytes = mVolume.getPath().getFreeSpace();
+        updateSummary(StorageStatsCache.getInstance(context).getSnapshot());
+
+        // Paint the last breakdown right away; only measure again if it's out of date.
+        mBreakdownCache.load(mCacheCallback);
+        mNeedsUpdate = false;
+    }
+
+    private void updateSummary(StorageStatsCache.Snapshot stats) {
+        long freeBytes = stats.getFreeBytes(mVolumeId);
+        if (freeBytes < 0) {
+            freeBytes = mVolume.getPath().getFreeSpace();
+        }
         final long usedBytes = mTotalSize - freeBytes;
 
         if (LOGV) Log.v(TAG, "update() freeBytes: " + freeBytes + " usedBytes: " + usedBytes);
@@ -277,11 +295,8 @@ public class PrivateVolumeSettings extends SettingsPreferenceFragment {
         mSummary.setTitle(TextUtils.expandTemplate(getText(R.string.storage_size_large),
                 result.value, result.units));
         mSummary.setSummary(getString(R.string.storage_volume_used,
-                Formatter.formatFileSize(context, mTotalSize)));
+                Formatter.formatFileSize(getActivity(), mTotalSize)));
         mSummary.setPercent((int) ((usedBytes * 100) / mTotalSize));
-
-        mMeasure.forceMeasure();
-        mNeedsUpdate = false;
     }
 
     private void addPreference(PreferenceGroup group, Preference pref) {
@@ -371,6 +386,16 @@ public class PrivateVolumeSettings extends SettingsPreferenceFragment {
         }
 
         mStorageManager.registerListener(mStorageListener);
+        StorageStatsCache.getInstance(getActivity()).addListener(mStatsListener);
+
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_DATA_CLEARED);
+        filter.addDataScheme("package");
+        getActivity().registerReceiver(mPackageReceiver, filter);
+        mPackageReceiverRegistered = true;
 
         if (mNeedsUpdate) {
             update();
@@ -383,6 +408,16 @@ public class PrivateVolumeSettings extends SettingsPreferenceFragment {
     public void onPause() {
         super.onPause();
         mStorageManager.unregisterListener(mStorageListener);
+        StorageStatsCache.getInstance(getActivity()).removeListener(mStatsListener);
+        if (mPackageReceiverRegistered) {
+            getActivity().unregisterReceiver(mPackageReceiver);
+            mPackageReceiverRegistered = false;
+        }
+        if (mRemeasurePending) {
+            mHandler.removeCallbacks(mRemeasure);
+            mRemeasurePending = false;
+            mNeedsUpdate = true;
+        }
     }
 
     @Override
@@ -391,6 +426,9 @@ public class PrivateVolumeSettings extends SettingsPreferenceFragment {
         if (mMeasure != null) {
             mMeasure.onDestroy();
         }
+        if (mBreakdownCache != null) {
+            mBreakdownCache.cancel();
+        }
     }
 
     @Override
@@ -558,6 +596,47 @@ public class PrivateVolumeSettings extends SettingsPreferenceFragment {
         @Override
         public void onDetailsChanged(MeasurementDetails details) {
             updateDetails(details);
+            mBreakdownCache.save(details);
+        }
+    };
+
+    private final StorageBreakdownCache.Callback mCacheCallback =
+            new StorageBreakdownCache.Callback() {
+        @Override
+        public void onLoaded(MeasurementDetails details, boolean stale) {
+            if (details != null) {
+                updateDetails(details);
+            }
+            if (stale) {
+                mMeasure.forceMeasure();
+            }
+        }
+    };
+
+    private final StorageStatsCache.Listener mStatsListener = new StorageStatsCache.Listener() {
+        @Override
+        public void onStorageStatsChanged(StorageStatsCache.Snapshot snapshot) {
+            if (isVolumeValid()) {
+                updateSummary(snapshot);
+            }
+        }
+    };
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mBreakdownCache.invalidate();
+            mHandler.removeCallbacks(mRemeasure);
+            mHandler.postDelayed(mRemeasure, REMEASURE_DELAY_MS);
+            mRemeasurePending = true;
+        }
+    };
+
+    private final Runnable mRemeasure = new Runnable() {
+        @Override
+        public void run() {
+            mRemeasurePending = false;
+            mBreakdownCache.load(mCacheCallback);
         }
     };
 
@@ -915,7 +994,9 @@ public class PrivateVolumeSettings extends SettingsPreferenceFragment {
                     mTarget.getActivity().runOnUiThread(new Runnable() {
                         @Override
                         public void run() {
+                            mTarget.mBreakdownCache.invalidate();
                             mTarget.update();
+                            StorageStatsCache.getInstance(mTarget.getActivity()).refresh();
                         }
                     });
                 }
@@ -171,9 +171,16 @@ public class PublicVolumeSettings extends SettingsPreferenceFragment {
         if (mVolume.isMountedReadable()) {
             addPreference(mSummary);
 
-            final File file = mVolume.getPath();
-            final long totalBytes = file.getTotalSpace();
-            final long freeBytes = file.getFreeSpace();
+            final StorageStatsCache.Snapshot stats =
+                    StorageStatsCache.getInstance(context).getSnapshot();
+            long totalBytes = stats.getTotalBytes(mVolume.getId());
+            long freeBytes = stats.getFreeBytes(mVolume.getId());
+            if (totalBytes < 0) {
+                // Mounted after the snapshot was taken.
+                final File file = mVolume.getPath();
+                totalBytes = file.getTotalSpace();
+                freeBytes = file.getFreeSpace();
+            }
             final long usedBytes = totalBytes - freeBytes;
 
             final BytesResult result = Formatter.formatBytes(getResources(), usedBytes, 0);
@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.os.storage.VolumeInfo;
+import android.provider.MediaStore;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.SparseLongArray;
+
+import com.android.settingslib.deviceinfo.StorageMeasurement.MeasurementDetails;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Keeps the last storage breakdown of a private volume on disk, keyed by the volume's UUID, so
+ * that {@link PrivateVolumeSettings} can show it right away instead of "Calculating..." while
+ * {@link com.android.settingslib.deviceinfo.StorageMeasurement} runs.
+ *
+ * Each entry is stored with a fingerprint of what the breakdown depends on: the media files on
+ * the shared storage, the installed packages and the free space of the volume. A measurement is
+ * only needed when the fingerprint changed or the entry got too old.
+ */
+final class StorageBreakdownCache {
+    private static final String TAG = "StorageBreakdownCache";
+
+    private static final int VERSION = 1;
+
+    // Cached and misc data grow without any of the fingerprinted state changing.
+    static final long MAX_AGE_MS = 60 * 60 * 1000;
+    // Free space moves a little all the time; only a bigger change calls for a new breakdown.
+    static final long AVAIL_SLOP_BYTES = 64 * 1024 * 1024;
+
+    interface Callback {
+        /**
+         * Called on the main thread with the cached breakdown, or null if there is none, and
+         * whether it has to be measured again.
+         */
+        void onLoaded(MeasurementDetails details, boolean stale);
+    }
+
+    static class Fingerprint {
+        long mediaCount;
+        long mediaSize;
+        long mediaModified;
+        int packageCount;
+        long packageUpdated;
+
+        boolean mediaEquals(Fingerprint other) {
+            return mediaCount == other.mediaCount && mediaSize == other.mediaSize
+                    && mediaModified == other.mediaModified;
+        }
+
+        boolean packagesEqual(Fingerprint other) {
+            return packageCount == other.packageCount && packageUpdated == other.packageUpdated;
+        }
+    }
+
+    static class Entry {
+        long timestamp;
+        Fingerprint fingerprint = new Fingerprint();
+        MeasurementDetails details = new MeasurementDetails();
+    }
+
+    private final Context mContext;
+    private final VolumeInfo mVolume;
+    private final VolumeInfo mSharedVolume;
+    private final AtomicFile mFile;
+
+    // Fingerprint taken by the last load, stored with the measurement that follows it.
+    private Fingerprint mFingerprint;
+    private boolean mInvalid;
+    private LoadTask mLoadTask;
+
+    StorageBreakdownCache(Context context, VolumeInfo volume, VolumeInfo sharedVolume) {
+        mContext = context.getApplicationContext();
+        mVolume = volume;
+        mSharedVolume = sharedVolume;
+        final String uuid = volume.getFsUuid() != null ? volume.getFsUuid() : "internal";
+        mFile = new AtomicFile(new File(context.getCacheDir(), "storage_breakdown_" + uuid));
+    }
+
+    /**
+     * Reads the cached breakdown and checks whether it's still current, off the main thread.
+     */
+    void load(Callback callback) {
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+        }
+        mLoadTask = new LoadTask(callback);
+        mLoadTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Stores a fresh measurement along with the fingerprint of the last load.
+     */
+    void save(MeasurementDetails details) {
+        final Fingerprint fingerprint = mFingerprint;
+        if (fingerprint == null) {
+            // Measured before any load finished; there is nothing to tell when it gets stale.
+            return;
+        }
+        final Entry entry = new Entry();
+        entry.timestamp = System.currentTimeMillis();
+        entry.fingerprint = fingerprint;
+        entry.details = details;
+        mInvalid = false;
+        AsyncTask.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(entry);
+            }
+        });
+    }
+
+    /**
+     * Makes the next load report the cached breakdown as stale, such as after packages changed.
+     */
+    void invalidate() {
+        mInvalid = true;
+    }
+
+    void cancel() {
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+            mLoadTask = null;
+        }
+    }
+
+    /**
+     * Returns whether {@code entry} still describes the volume.
+     */
+    static boolean isCurrent(Entry entry, Fingerprint fingerprint, long availSize, long now) {
+        if (now - entry.timestamp > MAX_AGE_MS || now < entry.timestamp) {
+            return false;
+        }
+        if (!entry.fingerprint.mediaEquals(fingerprint)) {
+            return false;
+        }
+        if (!entry.fingerprint.packagesEqual(fingerprint)) {
+            return false;
+        }
+        return Math.abs(entry.details.availSize - availSize) <= AVAIL_SLOP_BYTES;
+    }
+
+    private Entry read() {
+        if (!mFile.getBaseFile().exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(mFile.openRead())) {
+            return readEntry(in);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read " + mFile.getBaseFile(), e);
+            return null;
+        }
+    }
+
+    private void write(Entry entry) {
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            writeEntry(new DataOutputStream(out), entry);
+            mFile.finishWrite(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + mFile.getBaseFile(), e);
+            mFile.failWrite(out);
+        }
+    }
+
+    static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+        out.writeInt(VERSION);
+        out.writeLong(entry.timestamp);
+
+        final Fingerprint fingerprint = entry.fingerprint;
+        out.writeLong(fingerprint.mediaCount);
+        out.writeLong(fingerprint.mediaSize);
+        out.writeLong(fingerprint.mediaModified);
+        out.writeInt(fingerprint.packageCount);
+        out.writeLong(fingerprint.packageUpdated);
+
+        final MeasurementDetails details = entry.details;
+        out.writeLong(details.totalSize);
+        out.writeLong(details.availSize);
+        out.writeLong(details.cacheSize);
+        writeSparseLongArray(out, details.usersSize);
+        writeSparseLongArray(out, details.appsSize);
+        writeSparseLongArray(out, details.miscSize);
+        final int N = details.mediaSize.size();
+        out.writeInt(N);
+        for (int i = 0; i < N; i++) {
+            out.writeInt(details.mediaSize.keyAt(i));
+            final HashMap<String, Long> sizes = details.mediaSize.valueAt(i);
+            out.writeInt(sizes.size());
+            for (Map.Entry<String, Long> size : sizes.entrySet()) {
+                out.writeUTF(size.getKey());
+                out.writeLong(size.getValue());
+            }
+        }
+        out.flush();
+    }
+
+    static Entry readEntry(DataInputStream in) throws IOException {
+        if (in.readInt() != VERSION) {
+            return null;
+        }
+        final Entry entry = new Entry();
+        entry.timestamp = in.readLong();
+
+        final Fingerprint fingerprint = entry.fingerprint;
+        fingerprint.mediaCount = in.readLong();
+        fingerprint.mediaSize = in.readLong();
+        fingerprint.mediaModified = in.readLong();
+        fingerprint.packageCount = in.readInt();
+        fingerprint.packageUpdated = in.readLong();
+
+        final MeasurementDetails details = entry.details;
+        details.totalSize = in.readLong();
+        details.availSize = in.readLong();
+        details.cacheSize = in.readLong();
+        readSparseLongArray(in, details.usersSize);
+        readSparseLongArray(in, details.appsSize);
+        readSparseLongArray(in, details.miscSize);
+        final int N = in.readInt();
+        for (int i = 0; i < N; i++) {
+            final int userId = in.readInt();
+            final int M = in.readInt();
+            final HashMap<String, Long> sizes = new HashMap<>(M);
+            for (int j = 0; j < M; j++) {
+                sizes.put(in.readUTF(), in.readLong());
+            }
+            details.mediaSize.put(userId, sizes);
+        }
+        return entry;
+    }
+
+    private static void writeSparseLongArray(DataOutputStream out, SparseLongArray array)
+            throws IOException {
+        final int N = array.size();
+        out.writeInt(N);
+        for (int i = 0; i < N; i++) {
+            out.writeInt(array.keyAt(i));
+            out.writeLong(array.valueAt(i));
+        }
+    }
+
+    private static void readSparseLongArray(DataInputStream in, SparseLongArray array)
+            throws IOException {
+        final int N = in.readInt();
+        for (int i = 0; i < N; i++) {
+            array.put(in.readInt(), in.readLong());
+        }
+    }
+
+    private void readMediaFingerprint(Fingerprint fingerprint) {
+        if (mSharedVolume == null || !mSharedVolume.isMountedReadable()) {
+            return;
+        }
+        readMediaFingerprint(mContext, fingerprint);
+    }
+
+    /**
+     * Fills in the media part of {@code fingerprint} from the media store of the primary
+     * shared storage. Cheap enough to tell whether media changed since a previous measurement.
+     */
+    static void readMediaFingerprint(Context context, Fingerprint fingerprint) {
+        final Cursor cursor = context.getContentResolver().query(
+                MediaStore.Files.getContentUri("external"),
+                new String[] {
+                        "count(*)",
+                        "sum(" + MediaStore.MediaColumns.SIZE + ")",
+                        "max(" + MediaStore.MediaColumns.DATE_MODIFIED + ")"
+                }, null, null, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            if (cursor.moveToFirst()) {
+                fingerprint.mediaCount = cursor.getLong(0);
+                fingerprint.mediaSize = cursor.getLong(1);
+                fingerprint.mediaModified = cursor.getLong(2);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void readPackageFingerprint(Fingerprint fingerprint) {
+        final List<PackageInfo> packages = mContext.getPackageManager().getInstalledPackages(
+                PackageManager.MATCH_UNINSTALLED_PACKAGES);
+        final int N = packages.size();
+        long updated = 0;
+        for (int i = 0; i < N; i++) {
+            updated = Math.max(updated, packages.get(i).lastUpdateTime);
+        }
+        fingerprint.packageCount = N;
+        fingerprint.packageUpdated = updated;
+    }
+
+    private class LoadTask extends AsyncTask<Void, Void, Boolean> {
+        private final Callback mCallback;
+        private Entry mEntry;
+        private Fingerprint mLoadedFingerprint;
+
+        LoadTask(Callback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            final Fingerprint fingerprint = new Fingerprint();
+            // The media query and the package list come from different processes, so ask for
+            // both at once while the cached entry is read here.
+            final FutureTask<Void> media =
+                    new FutureTask<>(() -> readMediaFingerprint(fingerprint), null);
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(media);
+            readPackageFingerprint(fingerprint);
+            mEntry = read();
+            try {
+                media.get();
+            } catch (InterruptedException | ExecutionException e) {
+                Log.w(TAG, "Failed to read media fingerprint", e);
+                return true;
+            }
+            mLoadedFingerprint = fingerprint;
+            if (mEntry == null) {
+                return true;
+            }
+            final long availSize = mVolume.getPath().getFreeSpace();
+            return !isCurrent(mEntry, fingerprint, availSize, System.currentTimeMillis());
+        }
+
+        @Override
+        protected void onPostExecute(Boolean stale) {
+            if (mLoadTask != this) return;
+            mLoadTask = null;
+            mFingerprint = mLoadedFingerprint;
+            mCallback.onLoaded(mEntry != null ? mEntry.details : null, stale || mInvalid);
+        }
+    }
+}
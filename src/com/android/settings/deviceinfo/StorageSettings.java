@@ -30,6 +30,8 @@ import android.graphics.drawable.Drawable;
 import android.graphics.PorterDuff;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.storage.DiskInfo;
@@ -56,10 +58,8 @@ import com.android.settings.search.Indexable;
 import com.android.settings.search.SearchIndexableRaw;
 import com.android.settingslib.RestrictedLockUtils;
 import com.android.settingslib.deviceinfo.PrivateStorageInfo;
-import com.android.settingslib.deviceinfo.StorageManagerVolumeProvider;
 import com.android.settingslib.drawer.SettingsDrawerActivity;
 
-import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -169,22 +169,24 @@ public class StorageSettings extends SettingsPreferenceFragment implements Index
         final List<VolumeInfo> volumes = mStorageManager.getVolumes();
         Collections.sort(volumes, VolumeInfo.getDescriptionComparator());
 
+        final StorageStatsCache.Snapshot stats = StorageStatsCache.getInstance(context)
+                .getSnapshot();
         long primaryPhysicalTotalSpace = PrivateStorageInfo.getPrimaryPhysicalTotalSpace(volumes);
         for (VolumeInfo vol : volumes) {
             if (vol.getType() == VolumeInfo.TYPE_PRIVATE) {
                 final long volumeTotalBytes = PrivateStorageInfo.getTotalSize(vol,
                         sTotalInternalStorage) - primaryPhysicalTotalSpace;
                 final int color = COLOR_PRIVATE[privateCount++ % COLOR_PRIVATE.length];
-                mInternalCategory.addPreference(
-                        new StorageVolumePreference(context, vol, color, volumeTotalBytes));
-                if (vol.isMountedReadable()) {
-                    final File path = vol.getPath();
-                    privateUsedBytes += (volumeTotalBytes - path.getFreeSpace());
+                mInternalCategory.addPreference(new StorageVolumePreference(context, vol, color,
+                        volumeTotalBytes, stats));
+                final long freeBytes = stats.getFreeBytes(vol.getId());
+                if (vol.isMountedReadable() && freeBytes >= 0) {
+                    privateUsedBytes += (volumeTotalBytes - freeBytes);
                     privateTotalBytes += volumeTotalBytes;
                 }
             } else if (vol.getType() == VolumeInfo.TYPE_PUBLIC) {
                 StorageVolumePreference ExStorageVolumePreference =
-                        new StorageVolumePreference(context, vol, COLOR_PUBLIC, 0);
+                        new StorageVolumePreference(context, vol, COLOR_PUBLIC, 0, stats);
 
                 //Disable preference when in change
                 ExStorageVolumePreference.setEnabled(vol.getState()!= VolumeInfo.STATE_CHECKING
@@ -256,6 +258,7 @@ public class StorageSettings extends SettingsPreferenceFragment implements Index
     public void onResume() {
         super.onResume();
         mStorageManager.registerListener(mStorageListener);
+        StorageStatsCache.getInstance(getActivity()).addListener(mStatsListener);
         refresh();
     }
 
@@ -263,8 +266,16 @@ public class StorageSettings extends SettingsPreferenceFragment implements Index
     public void onPause() {
         super.onPause();
         mStorageManager.unregisterListener(mStorageListener);
+        StorageStatsCache.getInstance(getActivity()).removeListener(mStatsListener);
     }
 
+    private final StorageStatsCache.Listener mStatsListener = new StorageStatsCache.Listener() {
+        @Override
+        public void onStorageStatsChanged(StorageStatsCache.Snapshot snapshot) {
+            refresh();
+        }
+    };
+
     @Override
     public boolean onPreferenceTreeClick(Preference pref) {
         final String key = pref.getKey();
@@ -502,31 +513,47 @@ public class StorageSettings extends SettingsPreferenceFragment implements Index
         }
     }
 
-    private static class SummaryProvider implements SummaryLoader.SummaryProvider {
+    private static class SummaryProvider implements SummaryLoader.SummaryProvider,
+            StorageStatsCache.Listener {
         private final Context mContext;
         private final SummaryLoader mLoader;
+        private final StorageStatsCache mStatsCache;
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
 
         private SummaryProvider(Context context, SummaryLoader loader) {
             mContext = context;
             mLoader = loader;
+            mStatsCache = StorageStatsCache.getInstance(context);
         }
 
         @Override
-        public void setListening(boolean listening) {
+        public void setListening(final boolean listening) {
+            // Called on the loader's worker thread, where it's fine to take a first snapshot.
             if (listening) {
-                updateSummary();
+                updateSummary(mStatsCache.getSnapshot());
             }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (listening) {
+                        mStatsCache.addListener(SummaryProvider.this);
+                    } else {
+                        mStatsCache.removeListener(SummaryProvider.this);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onStorageStatsChanged(StorageStatsCache.Snapshot snapshot) {
+            updateSummary(snapshot);
         }
 
-        private void updateSummary() {
-            // TODO: Register listener.
-            final StorageManager storageManager = mContext.getSystemService(StorageManager.class);
-            PrivateStorageInfo info = PrivateStorageInfo.getPrivateStorageInfo(
-                    new StorageManagerVolumeProvider(storageManager));
-            long privateUsedBytes = info.totalBytes - info.freeBytes;
+        private void updateSummary(StorageStatsCache.Snapshot snapshot) {
+            final long privateUsedBytes = snapshot.privateTotalBytes - snapshot.privateFreeBytes;
             mLoader.setSummary(this, mContext.getString(R.string.storage_summary,
                     Formatter.formatFileSize(mContext, privateUsedBytes),
-                    Formatter.formatFileSize(mContext, info.totalBytes)));
+                    Formatter.formatFileSize(mContext, snapshot.privateTotalBytes)));
         }
     }
 
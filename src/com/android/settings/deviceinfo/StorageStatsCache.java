@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.storage.DiskInfo;
+import android.os.storage.StorageEventListener;
+import android.os.storage.StorageManager;
+import android.os.storage.VolumeInfo;
+import android.util.ArrayMap;
+
+import com.android.settingslib.deviceinfo.PrivateStorageInfo;
+import com.android.settingslib.deviceinfo.StorageManagerVolumeProvider;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Process-wide snapshot of the size and free space of each mounted volume, so that the
+ * dashboard tile, the storage screens and {@link com.android.settings.Utils#isLowStorage} don't
+ * each walk the volumes and statfs them on every bind.
+ *
+ * While anyone listens, the snapshot is refreshed in the background when a volume changes
+ * state, when the device storage low/ok broadcasts arrive and every
+ * {@link #REFRESH_INTERVAL_MS}. Listeners are only called when the numbers changed by more
+ * than the sizes shown can tell apart since the last snapshot handed out. {@link #getSnapshot}
+ * takes a new one once the cached one is older than that interval.
+ */
+public class StorageStatsCache {
+    static final long REFRESH_INTERVAL_MS = 60 * 1000;
+    // Free space moves all the time; smaller changes than this, or 1% of the volume, don't show.
+    static final long MAX_FREE_BYTES_SLOP = 100 * 1024 * 1024;
+
+    public interface Listener {
+        /** Called on the main thread. */
+        void onStorageStatsChanged(Snapshot snapshot);
+    }
+
+    public static class Snapshot {
+        /** Same as {@link PrivateStorageInfo#totalBytes} for all private volumes. */
+        public final long privateTotalBytes;
+        /** Same as {@link PrivateStorageInfo#freeBytes} for all private volumes. */
+        public final long privateFreeBytes;
+        /** Whether the app's own storage is below the low storage threshold. */
+        public final boolean lowStorage;
+
+        private final ArrayMap<String, long[]> mVolumes;
+        private final long mTime;
+
+        Snapshot(long privateTotalBytes, long privateFreeBytes, boolean lowStorage,
+                ArrayMap<String, long[]> volumes, long time) {
+            this.privateTotalBytes = privateTotalBytes;
+            this.privateFreeBytes = privateFreeBytes;
+            this.lowStorage = lowStorage;
+            mVolumes = volumes;
+            mTime = time;
+        }
+
+        /**
+         * Returns the total size of a mounted volume as reported by statfs, or -1 if it wasn't
+         * mounted when the snapshot was taken.
+         */
+        public long getTotalBytes(String volumeId) {
+            final long[] stats = mVolumes.get(volumeId);
+            return stats != null ? stats[0] : -1;
+        }
+
+        /**
+         * Returns the free space of a mounted volume, or -1 if it wasn't mounted when the
+         * snapshot was taken.
+         */
+        public long getFreeBytes(String volumeId) {
+            final long[] stats = mVolumes.get(volumeId);
+            return stats != null ? stats[1] : -1;
+        }
+
+        /**
+         * Returns whether the free space of a mounted volume is below its low storage threshold.
+         */
+        public boolean isLow(String volumeId) {
+            final long[] stats = mVolumes.get(volumeId);
+            return stats != null && stats[1] < stats[2];
+        }
+
+        /**
+         * Returns whether {@code other} shows the same, free space only counting as changed
+         * when it moved by more than {@link #getFreeBytesSlop}.
+         */
+        boolean sameStats(Snapshot other) {
+            if (privateTotalBytes != other.privateTotalBytes
+                    || Math.abs(privateFreeBytes - other.privateFreeBytes)
+                            > getFreeBytesSlop(privateTotalBytes)
+                    || lowStorage != other.lowStorage
+                    || mVolumes.size() != other.mVolumes.size()) {
+                return false;
+            }
+            final int N = mVolumes.size();
+            for (int i = 0; i < N; i++) {
+                final long[] stats = mVolumes.valueAt(i);
+                final long[] otherStats = other.mVolumes.get(mVolumes.keyAt(i));
+                if (otherStats == null || stats[0] != otherStats[0]
+                        || Math.abs(stats[1] - otherStats[1]) > getFreeBytesSlop(stats[0])
+                        || (stats[1] < stats[2]) != (otherStats[1] < otherStats[2])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        static long getFreeBytesSlop(long totalBytes) {
+            return Math.min(totalBytes / 100, MAX_FREE_BYTES_SLOP);
+        }
+    }
+
+    private static StorageStatsCache sInstance;
+
+    private final Context mContext;
+    private final StorageManager mStorageManager;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private Handler mBackgroundHandler;
+
+    // Guarded by this.
+    private Snapshot mSnapshot;
+    // The last snapshot returned or passed to the listeners, what they show. Guarded by this.
+    private Snapshot mShownSnapshot;
+    private final ArrayList<Listener> mListeners = new ArrayList<>();
+
+    public static synchronized StorageStatsCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new StorageStatsCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private StorageStatsCache(Context context) {
+        mContext = context;
+        mStorageManager = context.getSystemService(StorageManager.class);
+    }
+
+    /**
+     * Returns the current snapshot, taking one on the calling thread if there is none or it is
+     * too old, such as right after the first listener was added.
+     */
+    public synchronized Snapshot getSnapshot() {
+        if (mSnapshot == null
+                || SystemClock.elapsedRealtime() - mSnapshot.mTime > REFRESH_INTERVAL_MS) {
+            mSnapshot = takeSnapshot();
+        }
+        mShownSnapshot = mSnapshot;
+        return mSnapshot;
+    }
+
+    /**
+     * Starts keeping the snapshot current for {@code listener}. Must be called on the main
+     * thread, like {@link #removeListener}.
+     */
+    public void addListener(Listener listener) {
+        final boolean first;
+        synchronized (this) {
+            if (mListeners.contains(listener)) return;
+            first = mListeners.isEmpty();
+            mListeners.add(listener);
+        }
+        if (first) {
+            mStorageManager.registerListener(mStorageListener);
+            final IntentFilter filter = new IntentFilter();
+            filter.addAction(Intent.ACTION_DEVICE_STORAGE_LOW);
+            filter.addAction(Intent.ACTION_DEVICE_STORAGE_OK);
+            mContext.registerReceiver(mStorageReceiver, filter);
+            // The snapshot may be old, nothing has kept it current so far.
+            refresh();
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        synchronized (this) {
+            if (!mListeners.remove(listener) || !mListeners.isEmpty()) return;
+        }
+        mStorageManager.unregisterListener(mStorageListener);
+        mContext.unregisterReceiver(mStorageReceiver);
+        getBackgroundHandler().removeCallbacks(mRefresh);
+    }
+
+    /**
+     * Takes a new snapshot in the background, telling the listeners if it changed.
+     */
+    public void refresh() {
+        final Handler handler = getBackgroundHandler();
+        handler.removeCallbacks(mRefresh);
+        handler.post(mRefresh);
+    }
+
+    private synchronized Handler getBackgroundHandler() {
+        if (mBackgroundHandler == null) {
+            final HandlerThread thread = new HandlerThread("StorageStatsCache",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mBackgroundHandler = new Handler(thread.getLooper());
+        }
+        return mBackgroundHandler;
+    }
+
+    private Snapshot takeSnapshot() {
+        final PrivateStorageInfo info = PrivateStorageInfo.getPrivateStorageInfo(
+                new StorageManagerVolumeProvider(mStorageManager));
+        final boolean lowStorage =
+                mStorageManager.getStorageBytesUntilLow(mContext.getFilesDir()) < 0;
+
+        final List<VolumeInfo> volumes = mStorageManager.getVolumes();
+        final ArrayMap<String, long[]> stats = new ArrayMap<>(volumes.size());
+        for (VolumeInfo vol : volumes) {
+            if (!vol.isMountedReadable()) {
+                continue;
+            }
+            final File path = vol.getPath();
+            if (path != null) {
+                stats.put(vol.getId(), new long[] {
+                        path.getTotalSpace(),
+                        path.getFreeSpace(),
+                        mStorageManager.getStorageLowBytes(path)
+                });
+            }
+        }
+        return new Snapshot(info.totalBytes, info.freeBytes, lowStorage, stats,
+                SystemClock.elapsedRealtime());
+    }
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            final Snapshot snapshot = takeSnapshot();
+            final boolean changed;
+            final boolean listening;
+            synchronized (StorageStatsCache.this) {
+                changed = mShownSnapshot == null || !mShownSnapshot.sameStats(snapshot);
+                mSnapshot = snapshot;
+                listening = !mListeners.isEmpty();
+            }
+            if (!listening) return;
+            if (changed) {
+                mMainHandler.post(mNotifyListeners);
+            }
+            mBackgroundHandler.postDelayed(this, REFRESH_INTERVAL_MS);
+        }
+    };
+
+    private final Runnable mNotifyListeners = new Runnable() {
+        @Override
+        public void run() {
+            final Snapshot snapshot;
+            final ArrayList<Listener> listeners;
+            synchronized (StorageStatsCache.this) {
+                snapshot = mSnapshot;
+                mShownSnapshot = snapshot;
+                listeners = new ArrayList<>(mListeners);
+            }
+            final int N = listeners.size();
+            for (int i = 0; i < N; i++) {
+                listeners.get(i).onStorageStatsChanged(snapshot);
+            }
+        }
+    };
+
+    private final StorageEventListener mStorageListener = new StorageEventListener() {
+        @Override
+        public void onVolumeStateChanged(VolumeInfo vol, int oldState, int newState) {
+            refresh();
+        }
+
+        @Override
+        public void onDiskDestroyed(DiskInfo disk) {
+            refresh();
+        }
+    };
+
+    private final BroadcastReceiver mStorageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            refresh();
+        }
+    };
+}
@@ -35,8 +35,6 @@ import android.widget.ProgressBar;
 import com.android.settings.R;
 import com.android.settings.deviceinfo.StorageSettings.UnmountTask;
 
-import java.io.File;
-
 /**
  * Preference line representing a single {@link VolumeInfo}, possibly including
  * quick actions like unmounting.
@@ -50,7 +48,8 @@ public class StorageVolumePreference extends Preference {
     private int mUsedPercent = -1;
 
     // TODO: ideally, VolumeInfo should have a total physical size.
-    public StorageVolumePreference(Context context, VolumeInfo volume, int color, long totalBytes) {
+    public StorageVolumePreference(Context context, VolumeInfo volume, int color, long totalBytes,
+            StorageStatsCache.Snapshot stats) {
         super(context);
 
         mStorageManager = context.getSystemService(StorageManager.class);
@@ -73,13 +72,11 @@ public class StorageVolumePreference extends Preference {
             icon = context.getDrawable(R.drawable.ic_sim_sd);
         }
 
-        if (volume.isMountedReadable()) {
-            // TODO: move statfs() to background thread
-            final File path = volume.getPath();
+        final long freeBytes = stats.getFreeBytes(volume.getId());
+        if (volume.isMountedReadable() && freeBytes >= 0) {
             if (totalBytes <= 0) {
-                totalBytes = path.getTotalSpace();
+                totalBytes = stats.getTotalBytes(volume.getId());
             }
-            final long freeBytes = path.getFreeSpace();
             final long usedBytes = totalBytes - freeBytes;
 
             final String used = Formatter.formatFileSize(context, usedBytes);
@@ -89,7 +86,7 @@ public class StorageVolumePreference extends Preference {
                 mUsedPercent = (int) ((usedBytes * 100) / totalBytes);
             }
 
-            if (freeBytes < mStorageManager.getStorageLowBytes(path)) {
+            if (stats.isLow(volume.getId())) {
                 mColor = StorageSettings.COLOR_WARNING;
                 icon = context.getDrawable(R.drawable.ic_warning_24dp);
             }
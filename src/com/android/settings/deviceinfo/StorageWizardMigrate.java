@@ -19,6 +19,7 @@ package com.android.settings.deviceinfo;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.storage.DiskInfo;
+import android.os.storage.VolumeInfo;
 import android.widget.CompoundButton;
 import android.widget.CompoundButton.OnCheckedChangeListener;
 import android.widget.RadioButton;
@@ -53,6 +54,11 @@ public class StorageWizardMigrate extends StorageWizardBase {
         getNextButton().setEnabled(false);
 
         mEstimate = new MigrateEstimateTask(this) {
+            @Override
+            public void onProgress(String sizeSoFar) {
+                setBodyText(R.string.storage_wizard_migrate_calculating, sizeSoFar);
+            }
+
             @Override
             public void onPostExecute(String size, String time) {
                 setBodyText(R.string.storage_wizard_migrate_body,
@@ -60,6 +66,7 @@ public class StorageWizardMigrate extends StorageWizardBase {
             }
         };
 
+        mEstimate.setTargetVolume(findFirstVolume(VolumeInfo.TYPE_PRIVATE));
         mEstimate.copyFrom(getIntent());
         mEstimate.execute();
     }
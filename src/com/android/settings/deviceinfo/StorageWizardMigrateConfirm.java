@@ -60,6 +60,11 @@ public class StorageWizardMigrateConfirm extends StorageWizardBase {
         setSecondaryBodyText(R.string.storage_wizard_migrate_details, targetDescrip);
 
         mEstimate = new MigrateEstimateTask(this) {
+            @Override
+            public void onProgress(String sizeSoFar) {
+                setBodyText(R.string.storage_wizard_migrate_calculating, sizeSoFar);
+            }
+
             @Override
             public void onPostExecute(String size, String time) {
                 setBodyText(R.string.storage_wizard_migrate_confirm_body, time, size,
@@ -67,6 +72,7 @@ public class StorageWizardMigrateConfirm extends StorageWizardBase {
             }
         };
 
+        mEstimate.setTargetVolume(mVolume);
         mEstimate.copyFrom(getIntent());
         mEstimate.execute();
 
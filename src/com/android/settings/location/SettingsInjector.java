@@ -19,6 +19,7 @@ package com.android.settings.location;
 import android.app.ActivityManager;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
@@ -48,7 +49,6 @@ import org.xmlpull.v1.XmlPullParserException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
@@ -88,6 +88,19 @@ class SettingsInjector {
      */
     private static final int WHAT_TIMEOUT = 3;
 
+    /**
+     * Number of settings whose status is loaded at the same time, unless memory is low.
+     */
+    private static final int DEFAULT_MAX_CONCURRENT_LOADS = 3;
+
+    /**
+     * Last known status and load time of each setting, so the screen can show them before the
+     * services reply.
+     */
+    private static final String STATUS_CACHE_NAME = "location_injected_settings";
+    private static final String KEY_ENABLED_SUFFIX = ":enabled";
+    private static final String KEY_LATENCY_SUFFIX = ":latency";
+
     private final Context mContext;
 
     /**
@@ -97,10 +110,44 @@ class SettingsInjector {
 
     private final Handler mHandler;
 
+    private final SharedPreferences mStatusCache;
+
+    private final int mMaxConcurrentLoads;
+
     public SettingsInjector(Context context) {
+        this(context, DEFAULT_MAX_CONCURRENT_LOADS);
+    }
+
+    /**
+     * @param maxConcurrentLoads number of {@link SettingInjectorService}s that may be running
+     *         at once to load status values; only one is used when memory is low.
+     */
+    public SettingsInjector(Context context, int maxConcurrentLoads) {
         mContext = context;
         mSettings = new HashSet<Setting>();
         mHandler = new StatusLoadingHandler();
+        mStatusCache = context.getSharedPreferences(STATUS_CACHE_NAME, Context.MODE_PRIVATE);
+        mMaxConcurrentLoads = Math.max(1, maxConcurrentLoads);
+    }
+
+    /**
+     * Returns how many services may be loading at once right now. Every load starts a service
+     * in another process, so back off to one at a time when memory is tight.
+     */
+    private int getMaxConcurrentLoads() {
+        final ActivityManager am = (ActivityManager)
+                mContext.getSystemService(Context.ACTIVITY_SERVICE);
+        if (am.isLowRamDevice()) {
+            return 1;
+        }
+        final ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        am.getMemoryInfo(memoryInfo);
+        return memoryInfo.lowMemory ? 1 : mMaxConcurrentLoads;
+    }
+
+    private static String getCacheKey(InjectedSetting setting) {
+        return setting.packageName + "/" + setting.className + "/"
+                + setting.mUserHandle.getIdentifier();
     }
 
     /**
@@ -282,6 +329,8 @@ class SettingsInjector {
         pref.setTitle(info.title);
         pref.setSummary(null);
         pref.setIcon(icon);
+        // Show the last known status until the service replies
+        pref.setEnabled(mStatusCache.getBoolean(getCacheKey(info) + KEY_ENABLED_SUFFIX, true));
         pref.setOnPreferenceClickListener(new ServiceSettingClickedListener(info));
 
         prefs.add(pref);
@@ -320,9 +369,9 @@ class SettingsInjector {
     }
 
     /**
-     * Loads the setting status values one at a time. Each load starts a subclass of {@link
-     * SettingInjectorService}, so to reduce memory pressure we don't want to load too many at
-     * once.
+     * Loads the setting status values a few at a time, settings that replied fastest last time
+     * first. Each load starts a subclass of {@link SettingInjectorService}, so to reduce memory
+     * pressure we don't want to load too many at once.
      */
     private final class StatusLoadingHandler extends Handler {
 
@@ -332,20 +381,25 @@ class SettingsInjector {
         private Set<Setting> mSettingsToLoad = new HashSet<Setting>();
 
         /**
-         * Settings that are being loaded now and haven't timed out. In practice this should have
-         * zero or one elements.
+         * Settings that are being loaded now and haven't timed out. Never has more elements than
+         * the concurrency limit.
          */
         private Set<Setting> mSettingsBeingLoaded = new HashSet<Setting>();
 
         /**
-         * Settings that are being loaded but have timed out. If only one setting has timed out, we
-         * will go ahead and start loading the next setting so that one slow load won't delay the
-         * load of the other settings.
+         * Settings that are being loaded but have timed out. As long as no more settings than
+         * the concurrency limit have timed out, we will go ahead and start loading the next
+         * settings so that slow loads won't delay the load of the other settings.
          */
         private Set<Setting> mTimedOutSettings = new HashSet<Setting>();
 
         private boolean mReloadRequested;
 
+        /**
+         * Concurrency limit for the current round of loads, sampled when the round starts.
+         */
+        private int mMaxLoads = 1;
+
         @Override
         public void handleMessage(Message msg) {
             if (Log.isLoggable(TAG, Log.DEBUG)) {
@@ -359,7 +413,7 @@ class SettingsInjector {
                     break;
                 case WHAT_RECEIVED_STATUS:
                     final Setting receivedSetting = (Setting) msg.obj;
-                    receivedSetting.maybeLogElapsedTime();
+                    receivedSetting.onStatusReceived();
                     mSettingsBeingLoaded.remove(receivedSetting);
                     mTimedOutSettings.remove(receivedSetting);
                     removeMessages(WHAT_TIMEOUT, receivedSetting);
@@ -368,6 +422,7 @@ class SettingsInjector {
                     final Setting timedOutSetting = (Setting) msg.obj;
                     mSettingsBeingLoaded.remove(timedOutSetting);
                     mTimedOutSettings.add(timedOutSetting);
+                    timedOutSetting.recordLatency(timedOutSetting.getElapsedTime());
                     if (Log.isLoggable(TAG, Log.WARN)) {
                         Log.w(TAG, "Timed out after " + timedOutSetting.getElapsedTime()
                                 + " millis trying to get status for: " + timedOutSetting);
@@ -377,19 +432,6 @@ class SettingsInjector {
                     Log.wtf(TAG, "Unexpected what: " + msg);
             }
 
-            // Decide whether to load additional settings based on the new state. Start by seeing
-            // if we have headroom to load another setting.
-            if (mSettingsBeingLoaded.size() > 0 || mTimedOutSettings.size() > 1) {
-                // Don't load any more settings until one of the pending settings has completed.
-                // To reduce memory pressure, we want to be loading at most one setting (plus at
-                // most one timed-out setting) at a time. This means we'll be responsible for
-                // bringing in at most two services.
-                if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                    Log.v(TAG, "too many services already live for " + msg + ", " + this);
-                }
-                return;
-            }
-
             if (mReloadRequested && mSettingsToLoad.isEmpty() && mSettingsBeingLoaded.isEmpty()
                     && mTimedOutSettings.isEmpty()) {
                 if (Log.isLoggable(TAG, Log.VERBOSE)) {
@@ -398,32 +440,58 @@ class SettingsInjector {
                 // Reload requested, so must reload all settings
                 mSettingsToLoad.addAll(mSettings);
                 mReloadRequested = false;
+                mMaxLoads = getMaxConcurrentLoads();
             }
 
-            // Remove the next setting to load from the queue, if any
-            Iterator<Setting> iter = mSettingsToLoad.iterator();
-            if (!iter.hasNext()) {
-                if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                    Log.v(TAG, "nothing left to do for " + msg + ", " + this);
+            // Start as many settings as we have headroom for.
+            while (mSettingsBeingLoaded.size() < mMaxLoads
+                    && mTimedOutSettings.size() <= mMaxLoads) {
+                // Remove the next setting to load from the queue, if any
+                final Setting setting = pollFastestSetting();
+                if (setting == null) {
+                    if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                        Log.v(TAG, "nothing left to do for " + msg + ", " + this);
+                    }
+                    return;
                 }
-                return;
-            }
-            Setting setting = iter.next();
-            iter.remove();
 
-            // Request the status value
-            setting.startService();
-            mSettingsBeingLoaded.add(setting);
+                // Request the status value
+                setting.startService();
+                mSettingsBeingLoaded.add(setting);
 
-            // Ensure that if receiving the status value takes too long, we start loading the
-            // next value anyway
-            Message timeoutMsg = obtainMessage(WHAT_TIMEOUT, setting);
-            sendMessageDelayed(timeoutMsg, INJECTED_STATUS_UPDATE_TIMEOUT_MILLIS);
+                // Ensure that if receiving the status value takes too long, we start loading the
+                // next value anyway
+                Message timeoutMsg = obtainMessage(WHAT_TIMEOUT, setting);
+                sendMessageDelayed(timeoutMsg, INJECTED_STATUS_UPDATE_TIMEOUT_MILLIS);
 
-            if (Log.isLoggable(TAG, Log.DEBUG)) {
-                Log.d(TAG, "handleMessage end " + msg + ", " + this
-                        + ", started loading " + setting);
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "handleMessage " + msg + ", " + this
+                            + ", started loading " + setting);
+                }
+            }
+
+            // Don't load any more settings until one of the pending settings has completed.
+            // To reduce memory pressure, we want to be loading at most mMaxLoads settings (plus
+            // at most mMaxLoads timed-out settings) at a time.
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "too many services already live for " + msg + ", " + this);
+            }
+        }
+
+        /**
+         * Removes and returns the queued setting with the lowest known load time, or null.
+         */
+        private Setting pollFastestSetting() {
+            Setting fastest = null;
+            for (Setting setting : mSettingsToLoad) {
+                if (fastest == null || setting.getLastLatency() < fastest.getLastLatency()) {
+                    fastest = setting;
+                }
             }
+            if (fastest != null) {
+                mSettingsToLoad.remove(fastest);
+            }
+            return fastest;
         }
 
         @Override
@@ -433,6 +501,7 @@ class SettingsInjector {
                     ", mSettingsBeingLoaded=" + mSettingsBeingLoaded +
                     ", mTimedOutSettings=" + mTimedOutSettings +
                     ", mReloadRequested=" + mReloadRequested +
+                    ", mMaxLoads=" + mMaxLoads +
                     '}';
         }
     }
@@ -445,6 +514,8 @@ class SettingsInjector {
         public final InjectedSetting setting;
         public final Preference preference;
         public long startMillis;
+        /** How long the last status load took, -1 until read from the cache. */
+        private long mLastLatency = -1;
 
         private Setting(InjectedSetting setting, Preference preference) {
             this.setting = setting;
@@ -497,6 +568,9 @@ class SettingsInjector {
                     }
                     preference.setSummary(null);
                     preference.setEnabled(enabled);
+                    mStatusCache.edit()
+                            .putBoolean(getCacheKey(setting) + KEY_ENABLED_SUFFIX, enabled)
+                            .apply();
                     mHandler.sendMessage(
                             mHandler.obtainMessage(WHAT_RECEIVED_STATUS, Setting.this));
                 }
@@ -509,10 +583,8 @@ class SettingsInjector {
             if (Log.isLoggable(TAG, Log.DEBUG)) {
                 Log.d(TAG, setting + ": sending update intent: " + intent
                         + ", handler: " + handler);
-                startMillis = SystemClock.elapsedRealtime();
-            } else {
-                startMillis = 0;
             }
+            startMillis = SystemClock.elapsedRealtime();
 
             // Start the service, making sure that this is attributed to the user associated with
             // the setting rather than the system user.
@@ -524,9 +596,31 @@ class SettingsInjector {
             return end - startMillis;
         }
 
-        public void maybeLogElapsedTime() {
-            if (Log.isLoggable(TAG, Log.DEBUG) && startMillis != 0) {
-                long elapsed = getElapsedTime();
+        /**
+         * Returns how long the last status load took, from the persistent cache if this setting
+         * hasn't been loaded yet in this session; 0 if it has never been loaded.
+         */
+        public long getLastLatency() {
+            if (mLastLatency < 0) {
+                mLastLatency = mStatusCache.getLong(getCacheKey(setting) + KEY_LATENCY_SUFFIX, 0);
+            }
+            return mLastLatency;
+        }
+
+        public void recordLatency(long latency) {
+            mLastLatency = latency;
+            mStatusCache.edit()
+                    .putLong(getCacheKey(setting) + KEY_LATENCY_SUFFIX, latency)
+                    .apply();
+        }
+
+        public void onStatusReceived() {
+            if (startMillis == 0) {
+                return;
+            }
+            final long elapsed = getElapsedTime();
+            recordLatency(elapsed);
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
                 Log.d(TAG, this + " update took " + elapsed + " millis");
             }
         }
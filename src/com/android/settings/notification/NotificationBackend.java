@@ -38,9 +38,8 @@ public class NotificationBackend {
             ServiceManager.getService(Context.NOTIFICATION_SERVICE));
 
     public AppRow loadAppRow(Context context, PackageManager pm, ApplicationInfo app) {
-        final AppRow row = new AppRow();
-        row.pkg = app.packageName;
-        row.uid = app.uid;
+        final AppRow row = loadAppRowState(app,
+                new LockPatternUtils(context).isSecure(UserHandle.myUserId()));
         try {
             row.label = app.loadLabel(pm);
         } catch (Throwable t) {
@@ -48,13 +47,24 @@ public class NotificationBackend {
             row.label = row.pkg;
         }
         row.icon = app.loadIcon(pm);
+        return row;
+    }
+
+    /**
+     * Loads only the notification state of an app, leaving {@link AppRow#label} and
+     * {@link AppRow#icon} unset. Used when building rows for many apps at once, where the
+     * caller already has labels and icons or loads them when the row is shown.
+     */
+    public AppRow loadAppRowState(ApplicationInfo app, boolean lockScreenSecure) {
+        final AppRow row = new AppRow();
+        row.pkg = app.packageName;
+        row.uid = app.uid;
         row.banned = getNotificationsBanned(row.pkg, row.uid);
         row.appImportance = getImportance(row.pkg, row.uid);
         row.appBypassDnd = getBypassZenMode(row.pkg, row.uid);
         row.appVisOverride = getVisibilityOverride(row.pkg, row.uid);
         row.soundTimeout = getNotificationSoundTimeout(row.pkg, row.uid);
-        row.lockScreenSecure = new LockPatternUtils(context).isSecure(
-                UserHandle.myUserId());
+        row.lockScreenSecure = lockScreenSecure;
         return row;
     }
 
@@ -32,6 +32,7 @@ import android.service.notification.NotificationListenerService.Ranking;
 import android.service.notification.NotificationListenerService.RankingMap;
 import android.service.notification.StatusBarNotification;
 import android.support.v7.preference.Preference;
+import android.support.v7.preference.PreferenceScreen;
 import android.support.v7.preference.PreferenceViewHolder;
 import android.support.v7.widget.RecyclerView;
 import android.text.SpannableString;
@@ -39,6 +40,7 @@ import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
 import android.text.style.StyleSpan;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.View;
 import android.widget.DateTimeView;
 import android.widget.ImageView;
@@ -52,6 +54,7 @@ import com.android.settings.Utils;
 
 import java.lang.StringBuilder;
 import java.util.*;
+import java.util.function.Function;
 
 public class NotificationStation extends SettingsPreferenceFragment {
     private static final String TAG = NotificationStation.class.getSimpleName();
@@ -59,9 +62,24 @@ public class NotificationStation extends SettingsPreferenceFragment {
     private static final boolean DEBUG = false;
     private static final boolean DUMP_EXTRAS = true;
     private static final boolean DUMP_PARCEL = true;
+
+    // Number of dismissed notifications kept in the log.
+    private static final int MAX_HISTORICAL = 50;
+    // Number of rows added, updated or removed per frame, so a burst of notifications
+    // can't stall the UI.
+    private static final int MAX_CHANGES_PER_FRAME = 16;
+
     private Handler mHandler;
+    private HandlerThread mWorkerThread;
+    private Handler mWorkerHandler;
 
+    /**
+     * One row of the log. Built on the worker thread and never modified once it has been
+     * handed to the UI; a changed row is replaced by a new info with the same id.
+     */
     private static class HistoricalNotificationInfo {
+        public long id;
+        public StatusBarNotification sbn;
         public String pkg;
         public Drawable pkgicon;
         public CharSequence pkgname;
@@ -71,19 +89,50 @@ public class NotificationStation extends SettingsPreferenceFragment {
         public int user;
         public long timestamp;
         public boolean active;
-        public CharSequence extra;
+
+        private HistoricalNotificationInfo copy() {
+            final HistoricalNotificationInfo info = new HistoricalNotificationInfo();
+            info.id = id;
+            info.sbn = sbn;
+            info.pkg = pkg;
+            info.pkgicon = pkgicon;
+            info.pkgname = pkgname;
+            info.icon = icon;
+            info.title = title;
+            info.priority = priority;
+            info.user = user;
+            info.timestamp = timestamp;
+            info.active = active;
+            return info;
+        }
+    }
+
+    /**
+     * Package label, icon and resources, loaded once per package and user.
+     */
+    private static class PackageEntry {
+        public Resources resources;
+        public Drawable icon;
+        public CharSequence label;
     }
 
     private PackageManager mPm;
     private INotificationManager mNoMan;
-    private RankingMap mRanking;
+    private volatile RankingMap mRanking;
 
-    private Runnable mRefreshListRunnable = new Runnable() {
-        @Override
-        public void run() {
-            refreshList();
-        }
-    };
+    // Owned by the worker thread.
+    private final Map<String, HistoricalNotificationInfo> mActive = new HashMap<>();
+    private final ArrayDeque<HistoricalNotificationInfo> mHistorical = new ArrayDeque<>();
+    private final Map<String, PackageEntry> mPackageCache = new HashMap<>();
+    private long mNextId;
+
+    // Owned by the main thread.
+    private final ArrayDeque<Object> mPendingChanges = new ArrayDeque<>();
+    private final Map<Long, HistoricalNotificationPreference> mPreferences = new HashMap<>();
+    private boolean mFrameScheduled;
+
+    /** Pending change that drops every row, queued before the rows of a full reload. */
+    private static final Object RESET = new Object();
 
     private final NotificationListenerService mListener = new NotificationListenerService() {
         @Override
@@ -91,7 +140,7 @@ public class NotificationStation extends SettingsPreferenceFragment {
             logd("onNotificationPosted: %s, with update for %d", sbn.getNotification(),
                     ranking == null ? 0 : ranking.getOrderedKeys().length);
             mRanking = ranking;
-            scheduleRefreshList();
+            postToWorker(() -> applyPosted(sbn));
         }
 
         @Override
@@ -99,15 +148,15 @@ public class NotificationStation extends SettingsPreferenceFragment {
             logd("onNotificationRankingUpdate with update for %d",
                     ranking == null ? 0 : ranking.getOrderedKeys().length);
             mRanking = ranking;
-            scheduleRefreshList();
+            postToWorker(() -> applyRemoved(notification));
         }
 
         @Override
         public void onNotificationRankingUpdate(RankingMap ranking) {
             logd("onNotificationRankingUpdate with update for %d",
                     ranking == null ? 0 : ranking.getOrderedKeys().length);
+            // Ranking only shows up in the details, which are built when a row is expanded.
             mRanking = ranking;
-            scheduleRefreshList();
         }
 
         @Override
@@ -115,25 +164,26 @@ public class NotificationStation extends SettingsPreferenceFragment {
             mRanking = getCurrentRanking();
             logd("onListenerConnected with update for %d",
                     mRanking == null ? 0 : mRanking.getOrderedKeys().length);
-            scheduleRefreshList();
         }
     };
 
-    private void scheduleRefreshList() {
-        if (mHandler != null) {
-            mHandler.removeCallbacks(mRefreshListRunnable);
-            mHandler.postDelayed(mRefreshListRunnable, 100);
-        }
-    }
-
     private Context mContext;
 
-    private final Comparator<HistoricalNotificationInfo> mNotificationSorter
-            = new Comparator<HistoricalNotificationInfo>() {
+    private final Comparator<HistoricalNotificationPreference> mNotificationSorter
+            = new Comparator<HistoricalNotificationPreference>() {
                 @Override
-                public int compare(HistoricalNotificationInfo lhs,
-                                   HistoricalNotificationInfo rhs) {
-                    return (int)(rhs.timestamp - lhs.timestamp);
+                public int compare(HistoricalNotificationPreference lhs,
+                                   HistoricalNotificationPreference rhs) {
+                    return Long.compare(rhs.mInfo.timestamp, lhs.mInfo.timestamp);
+                }
+            };
+
+    private final Choreographer.FrameCallback mApplyChangesCallback =
+            new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    mFrameScheduled = false;
+                    applyPendingChanges();
                 }
             };
 
@@ -146,12 +196,31 @@ public class NotificationStation extends SettingsPreferenceFragment {
         mPm = mContext.getPackageManager();
         mNoMan = INotificationManager.Stub.asInterface(
                 ServiceManager.getService(Context.NOTIFICATION_SERVICE));
+        mWorkerThread = new HandlerThread(TAG,
+                android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        mWorkerThread.start();
+        mWorkerHandler = new Handler(mWorkerThread.getLooper());
     }
 
     @Override
     public void onDetach() {
         logd("onDetach()");
-        mHandler.removeCallbacks(mRefreshListRunnable);
+        if (mFrameScheduled) {
+            Choreographer.getInstance().removeFrameCallback(mApplyChangesCallback);
+            mFrameScheduled = false;
+        }
+        mPendingChanges.clear();
+        mPreferences.clear();
+        mWorkerHandler.removeCallbacksAndMessages(null);
+        mWorkerHandler.post(() -> {
+            mActive.clear();
+            mHistorical.clear();
+            mPackageCache.clear();
+        });
+        mWorkerHandler = null;
+        mWorkerThread.quitSafely();
+        mWorkerThread = null;
+        mHandler.removeCallbacksAndMessages(null);
         mHandler = null;
         super.onDetach();
     }
@@ -190,24 +259,190 @@ public class NotificationStation extends SettingsPreferenceFragment {
         } catch (RemoteException e) {
             Log.e(TAG, "Cannot register listener", e);
         }
-        refreshList();
+        // We missed every event while paused, start over from what NoMan has.
+        postToWorker(this::loadAll);
+    }
+
+    private void postToWorker(Runnable r) {
+        final Handler handler = mWorkerHandler;
+        if (handler != null) {
+            handler.post(r);
+        }
+    }
+
+    private void postChanges(ArrayList<Object> changes) {
+        final Handler handler = mHandler;
+        if (handler != null && !changes.isEmpty()) {
+            handler.post(() -> {
+                if (mHandler == null) {
+                    return;
+                }
+                mPendingChanges.addAll(changes);
+                if (!mFrameScheduled) {
+                    mFrameScheduled = true;
+                    Choreographer.getInstance().postFrameCallback(mApplyChangesCallback);
+                }
+            });
+        }
     }
 
-    private void refreshList() {
-        List<HistoricalNotificationInfo> infos = loadNotifications();
-        if (infos != null) {
-            final int N = infos.size();
-            logd("adding %d infos", N);
-            Collections.sort(infos, mNotificationSorter);
-            if (getPreferenceScreen() == null) {
-                setPreferenceScreen(getPreferenceManager().createPreferenceScreen(getContext()));
+    /**
+     * Applies at most {@link #MAX_CHANGES_PER_FRAME} queued changes to the preferences and
+     * schedules the rest for the next frame. A change is either {@link #RESET}, an info to add
+     * or replace, or the id of a row to remove.
+     */
+    private void applyPendingChanges() {
+        if (getPreferenceScreen() == null) {
+            setPreferenceScreen(getPreferenceManager().createPreferenceScreen(getContext()));
+        }
+        final PreferenceScreen screen = getPreferenceScreen();
+        boolean added = false;
+        for (int i = 0; i < MAX_CHANGES_PER_FRAME && !mPendingChanges.isEmpty(); i++) {
+            final Object change = mPendingChanges.poll();
+            if (change == RESET) {
+                screen.removeAll();
+                mPreferences.clear();
+            } else if (change instanceof Long) {
+                final HistoricalNotificationPreference pref = mPreferences.remove(change);
+                if (pref != null) {
+                    screen.removePreference(pref);
+                }
+            } else {
+                final HistoricalNotificationInfo info = (HistoricalNotificationInfo) change;
+                final HistoricalNotificationPreference pref = mPreferences.get(info.id);
+                if (pref != null) {
+                    pref.setInfo(info);
+                } else {
+                    final HistoricalNotificationPreference newPref =
+                            new HistoricalNotificationPreference(getPrefContext(), info,
+                                    this::buildDetails);
+                    mPreferences.put(info.id, newPref);
+                    screen.addPreference(newPref);
+                    added = true;
+                }
             }
-            getPreferenceScreen().removeAll();
-            for (int i = 0; i < N; i++) {
-                getPreferenceScreen().addPreference(
-                        new HistoricalNotificationPreference(getPrefContext(), infos.get(i)));
+        }
+        if (added || mPendingChanges.isEmpty()) {
+            updateOrder();
+        }
+        if (!mPendingChanges.isEmpty()) {
+            mFrameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(mApplyChangesCallback);
+        }
+    }
+
+    private void updateOrder() {
+        final ArrayList<HistoricalNotificationPreference> prefs =
+                new ArrayList<>(mPreferences.values());
+        Collections.sort(prefs, mNotificationSorter);
+        final int N = prefs.size();
+        for (int i = 0; i < N; i++) {
+            // setOrder() is a no-op when the order doesn't change.
+            prefs.get(i).setOrder(i);
+        }
+    }
+
+    /**
+     * Reloads every row from NoMan. Worker thread only.
+     */
+    private void loadAll() {
+        final int currentUserId = ActivityManager.getCurrentUser();
+        final StatusBarNotification[] active;
+        final StatusBarNotification[] dismissed;
+        try {
+            active = mNoMan.getActiveNotifications(mContext.getPackageName());
+            dismissed = mNoMan.getHistoricalNotifications(mContext.getPackageName(),
+                    MAX_HISTORICAL);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Cannot load Notifications: ", e);
+            return;
+        }
+        mActive.clear();
+        mHistorical.clear();
+        // Labels and icons may have changed while we weren't looking.
+        mPackageCache.clear();
+
+        final ArrayList<Object> changes = new ArrayList<>(active.length + dismissed.length + 1);
+        changes.add(RESET);
+        for (StatusBarNotification sbn : active) {
+            if (isVisibleToUser(sbn, currentUserId)) {
+                final HistoricalNotificationInfo info = createInfo(sbn, true);
+                mActive.put(sbn.getKey(), info);
+                changes.add(info);
             }
         }
+        for (StatusBarNotification sbn : dismissed) {
+            if (isVisibleToUser(sbn, currentUserId)) {
+                final HistoricalNotificationInfo info = createInfo(sbn, false);
+                mHistorical.addLast(info);
+                changes.add(info);
+            }
+        }
+        logd("loaded %d infos", changes.size() - 1);
+        postChanges(changes);
+    }
+
+    /**
+     * Adds or replaces the row of a posted notification. Worker thread only.
+     */
+    private void applyPosted(StatusBarNotification sbn) {
+        if (!isVisibleToUser(sbn, ActivityManager.getCurrentUser())) {
+            return;
+        }
+        final HistoricalNotificationInfo info = createInfo(sbn, true);
+        final HistoricalNotificationInfo previous = mActive.put(sbn.getKey(), info);
+        if (previous != null) {
+            // An update of a notification replaces its row.
+            info.id = previous.id;
+        }
+        final ArrayList<Object> changes = new ArrayList<>(1);
+        changes.add(info);
+        postChanges(changes);
+    }
+
+    /**
+     * Turns the row of a removed notification into a historical one. Worker thread only.
+     */
+    private void applyRemoved(StatusBarNotification sbn) {
+        final HistoricalNotificationInfo previous = mActive.remove(sbn.getKey());
+        if (previous == null) {
+            return;
+        }
+        final HistoricalNotificationInfo info = previous.copy();
+        info.active = false;
+        mHistorical.addFirst(info);
+        final ArrayList<Object> changes = new ArrayList<>(2);
+        changes.add(info);
+        while (mHistorical.size() > MAX_HISTORICAL) {
+            changes.add(mHistorical.pollLast().id);
+        }
+        postChanges(changes);
+    }
+
+    private static boolean isVisibleToUser(StatusBarNotification sbn, int currentUserId) {
+        return sbn.getUserId() == UserHandle.USER_ALL || sbn.getUserId() == currentUserId;
+    }
+
+    private HistoricalNotificationInfo createInfo(StatusBarNotification sbn, boolean active) {
+        final Notification n = sbn.getNotification();
+        final HistoricalNotificationInfo info = new HistoricalNotificationInfo();
+        info.id = mNextId++;
+        info.sbn = sbn;
+        info.pkg = sbn.getPackageName();
+        info.user = sbn.getUserId();
+        final PackageEntry packageEntry = getPackageEntry(info.pkg, info.user);
+        info.icon = loadIconDrawable(packageEntry, info.pkg, n.icon);
+        info.pkgicon = packageEntry.icon;
+        info.pkgname = packageEntry.label;
+        info.title = getTitleString(n);
+        if (TextUtils.isEmpty(info.title)) {
+            info.title = mContext.getString(R.string.notification_log_no_title);
+        }
+        info.timestamp = sbn.getPostTime();
+        info.priority = n.priority;
+        info.active = active;
+        logd("   [%d] %s: %s", info.timestamp, info.pkg, info.title);
+        return info;
     }
 
     private static void logd(String msg, Object... args) {
@@ -250,223 +485,186 @@ public class NotificationStation extends SettingsPreferenceFragment {
         return sb.toString();
     }
 
-    private List<HistoricalNotificationInfo> loadNotifications() {
-        final int currentUserId = ActivityManager.getCurrentUser();
-        try {
-            StatusBarNotification[] active = mNoMan.getActiveNotifications(
-                    mContext.getPackageName());
-            StatusBarNotification[] dismissed = mNoMan.getHistoricalNotifications(
-                    mContext.getPackageName(), 50);
-
-            List<HistoricalNotificationInfo> list
-                    = new ArrayList<HistoricalNotificationInfo>(active.length + dismissed.length);
-
-            final Ranking rank = new Ranking();
-
-            for (StatusBarNotification[] resultset
-                    : new StatusBarNotification[][] { active, dismissed }) {
-                for (StatusBarNotification sbn : resultset) {
-                    if (sbn.getUserId() != UserHandle.USER_ALL & sbn.getUserId() != currentUserId) {
-                        continue;
-                    }
-
-                    final Notification n = sbn.getNotification();
-                    final HistoricalNotificationInfo info = new HistoricalNotificationInfo();
-                    info.pkg = sbn.getPackageName();
-                    info.user = sbn.getUserId();
-                    info.icon = loadIconDrawable(info.pkg, info.user, n.icon);
-                    info.pkgicon = loadPackageIconDrawable(info.pkg, info.user);
-                    info.pkgname = loadPackageName(info.pkg);
-                    info.title = getTitleString(n);
-                    if (TextUtils.isEmpty(info.title)) {
-                        info.title = getString(R.string.notification_log_no_title);
-                    }
-                    info.timestamp = sbn.getPostTime();
-                    info.priority = n.priority;
-
-                    info.active = (resultset == active);
-
-                    final SpannableStringBuilder sb = new SpannableStringBuilder();
-                    final String delim = getString(R.string.notification_log_details_delimiter);
-                    sb.append(bold(getString(R.string.notification_log_details_package)))
-                            .append(delim)
-                            .append(info.pkg)
-                            .append("\n")
-                            .append(bold(getString(R.string.notification_log_details_key)))
-                            .append(delim)
-                            .append(sbn.getKey());
+    /**
+     * Builds the details shown when a row is expanded or copied. Only done on demand, this is
+     * by far the most expensive part of a row.
+     */
+    private CharSequence buildDetails(HistoricalNotificationInfo info) {
+        final StatusBarNotification sbn = info.sbn;
+        final Notification n = sbn.getNotification();
+        final RankingMap ranking = mRanking;
+        final Ranking rank = new Ranking();
+        final SpannableStringBuilder sb = new SpannableStringBuilder();
+        final String delim = getString(R.string.notification_log_details_delimiter);
+        sb.append(bold(getString(R.string.notification_log_details_package)))
+                .append(delim)
+                .append(info.pkg)
+                .append("\n")
+                .append(bold(getString(R.string.notification_log_details_key)))
+                .append(delim)
+                .append(sbn.getKey());
+        sb.append("\n")
+                .append(bold(getString(R.string.notification_log_details_icon)))
+                .append(delim)
+                .append(n.getSmallIcon().toString());
+        if (sbn.isGroup()) {
+            sb.append("\n")
+                    .append(bold(getString(R.string.notification_log_details_group)))
+                    .append(delim)
+                    .append(sbn.getGroupKey());
+            if (n.isGroupSummary()) {
+                sb.append(bold(
+                        getString(R.string.notification_log_details_group_summary)));
+            }
+        }
+        sb.append("\n")
+                .append(bold(getString(R.string.notification_log_details_sound)))
+                .append(delim);
+        if (0 != (n.defaults & Notification.DEFAULT_SOUND)) {
+            sb.append(getString(R.string.notification_log_details_default));
+        } else if (n.sound != null) {
+            sb.append(n.sound.toString());
+        } else {
+            sb.append(getString(R.string.notification_log_details_none));
+        }
+        sb.append("\n")
+                .append(bold(getString(R.string.notification_log_details_vibrate)))
+                .append(delim);
+        if (0 != (n.defaults & Notification.DEFAULT_VIBRATE)) {
+            sb.append(getString(R.string.notification_log_details_default));
+        } else if (n.vibrate != null) {
+            for (int vi=0;vi<n.vibrate.length;vi++) {
+                if (vi > 0) sb.append(',');
+                sb.append(String.valueOf(n.vibrate[vi]));
+            }
+        } else {
+            sb.append(getString(R.string.notification_log_details_none));
+        }
+        sb.append("\n")
+                .append(bold(getString(R.string.notification_log_details_visibility)))
+                .append(delim)
+                .append(Notification.visibilityToString(n.visibility));
+        if (n.publicVersion != null) {
+            sb.append("\n")
+                    .append(bold(getString(
+                            R.string.notification_log_details_public_version)))
+                    .append(delim)
+                    .append(getTitleString(n.publicVersion));
+        }
+        sb.append("\n")
+                .append(bold(getString(R.string.notification_log_details_priority)))
+                .append(delim)
+                .append(Notification.priorityToString(n.priority));
+        if (info.active) {
+            // ranking only applies to active notifications
+            if (ranking != null && ranking.getRanking(sbn.getKey(), rank)) {
+                sb.append("\n")
+                        .append(bold(getString(
+                                R.string.notification_log_details_importance)))
+                        .append(delim)
+                        .append(Ranking.importanceToString(rank.getImportance()));
+                if (rank.getImportanceExplanation() != null) {
                     sb.append("\n")
-                            .append(bold(getString(R.string.notification_log_details_icon)))
+                            .append(bold(getString(
+                                    R.string.notification_log_details_explanation)))
                             .append(delim)
-                            .append(n.getSmallIcon().toString());
-                    if (sbn.isGroup()) {
-                        sb.append("\n")
-                                .append(bold(getString(R.string.notification_log_details_group)))
-                                .append(delim)
-                                .append(sbn.getGroupKey());
-                        if (n.isGroupSummary()) {
-                            sb.append(bold(
-                                    getString(R.string.notification_log_details_group_summary)));
-                        }
-                    }
-                    sb.append("\n")
-                            .append(bold(getString(R.string.notification_log_details_sound)))
-                            .append(delim);
-                    if (0 != (n.defaults & Notification.DEFAULT_SOUND)) {
-                        sb.append(getString(R.string.notification_log_details_default));
-                    } else if (n.sound != null) {
-                        sb.append(n.sound.toString());
-                    } else {
-                        sb.append(getString(R.string.notification_log_details_none));
-                    }
+                            .append(rank.getImportanceExplanation());
+                }
+            } else {
+                if (ranking == null) {
                     sb.append("\n")
-                            .append(bold(getString(R.string.notification_log_details_vibrate)))
-                            .append(delim);
-                    if (0 != (n.defaults & Notification.DEFAULT_VIBRATE)) {
-                        sb.append(getString(R.string.notification_log_details_default));
-                    } else if (n.vibrate != null) {
-                        for (int vi=0;vi<n.vibrate.length;vi++) {
-                            if (vi > 0) sb.append(',');
-                            sb.append(String.valueOf(n.vibrate[vi]));
-                        }
-                    } else {
-                        sb.append(getString(R.string.notification_log_details_none));
-                    }
+                            .append(bold(getString(
+                                    R.string.notification_log_details_ranking_null)));
+                } else {
                     sb.append("\n")
-                            .append(bold(getString(R.string.notification_log_details_visibility)))
+                            .append(bold(getString(
+                                    R.string.notification_log_details_ranking_none)));
+                }
+            }
+        }
+        if (n.contentIntent != null) {
+            sb.append("\n")
+                    .append(bold(getString(
+                            R.string.notification_log_details_content_intent)))
+                    .append(delim)
+                    .append(formatPendingIntent(n.contentIntent));
+        }
+        if (n.deleteIntent != null) {
+            sb.append("\n")
+                    .append(bold(getString(
+                            R.string.notification_log_details_delete_intent)))
+                    .append(delim)
+                    .append(formatPendingIntent(n.deleteIntent));
+        }
+        if (n.fullScreenIntent != null) {
+            sb.append("\n")
+                    .append(bold(getString(
+                            R.string.notification_log_details_full_screen_intent)))
+                    .append(delim)
+                    .append(formatPendingIntent(n.fullScreenIntent));
+        }
+        if (n.actions != null && n.actions.length > 0) {
+            sb.append("\n")
+                    .append(bold(getString(R.string.notification_log_details_actions)));
+            for (int ai=0; ai<n.actions.length; ai++) {
+                final Notification.Action action = n.actions[ai];
+                sb.append("\n  ").append(String.valueOf(ai)).append(' ')
+                        .append(bold(getString(
+                                R.string.notification_log_details_title)))
+                        .append(delim)
+                        .append(action.title);
+                if (action.actionIntent != null) {
+                    sb.append("\n    ")
+                            .append(bold(getString(
+                                    R.string.notification_log_details_content_intent)))
                             .append(delim)
-                            .append(Notification.visibilityToString(n.visibility));
-                    if (n.publicVersion != null) {
-                        sb.append("\n")
-                                .append(bold(getString(
-                                        R.string.notification_log_details_public_version)))
-                                .append(delim)
-                                .append(getTitleString(n.publicVersion));
-                    }
-                    sb.append("\n")
-                            .append(bold(getString(R.string.notification_log_details_priority)))
+                            .append(formatPendingIntent(action.actionIntent));
+                }
+                if (action.getRemoteInputs() != null) {
+                    sb.append("\n    ")
+                            .append(bold(getString(
+                                    R.string.notification_log_details_remoteinput)))
                             .append(delim)
-                            .append(Notification.priorityToString(n.priority));
-                    if (resultset == active) {
-                        // mRanking only applies to active notifications
-                        if (mRanking != null && mRanking.getRanking(sbn.getKey(), rank)) {
-                            sb.append("\n")
-                                    .append(bold(getString(
-                                            R.string.notification_log_details_importance)))
-                                    .append(delim)
-                                    .append(Ranking.importanceToString(rank.getImportance()));
-                            if (rank.getImportanceExplanation() != null) {
-                                sb.append("\n")
-                                        .append(bold(getString(
-                                                R.string.notification_log_details_explanation)))
-                                        .append(delim)
-                                        .append(rank.getImportanceExplanation());
-                            }
-                        } else {
-                            if (mRanking == null) {
-                                sb.append("\n")
-                                        .append(bold(getString(
-                                                R.string.notification_log_details_ranking_null)));
-                            } else {
-                                sb.append("\n")
-                                        .append(bold(getString(
-                                                R.string.notification_log_details_ranking_none)));
-                            }
-                        }
-                    }
-                    if (n.contentIntent != null) {
-                        sb.append("\n")
-                                .append(bold(getString(
-                                        R.string.notification_log_details_content_intent)))
-                                .append(delim)
-                                .append(formatPendingIntent(n.contentIntent));
-                    }
-                    if (n.deleteIntent != null) {
-                        sb.append("\n")
-                                .append(bold(getString(
-                                        R.string.notification_log_details_delete_intent)))
-                                .append(delim)
-                                .append(formatPendingIntent(n.deleteIntent));
-                    }
-                    if (n.fullScreenIntent != null) {
-                        sb.append("\n")
-                                .append(bold(getString(
-                                        R.string.notification_log_details_full_screen_intent)))
-                                .append(delim)
-                                .append(formatPendingIntent(n.fullScreenIntent));
-                    }
-                    if (n.actions != null && n.actions.length > 0) {
-                        sb.append("\n")
-                                .append(bold(getString(R.string.notification_log_details_actions)));
-                        for (int ai=0; ai<n.actions.length; ai++) {
-                            final Notification.Action action = n.actions[ai];
-                            sb.append("\n  ").append(String.valueOf(ai)).append(' ')
-                                    .append(bold(getString(
-                                            R.string.notification_log_details_title)))
-                                    .append(delim)
-                                    .append(action.title);
-                            if (action.actionIntent != null) {
-                                sb.append("\n    ")
-                                        .append(bold(getString(
-                                                R.string.notification_log_details_content_intent)))
-                                        .append(delim)
-                                        .append(formatPendingIntent(action.actionIntent));
-                            }
-                            if (action.getRemoteInputs() != null) {
-                                sb.append("\n    ")
-                                        .append(bold(getString(
-                                                R.string.notification_log_details_remoteinput)))
-                                        .append(delim)
-                                        .append(String.valueOf(action.getRemoteInputs().length));
-                            }
-                        }
-                    }
-                    if (n.contentView != null) {
-                        sb.append("\n")
-                                .append(bold(getString(
-                                        R.string.notification_log_details_content_view)))
-                                .append(delim)
-                                .append(n.contentView.toString());
-                    }
-
-                    if (DUMP_EXTRAS) {
-                        if (n.extras != null && n.extras.size() > 0) {
-                            sb.append("\n")
-                                    .append(bold(getString(
-                                            R.string.notification_log_details_extras)));
-                            for (String extraKey : n.extras.keySet()) {
-                                String val = String.valueOf(n.extras.get(extraKey));
-                                if (val.length() > 100) val = val.substring(0, 100) + "...";
-                                sb.append("\n  ").append(extraKey).append(delim).append(val);
-                            }
-                        }
-                    }
-                    if (DUMP_PARCEL) {
-                        final Parcel p = Parcel.obtain();
-                        n.writeToParcel(p, 0);
-                        sb.append("\n")
-                                .append(bold(getString(R.string.notification_log_details_parcel)))
-                                .append(delim)
-                                .append(String.valueOf(p.dataPosition()))
-                                .append(' ')
-                                .append(bold(getString(R.string.notification_log_details_ashmem)))
-                                .append(delim)
-                                .append(String.valueOf(p.getBlobAshmemSize()))
-                                .append("\n");
-                    }
-
-                    info.extra = sb;
-
-                    logd("   [%d] %s: %s", info.timestamp, info.pkg, info.title);
-                    list.add(info);
+                            .append(String.valueOf(action.getRemoteInputs().length));
                 }
             }
+        }
+        if (n.contentView != null) {
+            sb.append("\n")
+                    .append(bold(getString(
+                            R.string.notification_log_details_content_view)))
+                    .append(delim)
+                    .append(n.contentView.toString());
+        }
 
-            return list;
-        } catch (RemoteException e) {
-            Log.e(TAG, "Cannot load Notifications: ", e);
+        if (DUMP_EXTRAS) {
+            if (n.extras != null && n.extras.size() > 0) {
+                sb.append("\n")
+                        .append(bold(getString(
+                                R.string.notification_log_details_extras)));
+                for (String extraKey : n.extras.keySet()) {
+                    String val = String.valueOf(n.extras.get(extraKey));
+                    if (val.length() > 100) val = val.substring(0, 100) + "...";
+                    sb.append("\n  ").append(extraKey).append(delim).append(val);
+                }
+            }
         }
-        return null;
+        if (DUMP_PARCEL) {
+            final Parcel p = Parcel.obtain();
+            n.writeToParcel(p, 0);
+            sb.append("\n")
+                    .append(bold(getString(R.string.notification_log_details_parcel)))
+                    .append(delim)
+                    .append(String.valueOf(p.dataPosition()))
+                    .append(' ')
+                    .append(bold(getString(R.string.notification_log_details_ashmem)))
+                    .append(delim)
+                    .append(String.valueOf(p.getBlobAshmemSize()))
+                    .append("\n");
+            p.recycle();
+        }
+
+        return sb;
     }
 
     private Resources getResourcesForUserPackage(String pkg, int userId) {
@@ -488,6 +686,23 @@ public class NotificationStation extends SettingsPreferenceFragment {
         return r;
     }
 
+    /**
+     * Returns the label, icon and resources of {@code pkg}, loading them the first time the
+     * package is seen for {@code userId}. Worker thread only.
+     */
+    private PackageEntry getPackageEntry(String pkg, int userId) {
+        final String key = pkg + "/" + userId;
+        PackageEntry entry = mPackageCache.get(key);
+        if (entry == null) {
+            entry = new PackageEntry();
+            entry.resources = getResourcesForUserPackage(pkg, userId);
+            entry.icon = loadPackageIconDrawable(pkg, userId);
+            entry.label = loadPackageName(pkg);
+            mPackageCache.put(key, entry);
+        }
+        return entry;
+    }
+
     private Drawable loadPackageIconDrawable(String pkg, int userId) {
         Drawable icon = null;
         try {
@@ -510,10 +725,10 @@ public class NotificationStation extends SettingsPreferenceFragment {
         return pkg;
     }
 
-    private Drawable loadIconDrawable(String pkg, int userId, int resId) {
-        Resources r = getResourcesForUserPackage(pkg, userId);
+    private Drawable loadIconDrawable(PackageEntry packageEntry, String pkg, int resId) {
+        Resources r = packageEntry.resources;
 
-        if (resId == 0) {
+        if (resId == 0 || r == null) {
             return null;
         }
 
@@ -529,39 +744,55 @@ public class NotificationStation extends SettingsPreferenceFragment {
     }
 
     private static class HistoricalNotificationPreference extends CopyablePreference {
-        private final HistoricalNotificationInfo mInfo;
+        private final Function<HistoricalNotificationInfo, CharSequence> mDetailsBuilder;
+        private HistoricalNotificationInfo mInfo;
+        private CharSequence mDetails;
+        private boolean mExpanded;
 
-        public HistoricalNotificationPreference(Context context, HistoricalNotificationInfo info) {
+        public HistoricalNotificationPreference(Context context, HistoricalNotificationInfo info,
+                Function<HistoricalNotificationInfo, CharSequence> detailsBuilder) {
             super(context);
             setLayoutResource(R.layout.notification_log_row);
             mInfo = info;
+            mDetailsBuilder = detailsBuilder;
+        }
+
+        public void setInfo(HistoricalNotificationInfo info) {
+            mInfo = info;
+            mDetails = null;
+            notifyChanged();
+        }
+
+        private CharSequence getDetails() {
+            if (mDetails == null) {
+                mDetails = mDetailsBuilder.apply(mInfo);
+            }
+            return mDetails;
         }
 
         @Override
         public void onBindViewHolder(PreferenceViewHolder row) {
             super.onBindViewHolder(row);
 
-            if (mInfo.icon != null) {
-                ((ImageView) row.findViewById(R.id.icon)).setImageDrawable(mInfo.icon);
-            }
-            if (mInfo.pkgicon != null) {
-                ((ImageView) row.findViewById(R.id.pkgicon)).setImageDrawable(mInfo.pkgicon);
-            }
+            ((ImageView) row.findViewById(R.id.icon)).setImageDrawable(mInfo.icon);
+            ((ImageView) row.findViewById(R.id.pkgicon)).setImageDrawable(mInfo.pkgicon);
 
             ((DateTimeView) row.findViewById(R.id.timestamp)).setTime(mInfo.timestamp);
             ((TextView) row.findViewById(R.id.title)).setText(mInfo.title);
             ((TextView) row.findViewById(R.id.pkgname)).setText(mInfo.pkgname);
 
             final TextView extra = (TextView) row.findViewById(R.id.extra);
-            extra.setText(mInfo.extra);
-            extra.setVisibility(View.GONE);
+            extra.setText(mExpanded ? getDetails() : null);
+            extra.setVisibility(mExpanded ? View.VISIBLE : View.GONE);
 
             row.itemView.setOnClickListener(
                     new View.OnClickListener() {
                         @Override
                         public void onClick(View view) {
-                            extra.setVisibility(extra.getVisibility() == View.VISIBLE
-                                    ? View.GONE : View.VISIBLE);
+                            mExpanded = !mExpanded;
+                            // The details are only built the first time the row is expanded.
+                            extra.setText(mExpanded ? getDetails() : null);
+                            extra.setVisibility(mExpanded ? View.VISIBLE : View.GONE);
                         }
                     });
 
@@ -573,9 +804,8 @@ public class NotificationStation extends SettingsPreferenceFragment {
             return new SpannableStringBuilder(mInfo.title)
                     .append(" [").append(new Date(mInfo.timestamp).toString())
                     .append("]\n").append(mInfo.pkgname)
-                    .append("\n").append(mInfo.extra);
+                    .append("\n").append(getDetails());
         }
-
         @Override
         public void performClick() {
 //            Intent intent = new Intent(android.provider.Settings.ACTION_APPLICATION_DETAILS_SETTINGS,
@@ -62,7 +62,7 @@ public class DevelopmentTiles {
         public void onClick() {
             SystemProperties.set(View.DEBUG_LAYOUT_PROPERTY,
                     getQsTile().getState() == Tile.STATE_INACTIVE ? "true" : "false");
-            new DevelopmentSettings.SystemPropPoker().execute(); // Settings app magic
+            DevelopmentSettings.SystemPropPoker.getInstance().poke(); // Settings app magic
             refresh();
         }
     }
@@ -88,7 +88,7 @@ public class DevelopmentTiles {
         public void onClick() {
             SystemProperties.set(ThreadedRenderer.PROFILE_PROPERTY,
                     getQsTile().getState() == Tile.STATE_INACTIVE ? "visual_bars" : "");
-            new DevelopmentSettings.SystemPropPoker().execute(); // Settings app magic
+            DevelopmentSettings.SystemPropPoker.getInstance().poke(); // Settings app magic
             refresh();
         }
     }
@@ -20,8 +20,10 @@ import android.accessibilityservice.AccessibilityService;
 import android.accessibilityservice.AccessibilityServiceInfo;
 import android.app.Activity;
 import android.app.LoaderManager;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.Loader;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
@@ -29,6 +31,7 @@ import android.content.pm.ServiceInfo;
 import android.database.ContentObserver;
 import android.hardware.input.InputManager;
 import android.net.Uri;
+import android.net.wifi.WifiManager;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
@@ -48,6 +51,7 @@ import com.android.internal.content.PackageMonitor;
 import com.android.settings.accessibility.AccessibilitySettings;
 import com.android.settings.inputmethod.InputMethodAndLanguageSettings;
 import com.android.settings.print.PrintSettingsFragment;
+import com.android.settings.wifi.SavedNetworksIndex;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -85,6 +89,13 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
     private final ContentObserver mUserDictionaryContentObserver =
             new UserDictionaryContentObserver(mHandler);
 
+    private final BroadcastReceiver mConfiguredNetworksReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            SavedNetworksIndex.onConfiguredNetworksChanged(mContext, intent);
+        }
+    };
+
     private Context mContext;
     private boolean mHasFeatureIme;
     private boolean mRegistered;
@@ -159,6 +170,10 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                 Context.INPUT_SERVICE);
         inputManager.registerInputDeviceListener(this, mHandler);
 
+        // Watch for saved Wi-Fi networks being added or removed.
+        mContext.registerReceiver(mConfiguredNetworksReceiver,
+                new IntentFilter(WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION));
+
         // Start tracking packages.
         register(activity, Looper.getMainLooper(), UserHandle.CURRENT, false);
     }
@@ -173,6 +188,8 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                 Context.INPUT_SERVICE);
         inputManager.unregisterInputDeviceListener(this);
 
+        mContext.unregisterReceiver(mConfiguredNetworksReceiver);
+
         if (mHasFeatureIme) {
             mContext.getContentResolver().unregisterContentObserver(
                     mUserDictionaryContentObserver);
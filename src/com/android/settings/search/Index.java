@@ -518,6 +518,20 @@ public class Index {
         });
     }
 
+    /**
+     * Deletes {@code data} from the Index. A {@link SearchIndexableRaw} with both a class name
+     * and a title only deletes that one row, not everything indexed for the class.
+     */
+    public void deleteFromSearchIndexableData(SearchIndexableData data) {
+        AsyncTask.execute(new Runnable() {
+            @Override
+            public void run() {
+                deleteIndexableData(data);
+                updateInternal();
+            }
+        });
+    }
+
     private SQLiteDatabase getReadableDatabase() {
         return IndexDatabaseHelper.getInstance(mContext).getReadableDatabase();
     }
@@ -1266,7 +1280,13 @@ public class Index {
                     continue;
                 }
                 if (!TextUtils.isEmpty(data.className)) {
-                    delete(database, IndexColumns.CLASS_NAME, data.className);
+                    if (data instanceof SearchIndexableRaw
+                            && !TextUtils.isEmpty(((SearchIndexableRaw) data).title)) {
+                        delete(database, IndexColumns.CLASS_NAME, data.className,
+                                IndexColumns.DATA_TITLE, ((SearchIndexableRaw) data).title);
+                    } else {
+                        delete(database, IndexColumns.CLASS_NAME, data.className);
+                    }
                 } else  {
                     if (data instanceof SearchIndexableRaw) {
                         final SearchIndexableRaw raw = (SearchIndexableRaw) data;
@@ -1289,6 +1309,14 @@ public class Index {
 
             return database.delete(Tables.TABLE_PREFS_INDEX, whereClause, whereArgs);
         }
+
+        private int delete(SQLiteDatabase database, String columName, String value,
+                String columName2, String value2) {
+            final String whereClause = columName + "=? AND " + columName2 + "=?";
+            final String[] whereArgs = new String[] { value, value2 };
+
+            return database.delete(Tables.TABLE_PREFS_INDEX, whereClause, whereArgs);
+        }
     }
 
     /**
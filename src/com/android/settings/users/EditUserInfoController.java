@@ -130,6 +130,9 @@ public class EditUserInfoController {
             drawable = CircleFramedDrawable.getInstance(activity, mSavedPhoto);
         } else {
             drawable = currentUserIcon;
+            if (drawable == null) {
+                drawable = UserAvatarCache.getInstance(activity).getAvatar(info.id, null);
+            }
             if (drawable == null) {
                 drawable = Utils.getUserIcon(activity, mUserManager, info);
             }
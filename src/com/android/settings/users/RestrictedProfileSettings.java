@@ -83,11 +83,26 @@ public class RestrictedProfileSettings extends AppRestrictionsFragment
             finishFragment();
         } else {
             ((TextView) mHeaderView.findViewById(android.R.id.title)).setText(info.name);
-            ((ImageView) mHeaderView.findViewById(android.R.id.icon)).setImageDrawable(
-                    com.android.settingslib.Utils.getUserIcon(getActivity(), mUserManager, info));
+            final Drawable avatar = UserAvatarCache.getInstance(getActivity()).getAvatar(info.id,
+                    mAvatarCallback);
+            if (avatar != null) {
+                mUserIconView.setImageDrawable(avatar);
+            } else if (mUserIconView.getDrawable() == null) {
+                mUserIconView.setImageDrawable(
+                        UserAvatarCache.getInstance(getActivity()).getDefaultAvatar());
+            }
         }
     }
 
+    private final UserAvatarCache.Callback mAvatarCallback = new UserAvatarCache.Callback() {
+        @Override
+        public void onAvatarLoaded(int userId, Drawable avatar) {
+            if (getActivity() != null) {
+                mUserIconView.setImageDrawable(avatar);
+            }
+        }
+    };
+
     @Override
     public void startActivityForResult(Intent intent, int requestCode) {
         mEditUserInfoController.startingActivityForResult();
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.users;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.android.settings.Utils;
+import com.android.settingslib.drawable.CircleFramedDrawable;
+
+import java.util.ArrayList;
+
+/**
+ * Process-wide cache of user avatars, already framed in a circle and rendered at the size they
+ * are shown at, so binding a user row is a matter of wrapping a bitmap.
+ *
+ * Avatars are loaded in the background. Each user's entry is versioned: it is dropped when
+ * {@link Intent#ACTION_USER_INFO_CHANGED} arrives for that user, and a load that was running at
+ * that time starts over rather than caching the old photo. All methods must be called on the
+ * main thread.
+ */
+public final class UserAvatarCache {
+
+    public interface Callback {
+        /** Called on the main thread once the avatar of {@code userId} is loaded. */
+        void onAvatarLoaded(int userId, Drawable avatar);
+    }
+
+    private static volatile UserAvatarCache sInstance;
+
+    private final Context mContext;
+    private final UserManager mUserManager;
+
+    private final SparseArray<Bitmap> mAvatars = new SparseArray<>();
+    private final SparseIntArray mVersions = new SparseIntArray();
+    // Callbacks waiting for each user whose avatar is being loaded.
+    private final SparseArray<ArrayList<Callback>> mPending = new SparseArray<>();
+    private Bitmap mDefaultAvatar;
+    // Bytes held by the bitmaps above, kept up to date for other threads such as dumpsys.
+    private volatile int mCacheBytes;
+
+    public static UserAvatarCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new UserAvatarCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private UserAvatarCache(Context context) {
+        mContext = context;
+        mUserManager = context.getSystemService(UserManager.class);
+        context.registerReceiverAsUser(mUserInfoReceiver, UserHandle.ALL,
+                new IntentFilter(Intent.ACTION_USER_INFO_CHANGED), null, null);
+    }
+
+    /**
+     * Returns the avatar of {@code userId} if it is cached. Otherwise returns null and loads it,
+     * calling {@code callback} once it's loaded.
+     */
+    public Drawable getAvatar(int userId, Callback callback) {
+        final Bitmap avatar = mAvatars.get(userId);
+        if (avatar != null) {
+            return new BitmapDrawable(mContext.getResources(), avatar);
+        }
+        ArrayList<Callback> callbacks = mPending.get(userId);
+        if (callbacks == null) {
+            callbacks = new ArrayList<>();
+            mPending.put(userId, callbacks);
+            load(userId);
+        }
+        if (callback != null && !callbacks.contains(callback)) {
+            callbacks.add(callback);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the generic avatar, shown for users without a photo and while one is loading.
+     */
+    public Drawable getDefaultAvatar() {
+        if (mDefaultAvatar == null) {
+            mDefaultAvatar = frame(Utils.getDefaultUserIconAsBitmap(UserHandle.USER_NULL));
+            mCacheBytes += mDefaultAvatar.getByteCount();
+        }
+        return new BitmapDrawable(mContext.getResources(), mDefaultAvatar);
+    }
+
+    /**
+     * Drops the avatar of {@code userId}, such as after its photo changed.
+     */
+    public void invalidate(int userId) {
+        mVersions.put(userId, mVersions.get(userId) + 1);
+        final Bitmap avatar = mAvatars.get(userId);
+        if (avatar != null) {
+            mAvatars.remove(userId);
+            mCacheBytes -= avatar.getByteCount();
+        }
+    }
+
+    /**
+     * Returns the number of bytes held by the cached bitmaps, or 0 if the cache wasn't created
+     * in this process. Unlike the other methods, may be called on any thread.
+     */
+    public static int getCacheBytes() {
+        final UserAvatarCache instance = sInstance;
+        return instance != null ? instance.mCacheBytes : 0;
+    }
+
+    private void load(final int userId) {
+        final int version = mVersions.get(userId);
+        new AsyncTask<Void, Void, Bitmap>() {
+            @Override
+            protected Bitmap doInBackground(Void... params) {
+                Bitmap photo = mUserManager.getUserIcon(userId);
+                if (photo == null) {
+                    photo = Utils.getDefaultUserIconAsBitmap(userId);
+                }
+                return frame(photo);
+            }
+
+            @Override
+            protected void onPostExecute(Bitmap avatar) {
+                if (version != mVersions.get(userId)) {
+                    // The photo changed while it was loaded.
+                    load(userId);
+                    return;
+                }
+                mAvatars.put(userId, avatar);
+                mCacheBytes += avatar.getByteCount();
+                final ArrayList<Callback> callbacks = mPending.get(userId);
+                mPending.remove(userId);
+                final int N = callbacks.size();
+                for (int i = 0; i < N; i++) {
+                    callbacks.get(i).onAvatarLoaded(userId,
+                            new BitmapDrawable(mContext.getResources(), avatar));
+                }
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Renders {@code photo} framed in a circle, at the size avatars are shown at. The full-size
+     * photo can be let go of afterwards.
+     */
+    private Bitmap frame(Bitmap photo) {
+        final Drawable framed = CircleFramedDrawable.getInstance(mContext, photo);
+        final int size = framed.getIntrinsicWidth();
+        final Bitmap avatar = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        framed.setBounds(0, 0, size, size);
+        framed.draw(new Canvas(avatar));
+        return avatar;
+    }
+
+    private final BroadcastReceiver mUserInfoReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final int userId = intent.getIntExtra(Intent.EXTRA_USER_HANDLE, UserHandle.USER_NULL);
+            if (userId != UserHandle.USER_NULL) {
+                invalidate(userId);
+            }
+        }
+    };
+}
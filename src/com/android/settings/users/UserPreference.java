@@ -148,4 +148,25 @@ public class UserPreference extends RestrictedPreference {
     public int getUserId() {
         return mUserId;
     }
+
+    /**
+     * Shows the avatar of the user from {@link UserAvatarCache}. While it loads, keeps the
+     * current icon, or shows the default avatar if there is none.
+     */
+    void bindAvatar() {
+        final UserAvatarCache cache = UserAvatarCache.getInstance(getContext());
+        final Drawable avatar = cache.getAvatar(mUserId, mAvatarCallback);
+        if (avatar != null) {
+            setIcon(avatar);
+        } else if (getIcon() == null) {
+            setIcon(cache.getDefaultAvatar());
+        }
+    }
+
+    private final UserAvatarCache.Callback mAvatarCallback = new UserAvatarCache.Callback() {
+        @Override
+        public void onAvatarLoaded(int userId, Drawable avatar) {
+            setIcon(avatar);
+        }
+    };
 }
@@ -30,7 +30,6 @@ import android.content.SharedPreferences;
 import android.content.pm.ResolveInfo;
 import android.content.pm.UserInfo;
 import android.content.res.Resources;
-import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
 import android.os.Bundle;
@@ -46,7 +45,6 @@ import android.support.v7.preference.PreferenceGroup;
 import android.support.v7.preference.PreferenceScreen;
 import android.provider.Settings.Global;
 import android.util.Log;
-import android.util.SparseArray;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
@@ -69,7 +67,6 @@ import com.android.settings.search.Indexable;
 import com.android.settings.search.SearchIndexableRaw;
 import com.android.settingslib.RestrictedLockUtils;
 import com.android.settingslib.RestrictedSwitchPreference;
-import com.android.settingslib.drawable.CircleFramedDrawable;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -146,14 +143,11 @@ public class UserSettings extends SettingsPreferenceFragment
     private boolean mShouldUpdateUserList = true;
     private final Object mUserLock = new Object();
     private UserManager mUserManager;
-    private SparseArray<Bitmap> mUserIcons = new SparseArray<Bitmap>();
+    private UserAvatarCache mAvatarCache;
 
     private EditUserInfoController mEditUserInfoController =
             new EditUserInfoController();
 
-    // A place to cache the generated default avatar
-    private Drawable mDefaultIconDrawable;
-
     private Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
@@ -179,7 +173,7 @@ public class UserSettings extends SettingsPreferenceFragment
             } else if (intent.getAction().equals(Intent.ACTION_USER_INFO_CHANGED)) {
                 int userHandle = intent.getIntExtra(Intent.EXTRA_USER_HANDLE, -1);
                 if (userHandle != -1) {
-                    mUserIcons.remove(userHandle);
+                    mAvatarCache.invalidate(userHandle);
                 }
             }
             mHandler.sendEmptyMessage(MESSAGE_UPDATE_LIST);
@@ -207,6 +201,7 @@ public class UserSettings extends SettingsPreferenceFragment
         final Context context = getActivity();
         mUserCaps = UserCapabilities.create(context);
         mUserManager = (UserManager) context.getSystemService(Context.USER_SERVICE);
+        mAvatarCache = UserAvatarCache.getInstance(context);
         if (!mUserCaps.mEnabled) {
             return;
         }
@@ -323,7 +318,7 @@ public class UserSettings extends SettingsPreferenceFragment
     private void loadProfile() {
         if (mUserCaps.mIsGuest) {
             // No need to load profile information
-            mMePreference.setIcon(getEncircledDefaultIcon());
+            mMePreference.setIcon(mAvatarCache.getDefaultAvatar());
             mMePreference.setTitle(R.string.user_exit_guest_title);
             return;
         }
@@ -349,12 +344,7 @@ public class UserSettings extends SettingsPreferenceFragment
     private void finishLoadProfile(String profileName) {
         if (getActivity() == null) return;
         mMePreference.setTitle(getString(R.string.user_you, profileName));
-        int myUserId = UserHandle.myUserId();
-        Bitmap b = mUserManager.getUserIcon(myUserId);
-        if (b != null) {
-            mMePreference.setIcon(encircle(b));
-            mUserIcons.put(myUserId, b);
-        }
+        mMePreference.bindAvatar();
     }
 
     private boolean hasLockscreenSecurity() {
@@ -718,7 +708,6 @@ public class UserSettings extends SettingsPreferenceFragment
         final Context context = getActivity();
 
         final boolean voiceCapable = Utils.isVoiceCapable(context);
-        final ArrayList<Integer> missingIcons = new ArrayList<>();
         final ArrayList<UserPreference> userPreferences = new ArrayList<>();
         userPreferences.add(mMePreference);
 
@@ -773,16 +762,11 @@ public class UserSettings extends SettingsPreferenceFragment
                 pref.setSummary(R.string.user_summary_restricted_profile);
             }
             if (user.iconPath != null) {
-                if (mUserIcons.get(user.id) == null) {
-                    // Icon not loaded yet, print a placeholder
-                    missingIcons.add(user.id);
-                    pref.setIcon(getEncircledDefaultIcon());
-                } else {
-                    setPhotoId(pref, user);
-                }
+                // Shows a placeholder until the icon is loaded
+                pref.bindAvatar();
             } else {
                 // Icon not available yet, print a placeholder
-                pref.setIcon(getEncircledDefaultIcon());
+                pref.setIcon(mAvatarCache.getDefaultAvatar());
             }
         }
 
@@ -792,7 +776,7 @@ public class UserSettings extends SettingsPreferenceFragment
                     UserPreference.USERID_UNKNOWN, null, null);
             pref.setEnabled(false);
             pref.setTitle(mAddingUserName);
-            pref.setIcon(getEncircledDefaultIcon());
+            pref.setIcon(mAvatarCache.getDefaultAvatar());
             userPreferences.add(pref);
         }
 
@@ -805,7 +789,7 @@ public class UserSettings extends SettingsPreferenceFragment
                     mUserCaps.mIsAdmin && voiceCapable? this : null /* settings icon handler */,
                     null /* delete icon handler */);
             pref.setTitle(R.string.user_guest);
-            pref.setIcon(getEncircledDefaultIcon());
+            pref.setIcon(mAvatarCache.getDefaultAvatar());
             userPreferences.add(pref);
             pref.setDisabledByAdmin(
                     mUserCaps.mDisallowAddUser ? mUserCaps.mEnforcedAdmin : null);
@@ -817,11 +801,6 @@ public class UserSettings extends SettingsPreferenceFragment
 
         getActivity().invalidateOptionsMenu();
 
-        // Load the icons
-        if (missingIcons.size() > 0) {
-            loadIconsAsync(missingIcons);
-        }
-
         PreferenceScreen preferenceScreen = getPreferenceScreen();
         preferenceScreen.removeAll();
 
@@ -891,41 +870,6 @@ public class UserSettings extends SettingsPreferenceFragment
         return maxUsersAndGuest - managedProfiles;
     }
 
-    private void loadIconsAsync(List<Integer> missingIcons) {
-        new AsyncTask<List<Integer>, Void, Void>() {
-            @Override
-            protected void onPostExecute(Void result) {
-                updateUserList();
-            }
-
-            @Override
-            protected Void doInBackground(List<Integer>... values) {
-                for (int userId : values[0]) {
-                    Bitmap bitmap = mUserManager.getUserIcon(userId);
-                    if (bitmap == null) {
-                        bitmap = Utils.getDefaultUserIconAsBitmap(userId);
-                    }
-                    mUserIcons.append(userId, bitmap);
-                }
-                return null;
-            }
-        }.execute(missingIcons);
-    }
-
-    private Drawable getEncircledDefaultIcon() {
-        if (mDefaultIconDrawable == null) {
-            mDefaultIconDrawable = encircle(Utils.getDefaultUserIconAsBitmap(UserHandle.USER_NULL));
-        }
-        return mDefaultIconDrawable;
-    }
-
-    private void setPhotoId(Preference pref, UserInfo user) {
-        Bitmap bitmap = mUserIcons.get(user.id);
-        if (bitmap != null) {
-            pref.setIcon(encircle(bitmap));
-        }
-    }
-
     @Override
     public boolean onPreferenceClick(Preference pref) {
         if (pref == mMePreference) {
@@ -967,11 +911,6 @@ public class UserSettings extends SettingsPreferenceFragment
         return (user.flags & UserInfo.FLAG_INITIALIZED) != 0;
     }
 
-    private Drawable encircle(Bitmap icon) {
-        Drawable circled = CircleFramedDrawable.getInstance(getActivity(), icon);
-        return circled;
-    }
-
     @Override
     public void onClick(View v) {
         if (v.getTag() instanceof UserPreference) {
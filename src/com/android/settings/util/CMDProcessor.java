@@ -7,6 +7,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
 
 // convenience import for quick referencing of this method
 
@@ -23,18 +24,30 @@ public final class CMDProcessor {
         return new ChildProcess(cmdarray, childStdin);
     }
 
+    /* Run a system command, streaming its output and killing it after timeoutMillis if > 0 */
+    public static ChildProcess startSysCmd(String[] cmdarray, String childStdin,
+            ChildProcess.LineListener listener, long timeoutMillis) {
+        return new ChildProcess(cmdarray, childStdin, listener, timeoutMillis);
+    }
+
     public static CommandResult runSysCmd(String[] cmdarray, String childStdin) {
         ChildProcess proc = startSysCmd(cmdarray, childStdin);
         proc.waitFinished();
         return proc.getResult();
     }
 
+    public static CompletableFuture<CommandResult> runSysCmdAsync(String[] cmdarray,
+            String childStdin) {
+        return startSysCmd(cmdarray, childStdin).getFuture();
+    }
+
     public static ChildProcess startShellCommand(String cmd) {
-        String[] cmdarray = new String[3];
-        cmdarray[0] = "sh";
-        cmdarray[1] = "-c";
-        cmdarray[2] = cmd;
-        return startSysCmd(cmdarray, null);
+        return startSysCmd(shellArgs("sh", cmd), null);
+    }
+
+    public static ChildProcess startShellCommand(String cmd, ChildProcess.LineListener listener,
+            long timeoutMillis) {
+        return startSysCmd(shellArgs("sh", cmd), null, listener, timeoutMillis);
     }
 
     public static CommandResult runShellCommand(String cmd) {
@@ -43,18 +56,31 @@ public final class CMDProcessor {
         return proc.getResult();
     }
 
+    public static CompletableFuture<CommandResult> runShellCommandAsync(String cmd) {
+        return startShellCommand(cmd).getFuture();
+    }
+
     public static ChildProcess startSuCommand(String cmd) {
-        String[] cmdarray = new String[3];
-        cmdarray[0] = "su";
-        cmdarray[1] = "-c";
-        cmdarray[2] = cmd;
-        return startSysCmd(cmdarray, null);
+        return startSysCmd(shellArgs("su", cmd), null);
     }
 
+    public static ChildProcess startSuCommand(String cmd, ChildProcess.LineListener listener,
+            long timeoutMillis) {
+        return startSysCmd(shellArgs("su", cmd), null, listener, timeoutMillis);
+    }
+
+    /* Run a command in the shared root shell, see RootShell */
     public static CommandResult runSuCommand(String cmd) {
-        ChildProcess proc = startSuCommand(cmd);
-        proc.waitFinished();
-        return proc.getResult();
+        return RootShell.getInstance().run(cmd);
+    }
+
+    /* Like runSuCommand, but fails the command if it takes longer than timeoutMillis */
+    public static CommandResult runSuCommand(String cmd, long timeoutMillis) {
+        return RootShell.getInstance().run(cmd, timeoutMillis);
+    }
+
+    public static CompletableFuture<CommandResult> runSuCommandAsync(String cmd) {
+        return RootShell.getInstance().runAsync(cmd);
     }
 
     public static boolean canSU() {
@@ -66,5 +92,13 @@ public final class CMDProcessor {
         Log.d(TAG, "canSU() su[" + r.getExitValue() + "]: " + out);
         return r.success();
     }
+
+    private static String[] shellArgs(String shell, String cmd) {
+        String[] cmdarray = new String[3];
+        cmdarray[0] = shell;
+        cmdarray[1] = "-c";
+        cmdarray[2] = cmd;
+        return cmdarray;
+    }
 }
 
@@ -1,150 +1,316 @@
 package com.android.settings.util;
 
-import android.os.Environment;
 import android.util.Log;
 
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.lang.System.nanoTime;
 
+/**
+ * A child process whose stdout and stderr are captured, and optionally streamed line by line.
+ *
+ * The pipes are serviced by a pool shared by all child processes, so once it is warm running
+ * a command doesn't start any threads. Output is decoded as UTF-8 across read boundaries.
+ * Use {@link #getFuture} to be told about the result, or {@link #waitFinished} to block.
+ */
 public class ChildProcess {
-    private String TAG = getClass().getSimpleName();
+    private static final String TAG = "ChildProcess";
+
+    private static final int PIPE_SIZE = 8192;
+    private static final int KEEP_ALIVE_SECONDS = 30;
+    // How long output is still collected after a timed out child was killed.
+    private static final long KILL_GRACE_MILLIS = 200;
 
-    private static final int PIPE_SIZE = 1024;
+    /**
+     * Receives the output of a child process as it arrives, on a pool thread. Lines don't
+     * include the line terminator; a last line without one is delivered at the end.
+     */
+    public interface LineListener {
+        void onLine(String line, boolean stderr);
+    }
+
+    // A pipe can only be drained by blocking on it until the child closes it, and a child
+    // blocked on a full pipe whose reader is still queued would never finish. So instead of
+    // being bounded, the pool keeps idle threads around for the next command.
+    private static final ExecutorService sPipeExecutor = new ThreadPoolExecutor(0,
+            Integer.MAX_VALUE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), newThreadFactory("ChildProcess-pipe"));
+    private static final ScheduledThreadPoolExecutor sTimeoutExecutor;
 
-    private class ChildReader extends Thread {
-        InputStream mStream;
-        StringBuffer mBuffer;
-        ChildReader(InputStream is, StringBuffer buf) {
-            mStream = is;
-            mBuffer = buf;
+    static {
+        sTimeoutExecutor = new ScheduledThreadPoolExecutor(1,
+                newThreadFactory("ChildProcess-timeout"));
+        sTimeoutExecutor.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        sTimeoutExecutor.allowCoreThreadTimeOut(true);
+        sTimeoutExecutor.setRemoveOnCancelPolicy(true);
+    }
+
+    // Pool threads keep their buffers from one command to the next.
+    private static final ThreadLocal<ByteBuffer> sByteBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(PIPE_SIZE);
         }
-        public void run() {
-            byte[] buf = new byte[PIPE_SIZE];
-            try {
-                int len;
-                while ((len = mStream.read(buf)) != -1) {
-                    String s = new String(buf, 0, len);
-                    mBuffer.append(s);
-                }
-            }
-            catch (IOException e) {
-                // Ignore
+    };
+    private static final ThreadLocal<CharBuffer> sCharBuffer = new ThreadLocal<CharBuffer>() {
+        @Override
+        protected CharBuffer initialValue() {
+            return CharBuffer.allocate(PIPE_SIZE);
+        }
+    };
+
+    private final long mStartTime;
+    private final CompletableFuture<CommandResult> mFuture = new CompletableFuture<>();
+    private final StringBuilder mChildStdout = new StringBuilder();
+    private final StringBuilder mChildStderr = new StringBuilder();
+    private Process mChildProc;
+    private volatile boolean mTimedOut;
+
+    public ChildProcess(String[] cmdarray, String childStdin) {
+        this(cmdarray, childStdin, null, 0);
+    }
+
+    /**
+     * @param listener receives the output line by line as well, may be null.
+     * @param timeoutMillis the child is killed if it runs for longer, 0 for no limit.
+     */
+    public ChildProcess(String[] cmdarray, String childStdin, LineListener listener,
+            long timeoutMillis) {
+        mStartTime = nanoTime();
+        final Process proc;
+        try {
+            proc = Runtime.getRuntime().exec(cmdarray);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to start " + cmdarray[0], e);
+            mFuture.complete(new CommandResult(mStartTime, -1, "", String.valueOf(e.getMessage()),
+                    nanoTime()));
+            return;
+        }
+        mChildProc = proc;
+
+        final CompletableFuture<Void> stdin = childStdin != null
+                ? CompletableFuture.runAsync(() -> write(proc.getOutputStream(), childStdin),
+                        sPipeExecutor)
+                : null;
+        final CompletableFuture<String> stdout = CompletableFuture.supplyAsync(
+                () -> drain(proc.getInputStream(), mChildStdout, listener, false), sPipeExecutor);
+        final CompletableFuture<String> stderr = CompletableFuture.supplyAsync(
+                () -> drain(proc.getErrorStream(), mChildStderr, listener, true), sPipeExecutor);
+        final ScheduledFuture<?> timeout = timeoutMillis > 0
+                ? sTimeoutExecutor.schedule(this::onTimeout, timeoutMillis, TimeUnit.MILLISECONDS)
+                : null;
+
+        // Both pipes are closed once the child is gone, so waiting for it doesn't take a
+        // thread of its own.
+        stdout.thenCombine(stderr, (out, err) -> {
+            final int exitValue = waitFor(proc);
+            if (timeout != null) {
+                timeout.cancel(false);
             }
-            try {
-                mStream.close();
+            if (stdin != null) {
+                stdin.join();
             }
-            catch (IOException e) {
-                // Ignore
+            return new CommandResult(mStartTime, exitValue, out, err, nanoTime());
+        }).whenComplete((result, error) -> {
+            // Does nothing if we already gave up on a killed child.
+            if (error != null) {
+                mFuture.completeExceptionally(error);
+            } else {
+                mFuture.complete(result);
             }
-        }
+        });
+    }
+
+    /**
+     * Completes with the result once the child has exited and its output has been read.
+     */
+    public CompletableFuture<CommandResult> getFuture() {
+        return mFuture;
+    }
+
+    public boolean isFinished() {
+        return mFuture.isDone();
     }
-    private class ChildWriter extends Thread {
-        OutputStream mStream;
-        String mBuffer;
-        ChildWriter(OutputStream os, String buf) {
-            mStream = os;
-            mBuffer = buf;
+
+    /**
+     * Returns true if the child was killed for running longer than its timeout.
+     */
+    public boolean isTimedOut() {
+        return mTimedOut;
+    }
+
+    /**
+     * Kills the child; the result holds whatever it printed until then.
+     */
+    public void destroy() {
+        if (mChildProc == null) {
+            return;
         }
-        public void run() {
-            int off = 0;
-            byte[] buf = mBuffer.getBytes();
-            try {
-                while (off < buf.length) {
-                    int len = Math.min(PIPE_SIZE, buf.length - off);
-                    mStream.write(buf, off, len);
-                    off += len;
-                }
+        kill(mChildProc);
+        // Something the child started may keep the pipes open, don't wait for it forever.
+        sTimeoutExecutor.schedule(() -> {
+            final String out;
+            final String err;
+            synchronized (mChildStdout) {
+                out = mChildStdout.toString();
             }
-            catch (IOException e) {
-                // Ignore
+            synchronized (mChildStderr) {
+                err = mChildStderr.toString();
             }
+            mFuture.complete(new CommandResult(mStartTime, -1, out, err, nanoTime()));
+        }, KILL_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public int waitFinished() {
+        return mFuture.join().getExitValue();
+    }
+
+    public CommandResult getResult() {
+        if (!isFinished()) {
+            throw new IllegalThreadStateException("Child process running");
+        }
+        return mFuture.join();
+    }
+
+    private void onTimeout() {
+        mTimedOut = true;
+        Log.w(TAG, "Child process timed out, killing it");
+        destroy();
+    }
+
+    private static void kill(Process proc) {
+        proc.destroy();
+        closeQuietly(proc.getInputStream());
+        closeQuietly(proc.getErrorStream());
+    }
+
+    private static int waitFor(Process proc) {
+        while (true) {
             try {
-                mStream.close();
-            }
-            catch (IOException e) {
+                return proc.waitFor();
+            } catch (InterruptedException e) {
                 // Ignore
             }
         }
     }
 
-    private long mStartTime;
-    private Process mChildProc;
-    private ChildWriter mChildStdinWriter;
-    private ChildReader mChildStdoutReader;
-    private ChildReader mChildStderrReader;
-    private StringBuffer mChildStdout;
-    private StringBuffer mChildStderr;
-    private int mExitValue;
-    private long mEndTime;
+    private static void write(OutputStream stream, String input) {
+        try {
+            stream.write(input.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            // The child didn't read all of it.
+        } finally {
+            closeQuietly(stream);
+        }
+    }
 
-    public ChildProcess(String[] cmdarray, String childStdin) {
-        mStartTime = nanoTime();
+    private static String drain(InputStream stream, StringBuilder out, LineListener listener,
+            boolean stderr) {
+        final ByteBuffer bytes = sByteBuffer.get();
+        final CharBuffer chars = sCharBuffer.get();
+        bytes.clear();
+        chars.clear();
+        final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        int lineStart = 0;
+        final ReadableByteChannel channel = stream instanceof FileInputStream
+                ? ((FileInputStream) stream).getChannel() : Channels.newChannel(stream);
         try {
-            mChildProc = Runtime.getRuntime().exec(cmdarray);
-            if (childStdin != null) {
-                mChildStdinWriter = new ChildWriter(mChildProc.getOutputStream(), childStdin);
-                mChildStdinWriter.start();
+            while (channel.read(bytes) != -1) {
+                bytes.flip();
+                // Bytes of a character split across reads stay in the buffer for the next one.
+                decode(decoder, bytes, chars, out, false);
+                bytes.compact();
+                if (listener != null) {
+                    lineStart = emitLines(out, lineStart, listener, stderr);
+                }
+            }
+        } catch (IOException e) {
+            // The child went away or was killed, keep what it printed.
+        } finally {
+            closeQuietly(channel);
+        }
+        bytes.flip();
+        decode(decoder, bytes, chars, out, true);
+        if (listener != null) {
+            lineStart = emitLines(out, lineStart, listener, stderr);
+            if (lineStart < out.length()) {
+                listener.onLine(out.substring(lineStart), stderr);
             }
-            mChildStdout = new StringBuffer();
-            mChildStdoutReader = new ChildReader(mChildProc.getInputStream(), mChildStdout);
-            mChildStdoutReader.start();
-            mChildStderr = new StringBuffer();
-            mChildStderrReader = new ChildReader(mChildProc.getErrorStream(), mChildStderr);
-            mChildStderrReader.start();
         }
-        catch (IOException e) {
-            // XXX: log
+        synchronized (out) {
+            return out.toString();
         }
     }
 
-    public boolean isFinished() {
-        boolean finished = true;
-        if (mChildProc != null) {
-            try {
-                mChildProc.exitValue();
-            }
-            catch (IllegalStateException e) {
-                finished = false;
-            }
+    private static void decode(CharsetDecoder decoder, ByteBuffer bytes, CharBuffer chars,
+            StringBuilder out, boolean endOfInput) {
+        CoderResult result;
+        do {
+            result = decoder.decode(bytes, chars, endOfInput);
+            append(out, chars);
+        } while (result.isOverflow());
+        if (endOfInput) {
+            do {
+                result = decoder.flush(chars);
+                append(out, chars);
+            } while (result.isOverflow());
         }
-        return finished;
     }
 
-    public int waitFinished() {
-        while (mChildProc != null) {
-            try {
-                mExitValue = mChildProc.waitFor();
-                mEndTime = nanoTime();
-                mChildProc = null;
-                mChildStderrReader.join();
-                mChildStderrReader = null;
-                mChildStdoutReader.join();
-                mChildStdoutReader = null;
-                if (mChildStdinWriter != null) {
-                    mChildStdinWriter.join();
-                    mChildStdinWriter = null;
-                }
-            }
-            catch (InterruptedException e) {
-                // Ignore
-            }
+    private static void append(StringBuilder out, CharBuffer chars) {
+        chars.flip();
+        synchronized (out) {
+            out.append(chars);
         }
-        return mExitValue;
+        chars.clear();
     }
 
-    public CommandResult getResult() {
-        if (!isFinished()) {
-            throw new IllegalThreadStateException("Child process running");
+    private static int emitLines(StringBuilder out, int lineStart, LineListener listener,
+            boolean stderr) {
+        int newline;
+        while ((newline = out.indexOf("\n", lineStart)) >= 0) {
+            listener.onLine(out.substring(lineStart, newline), stderr);
+            lineStart = newline + 1;
+        }
+        return lineStart;
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            // Ignore
         }
-        return new CommandResult(
-                mStartTime,
-                mExitValue,
-                mChildStdout.toString(),
-                mChildStderr.toString(),
-                mEndTime);
     }
-}
 
+    private static ThreadFactory newThreadFactory(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
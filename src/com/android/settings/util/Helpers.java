@@ -10,6 +10,7 @@ import android.net.NetworkInfo;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.SystemProperties;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -149,28 +150,41 @@ public class Helpers {
         return CMDProcessor.runSuCommand(fallbackMountCmd).success();
     }
 
+    /**
+     * Reads the first line of a file, through {@link KernelFileCache} so values read in the
+     * last moment aren't read again.
+     */
     public static String readOneLine(String fname) {
-        BufferedReader br = null;
-        String line = null;
         try {
-            br = new BufferedReader(new FileReader(fname), 1024);
-            line = br.readLine();
+            return KernelFileCache.getInstance().readOneLine(fname);
         } catch (FileNotFoundException ignored) {
             Log.d(TAG, "File was not found! trying via shell...");
-            return readFileViaShell(fname, true);
+            return readOneLineViaShell(fname);
         } catch (IOException e) {
             Log.d(TAG, "IOException while reading system file", e);
-            return readFileViaShell(fname, true);
-        } finally {
-            if (br != null) {
-                try {
-                    br.close();
-                } catch (IOException ignored) {
-                    // failed to close reader
-                }
-            }
+            return readOneLineViaShell(fname);
+        }
+    }
+
+    /**
+     * Reads a file {@link #readOneLine} can't read directly with su, caching what was read so
+     * the next read in the same moment doesn't go through the root shell again.
+     */
+    private static String readOneLineViaShell(String fname) {
+        final CommandResult result = CMDProcessor.runSuCommand("cat " + fname);
+        final String value = result.getStdout();
+        if (result.success()) {
+            KernelFileCache.getInstance().put(fname, value);
         }
-        return line;
+        return value;
+    }
+
+    /**
+     * Reads the first line of each file in one go, for screens showing many of them. Files
+     * that can't be read directly are left out, unless read with su a moment ago.
+     */
+    public static ArrayMap<String, String> readOneLines(String... fnames) {
+        return KernelFileCache.getInstance().readOneLines(fnames);
     }
 
     public static String readFileViaShell(String filePath, boolean useSu) {
@@ -196,6 +210,7 @@ public class Helpers {
                     // failed to close writer
                 }
             }
+            KernelFileCache.getInstance().invalidate(filename);
         }
         return true;
     }
@@ -303,7 +318,7 @@ public class Helpers {
     }
 
     public static void restartSystemUI() {
-        CMDProcessor.startSuCommand("pkill -f com.android.systemui");
+        CMDProcessor.runSuCommandAsync("pkill -f com.android.systemui");
     }
 
     public static void restartSystem() {
@@ -319,7 +334,7 @@ public class Helpers {
     }
 
     public static void setSystemProp(String prop, String val) {
-        CMDProcessor.startSuCommand("setprop " + prop + " " + val);
+        CMDProcessor.runSuCommandAsync("setprop " + prop + " " + val);
     }
 
     public static String getSystemProp(String prop, String def) {
@@ -0,0 +1,194 @@
+package com.android.settings.util;
+
+import android.os.FileObserver;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Caches the first line of small kernel files such as sysfs and proc tunables.
+ *
+ * Values are read through one reusable direct buffer and kept for a short time, so a panel
+ * showing many tunables, or showing the same one twice, doesn't reopen each file every time
+ * it binds. A first line too long for the buffer is read again with a reader. Use
+ * {@link #readOneLines} to read a whole panel's worth under one lock.
+ *
+ * A cached value is dropped when it gets older than the TTL, when it is written through
+ * {@link Helpers#writeOneLine}, or, for paths passed to {@link #observe}, when the file is
+ * reported as modified. Most sysfs attributes don't report changes, so the TTL is what keeps
+ * those current.
+ */
+public class KernelFileCache {
+    public static final long DEFAULT_TTL_MILLIS = 1000;
+    private static final int BUFFER_SIZE = 4096;
+
+    private static KernelFileCache sInstance;
+
+    private final long mTtlMillis;
+    private final ArrayMap<String, Entry> mEntries = new ArrayMap<>();
+    private final ArrayMap<String, FileObserver> mObservers = new ArrayMap<>();
+    // Guarded by this, like everything else.
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final CharBuffer mChars = CharBuffer.allocate(BUFFER_SIZE);
+    private final CharsetDecoder mDecoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    public static synchronized KernelFileCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new KernelFileCache(DEFAULT_TTL_MILLIS);
+        }
+        return sInstance;
+    }
+
+    public KernelFileCache(long ttlMillis) {
+        mTtlMillis = ttlMillis;
+    }
+
+    /**
+     * Returns the first line of {@code path} without its line terminator, or null if the file
+     * is empty.
+     *
+     * @throws IOException if the file can't be read; failures aren't cached.
+     */
+    public synchronized String readOneLine(String path) throws IOException {
+        final long now = SystemClock.elapsedRealtime();
+        final Entry entry = mEntries.get(path);
+        if (entry != null && now - entry.mReadTime < mTtlMillis) {
+            return entry.mValue;
+        }
+        final String value = read(path);
+        mEntries.put(path, new Entry(value, now));
+        return value;
+    }
+
+    /**
+     * Returns the first line of each of {@code paths}, leaving out the ones that can't be read.
+     */
+    public synchronized ArrayMap<String, String> readOneLines(String... paths) {
+        final ArrayMap<String, String> values = new ArrayMap<>(paths.length);
+        for (String path : paths) {
+            try {
+                values.put(path, readOneLine(path));
+            } catch (IOException e) {
+                // Left out
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Caches a value read some other way, such as through a root shell, until it gets older
+     * than the TTL like one read here.
+     */
+    public synchronized void put(String path, String value) {
+        mEntries.put(path, new Entry(value, SystemClock.elapsedRealtime()));
+    }
+
+    public synchronized void invalidate(String path) {
+        mEntries.remove(path);
+    }
+
+    public synchronized void invalidateAll() {
+        mEntries.clear();
+    }
+
+    /**
+     * Drops the cached value of {@code path} whenever the file is reported as modified.
+     */
+    public synchronized void observe(final String path) {
+        if (mObservers.containsKey(path)) {
+            return;
+        }
+        final FileObserver observer = new FileObserver(path,
+                FileObserver.MODIFY | FileObserver.CLOSE_WRITE | FileObserver.DELETE_SELF) {
+            @Override
+            public void onEvent(int event, String file) {
+                invalidate(path);
+            }
+        };
+        observer.startWatching();
+        mObservers.put(path, observer);
+    }
+
+    public synchronized void stopObserving(String path) {
+        final FileObserver observer = mObservers.remove(path);
+        if (observer != null) {
+            observer.stopWatching();
+        }
+    }
+
+    private String read(String path) throws IOException {
+        mBuffer.clear();
+        try (FileChannel channel = new FileInputStream(path).getChannel()) {
+            // Kernel attributes are usually produced in one read, only keep reading for a
+            // line that hasn't ended yet.
+            int scanned = 0;
+            boolean lineEnded = false;
+            while (mBuffer.hasRemaining() && channel.read(mBuffer) > 0) {
+                if (hasNewline(mBuffer, scanned)) {
+                    lineEnded = true;
+                    break;
+                }
+                scanned = mBuffer.position();
+            }
+            if (!lineEnded && !mBuffer.hasRemaining()) {
+                // The first line doesn't fit, rare enough not to grow the buffer for.
+                return readLongLine(path);
+            }
+        }
+        mBuffer.flip();
+        if (!mBuffer.hasRemaining()) {
+            return null;
+        }
+        mChars.clear();
+        mDecoder.reset();
+        mDecoder.decode(mBuffer, mChars, true);
+        mDecoder.flush(mChars);
+        mChars.flip();
+        int end = 0;
+        while (end < mChars.length()) {
+            final char c = mChars.charAt(end);
+            if (c == '\n' || c == '\r') {
+                break;
+            }
+            end++;
+        }
+        return mChars.subSequence(0, end).toString();
+    }
+
+    private static String readLongLine(String path) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            return reader.readLine();
+        }
+    }
+
+    private static boolean hasNewline(ByteBuffer buffer, int from) {
+        for (int i = from; i < buffer.position(); i++) {
+            if (buffer.get(i) == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Entry {
+        final String mValue;
+        final long mReadTime;
+
+        Entry(String value, long readTime) {
+            mValue = value;
+            mReadTime = readTime;
+        }
+    }
+}
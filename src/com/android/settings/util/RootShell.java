@@ -0,0 +1,360 @@
+package com.android.settings.util;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.System.nanoTime;
+
+/**
+ * A few long-lived shells that commands are written to, so running one doesn't fork and
+ * authorize a new {@code su} each time.
+ *
+ * Each command runs in a subshell with stdin from /dev/null, then the shell prints a marker
+ * with the exit value on stdout and another one on stderr, which is how the output of one
+ * command is told apart from the next. A session that dies or whose command times out is
+ * killed and replaced by a new one on the next command. Sessions idle for a while exit.
+ */
+public class RootShell {
+    private static final String TAG = "RootShell";
+
+    private static final int MAX_SESSIONS = 2;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 30 * 1000;
+    private static final long IDLE_TIMEOUT_MILLIS = 60 * 1000;
+    private static final long SLOW_COMMAND_MILLIS = 500;
+
+    private static RootShell sInstance;
+
+    private final String[] mShell;
+    private final ArrayDeque<Session> mIdleSessions = new ArrayDeque<>();
+    private final ThreadPoolExecutor mExecutor;
+    private final ScheduledThreadPoolExecutor mReaper;
+    private final Random mRandom = new Random();
+    private int mSessionCount;
+
+    // Metrics, guarded by this.
+    private int mCommands;
+    private int mStarts;
+    private int mTimeouts;
+    private int mDeaths;
+    private long mTotalNanos;
+    private long mMaxNanos;
+
+    /**
+     * Returns the root shell shared by all root helpers.
+     */
+    public static synchronized RootShell getInstance() {
+        if (sInstance == null) {
+            sInstance = new RootShell(new String[] { "su" });
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param shell command line of the shell to keep running, such as {@code su} or {@code sh}.
+     */
+    public RootShell(String[] shell) {
+        mShell = shell;
+        final AtomicInteger count = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(MAX_SESSIONS, MAX_SESSIONS, IDLE_TIMEOUT_MILLIS,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+                    Thread thread = new Thread(r, TAG + "-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+        mReaper = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, TAG + "-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mReaper.setKeepAliveTime(IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        mReaper.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs {@code cmd}, waiting at most {@link #DEFAULT_TIMEOUT_MILLIS} for it.
+     */
+    public CommandResult run(String cmd) {
+        return run(cmd, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Runs {@code cmd} on an idle session, starting one if needed. If all sessions are busy,
+     * waits for one to become idle. A command that doesn't finish within
+     * {@code timeoutMillis}, or whose thread is interrupted, is killed together with its
+     * session, and fails. The interrupt is kept for the caller to see.
+     */
+    public CommandResult run(String cmd, long timeoutMillis) {
+        final long start = nanoTime();
+        Session session;
+        try {
+            session = acquire();
+        } catch (InterruptedIOException e) {
+            return new CommandResult(start, -1, "", "Interrupted", nanoTime());
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to start " + mShell[0], e);
+            return new CommandResult(start, -1, "", String.valueOf(e.getMessage()), nanoTime());
+        }
+        final CommandResult result = session.run(cmd, timeoutMillis, start);
+        record(cmd, session, nanoTime() - start);
+        release(session);
+        return result;
+    }
+
+    /**
+     * Runs {@code cmd} on a pool thread.
+     */
+    public CompletableFuture<CommandResult> runAsync(String cmd) {
+        return CompletableFuture.supplyAsync(() -> run(cmd), mExecutor);
+    }
+
+    /**
+     * Kills all idle sessions. Busy ones are killed once their command finishes.
+     */
+    public void close() {
+        synchronized (this) {
+            while (!mIdleSessions.isEmpty()) {
+                mIdleSessions.poll().kill();
+                mSessionCount--;
+            }
+        }
+    }
+
+    /**
+     * Returns a one line summary of the commands run so far.
+     */
+    public synchronized String getStats() {
+        return "commands=" + mCommands
+                + " avg=" + (mCommands > 0 ? mTotalNanos / mCommands / 1000000 : 0) + "ms"
+                + " max=" + mMaxNanos / 1000000 + "ms"
+                + " sessions started=" + mStarts
+                + " timeouts=" + mTimeouts
+                + " deaths=" + mDeaths;
+    }
+
+    private Session acquire() throws IOException {
+        synchronized (this) {
+            while (true) {
+                final Session idle = mIdleSessions.pollLast();
+                if (idle != null) {
+                    idle.cancelReap();
+                    if (idle.isAlive()) {
+                        return idle;
+                    }
+                    mSessionCount--;
+                    continue;
+                }
+                if (mSessionCount < MAX_SESSIONS) {
+                    mSessionCount++;
+                    mStarts++;
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // Nothing was taken yet, give up on the command.
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+        try {
+            return new Session(mShell, Long.toHexString(mRandom.nextLong()));
+        } catch (IOException e) {
+            synchronized (this) {
+                mSessionCount--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    private synchronized void release(Session session) {
+        if (session.isAlive()) {
+            mIdleSessions.add(session);
+            session.scheduleReap();
+        } else {
+            mSessionCount--;
+        }
+        notifyAll();
+    }
+
+    private synchronized void reap(Session session) {
+        if (mIdleSessions.remove(session)) {
+            session.kill();
+            mSessionCount--;
+        }
+    }
+
+    private synchronized void record(String cmd, Session session, long nanos) {
+        mCommands++;
+        mTotalNanos += nanos;
+        mMaxNanos = Math.max(mMaxNanos, nanos);
+        if (session.mTimedOut) {
+            mTimeouts++;
+        } else if (!session.isAlive()) {
+            mDeaths++;
+        }
+        if (nanos / 1000000 >= SLOW_COMMAND_MILLIS) {
+            Log.w(TAG, "Slow command (" + nanos / 1000000 + "ms): " + cmd);
+        }
+    }
+
+    private class Session {
+        private final Process mProcess;
+        private final Writer mStdin;
+        private final String mMarker;
+        // Output of both streams, in arrival order. A null text means the stream ended.
+        private final LinkedBlockingQueue<Line> mLines = new LinkedBlockingQueue<>();
+        private volatile boolean mDead;
+        private boolean mTimedOut;
+        private ScheduledFuture<?> mReap;
+
+        Session(String[] shell, String id) throws IOException {
+            mMarker = "__RootShell_" + id + "__";
+            mProcess = Runtime.getRuntime().exec(shell);
+            mStdin = new OutputStreamWriter(mProcess.getOutputStream(), StandardCharsets.UTF_8);
+            startReader(mProcess.getInputStream(), false);
+            startReader(mProcess.getErrorStream(), true);
+        }
+
+        boolean isAlive() {
+            return !mDead;
+        }
+
+        void scheduleReap() {
+            mReap = mReaper.schedule(() -> reap(this), IDLE_TIMEOUT_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        void cancelReap() {
+            if (mReap != null) {
+                mReap.cancel(false);
+                mReap = null;
+            }
+        }
+
+        CommandResult run(String cmd, long timeoutMillis, long start) {
+            try {
+                mStdin.write("(\n" + cmd + "\n) </dev/null\n"
+                        + "echo \"" + mMarker + " $?\"\n"
+                        + "echo \"" + mMarker + "\" >&2\n");
+                mStdin.flush();
+            } catch (IOException e) {
+                kill();
+                return new CommandResult(start, -1, "", "Shell died", nanoTime());
+            }
+
+            final StringBuilder stdout = new StringBuilder();
+            final StringBuilder stderr = new StringBuilder();
+            int exitValue = -1;
+            boolean stdoutDone = false;
+            boolean stderrDone = false;
+            final long deadline = timeoutMillis > 0
+                    ? System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+            while (!stdoutDone || !stderrDone) {
+                final Line line;
+                try {
+                    line = mLines.poll(Math.max(0, deadline - System.currentTimeMillis()),
+                            TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    // The command may still write output, the session can't be reused.
+                    Thread.currentThread().interrupt();
+                    kill();
+                    exitValue = -1;
+                    stderr.append("Interrupted");
+                    break;
+                }
+                if (line == null) {
+                    Log.w(TAG, "Command timed out, killing its shell: " + cmd);
+                    mTimedOut = true;
+                    kill();
+                    exitValue = -1;
+                    break;
+                }
+                if (line.mText == null) {
+                    // The shell went away, maybe because su was denied.
+                    kill();
+                    exitValue = -1;
+                    break;
+                }
+                final StringBuilder out = line.mStderr ? stderr : stdout;
+                final int marker = line.mText.indexOf(mMarker);
+                if (marker < 0) {
+                    out.append(line.mText).append('\n');
+                    continue;
+                }
+                // Output without a trailing newline ends up in front of the marker.
+                out.append(line.mText, 0, marker);
+                if (line.mStderr) {
+                    stderrDone = true;
+                } else {
+                    stdoutDone = true;
+                    try {
+                        exitValue = Integer.parseInt(
+                                line.mText.substring(marker + mMarker.length()).trim());
+                    } catch (NumberFormatException e) {
+                        exitValue = -1;
+                    }
+                }
+            }
+            return new CommandResult(start, exitValue, stdout.toString(), stderr.toString(),
+                    nanoTime());
+        }
+
+        void kill() {
+            mDead = true;
+            mProcess.destroy();
+            try {
+                mStdin.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+
+        private void startReader(InputStream stream, boolean stderr) {
+            final Thread thread = new Thread(() -> {
+                try (BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+                    String text;
+                    while ((text = reader.readLine()) != null) {
+                        mLines.add(new Line(text, stderr));
+                    }
+                } catch (IOException e) {
+                    // Killed
+                }
+                mDead = true;
+                mLines.add(new Line(null, stderr));
+            }, TAG + (stderr ? "-stderr" : "-stdout"));
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private static class Line {
+        final String mText;
+        final boolean mStderr;
+
+        Line(String text, boolean stderr) {
+            mText = text;
+            mStderr = stderr;
+        }
+    }
+}
@@ -26,6 +26,7 @@ import android.graphics.Paint.Style;
 import android.graphics.Path;
 import android.graphics.RectF;
 import android.net.NetworkStatsHistory;
+import android.net.TrafficStats;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.View;
@@ -33,6 +34,8 @@ import android.view.View;
 import com.android.internal.util.Preconditions;
 import com.android.settings.R;
 
+import java.util.Arrays;
+
 import static android.text.format.DateUtils.DAY_IN_MILLIS;
 import static android.text.format.DateUtils.WEEK_IN_MILLIS;
 
@@ -56,6 +59,12 @@ public class ChartNetworkSeriesView extends View {
 
     private NetworkStatsHistory mStats;
 
+    /** Start of each bucket of {@link #mStats}. */
+    private long[] mBucketStarts;
+    /** Total bytes of all buckets before each index, with one extra entry for the end. */
+    private long[] mCumulative;
+    private long mBucketDuration;
+
     private Path mPathStroke;
     private Path mPathFill;
     private Path mPathEstimate;
@@ -72,6 +81,9 @@ public class ChartNetworkSeriesView extends View {
     private long mEndTime = Long.MIN_VALUE;
 
     private boolean mPathValid = false;
+    /** Size, bounds and axes the current paths were generated for, if any. */
+    private long[] mPathKey;
+    private long mPathMax;
     private boolean mEstimateVisible = false;
     private boolean mSecondary = false;
 
@@ -146,10 +158,85 @@ public class ChartNetworkSeriesView extends View {
 
     public void bindNetworkStats(NetworkStatsHistory stats) {
         mStats = stats;
+        buildCumulative();
+        mPathKey = null;
         invalidatePath();
         invalidate();
     }
 
+    /**
+     * Sum up the bound history once, so range totals don't have to walk it.
+     */
+    private void buildCumulative() {
+        if (mStats == null) {
+            mBucketStarts = null;
+            mCumulative = null;
+            return;
+        }
+        final int size = mStats.size();
+        mBucketStarts = new long[size];
+        mCumulative = new long[size + 1];
+        mBucketDuration = mStats.getBucketDuration();
+        NetworkStatsHistory.Entry entry = null;
+        for (int i = 0; i < size; i++) {
+            entry = mStats.getValues(i, entry);
+            mBucketStarts[i] = entry.bucketStart;
+            mCumulative[i + 1] = mCumulative[i] + entry.rxBytes + entry.txBytes;
+        }
+    }
+
+    /**
+     * Total bytes between {@code start} and {@code end}, counting partial buckets the same way
+     * as {@link NetworkStatsHistory#getValues(long, long, long, NetworkStatsHistory.Entry)}.
+     */
+    private long getTotal(long start, long end, long now) {
+        if (mBucketStarts == null || mBucketStarts.length == 0 || end <= start) {
+            return 0;
+        }
+        // First bucket ending after start, last bucket starting before end.
+        final int first = Math.max(0, lastIndexAtOrBefore(start - mBucketDuration, 0) + 1);
+        final int last = lastIndexAtOrBefore(end - 1, first);
+        if (last < first) {
+            return 0;
+        }
+        long total = mCumulative[last + 1] - mCumulative[first];
+        total += getPartialAdjustment(first, start, end, now);
+        if (last != first) {
+            total += getPartialAdjustment(last, start, end, now);
+        }
+        return total;
+    }
+
+    /**
+     * Difference between the fractional and the full value of bucket {@code i}, or 0 if the
+     * bucket counts in full.
+     */
+    private long getPartialAdjustment(int i, long start, long end, long now) {
+        final long curStart = mBucketStarts[i];
+        final long curEnd = curStart + mBucketDuration;
+        final boolean activeBucket = curStart < now && curEnd > now;
+        if (activeBucket || (curStart >= start && curEnd <= end)) {
+            return 0;
+        }
+        final long overlap = Math.min(curEnd, end) - Math.max(curStart, start);
+        final NetworkStatsHistory.Entry entry = mStats.getValues(i, null);
+        final long full = entry.rxBytes + entry.txBytes;
+        if (overlap <= 0) {
+            return -full;
+        }
+        return entry.rxBytes * overlap / mBucketDuration
+                + entry.txBytes * overlap / mBucketDuration - full;
+    }
+
+    /**
+     * Index of the last bucket starting at or before {@code time}, not looking before
+     * {@code from}; {@code from - 1} if there is none.
+     */
+    private int lastIndexAtOrBefore(long time, int from) {
+        final int index = Arrays.binarySearch(mBucketStarts, from, mBucketStarts.length, time);
+        return index >= 0 ? index : -index - 2;
+    }
+
     public void setBounds(long start, long end) {
         mStart = start;
         mEnd = end;
@@ -175,6 +262,18 @@ public class ChartNetworkSeriesView extends View {
         invalidate();
     }
 
+    /**
+     * Everything the generated paths depend on besides the stats. Both axes are linear, so two
+     * points pin each of them down.
+     */
+    private long[] getPathKey() {
+        return new long[] { getWidth(), getHeight(), mStart, mEnd, mEndTime,
+                Float.floatToIntBits(mHoriz.convertToPoint(mStart)),
+                Float.floatToIntBits(mHoriz.convertToPoint(mEnd)),
+                Float.floatToIntBits(mVert.convertToPoint(0)),
+                Float.floatToIntBits(mVert.convertToPoint(TrafficStats.GB_IN_BYTES)) };
+    }
+
     /**
      * Erase any existing {@link Path} and generate series outline based on
      * currently bound {@link NetworkStatsHistory} data.
@@ -187,6 +286,8 @@ public class ChartNetworkSeriesView extends View {
         mPathFill.reset();
         mPathEstimate.reset();
         mPathValid = true;
+        mPathKey = getPathKey();
+        mPathMax = 0;
 
         // bail when not enough stats to render
         if (mStats == null || mStats.size() < 2) {
@@ -210,24 +311,30 @@ public class ChartNetworkSeriesView extends View {
 
         long totalData = 0;
 
-        NetworkStatsHistory.Entry entry = null;
-
         final int start = mStats.getIndexBefore(mStart);
         final int end = mStats.getIndexAfter(mEnd);
-        for (int i = start; i <= end; i++) {
-            entry = mStats.getValues(i, entry);
-
-            final long startTime = entry.bucketStart;
-            final long endTime = startTime + entry.bucketDuration;
-
+        int i = start;
+        while (i <= end) {
+            final long startTime = mBucketStarts[i];
             final float startX = mHoriz.convertToPoint(startTime);
-            final float endX = mHoriz.convertToPoint(endTime);
+            float endX = mHoriz.convertToPoint(startTime + mBucketDuration);
 
             // skip until we find first stats on screen
-            if (endX < 0) continue;
+            if (endX < 0) {
+                i++;
+                continue;
+            }
 
-            // increment by current bucket total
-            totalData += entry.rxBytes + entry.txBytes;
+            // fold every following bucket ending in the same pixel column into this one
+            int last = i;
+            final long columnEnd = mHoriz.convertToValue((float) Math.floor(endX) + 1);
+            if (i < end && mBucketStarts[i + 1] + mBucketDuration <= columnEnd) {
+                last = Math.min(end, lastIndexAtOrBefore(columnEnd - mBucketDuration, i));
+                endX = mHoriz.convertToPoint(mBucketStarts[last] + mBucketDuration);
+            }
+
+            // increment by folded buckets total
+            totalData += mCumulative[last + 1] - mCumulative[i];
 
             final float startY = lastY;
             final float endY = mVert.convertToPoint(totalData);
@@ -244,7 +351,8 @@ public class ChartNetworkSeriesView extends View {
 
             lastX = endX;
             lastY = endY;
-            lastTime = endTime;
+            lastTime = mBucketStarts[last] + mBucketDuration;
+            i = last + 1;
         }
 
         // when data falls short, extend to requested end time
@@ -267,18 +375,19 @@ public class ChartNetworkSeriesView extends View {
         mPathFill.lineTo(0, height);
 
         mMax = totalData;
+        mPathMax = totalData;
 
         if (ESTIMATE_ENABLED) {
             // build estimated data
             mPathEstimate.moveTo(lastX, lastY);
 
             final long now = System.currentTimeMillis();
-            final long bucketDuration = mStats.getBucketDuration();
+            final long bucketDuration = mBucketDuration;
 
             // long window is average over two weeks
-            entry = mStats.getValues(lastTime - WEEK_IN_MILLIS * 2, lastTime, now, entry);
-            final long longWindow = (entry.rxBytes + entry.txBytes) * bucketDuration
-                    / entry.bucketDuration;
+            final long longWindowStart = lastTime - WEEK_IN_MILLIS * 2;
+            final long longWindow = getTotal(longWindowStart, lastTime, now) * bucketDuration
+                    / (lastTime - longWindowStart);
 
             long futureTime = 0;
             while (lastX < width) {
@@ -286,9 +395,8 @@ public class ChartNetworkSeriesView extends View {
 
                 // short window is day average last week
                 final long lastWeekTime = lastTime - WEEK_IN_MILLIS + (futureTime % WEEK_IN_MILLIS);
-                entry = mStats.getValues(lastWeekTime - DAY_IN_MILLIS, lastWeekTime, now, entry);
-                final long shortWindow = (entry.rxBytes + entry.txBytes) * bucketDuration
-                        / entry.bucketDuration;
+                final long shortWindow = getTotal(lastWeekTime - DAY_IN_MILLIS, lastWeekTime, now)
+                        * bucketDuration / DAY_IN_MILLIS;
 
                 totalData += (longWindow * 7 + shortWindow * 3) / 10;
 
@@ -321,8 +429,7 @@ public class ChartNetworkSeriesView extends View {
         final long maxVisible = mEstimateVisible ? mMaxEstimate : mMax;
         if (maxVisible <= 0 && mStats != null) {
             // haven't generated path yet; fall back to raw data
-            final NetworkStatsHistory.Entry entry = mStats.getValues(mStart, mEnd, null);
-            return entry.rxBytes + entry.txBytes;
+            return getTotal(mStart, mEnd, Long.MAX_VALUE);
         } else {
             return maxVisible;
         }
@@ -333,7 +440,13 @@ public class ChartNetworkSeriesView extends View {
         int save;
 
         if (!mPathValid) {
-            generatePath();
+            if (mPathKey != null && Arrays.equals(mPathKey, getPathKey())) {
+                // axes went back to what the current paths were made for
+                mPathValid = true;
+                mMax = mPathMax;
+            } else {
+                generatePath();
+            }
         }
 
         final float primaryLeftPoint = mHoriz.convertToPoint(mPrimaryLeft);
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.settings.wifi;
+
+import android.util.ArrayMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Orders the access point list like {@link com.android.settingslib.wifi.AccessPoint#compareTo}
+ * does, but by a signal level with hysteresis, so that access points hovering around a level
+ * boundary don't swap places on every scan.
+ *
+ * A new level is only used for ordering once it has been seen in {@code confirmScans}
+ * consecutive updates, or right away if it is at least {@link #JUMP_LEVELS} away from the level
+ * in use.
+ */
+class AccessPointRanker {
+    static final int DEFAULT_CONFIRM_SCANS = 2;
+    static final int JUMP_LEVELS = 2;
+
+    private static final Comparator<Entry> COMPARATOR = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            if (lhs.active != rhs.active) {
+                return lhs.active ? -1 : 1;
+            }
+            if (lhs.saved != rhs.saved) {
+                return lhs.saved ? -1 : 1;
+            }
+            if (lhs.mRankLevel != rhs.mRankLevel) {
+                return rhs.mRankLevel - lhs.mRankLevel;
+            }
+            return lhs.ssid.compareToIgnoreCase(rhs.ssid);
+        }
+    };
+
+    private final int mConfirmScans;
+    private ArrayMap<String, LevelState> mStates = new ArrayMap<>();
+
+    AccessPointRanker() {
+        this(DEFAULT_CONFIRM_SCANS);
+    }
+
+    /**
+     * @param confirmScans updates a small level change has to last before it's used, 1 to
+     *         disable hysteresis.
+     */
+    AccessPointRanker(int confirmScans) {
+        mConfirmScans = confirmScans;
+    }
+
+    /**
+     * Returns {@code entries} sorted for display. Entries that were in the previous update keep
+     * their level history, the history of ones that are gone is dropped. The sort is stable, so
+     * entries that compare equal keep their order from {@code entries}.
+     */
+    List<Entry> rank(List<Entry> entries) {
+        final int N = entries.size();
+        final ArrayMap<String, LevelState> states = new ArrayMap<>(N);
+        for (int i = 0; i < N; i++) {
+            final Entry entry = entries.get(i);
+            LevelState state = mStates.get(entry.key);
+            if (state == null) {
+                state = new LevelState(entry.level);
+            } else {
+                state.update(entry.level, mConfirmScans);
+            }
+            entry.mRankLevel = state.mShown;
+            states.put(entry.key, state);
+        }
+        mStates = states;
+
+        final ArrayList<Entry> ranked = new ArrayList<>(entries);
+        Collections.sort(ranked, COMPARATOR);
+        return ranked;
+    }
+
+    void clear() {
+        mStates.clear();
+    }
+
+    static class Entry {
+        final String key;
+        final boolean active;
+        final boolean saved;
+        final int level;
+        final String ssid;
+        final Object tag;
+        int mRankLevel;
+
+        Entry(String key, boolean active, boolean saved, int level, String ssid, Object tag) {
+            this.key = key;
+            this.active = active;
+            this.saved = saved;
+            this.level = level;
+            this.ssid = ssid != null ? ssid : "";
+            this.tag = tag;
+        }
+
+        /** The level this entry was ordered by, which can lag behind {@link #level}. */
+        int getRankLevel() {
+            return mRankLevel;
+        }
+    }
+
+    private static class LevelState {
+        int mShown;
+        int mPending;
+        int mPendingCount;
+
+        LevelState(int level) {
+            mShown = level;
+            mPending = level;
+        }
+
+        void update(int level, int confirmScans) {
+            if (level == mShown || Math.abs(level - mShown) >= JUMP_LEVELS) {
+                mShown = level;
+                mPending = level;
+                mPendingCount = 0;
+                return;
+            }
+            if (level == mPending) {
+                mPendingCount++;
+            } else {
+                mPending = level;
+                mPendingCount = 1;
+            }
+            if (mPendingCount >= confirmScans) {
+                mShown = level;
+                mPendingCount = 0;
+            }
+        }
+    }
+}
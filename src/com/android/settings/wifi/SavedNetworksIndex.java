@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.settings.wifi;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.wifi.WifiConfiguration;
+import android.net.wifi.WifiManager;
+import android.os.AsyncTask;
+import android.text.TextUtils;
+import android.util.ArraySet;
+
+import com.android.settings.R;
+import com.android.settings.search.Index;
+import com.android.settings.search.Ranking;
+import com.android.settings.search.SearchIndexableRaw;
+
+import java.util.List;
+
+import static android.net.wifi.WifiInfo.removeDoubleQuotes;
+
+/**
+ * Search index rows for saved Wi-Fi networks, built from the configured networks alone.
+ *
+ * Going through {@link com.android.settingslib.wifi.WifiTracker} for this creates a tracker and
+ * an {@link com.android.settingslib.wifi.AccessPoint} per network and merges in scan results,
+ * none of which the index needs. Changes to a single network update its row only, instead of
+ * re-indexing all of {@link WifiSettings}.
+ */
+public final class SavedNetworksIndex {
+
+    private SavedNetworksIndex() {
+    }
+
+    /**
+     * Adds a row for each saved network to {@code result}. Networks sharing an SSID get one row.
+     */
+    static void addRawDataToIndex(Context context, boolean enabled,
+            List<SearchIndexableRaw> result) {
+        final WifiManager wifiManager = context.getSystemService(WifiManager.class);
+        final List<WifiConfiguration> configs = wifiManager.getConfiguredNetworks();
+        if (configs == null) {
+            return;
+        }
+        final String screenTitle = context.getString(R.string.wifi_settings);
+        final int N = configs.size();
+        final ArraySet<String> titles = new ArraySet<>(N);
+        for (int i = 0; i < N; i++) {
+            final String title = getTitle(configs.get(i));
+            if (title == null || !titles.add(title)) {
+                continue;
+            }
+            final SearchIndexableRaw data = new SearchIndexableRaw(context);
+            data.title = title;
+            data.screenTitle = screenTitle;
+            data.enabled = enabled;
+            result.add(data);
+        }
+    }
+
+    /**
+     * Applies a {@link WifiManager#CONFIGURED_NETWORKS_CHANGED_ACTION} to the index.
+     */
+    public static void onConfiguredNetworksChanged(final Context context, Intent intent) {
+        final WifiConfiguration config =
+                intent.getParcelableExtra(WifiManager.EXTRA_WIFI_CONFIGURATION);
+        if (intent.getBooleanExtra(WifiManager.EXTRA_MULTIPLE_NETWORKS_CHANGED, false)
+                || config == null) {
+            Index.getInstance(context).updateFromClassNameResource(
+                    WifiSettings.class.getName(), true, true);
+            return;
+        }
+        final String title = getTitle(config);
+        if (title == null) {
+            return;
+        }
+        switch (intent.getIntExtra(WifiManager.EXTRA_CHANGE_REASON, -1)) {
+            case WifiManager.CHANGE_REASON_ADDED:
+                Index.getInstance(context).updateFromSearchIndexableData(
+                        buildRawData(context, title));
+                break;
+            case WifiManager.CHANGE_REASON_REMOVED:
+                AsyncTask.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isSaved(context, title)) {
+                            Index.getInstance(context).deleteFromSearchIndexableData(
+                                    buildRawData(context, title));
+                        }
+                    }
+                });
+                break;
+        }
+    }
+
+    private static SearchIndexableRaw buildRawData(Context context, String title) {
+        final String className = WifiSettings.class.getName();
+        final SearchIndexableRaw data = new SearchIndexableRaw(context);
+        data.className = className;
+        data.rank = Ranking.getRankForClassName(className);
+        data.iconResId = R.drawable.ic_settings_wireless;
+        data.title = title;
+        data.screenTitle = context.getString(R.string.wifi_settings);
+        data.enabled = true;
+        return data;
+    }
+
+    /**
+     * Returns whether another saved network still has {@code title} as its SSID.
+     */
+    private static boolean isSaved(Context context, String title) {
+        final List<WifiConfiguration> configs =
+                context.getSystemService(WifiManager.class).getConfiguredNetworks();
+        if (configs == null) {
+            return false;
+        }
+        final int N = configs.size();
+        for (int i = 0; i < N; i++) {
+            if (title.equals(getTitle(configs.get(i)))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getTitle(WifiConfiguration config) {
+        // Passpoint networks aren't listed as saved networks.
+        if (config.isPasspoint() || TextUtils.isEmpty(config.SSID)) {
+            return null;
+        }
+        return removeDoubleQuotes(config.SSID);
+    }
+}
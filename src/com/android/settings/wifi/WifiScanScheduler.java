@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.settings.wifi;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Decides when the Wi-Fi picker scans, instead of the tracker's fixed interval.
+ *
+ * A session starts with a few scans at the minimum interval. After that, every scan whose
+ * results didn't change significantly doubles the interval, up to the maximum. A significant
+ * change, or a user action such as connecting, goes back to fast scans. Scanning is paused
+ * while any pause reason is set, such as the list being scrolled or a dialog being up.
+ *
+ * All methods must be called on the thread of the handler passed in.
+ */
+class WifiScanScheduler {
+    private static final String TAG = "WifiScanScheduler";
+
+    static final long DEFAULT_MIN_INTERVAL_MS = 2 * 1000;
+    static final long DEFAULT_MAX_INTERVAL_MS = 64 * 1000;
+    static final int FAST_SCANS = 3;
+
+    // Share of the access points that has to appear, disappear or move two levels for the
+    // results to count as a significant change.
+    private static final float SIGNIFICANT_CHANGE = 0.2f;
+
+    static final int PAUSE_SCROLLING = 1 << 0;
+    static final int PAUSE_DIALOG = 1 << 1;
+    static final int PAUSE_WIFI_OFF = 1 << 2;
+
+    interface ScanRequester {
+        /** Returns whether the scan was started. */
+        boolean requestScan();
+    }
+
+    private final Handler mHandler;
+    private final ScanRequester mRequester;
+    private final long mMinIntervalMs;
+    private final long mMaxIntervalMs;
+
+    private boolean mStarted;
+    private int mPauseFlags;
+    private long mIntervalMs;
+    private int mFastScansLeft;
+    private long mLastScanTime;
+
+    private ArrayMap<String, Integer> mLastLevels = new ArrayMap<>();
+    private String mLastActiveKey;
+
+    // Session stats
+    private long mSessionStart;
+    private int mScans;
+    private int mFailedScans;
+    private int mResults;
+    private int mChangedResults;
+    private int mSignificantResults;
+
+    private final Runnable mScanRunnable = new Runnable() {
+        @Override
+        public void run() {
+            scanNow();
+        }
+    };
+
+    WifiScanScheduler(Handler handler, ScanRequester requester) {
+        this(handler, requester, DEFAULT_MIN_INTERVAL_MS, DEFAULT_MAX_INTERVAL_MS);
+    }
+
+    WifiScanScheduler(Handler handler, ScanRequester requester, long minIntervalMs,
+            long maxIntervalMs) {
+        mHandler = handler;
+        mRequester = requester;
+        mMinIntervalMs = minIntervalMs;
+        mMaxIntervalMs = maxIntervalMs;
+    }
+
+    /**
+     * Starts a session, scanning right away unless paused.
+     */
+    void start() {
+        if (mStarted) return;
+        mStarted = true;
+        mSessionStart = SystemClock.uptimeMillis();
+        mScans = 0;
+        mFailedScans = 0;
+        mResults = 0;
+        mChangedResults = 0;
+        mSignificantResults = 0;
+        mLastLevels.clear();
+        mLastActiveKey = null;
+        mLastScanTime = 0;
+        speedUp();
+        reschedule();
+    }
+
+    /**
+     * Ends the session and logs its stats.
+     */
+    void stop() {
+        if (!mStarted) return;
+        mStarted = false;
+        mHandler.removeCallbacks(mScanRunnable);
+        Log.i(TAG, "Session ended: " + getStats());
+    }
+
+    void setPaused(int reason, boolean paused) {
+        final int flags = paused ? mPauseFlags | reason : mPauseFlags & ~reason;
+        if (flags == mPauseFlags) return;
+        mPauseFlags = flags;
+        reschedule();
+    }
+
+    /**
+     * Scans right away and goes back to fast scans, such as when the user asks for a refresh.
+     */
+    void forceScan() {
+        speedUp();
+        if (isRunning()) {
+            mHandler.removeCallbacks(mScanRunnable);
+            scanNow();
+        }
+    }
+
+    /**
+     * Goes back to fast scans because something the results depend on changed, such as the
+     * user connecting to or forgetting a network.
+     */
+    void onSignificantChange() {
+        speedUp();
+        reschedule();
+    }
+
+    /**
+     * Compares the visible access points with the previous ones. A significant change brings
+     * the next scan forward.
+     */
+    void onResults(List<AccessPointRanker.Entry> entries) {
+        if (!mStarted) return;
+        final int N = entries.size();
+        final ArrayMap<String, Integer> levels = new ArrayMap<>(N);
+        String activeKey = null;
+        int changes = 0;
+        for (int i = 0; i < N; i++) {
+            final AccessPointRanker.Entry entry = entries.get(i);
+            levels.put(entry.key, entry.level);
+            if (entry.active) {
+                activeKey = entry.key;
+            }
+            final Integer lastLevel = mLastLevels.get(entry.key);
+            if (lastLevel == null
+                    || Math.abs(lastLevel - entry.level) >= AccessPointRanker.JUMP_LEVELS) {
+                changes++;
+            }
+        }
+        final int M = mLastLevels.size();
+        for (int i = 0; i < M; i++) {
+            if (!levels.containsKey(mLastLevels.keyAt(i))) {
+                changes++;
+            }
+        }
+        final boolean activeChanged = activeKey == null
+                ? mLastActiveKey != null : !activeKey.equals(mLastActiveKey);
+        mLastLevels = levels;
+        mLastActiveKey = activeKey;
+
+        mResults++;
+        if (changes > 0 || activeChanged) {
+            mChangedResults++;
+        }
+        if (activeChanged || changes >= Math.max(1, N) * SIGNIFICANT_CHANGE) {
+            mSignificantResults++;
+            onSignificantChange();
+        }
+    }
+
+    long getIntervalMs() {
+        return mIntervalMs;
+    }
+
+    boolean isRunning() {
+        return mStarted && mPauseFlags == 0;
+    }
+
+    /**
+     * Returns a one line summary of the current session.
+     */
+    String getStats() {
+        final long seconds = Math.max(1, (SystemClock.uptimeMillis() - mSessionStart) / 1000);
+        return "duration=" + seconds + "s"
+                + " scans=" + mScans
+                + " scansPerMin=" + mScans * 60 / seconds
+                + " failed=" + mFailedScans
+                + " results=" + mResults
+                + " changed=" + mChangedResults
+                + " significant=" + mSignificantResults
+                + " changeRate=" + (mResults > 0 ? mChangedResults * 100 / mResults : 0) + "%"
+                + " interval=" + mIntervalMs + "ms";
+    }
+
+    int getScanCount() {
+        return mScans;
+    }
+
+    private void speedUp() {
+        mIntervalMs = mMinIntervalMs;
+        mFastScansLeft = FAST_SCANS;
+    }
+
+    private void scanNow() {
+        mLastScanTime = SystemClock.uptimeMillis();
+        mScans++;
+        if (!mRequester.requestScan()) {
+            mFailedScans++;
+        }
+        if (mFastScansLeft > 0) {
+            mFastScansLeft--;
+        } else {
+            mIntervalMs = Math.min(mIntervalMs * 2, mMaxIntervalMs);
+        }
+        reschedule();
+    }
+
+    private void reschedule() {
+        mHandler.removeCallbacks(mScanRunnable);
+        if (!isRunning()) return;
+        final long delay = mLastScanTime + mIntervalMs - SystemClock.uptimeMillis();
+        mHandler.postDelayed(mScanRunnable, Math.max(0, delay));
+    }
+}
@@ -23,6 +23,7 @@ import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
@@ -37,13 +38,18 @@ import android.net.wifi.WifiManager;
 import android.net.wifi.WpsInfo;
 import android.nfc.NfcAdapter;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Process;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.support.v7.preference.Preference;
 import android.support.v7.preference.PreferenceViewHolder;
+import android.support.v7.widget.RecyclerView;
 import android.text.TextUtils;
 import android.text.style.TextAppearanceSpan;
+import android.util.ArraySet;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
@@ -117,6 +123,9 @@ public class WifiSettings extends RestrictedSettingsFragment
 
     private static final String PREF_KEY_EMPTY_WIFI_LIST = "wifi_empty_list";
 
+    // Tracker callbacks are coalesced into at most one list update per interval.
+    private static final long MIN_UPDATE_INTERVAL_MS = 500;
+
     protected WifiManager mWifiManager;
     private WifiManager.ActionListener mConnectListener;
     private WifiManager.ActionListener mSaveListener;
@@ -152,6 +161,31 @@ public class WifiSettings extends RestrictedSettingsFragment
 
     private HandlerThread mBgThread;
 
+    private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+    private final AccessPointRanker mRanker = new AccessPointRanker();
+    private WifiScanScheduler mScanScheduler;
+    // Access points whose preference needs a refresh, added to from the tracker's thread.
+    private final ArraySet<AccessPoint> mChangedAccessPoints = new ArraySet<>();
+    private boolean mAccessPointListChanged;
+    private boolean mUpdatePending;
+    private long mLastUpdateTime;
+
+    private final Runnable mUpdateAccessPoints = new Runnable() {
+        @Override
+        public void run() {
+            mUpdatePending = false;
+            mLastUpdateTime = SystemClock.uptimeMillis();
+            updateAccessPoints();
+        }
+    };
+
+    private final Runnable mScheduleUpdate = new Runnable() {
+        @Override
+        public void run() {
+            scheduleUpdate();
+        }
+    };
+
     private AccessPointPreference.UserBadgeCache mUserBadgeCache;
     private Preference mAddPreference;
 
@@ -199,6 +233,7 @@ public class WifiSettings extends RestrictedSettingsFragment
         mWifiTracker =
                 new WifiTracker(getActivity(), this, mBgThread.getLooper(), true, true, false);
         mWifiManager = mWifiTracker.getManager();
+        mScanScheduler = new WifiScanScheduler(mUiHandler, () -> mWifiManager.startScan());
 
         mConnectListener = new WifiManager.ActionListener() {
                                    @Override
@@ -276,6 +311,13 @@ public class WifiSettings extends RestrictedSettingsFragment
         }
 
         registerForContextMenu(getListView());
+        getListView().addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+                mScanScheduler.setPaused(WifiScanScheduler.PAUSE_SCROLLING,
+                        newState != RecyclerView.SCROLL_STATE_IDLE);
+            }
+        });
         setHasOptionsMenu(true);
 
         if (intent.hasExtra(EXTRA_START_CONNECT_SSID)) {
@@ -319,6 +361,11 @@ public class WifiSettings extends RestrictedSettingsFragment
         }
 
         mWifiTracker.startTracking();
+        // The scheduler scans instead of the tracker's fixed interval scanner. The tracker
+        // still picks up the results.
+        mWifiTracker.pauseScanning();
+        mScanScheduler.setPaused(WifiScanScheduler.PAUSE_WIFI_OFF, !mWifiManager.isWifiEnabled());
+        mScanScheduler.start();
         activity.invalidateOptionsMenu();
     }
 
@@ -330,6 +377,14 @@ public class WifiSettings extends RestrictedSettingsFragment
         }
 
         mWifiTracker.stopTracking();
+        mScanScheduler.stop();
+        mUiHandler.removeCallbacks(mUpdateAccessPoints);
+        mUiHandler.removeCallbacks(mScheduleUpdate);
+        mUpdatePending = false;
+        synchronized (mChangedAccessPoints) {
+            mChangedAccessPoints.clear();
+        }
+        mRanker.clear();
     }
 
     @Override
@@ -410,7 +465,7 @@ public class WifiSettings extends RestrictedSettingsFragment
                 return true;
             case MENU_ID_SCAN:
                 MetricsLogger.action(getActivity(), MetricsEvent.ACTION_WIFI_FORCE_SCAN);
-                mWifiTracker.forceScan();
+                mScanScheduler.forceScan();
                 return true;
             case MENU_ID_ADVANCED:
                 if (getActivity() instanceof SettingsActivity) {
@@ -548,6 +603,19 @@ public class WifiSettings extends RestrictedSettingsFragment
         return true;
     }
 
+    @Override
+    public void onDialogShowing() {
+        super.onDialogShowing();
+        // Results that arrive while a dialog covers the list aren't seen, don't scan for them.
+        mScanScheduler.setPaused(WifiScanScheduler.PAUSE_DIALOG, true);
+        setOnDismissListener(new DialogInterface.OnDismissListener() {
+            @Override
+            public void onDismiss(DialogInterface dialog) {
+                mScanScheduler.setPaused(WifiScanScheduler.PAUSE_DIALOG, false);
+            }
+        });
+    }
+
     private void showDialog(AccessPoint accessPoint, int dialogMode) {
         if (accessPoint != null) {
             WifiConfiguration config = accessPoint.getConfig();
@@ -630,13 +698,56 @@ public class WifiSettings extends RestrictedSettingsFragment
     }
 
     /**
-     * Shows the latest access points available with supplemental information like
-     * the strength of network and the security for it.
+     * Schedules an update of the access point list. Called on the main thread.
      */
     @Override
-    public synchronized void onAccessPointsChanged() {
+    public void onAccessPointsChanged() {
+        mAccessPointListChanged = true;
+        scheduleUpdate();
+    }
+
+    /**
+     * Updates the list at most once per {@link #MIN_UPDATE_INTERVAL_MS}, so the bursts of
+     * callbacks the tracker sends in crowded places are handled in one pass.
+     */
+    private void scheduleUpdate() {
+        if (mUpdatePending) return;
+        mUpdatePending = true;
+        final long delay = mLastUpdateTime + MIN_UPDATE_INTERVAL_MS - SystemClock.uptimeMillis();
+        mUiHandler.postDelayed(mUpdateAccessPoints, Math.max(0, delay));
+    }
+
+    private void updateAccessPoints() {
         // Safeguard from some delayed event handling
         if (getActivity() == null) return;
+        final ArraySet<AccessPoint> changed;
+        synchronized (mChangedAccessPoints) {
+            changed = new ArraySet<>(mChangedAccessPoints);
+            mChangedAccessPoints.clear();
+        }
+        if (mAccessPointListChanged) {
+            mAccessPointListChanged = false;
+            updateAccessPointList(changed);
+        }
+        // Only the access points the tracker reported as changed need their icon and summary
+        // redone, new preferences were refreshed when they were added.
+        final int N = changed.size();
+        for (int i = 0; i < N; i++) {
+            final Object tag = changed.valueAt(i).getTag();
+            if (tag != null) {
+                ((LongPressAccessPointPreference) tag).refresh();
+            }
+        }
+    }
+
+    /**
+     * Shows the latest access points available with supplemental information like
+     * the strength of network and the security for it.
+     *
+     * @param changed access points still waiting for a refresh; ones that get a new preference
+     *         here are taken out.
+     */
+    private void updateAccessPointList(ArraySet<AccessPoint> changed) {
         if (isUiRestricted()) {
             if (!isUiRestrictedByOnlyAdmin()) {
                 addMessagePreference(R.string.wifi_empty_list_user_restricted);
@@ -645,16 +756,16 @@ public class WifiSettings extends RestrictedSettingsFragment
             return;
         }
         final int wifiState = mWifiManager.getWifiState();
+        if (wifiState != WifiManager.WIFI_STATE_ENABLED) {
+            mRanker.clear();
+        }
 
         switch (wifiState) {
             case WifiManager.WIFI_STATE_ENABLED:
-                // AccessPoints are automatically sorted with TreeSet.
                 final Collection<AccessPoint> accessPoints =
                         mWifiTracker.getAccessPoints();
-
-                boolean hasAvailableAccessPoints = false;
-                int index = 0;
-                cacheRemoveAllPrefs(getPreferenceScreen());
+                final ArrayList<AccessPointRanker.Entry> entries =
+                        new ArrayList<>(accessPoints.size());
                 for (AccessPoint accessPoint : accessPoints) {
                     // Ignore access points that are out of range.
                     if (accessPoint.getLevel() != -1) {
@@ -662,29 +773,47 @@ public class WifiSettings extends RestrictedSettingsFragment
                         if (TextUtils.isEmpty(key)) {
                             key = accessPoint.getSsidStr();
                         }
-                        hasAvailableAccessPoints = true;
-                        LongPressAccessPointPreference pref = (LongPressAccessPointPreference)
-                                getCachedPreference(key);
-                        if (pref != null) {
+                        entries.add(new AccessPointRanker.Entry(key, accessPoint.isActive(),
+                                accessPoint.isSaved(), accessPoint.getLevel(),
+                                accessPoint.getSsidStr(), accessPoint));
+                    }
+                }
+                mScanScheduler.onResults(entries);
+                // Sorted like the tracker's TreeSet, but only moved on lasting level changes.
+                final List<AccessPointRanker.Entry> ranked = mRanker.rank(entries);
+
+                final boolean hasAvailableAccessPoints = !ranked.isEmpty();
+                int index = 0;
+                cacheRemoveAllPrefs(getPreferenceScreen());
+                for (AccessPointRanker.Entry entry : ranked) {
+                    final AccessPoint accessPoint = (AccessPoint) entry.tag;
+                    LongPressAccessPointPreference pref = (LongPressAccessPointPreference)
+                            getCachedPreference(entry.key);
+                    if (pref != null) {
+                        if (pref.getAccessPoint() == accessPoint) {
+                            // setOrder() is a no-op unless the position actually moved.
                             pref.setOrder(index++);
                             continue;
                         }
-                        LongPressAccessPointPreference
-                                preference = new LongPressAccessPointPreference(accessPoint,
-                                getPrefContext(), mUserBadgeCache, false,
-                                R.drawable.ic_wifi_signal_0, this);
-                        preference.setKey(key);
-                        preference.setOrder(index++);
-                        if (mOpenSsid != null && mOpenSsid.equals(accessPoint.getSsidStr())
-                                && !accessPoint.isSaved()
-                                && accessPoint.getSecurity() != AccessPoint.SECURITY_NONE) {
-                            onPreferenceTreeClick(preference);
-                            mOpenSsid = null;
-                        }
-                        getPreferenceScreen().addPreference(preference);
-                        accessPoint.setListener(this);
-                        preference.refresh();
+                        // The tracker replaced the access point, don't keep showing the old one.
+                        getPreferenceScreen().removePreference(pref);
+                    }
+                    LongPressAccessPointPreference
+                            preference = new LongPressAccessPointPreference(accessPoint,
+                            getPrefContext(), mUserBadgeCache, false,
+                            R.drawable.ic_wifi_signal_0, this);
+                    preference.setKey(entry.key);
+                    preference.setOrder(index++);
+                    if (mOpenSsid != null && mOpenSsid.equals(accessPoint.getSsidStr())
+                            && !accessPoint.isSaved()
+                            && accessPoint.getSecurity() != AccessPoint.SECURITY_NONE) {
+                        onPreferenceTreeClick(preference);
+                        mOpenSsid = null;
                     }
+                    getPreferenceScreen().addPreference(preference);
+                    accessPoint.setListener(this);
+                    preference.refresh();
+                    changed.remove(accessPoint);
                 }
                 removeCachedPrefs(getPreferenceScreen());
                 if (!hasAvailableAccessPoints) {
@@ -799,6 +928,14 @@ public class WifiSettings extends RestrictedSettingsFragment
 
     @Override
     public void onWifiStateChanged(int state) {
+        // Make sure the tracker's own scanner stays off when Wi-Fi comes back on.
+        mWifiTracker.pauseScanning();
+        mScanScheduler.setPaused(WifiScanScheduler.PAUSE_WIFI_OFF,
+                state != WifiManager.WIFI_STATE_ENABLED);
+        if (state == WifiManager.WIFI_STATE_ENABLED) {
+            mScanScheduler.onSignificantChange();
+        }
+
         switch (state) {
             case WifiManager.WIFI_STATE_ENABLING:
                 addMessagePreference(R.string.wifi_starting);
@@ -859,7 +996,7 @@ public class WifiSettings extends RestrictedSettingsFragment
             }
         }
 
-        mWifiTracker.resumeScanning();
+        mScanScheduler.onSignificantChange();
     }
 
     /* package */ void forget() {
@@ -879,7 +1016,7 @@ public class WifiSettings extends RestrictedSettingsFragment
             mWifiManager.forget(mSelectedAccessPoint.getConfig().networkId, mForgetListener);
         }
 
-        mWifiTracker.resumeScanning();
+        mScanScheduler.onSignificantChange();
 
         // We need to rename/replace "Next" button in wifi setup context.
         changeNextButtonState(false);
@@ -915,24 +1052,28 @@ public class WifiSettings extends RestrictedSettingsFragment
     }
 
     @Override
-    public void onAccessPointChanged(final AccessPoint accessPoint) {
-        View view = getView();
-        if (view != null) {
-            view.post(new Runnable() {
-                @Override
-                public void run() {
-                    Object tag = accessPoint.getTag();
-                    if (tag != null) {
-                        ((LongPressAccessPointPreference) tag).refresh();
-                    }
-                }
-            });
-        }
+    public void onAccessPointChanged(AccessPoint accessPoint) {
+        markChanged(accessPoint);
     }
 
     @Override
     public void onLevelChanged(AccessPoint accessPoint) {
-        ((LongPressAccessPointPreference) accessPoint.getTag()).onLevelChanged();
+        markChanged(accessPoint);
+    }
+
+    /**
+     * Queues a refresh of the preference of {@code accessPoint} for the next list update.
+     * Called on the tracker's background thread.
+     */
+    private void markChanged(AccessPoint accessPoint) {
+        final boolean wasEmpty;
+        synchronized (mChangedAccessPoints) {
+            wasEmpty = mChangedAccessPoints.isEmpty();
+            mChangedAccessPoints.add(accessPoint);
+        }
+        if (wasEmpty) {
+            mUiHandler.post(mScheduleUpdate);
+        }
     }
 
     public static final SearchIndexProvider SEARCH_INDEX_DATA_PROVIDER =
@@ -950,15 +1091,7 @@ public class WifiSettings extends RestrictedSettingsFragment
                 result.add(data);
 
                 // Add saved Wi-Fi access points
-                final Collection<AccessPoint> accessPoints =
-                        WifiTracker.getCurrentAccessPoints(context, true, false, false);
-                for (AccessPoint accessPoint : accessPoints) {
-                    data = new SearchIndexableRaw(context);
-                    data.title = accessPoint.getSsidStr();
-                    data.screenTitle = res.getString(R.string.wifi_settings);
-                    data.enabled = enabled;
-                    result.add(data);
-                }
+                SavedNetworksIndex.addRawDataToIndex(context, enabled, result);
 
                 return result;
             }
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.pm.ApplicationInfo;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.settingslib.applications.ApplicationsState;
+import com.android.settingslib.applications.ApplicationsState.AppEntry;
+import com.android.settingslib.applications.ApplicationsState.AppFilter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+public class AppListIndexTest extends AndroidTestCase {
+    private static final String TAG = "AppListIndexTest";
+    private static final int ENTRY_COUNT = 1000;
+    private static final int ITERATIONS = 20;
+
+    private static final AppFilter FILTER_EVEN_UID = new AppFilter() {
+        @Override
+        public void init() {
+        }
+
+        @Override
+        public boolean filterApp(AppEntry entry) {
+            return entry.info.uid % 2 == 0;
+        }
+    };
+
+    private ArrayList<AppEntry> mEntries;
+    private AppListIndex mIndex;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        Random random = new Random(42);
+        mEntries = new ArrayList<>(ENTRY_COUNT);
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            ApplicationInfo info = new ApplicationInfo();
+            info.packageName = "com.example.app" + random.nextInt(100000) + "." + i;
+            info.sourceDir = "/nonexistent/" + info.packageName + ".apk";
+            info.uid = 10000 + i;
+            info.flags = (i % 3 == 0) ? ApplicationInfo.FLAG_SYSTEM : 0;
+            info.enabled = i % 5 != 0;
+            AppEntry entry = new AppEntry(getContext(), info, i);
+            entry.size = random.nextInt(1 << 30);
+            entry.internalSize = entry.size / 2;
+            entry.externalSize = entry.size - entry.internalSize;
+            mEntries.add(entry);
+        }
+        mIndex = new AppListIndex();
+        mIndex.putOrder(ApplicationsState.ALPHA_COMPARATOR, sorted(mEntries,
+                ApplicationsState.ALPHA_COMPARATOR));
+    }
+
+    @SmallTest
+    public void testQuery_matchesFullRebuild() {
+        mIndex.sortOrder(ApplicationsState.SIZE_COMPARATOR);
+        AppFilter[] filters = new AppFilter[] {
+                ApplicationsState.FILTER_ALL_ENABLED, null, FILTER_EVEN_UID };
+
+        assertEquals(fullRebuild(filters, ApplicationsState.ALPHA_COMPARATOR),
+                mIndex.query(filters, ApplicationsState.ALPHA_COMPARATOR));
+        assertEquals(fullRebuild(filters, ApplicationsState.SIZE_COMPARATOR),
+                mIndex.query(filters, ApplicationsState.SIZE_COMPARATOR));
+        assertNull(mIndex.query(filters, ApplicationsState.INTERNAL_SIZE_COMPARATOR));
+    }
+
+    @SmallTest
+    public void testOnEntryChanged_repositionsOnlyChangedEntry() {
+        mIndex.sortOrder(ApplicationsState.SIZE_COMPARATOR);
+        AppFilter[] filters = new AppFilter[] { ApplicationsState.FILTER_EVERYTHING };
+
+        AppEntry changed = mEntries.get(ENTRY_COUNT / 2);
+        changed.size = Long.MAX_VALUE;
+        mIndex.onEntryChanged(changed.info.packageName);
+        ArrayList<AppEntry> bySize = mIndex.query(filters, ApplicationsState.SIZE_COMPARATOR);
+        assertSame(changed, bySize.get(0));
+        assertEquals(fullRebuild(filters, ApplicationsState.SIZE_COMPARATOR), bySize);
+
+        changed.size = -1;
+        mIndex.onEntryChanged(changed.info.packageName);
+        bySize = mIndex.query(filters, ApplicationsState.SIZE_COMPARATOR);
+        assertSame(changed, bySize.get(bySize.size() - 1));
+        assertEquals(fullRebuild(filters, ApplicationsState.SIZE_COMPARATOR), bySize);
+    }
+
+    @SmallTest
+    public void testOnEntryChanged_handlesOtherUnreportedChanges() {
+        mIndex.sortOrder(ApplicationsState.SIZE_COMPARATOR);
+        AppFilter[] filters = new AppFilter[] { ApplicationsState.FILTER_EVERYTHING };
+
+        // Both sizes change before either change is reported.
+        AppEntry first = mEntries.get(ENTRY_COUNT / 3);
+        AppEntry second = mEntries.get(2 * ENTRY_COUNT / 3);
+        first.size = Long.MAX_VALUE;
+        second.size = -1;
+        mIndex.onEntryChanged(first.info.packageName);
+        assertEquals(fullRebuild(filters, ApplicationsState.SIZE_COMPARATOR),
+                mIndex.query(filters, ApplicationsState.SIZE_COMPARATOR));
+
+        mIndex.onEntryChanged(second.info.packageName);
+        assertEquals(fullRebuild(filters, ApplicationsState.SIZE_COMPARATOR),
+                mIndex.query(filters, ApplicationsState.SIZE_COMPARATOR));
+    }
+
+    @SmallTest
+    public void testRebuildTime() {
+        mIndex.sortOrder(ApplicationsState.SIZE_COMPARATOR);
+        AppFilter[][] filterModes = new AppFilter[][] {
+                { ApplicationsState.FILTER_EVERYTHING },
+                { ApplicationsState.FILTER_ALL_ENABLED },
+                { ApplicationsState.FILTER_DISABLED, FILTER_EVEN_UID },
+                { ApplicationsState.FILTER_ALL_ENABLED, FILTER_EVEN_UID },
+        };
+        Comparator<AppEntry>[] comparators = new Comparator[] {
+                ApplicationsState.ALPHA_COMPARATOR, ApplicationsState.SIZE_COMPARATOR };
+
+        long fullStart = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            fullRebuild(filterModes[i % filterModes.length], comparators[i % 2]);
+        }
+        long fullNanos = SystemClock.elapsedRealtimeNanos() - fullStart;
+
+        long indexedStart = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            mIndex.query(filterModes[i % filterModes.length], comparators[i % 2]);
+        }
+        long indexedNanos = SystemClock.elapsedRealtimeNanos() - indexedStart;
+
+        long sizeChangeStart = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            AppEntry entry = mEntries.get(i * 37 % ENTRY_COUNT);
+            entry.size = entry.size / 2;
+            mIndex.onEntryChanged(entry.info.packageName);
+        }
+        long sizeChangeNanos = SystemClock.elapsedRealtimeNanos() - sizeChangeStart;
+
+        Log.i(TAG, ENTRY_COUNT + " entries: full rebuild " + fullNanos / ITERATIONS / 1000
+                + "us, indexed rebuild " + indexedNanos / ITERATIONS / 1000
+                + "us, single size change " + sizeChangeNanos / ITERATIONS / 1000 + "us");
+        assertEquals(fullRebuild(filterModes[0], ApplicationsState.SIZE_COMPARATOR),
+                mIndex.query(filterModes[0], ApplicationsState.SIZE_COMPARATOR));
+    }
+
+    private ArrayList<AppEntry> fullRebuild(AppFilter[] filters, Comparator<AppEntry> comparator) {
+        for (AppFilter filter : filters) {
+            if (filter != null) {
+                filter.init();
+            }
+        }
+        ArrayList<AppEntry> result = new ArrayList<>();
+        for (AppEntry entry : mEntries) {
+            boolean matches = true;
+            for (AppFilter filter : filters) {
+                if (filter != null) {
+                    matches &= filter.filterApp(entry);
+                }
+            }
+            if (matches) {
+                result.add(entry);
+            }
+        }
+        return sorted(result, comparator);
+    }
+
+    private static ArrayList<AppEntry> sorted(ArrayList<AppEntry> entries,
+            Comparator<AppEntry> comparator) {
+        ArrayList<AppEntry> result = new ArrayList<>(entries);
+        Collections.sort(result, comparator);
+        return result;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.settings.applications.AppOpsState.AppOpEntry;
+import com.android.settings.applications.AppOpsState.OpsTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class AppOpsSnapshotTest extends AndroidTestCase {
+    private static final String TAG = "AppOpsSnapshotTest";
+
+    private AppOpsState mState;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mState = new AppOpsState(getContext());
+    }
+
+    @SmallTest
+    public void testProjection_matchesPerTemplateBuild() {
+        AppOpsSnapshot snapshot = AppOpsSnapshot.build(mState.mAppOps, mState.mPm,
+                AppOpsState.ALL_TEMPLATES);
+        for (OpsTemplate tpl : AppOpsState.ALL_TEMPLATES) {
+            assertEquals(describe(build(tpl, null)), describe(build(tpl, snapshot)));
+        }
+    }
+
+    @SmallTest
+    public void testPopulateAllTabsTime() {
+        long start = SystemClock.elapsedRealtime();
+        for (OpsTemplate tpl : AppOpsState.ALL_TEMPLATES) {
+            build(tpl, null);
+        }
+        long perTemplate = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        AppOpsSnapshot snapshot = AppOpsSnapshot.build(mState.mAppOps, mState.mPm,
+                AppOpsState.ALL_TEMPLATES);
+        for (OpsTemplate tpl : AppOpsState.ALL_TEMPLATES) {
+            build(tpl, snapshot);
+        }
+        long shared = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, AppOpsState.ALL_TEMPLATES.length + " tabs: " + perTemplate
+                + "ms per template, " + shared + "ms from one snapshot");
+    }
+
+    private List<AppOpEntry> build(OpsTemplate tpl, AppOpsSnapshot snapshot) {
+        return mState.buildState(tpl, 0, null, AppOpsState.LABEL_COMPARATOR, false, snapshot);
+    }
+
+    private static List<String> describe(List<AppOpEntry> entries) {
+        List<String> result = new ArrayList<>(entries.size());
+        for (AppOpEntry entry : entries) {
+            StringBuilder sb = new StringBuilder(
+                    entry.getAppEntry().getApplicationInfo().packageName);
+            for (int i = 0; i < entry.getNumOpEntry(); i++) {
+                sb.append(' ').append(entry.getOpEntry(i).getOp());
+            }
+            result.add(sb.toString());
+        }
+        return result;
+    }
+}
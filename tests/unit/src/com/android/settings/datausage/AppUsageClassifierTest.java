@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.datausage;
+
+import android.net.NetworkStats;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.settingslib.AppItem;
+import com.android.settingslib.net.UidDetailProvider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class AppUsageClassifierTest extends AndroidTestCase {
+    private static final String TAG = "AppUsageClassifierTest";
+    private static final int PRIMARY_USER_ID = 0;
+    private static final int MANAGED_PROFILE_ID = 10;
+    private static final int ENTRY_COUNT = 10000;
+    private static final int APP_COUNT = 400;
+    private static final int ITERATIONS = 10;
+
+    private AppUsageClassifier mClassifier;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mClassifier = new AppUsageClassifier(UserManager.get(getContext()), PRIMARY_USER_ID,
+                Arrays.asList(new UserHandle(PRIMARY_USER_ID), new UserHandle(MANAGED_PROFILE_ID)),
+                -1);
+    }
+
+    @SmallTest
+    public void testClassify_collapsesUids() {
+        final int appUid = UserHandle.getUid(PRIMARY_USER_ID, Process.FIRST_APPLICATION_UID);
+        final int workUid = UserHandle.getUid(MANAGED_PROFILE_ID, Process.FIRST_APPLICATION_UID);
+        NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), 4);
+        stats.addValues(entry(appUid, 100, 50));
+        stats.addValues(entry(appUid, 10, 0));
+        stats.addValues(entry(workUid, 7, 3));
+        stats.addValues(entry(Process.SYSTEM_UID, 1, 1));
+        stats.addValues(entry(Process.PHONE_UID, 1, 1));
+
+        ArrayList<AppItem> items = mClassifier.classify(stats, new int[0]);
+
+        assertEquals(160, find(items, appUid).total);
+        assertEquals(10, find(items, workUid).total);
+        assertEquals(10, find(items,
+                UidDetailProvider.buildKeyForUser(MANAGED_PROFILE_ID)).total);
+        AppItem system = find(items, Process.SYSTEM_UID);
+        assertEquals(4, system.total);
+        assertEquals(2, system.uids.size());
+        assertEquals(160, mClassifier.getLargest());
+    }
+
+    @SmallTest
+    public void testClassify_splicesRestrictedUids() {
+        final int restrictedUid = UserHandle.getUid(PRIMARY_USER_ID,
+                Process.FIRST_APPLICATION_UID + 1);
+        ArrayList<AppItem> items = mClassifier.classify(null, new int[] { restrictedUid });
+
+        assertEquals(1, items.size());
+        assertTrue(items.get(0).restricted);
+        assertEquals(-1, items.get(0).total);
+    }
+
+    @SmallTest
+    public void testClassifyTime() {
+        NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), ENTRY_COUNT);
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            final int userId = i % 5 == 0 ? MANAGED_PROFILE_ID : PRIMARY_USER_ID;
+            final int appId = Process.FIRST_APPLICATION_UID + (i % APP_COUNT);
+            stats.addValues(entry(UserHandle.getUid(userId, appId), i, i / 2));
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        ArrayList<AppItem> items = null;
+        for (int i = 0; i < ITERATIONS; i++) {
+            items = mClassifier.classify(stats, new int[0]);
+        }
+        long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+
+        Log.i(TAG, ENTRY_COUNT + " entries, " + items.size() + " items: "
+                + elapsed / ITERATIONS / 1000 + "us per classify");
+        long total = 0;
+        for (AppItem item : items) {
+            if (item.category == AppItem.CATEGORY_APP) {
+                total += item.total;
+            }
+        }
+        long expected = 0;
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            expected += i + i / 2;
+        }
+        assertEquals(expected, total);
+    }
+
+    private static NetworkStats.Entry entry(int uid, long rxBytes, long txBytes) {
+        NetworkStats.Entry entry = new NetworkStats.Entry();
+        entry.iface = NetworkStats.IFACE_ALL;
+        entry.uid = uid;
+        entry.set = NetworkStats.SET_DEFAULT;
+        entry.tag = NetworkStats.TAG_NONE;
+        entry.rxBytes = rxBytes;
+        entry.txBytes = txBytes;
+        return entry;
+    }
+
+    private static AppItem find(ArrayList<AppItem> items, int key) {
+        for (AppItem item : items) {
+            if (item.key == key) {
+                return item;
+            }
+        }
+        fail("No item for key " + key);
+        return null;
+    }
+}
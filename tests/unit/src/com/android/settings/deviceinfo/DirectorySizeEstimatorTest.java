@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.os.SystemClock;
+import android.system.Os;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class DirectorySizeEstimatorTest extends AndroidTestCase {
+    private static final String TAG = "DirectorySizeEstimatorTest";
+
+    // 20 top-level directories of 50 directories of 100 files each: 100k files.
+    private static final int TOP_LEVEL_DIRS = 20;
+    private static final int SUBDIRS = 50;
+    private static final int FILES = 100;
+
+    private File mRoot;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mRoot = new File(getContext().getCacheDir(), "DirectorySizeEstimatorTest");
+        deleteRecursively(mRoot);
+        assertTrue(mRoot.mkdirs());
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        deleteRecursively(mRoot);
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testMeasure_matchesSingleThread() throws Exception {
+        buildTree(4, 5, 10);
+
+        final long sequential = new DirectorySizeEstimator(1, null).measure(mRoot);
+        final DirectorySizeEstimator estimator = new DirectorySizeEstimator(4, null);
+        final long parallel = estimator.measure(mRoot);
+
+        assertTrue(sequential > 0);
+        assertEquals(sequential, parallel);
+        assertTrue(estimator.isComplete());
+    }
+
+    @SmallTest
+    public void testMeasure_unreadableSubdirIsIncomplete() throws Exception {
+        buildTree(2, 1, 10);
+        final File unreadable = new File(mRoot, "dir1");
+        assertTrue(unreadable.setReadable(false, false));
+        try {
+            final DirectorySizeEstimator estimator = new DirectorySizeEstimator(4, null);
+            assertTrue(estimator.measure(mRoot) > 0);
+            assertFalse(estimator.isComplete());
+        } finally {
+            unreadable.setReadable(true, true);
+        }
+    }
+
+    @SmallTest
+    public void testMeasure_skipsSymlinks() throws Exception {
+        buildTree(1, 1, 10);
+        final long before = new DirectorySizeEstimator(4, null).measure(mRoot);
+
+        Os.symlink(new File(mRoot, "dir0").getPath(), new File(mRoot, "link").getPath());
+
+        assertEquals(before, new DirectorySizeEstimator(4, null).measure(mRoot));
+    }
+
+    @SmallTest
+    public void testMeasure_unreadableRoot() {
+        final DirectorySizeEstimator estimator = new DirectorySizeEstimator(4, null);
+        assertEquals(-1, estimator.measure(new File(mRoot, "missing")));
+        assertFalse(estimator.isComplete());
+    }
+
+    @LargeTest
+    public void testBenchmark_100kFiles() throws Exception {
+        buildTree(TOP_LEVEL_DIRS, SUBDIRS, FILES);
+
+        final long start = SystemClock.elapsedRealtime();
+        final long sequential = new DirectorySizeEstimator(1, null).measure(mRoot);
+        final long sequentialTime = SystemClock.elapsedRealtime() - start;
+
+        final int[] progressCalls = new int[1];
+        final long parallel = new DirectorySizeEstimator(DirectorySizeEstimator.DEFAULT_THREADS,
+                new DirectorySizeEstimator.ProgressListener() {
+                    @Override
+                    public void onProgress(long bytes) {
+                        synchronized (progressCalls) {
+                            progressCalls[0]++;
+                        }
+                    }
+                }).measure(mRoot);
+        final long parallelTime = SystemClock.elapsedRealtime() - start - sequentialTime;
+
+        Log.i(TAG, TOP_LEVEL_DIRS * SUBDIRS * FILES + " files, " + sequential + " bytes: "
+                + sequentialTime + "ms on 1 thread, " + parallelTime + "ms on "
+                + DirectorySizeEstimator.DEFAULT_THREADS + " threads, " + progressCalls[0]
+                + " progress updates");
+        assertEquals(sequential, parallel);
+    }
+
+    private void buildTree(int topLevelDirs, int subdirs, int files) throws IOException {
+        final byte[] content = new byte[1];
+        for (int i = 0; i < topLevelDirs; i++) {
+            for (int j = 0; j < subdirs; j++) {
+                final File dir = new File(mRoot, "dir" + i + File.separator + "sub" + j);
+                assertTrue(dir.mkdirs());
+                for (int k = 0; k < files; k++) {
+                    try (FileOutputStream out = new FileOutputStream(new File(dir, "f" + k))) {
+                        out.write(content);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
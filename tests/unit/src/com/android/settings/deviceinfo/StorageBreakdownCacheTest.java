@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.os.Environment;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.HashMap;
+
+public class StorageBreakdownCacheTest extends AndroidTestCase {
+    private static final long NOW = 1000000000L;
+
+    @SmallTest
+    public void testWriteRead_roundTrips() throws Exception {
+        final StorageBreakdownCache.Entry entry = buildEntry();
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        StorageBreakdownCache.writeEntry(new DataOutputStream(bytes), entry);
+        final StorageBreakdownCache.Entry read = StorageBreakdownCache.readEntry(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(entry.timestamp, read.timestamp);
+        assertTrue(read.fingerprint.mediaEquals(entry.fingerprint));
+        assertTrue(read.fingerprint.packagesEqual(entry.fingerprint));
+        assertEquals(100L, read.details.totalSize);
+        assertEquals(40L, read.details.availSize);
+        assertEquals(5L, read.details.cacheSize);
+        assertEquals(20L, read.details.appsSize.get(0));
+        assertEquals(7L, read.details.appsSize.get(10));
+        assertEquals(3L, read.details.miscSize.get(0));
+        assertEquals(30L, read.details.usersSize.get(10));
+        assertEquals(Long.valueOf(11),
+                read.details.mediaSize.get(0).get(Environment.DIRECTORY_DCIM));
+        assertEquals(Long.valueOf(2),
+                read.details.mediaSize.get(0).get(Environment.DIRECTORY_MUSIC));
+    }
+
+    @SmallTest
+    public void testIsCurrent_sameFingerprint() {
+        final StorageBreakdownCache.Entry entry = buildEntry();
+        assertTrue(StorageBreakdownCache.isCurrent(entry, fingerprint(), 40, NOW + 1000));
+    }
+
+    @SmallTest
+    public void testIsCurrent_mediaChanged() {
+        final StorageBreakdownCache.Fingerprint fingerprint = fingerprint();
+        fingerprint.mediaCount++;
+        assertFalse(StorageBreakdownCache.isCurrent(buildEntry(), fingerprint, 40, NOW));
+    }
+
+    @SmallTest
+    public void testIsCurrent_packagesChanged() {
+        final StorageBreakdownCache.Fingerprint fingerprint = fingerprint();
+        fingerprint.packageUpdated++;
+        assertFalse(StorageBreakdownCache.isCurrent(buildEntry(), fingerprint, 40, NOW));
+    }
+
+    @SmallTest
+    public void testIsCurrent_freeSpaceChanged() {
+        final StorageBreakdownCache.Entry entry = buildEntry();
+        assertTrue(StorageBreakdownCache.isCurrent(entry, fingerprint(),
+                40 + StorageBreakdownCache.AVAIL_SLOP_BYTES, NOW));
+        assertFalse(StorageBreakdownCache.isCurrent(entry, fingerprint(),
+                41 + StorageBreakdownCache.AVAIL_SLOP_BYTES, NOW));
+    }
+
+    @SmallTest
+    public void testIsCurrent_tooOld() {
+        final StorageBreakdownCache.Entry entry = buildEntry();
+        assertFalse(StorageBreakdownCache.isCurrent(entry, fingerprint(), 40,
+                NOW + StorageBreakdownCache.MAX_AGE_MS + 1));
+        // A clock set back can't vouch for the entry either.
+        assertFalse(StorageBreakdownCache.isCurrent(entry, fingerprint(), 40, NOW - 1));
+    }
+
+    private static StorageBreakdownCache.Entry buildEntry() {
+        final StorageBreakdownCache.Entry entry = new StorageBreakdownCache.Entry();
+        entry.timestamp = NOW;
+        entry.fingerprint = fingerprint();
+        entry.details.totalSize = 100;
+        entry.details.availSize = 40;
+        entry.details.cacheSize = 5;
+        entry.details.appsSize.put(0, 20);
+        entry.details.appsSize.put(10, 7);
+        entry.details.miscSize.put(0, 3);
+        entry.details.usersSize.put(10, 30);
+        final HashMap<String, Long> media = new HashMap<>();
+        media.put(Environment.DIRECTORY_DCIM, 11L);
+        media.put(Environment.DIRECTORY_MUSIC, 2L);
+        entry.details.mediaSize.put(0, media);
+        return entry;
+    }
+
+    private static StorageBreakdownCache.Fingerprint fingerprint() {
+        final StorageBreakdownCache.Fingerprint fingerprint =
+                new StorageBreakdownCache.Fingerprint();
+        fingerprint.mediaCount = 12;
+        fingerprint.mediaSize = 13;
+        fingerprint.mediaModified = 14;
+        fingerprint.packageCount = 15;
+        fingerprint.packageUpdated = 16;
+        return fingerprint;
+    }
+}
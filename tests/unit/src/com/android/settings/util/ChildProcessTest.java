@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ChildProcessTest extends AndroidTestCase {
+    private static final int LINE_COUNT = 3000;
+
+    @SmallTest
+    public void testOutput_decodesCharacterSplitAcrossReads() {
+        // The euro sign is E2 82 AC; the pause hands the reader its first two bytes alone.
+        CommandResult result = CMDProcessor.runShellCommand(
+                "printf 'price \\342\\202'; sleep 0.2; printf '\\254\\n'");
+
+        assertTrue(result.success());
+        assertEquals("price €\n", result.getStdout());
+    }
+
+    @SmallTest
+    public void testOutput_decodesManyMultibyteLines() throws Exception {
+        // Enough output for reads to end wherever the pipe happens to hand it over.
+        final String line = "héllo wörld €";
+        final List<String> lines = new ArrayList<>();
+        ChildProcess proc = CMDProcessor.startShellCommand("i=0; while [ $i -lt " + LINE_COUNT
+                + " ]; do echo '" + line + "'; i=$((i+1)); done; echo oops >&2; exit 3",
+                (l, stderr) -> {
+                    if (!stderr) {
+                        synchronized (lines) {
+                            lines.add(l);
+                        }
+                    }
+                }, 0);
+
+        CommandResult result = proc.getFuture().get();
+
+        assertEquals(3, (int) result.getExitValue());
+        assertEquals("oops\n", result.getStderr());
+        assertEquals(LINE_COUNT * (line.length() + 1), result.getStdout().length());
+        assertEquals(LINE_COUNT, lines.size());
+        for (String l : lines) {
+            assertEquals(line, l);
+        }
+    }
+
+    @SmallTest
+    public void testStdin_isPassedToChild() {
+        final StringBuilder input = new StringBuilder();
+        for (int i = 0; i < LINE_COUNT; i++) {
+            input.append("äöü ").append(i).append('\n');
+        }
+        CommandResult result = CMDProcessor.runSysCmd(new String[] { "cat" }, input.toString());
+
+        assertTrue(result.success());
+        assertEquals(input.toString(), result.getStdout());
+    }
+
+    @SmallTest
+    public void testTimeout_killsChild() {
+        ChildProcess proc = CMDProcessor.startShellCommand("echo started; sleep 10", null, 200);
+
+        proc.waitFinished();
+
+        assertTrue(proc.isTimedOut());
+        assertFalse(proc.getResult().success());
+        assertEquals("started\n", proc.getResult().getStdout());
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.ArrayMap;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+public class KernelFileCacheTest extends AndroidTestCase {
+    private File mDir;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), "KernelFileCacheTest");
+        mDir.mkdirs();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testReadOneLine_returnsFirstLine() throws Exception {
+        KernelFileCache cache = new KernelFileCache(0);
+        assertEquals("noop deadline [cfq]",
+                cache.readOneLine(write("scheduler", "noop deadline [cfq]\nsecond\n")));
+        assertEquals("", cache.readOneLine(write("blank", "\n")));
+        assertNull(cache.readOneLine(write("empty", "")));
+        assertEquals("no newline", cache.readOneLine(write("partial", "no newline")));
+    }
+
+    @SmallTest
+    public void testReadOneLine_readsLinesLongerThanBuffer() throws Exception {
+        KernelFileCache cache = new KernelFileCache(0);
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            line.append(i).append(' ');
+        }
+        assertEquals(line.toString(),
+                cache.readOneLine(write("long", line + "\nsecond\n")));
+    }
+
+    @SmallTest
+    public void testPut_cachesValueReadElsewhere() throws Exception {
+        KernelFileCache cache = new KernelFileCache(60 * 1000);
+        String missing = new File(mDir, "missing").getPath();
+        cache.put(missing, "42");
+        assertEquals("42", cache.readOneLine(missing));
+        assertEquals("42", cache.readOneLines(missing).get(missing));
+    }
+
+    @SmallTest
+    public void testReadOneLine_cachesUntilInvalidated() throws Exception {
+        KernelFileCache cache = new KernelFileCache(60 * 1000);
+        String path = write("value", "1\n");
+        assertEquals("1", cache.readOneLine(path));
+
+        write("value", "2\n");
+        assertEquals("1", cache.readOneLine(path));
+
+        cache.invalidate(path);
+        assertEquals("2", cache.readOneLine(path));
+    }
+
+    @SmallTest
+    public void testReadOneLine_expiresAfterTtl() throws Exception {
+        KernelFileCache cache = new KernelFileCache(0);
+        String path = write("value", "1\n");
+        assertEquals("1", cache.readOneLine(path));
+
+        write("value", "2\n");
+        assertEquals("2", cache.readOneLine(path));
+    }
+
+    @SmallTest
+    public void testReadOneLines_leavesOutMissingFiles() throws Exception {
+        KernelFileCache cache = new KernelFileCache(60 * 1000);
+        String a = write("a", "100\n");
+        String b = write("b", "200\n");
+        String missing = new File(mDir, "missing").getPath();
+
+        ArrayMap<String, String> values = cache.readOneLines(a, b, missing);
+
+        assertEquals(2, values.size());
+        assertEquals("100", values.get(a));
+        assertEquals("200", values.get(b));
+        try {
+            cache.readOneLine(missing);
+            fail("Missing file was read");
+        } catch (IOException expected) {
+        }
+    }
+
+    private String write(String name, String contents) throws IOException {
+        File file = new File(mDir, name);
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(contents);
+        }
+        return file.getPath();
+    }
+}
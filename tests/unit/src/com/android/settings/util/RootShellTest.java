@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.util;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public class RootShellTest extends AndroidTestCase {
+    // sh stands in for su, the framing is the same.
+    private RootShell mShell;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mShell = new RootShell(new String[] { "sh" });
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mShell.close();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testRun_separatesOutputAndExitValues() {
+        CommandResult result = mShell.run("echo out; echo err >&2; printf partial; exit 7");
+        assertEquals(7, (int) result.getExitValue());
+        assertEquals("out\npartial", result.getStdout());
+        assertEquals("err\n", result.getStderr());
+
+        // The exit only left the subshell, the session is still usable.
+        result = mShell.run("echo next");
+        assertTrue(result.success());
+        assertEquals("next\n", result.getStdout());
+    }
+
+    @SmallTest
+    public void testRun_commandCantReadFollowingCommands() {
+        CommandResult result = mShell.run("cat; echo done");
+        assertTrue(result.success());
+        assertEquals("done\n", result.getStdout());
+    }
+
+    @SmallTest
+    public void testTimeout_restartsSession() {
+        CommandResult result = mShell.run("sleep 10", 200);
+        assertFalse(result.success());
+
+        result = mShell.run("echo alive");
+        assertTrue(result.success());
+        assertEquals("alive\n", result.getStdout());
+    }
+
+    @SmallTest
+    public void testRunAsync_keepsResultsApart() throws Exception {
+        List<CompletableFuture<CommandResult>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(mShell.runAsync("echo " + i));
+        }
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i + "\n", futures.get(i).get().getStdout());
+        }
+    }
+
+    @SmallTest
+    public void testInterrupt_failsCommandAndKeepsInterrupt() throws Exception {
+        final Thread caller = Thread.currentThread();
+        final Thread interrupter = new Thread(() -> {
+            SystemClock.sleep(200);
+            caller.interrupt();
+        });
+        interrupter.start();
+        final long start = SystemClock.elapsedRealtime();
+        CommandResult result = mShell.run("sleep 10");
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+        // Clears the interrupt for the rest of the test.
+        final boolean interrupted = Thread.interrupted();
+        interrupter.join();
+
+        assertFalse(result.success());
+        assertTrue("Took " + elapsed + "ms", elapsed < 5000);
+        assertTrue(interrupted);
+
+        result = mShell.run("echo alive");
+        assertTrue(result.success());
+        assertEquals("alive\n", result.getStdout());
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.wifi;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class AccessPointRankerTest extends AndroidTestCase {
+    private static final String TAG = "AccessPointRankerTest";
+
+    // Replay of a crowded office: many BSSIDs whose RSSI wanders around level boundaries.
+    private static final int BSSID_COUNT = 200;
+    private static final int SCAN_COUNT = 300;
+    private static final int MIN_RSSI = -100;
+    private static final int MAX_RSSI = -55;
+
+    @SmallTest
+    public void testRank_ordersLikeAccessPoint() {
+        AccessPointRanker ranker = new AccessPointRanker();
+        List<AccessPointRanker.Entry> ranked = ranker.rank(entries(
+                entry("weak", false, false, 1, "b"),
+                entry("saved", false, true, 0, "z"),
+                entry("strong", false, false, 4, "c"),
+                entry("active", true, true, 2, "y"),
+                entry("strong2", false, false, 4, "A")));
+
+        assertEquals("[active, saved, strong2, strong, weak]", keys(ranked));
+    }
+
+    @SmallTest
+    public void testRank_smallLevelChangeNeedsConfirmation() {
+        AccessPointRanker ranker = new AccessPointRanker();
+        ranker.rank(entries(entry("a", false, false, 2, "a"), entry("b", false, false, 3, "b")));
+
+        // One scan of "a" creeping up isn't enough to move it.
+        List<AccessPointRanker.Entry> ranked = ranker.rank(entries(
+                entry("a", false, false, 3, "a"), entry("b", false, false, 2, "b")));
+        assertEquals("[b, a]", keys(ranked));
+        assertEquals(2, ranked.get(1).getRankLevel());
+
+        // The second one is.
+        ranked = ranker.rank(entries(
+                entry("a", false, false, 3, "a"), entry("b", false, false, 2, "b")));
+        assertEquals("[a, b]", keys(ranked));
+    }
+
+    @SmallTest
+    public void testRank_largeLevelChangeIsImmediate() {
+        AccessPointRanker ranker = new AccessPointRanker();
+        ranker.rank(entries(entry("a", false, false, 1, "a"), entry("b", false, false, 2, "b")));
+
+        List<AccessPointRanker.Entry> ranked = ranker.rank(entries(
+                entry("a", false, false, 3, "a"), entry("b", false, false, 2, "b")));
+        assertEquals("[a, b]", keys(ranked));
+    }
+
+    @SmallTest
+    public void testRank_forgetsAccessPointsThatLeft() {
+        AccessPointRanker ranker = new AccessPointRanker();
+        ranker.rank(entries(entry("a", false, false, 2, "a")));
+        ranker.rank(entries());
+
+        List<AccessPointRanker.Entry> ranked = ranker.rank(entries(
+                entry("a", false, false, 3, "a")));
+        assertEquals(3, ranked.get(0).getRankLevel());
+    }
+
+    @SmallTest
+    public void testReplay_hysteresisReducesReordering() {
+        final List<List<AccessPointRanker.Entry>> scans = buildScans();
+
+        final long start = SystemClock.elapsedRealtime();
+        final int plainMoves = replay(new AccessPointRanker(1), scans);
+        final long plainTime = SystemClock.elapsedRealtime() - start;
+        final int moves = replay(new AccessPointRanker(), scans);
+        final long time = SystemClock.elapsedRealtime() - start - plainTime;
+
+        Log.i(TAG, SCAN_COUNT + " scans of " + BSSID_COUNT + " BSSIDs: " + plainMoves
+                + " moves in " + plainTime + "ms without hysteresis, " + moves + " moves in "
+                + time + "ms with it");
+        assertTrue(moves < plainMoves);
+    }
+
+    /**
+     * Returns how many times an entry ended up at a different position than in the previous scan,
+     * which is how often the list would visibly reshuffle.
+     */
+    private static int replay(AccessPointRanker ranker, List<List<AccessPointRanker.Entry>> scans) {
+        int moves = 0;
+        List<AccessPointRanker.Entry> previous = null;
+        for (List<AccessPointRanker.Entry> scan : scans) {
+            final List<AccessPointRanker.Entry> ranked = ranker.rank(scan);
+            if (previous != null) {
+                for (int i = 0; i < ranked.size(); i++) {
+                    if (!ranked.get(i).key.equals(previous.get(i).key)) {
+                        moves++;
+                    }
+                }
+            }
+            previous = ranked;
+        }
+        return moves;
+    }
+
+    private static List<List<AccessPointRanker.Entry>> buildScans() {
+        final Random random = new Random(42);
+        final int[] rssi = new int[BSSID_COUNT];
+        for (int i = 0; i < BSSID_COUNT; i++) {
+            rssi[i] = MIN_RSSI + random.nextInt(MAX_RSSI - MIN_RSSI);
+        }
+        final List<List<AccessPointRanker.Entry>> scans = new ArrayList<>(SCAN_COUNT);
+        for (int scan = 0; scan < SCAN_COUNT; scan++) {
+            final List<AccessPointRanker.Entry> entries = new ArrayList<>(BSSID_COUNT);
+            for (int i = 0; i < BSSID_COUNT; i++) {
+                // Slow drift plus per-scan noise of a few dB.
+                rssi[i] = Math.max(MIN_RSSI, Math.min(MAX_RSSI, rssi[i] + random.nextInt(3) - 1));
+                final int measured = rssi[i] + random.nextInt(7) - 3;
+                entries.add(entry("bssid" + i, false, i % 20 == 0, level(measured), "ssid" + i));
+            }
+            scans.add(entries);
+        }
+        return scans;
+    }
+
+    // Same buckets as WifiManager.calculateSignalLevel(rssi, 5).
+    private static int level(int rssi) {
+        if (rssi <= MIN_RSSI) {
+            return 0;
+        } else if (rssi >= MAX_RSSI) {
+            return 4;
+        }
+        return (rssi - MIN_RSSI) * 4 / (MAX_RSSI - MIN_RSSI);
+    }
+
+    private static AccessPointRanker.Entry entry(String key, boolean active, boolean saved,
+            int level, String ssid) {
+        return new AccessPointRanker.Entry(key, active, saved, level, ssid, null);
+    }
+
+    private static List<AccessPointRanker.Entry> entries(AccessPointRanker.Entry... entries) {
+        final List<AccessPointRanker.Entry> list = new ArrayList<>();
+        for (AccessPointRanker.Entry entry : entries) {
+            list.add(entry);
+        }
+        return list;
+    }
+
+    private static String keys(List<AccessPointRanker.Entry> entries) {
+        final List<String> keys = new ArrayList<>();
+        for (AccessPointRanker.Entry entry : entries) {
+            keys.add(entry.key);
+        }
+        return keys.toString();
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.wifi;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class WifiScanSchedulerTest extends AndroidTestCase {
+    private static final long MIN_INTERVAL_MS = 10;
+    private static final long MAX_INTERVAL_MS = 80;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private WifiScanScheduler mScheduler;
+    // Results "returned" by each scan, only touched on the handler thread.
+    private List<AccessPointRanker.Entry> mResults = entries(0);
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread("WifiScanSchedulerTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mScheduler = new WifiScanScheduler(mHandler, () -> {
+            mScheduler.onResults(mResults);
+            return true;
+        }, MIN_INTERVAL_MS, MAX_INTERVAL_MS);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        runOnHandler(() -> mScheduler.stop());
+        mThread.quit();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testStableResults_backOff() throws Exception {
+        runOnHandler(() -> mScheduler.start());
+        Thread.sleep(1000);
+
+        final long[] interval = new long[1];
+        final int[] scans = new int[1];
+        runOnHandler(() -> {
+            interval[0] = mScheduler.getIntervalMs();
+            scans[0] = mScheduler.getScanCount();
+        });
+        assertEquals(MAX_INTERVAL_MS, interval[0]);
+        // A fixed interval would have scanned about a hundred times.
+        assertTrue("Scanned " + scans[0] + " times", scans[0] < 30);
+    }
+
+    @SmallTest
+    public void testSignificantChange_speedsUp() throws Exception {
+        runOnHandler(() -> mScheduler.start());
+        Thread.sleep(500);
+
+        final long[] interval = new long[1];
+        runOnHandler(() -> {
+            mResults = entries(1);
+            mScheduler.onResults(mResults);
+            interval[0] = mScheduler.getIntervalMs();
+        });
+        assertEquals(MIN_INTERVAL_MS, interval[0]);
+    }
+
+    @SmallTest
+    public void testPaused_doesNotScan() throws Exception {
+        runOnHandler(() -> {
+            mScheduler.setPaused(WifiScanScheduler.PAUSE_DIALOG, true);
+            mScheduler.start();
+        });
+        Thread.sleep(100);
+
+        final int[] scans = new int[1];
+        runOnHandler(() -> scans[0] = mScheduler.getScanCount());
+        assertEquals(0, scans[0]);
+
+        runOnHandler(() -> mScheduler.setPaused(WifiScanScheduler.PAUSE_DIALOG, false));
+        Thread.sleep(100);
+        runOnHandler(() -> scans[0] = mScheduler.getScanCount());
+        assertTrue(scans[0] > 0);
+    }
+
+    private void runOnHandler(final Runnable runnable) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        mHandler.post(() -> {
+            runnable.run();
+            latch.countDown();
+        });
+        latch.await();
+    }
+
+    /**
+     * Returns a set of access points, a different one for each {@code generation}.
+     */
+    private static List<AccessPointRanker.Entry> entries(int generation) {
+        final List<AccessPointRanker.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            final String key = "bssid" + generation + "-" + i;
+            entries.add(new AccessPointRanker.Entry(key, false, false, i % 5, key, null));
+        }
+        return entries;
+    }
+}